@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.tests;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.android.media.benchmark.R;
+import com.android.media.benchmark.library.AbrLadder;
+import com.android.media.benchmark.library.Extractor;
+import com.android.media.benchmark.library.Metrics;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Decodes a clip once and encodes an increasing number of renditions of an adaptive streaming
+ * ladder from it, to find the largest ladder the device encodes in real time.
+ */
+@RunWith(Parameterized.class)
+public class AbrLadderTest {
+    private static final Context mContext =
+            InstrumentationRegistry.getInstrumentation().getTargetContext();
+    private static final String mInputFilePath = mContext.getString(R.string.input_file_path);
+    private static final String mMetricsFile = mContext.getExternalFilesDir(null)
+            + "/AbrLadder." + System.currentTimeMillis() + ".csv";
+    private static final String TAG = "AbrLadderTest";
+    private static final long PER_TEST_TIMEOUT_MS = 600000;
+    private static final int QUEUE_CAPACITY = 4;
+    /* Parameters: width, height, bitrate. Ordered from the top of the ladder down. */
+    private static final int[][] LADDER = {
+            {1920, 1080, 6000000},
+            {1280, 720, 3000000},
+            {854, 480, 1500000},
+            {640, 360, 800000},
+            {426, 240, 400000}};
+    private String mInputFile;
+
+    public AbrLadderTest(String inputFile) { this.mInputFile = inputFile; }
+
+    @Parameterized.Parameters
+    public static Collection<Object[]> input() {
+        return Arrays.asList(new Object[][]{
+                {"crowd_1920x1080_25fps_6700kbps_h264.ts"},
+                {"crowd_1920x1080_25fps_4000kbps_h265.mkv"},
+                {"crowd_1920x1080_25fps_4000kbps_vp9.webm"},
+                {"crowd_1920x1080_25fps_4000kbps_vp8.webm"}});
+    }
+
+    @BeforeClass
+    public static void writeMetricsHeaderToFile() throws IOException {
+        boolean status = Metrics.writeMetricsHeader(mMetricsFile);
+        assertTrue("Unable to open metrics file for writing!", status);
+        Log.d(TAG, "Saving Benchmark results in: " + mMetricsFile);
+    }
+
+    @Test(timeout = PER_TEST_TIMEOUT_MS)
+    public void testAbrLadder() throws Exception {
+        File inputFile = new File(mInputFilePath + mInputFile);
+        assertTrue("Cannot find " + mInputFile + " in directory " + mInputFilePath,
+                inputFile.exists());
+        int maxRealTimeLadderSize = 0;
+        for (int ladderSize = 1; ladderSize <= LADDER.length; ladderSize++) {
+            FileInputStream fileInput = new FileInputStream(inputFile);
+            Extractor extractor = new Extractor();
+            int trackCount = extractor.setUpExtractor(fileInput.getFD());
+            assertTrue("Extraction failed. No tracks for file: " + mInputFile, (trackCount > 0));
+            AbrLadder ladder = new AbrLadder(QUEUE_CAPACITY);
+            for (int i = 0; i < ladderSize; i++) {
+                ladder.addRendition(LADDER[i][0], LADDER[i][1], LADDER[i][2], "");
+            }
+            int status = ladder.encode(extractor, 0, "");
+            extractor.deinitExtractor();
+            fileInput.close();
+            assertEquals("Ladder of " + ladderSize + " renditions failed for file: " + mInputFile,
+                    0, status);
+            Metrics metrics = ladder.getMetrics(mInputFile);
+            metrics.dumpMetrics(mMetricsFile);
+            Log.i(TAG, metrics.toString());
+            if (!ladder.isRealTime()) {
+                break;
+            }
+            maxRealTimeLadderSize = ladderSize;
+        }
+        Metrics summary = new Metrics(mInputFile, "abrLadder", "summary");
+        summary.add("maxRealTimeLadderSize", maxRealTimeLadderSize);
+        summary.dumpMetrics(mMetricsFile);
+        Log.i(TAG, summary.toString());
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.tests;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.android.media.benchmark.R;
+import com.android.media.benchmark.library.BenchmarkManifest;
+
+import org.junit.rules.Stopwatch;
+import org.junit.rules.TestRule;
+import org.junit.rules.Timeout;
+import org.junit.runner.Description;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the parameters of a test from the {@link BenchmarkManifest} given to the
+ * instrumentation, or from the clip list built into the test when there is none, restricted by
+ * the instrumentation arguments:
+ * <pre>
+ * manifest   Manifest of the run, relative to input_file_path unless absolute
+ * costs      Cost file the shards are balanced by, relative to input_file_path unless absolute
+ * clip       Regular expression of the clips to run
+ * codec      Regular expression of the codecs to run
+ * mode       Regular expression of the modes to run, sync/async or the muxer formats
+ * shardIndex Shard of the cases to run, from 0 to shardCount - 1
+ * shardCount Number of devices the run is spread over
+ * </pre>
+ * With a manifest, the cases of all tests are split into shards together, otherwise the clips of
+ * each test are. Every test method that passes appends its wall time to
+ * BenchmarkCosts.csv in the external files directory, the costs of later runs once pulled.
+ */
+final class BenchmarkCases {
+    private static final String TAG = "BenchmarkCases";
+    private static final Context mContext =
+            InstrumentationRegistry.getInstrumentation().getTargetContext();
+    private static final String mInputFilePath = mContext.getString(R.string.input_file_path);
+    private static final File mCostFile =
+            new File(mContext.getExternalFilesDir(null), "BenchmarkCosts.csv");
+    // Cases of the shard of this device when a manifest is given, loaded once per process
+    private static List<BenchmarkManifest.Case> sManifestShard;
+
+    private BenchmarkCases() {}
+
+    private static File getFile(String name) {
+        File file = new File(name);
+        return file.isAbsolute() ? file : new File(mInputFilePath + name);
+    }
+
+    private static Bundle getArguments() {
+        Bundle args = InstrumentationRegistry.getArguments();
+        return args != null ? args : new Bundle();
+    }
+
+    private static List<BenchmarkManifest.Case> getShard(BenchmarkManifest manifest, Bundle args)
+            throws IOException {
+        manifest = manifest.filter(args.getString("clip"), args.getString("codec"),
+                args.getString("mode"));
+        String costs = args.getString("costs");
+        Map<String, Long> costMap = costs != null ? BenchmarkManifest.loadCosts(getFile(costs))
+                : Collections.emptyMap();
+        return manifest.getShard(Integer.parseInt(args.getString("shardIndex", "0")),
+                Integer.parseInt(args.getString("shardCount", "1")), costMap);
+    }
+
+    private static synchronized List<BenchmarkManifest.Case> getManifestShard(String manifest)
+            throws IOException {
+        if (sManifestShard == null) {
+            Log.i(TAG, "Loading benchmark manifest " + manifest);
+            sManifestShard = getShard(BenchmarkManifest.load(getFile(manifest)), getArguments());
+        }
+        return sManifestShard;
+    }
+
+    /**
+     * Returns the parameters of a test, each row of its built-in list followed by the case it
+     * runs. The case of a row holds the single mode of the row, if the test has modes.
+     *
+     * @param test     Simple name of the test class
+     * @param defaults Built-in list of the test, rows of a clip and optionally of a boolean
+     *                 async mode, an integer track or a string mode
+     */
+    static Collection<Object[]> select(String test, Object[][] defaults) throws IOException {
+        Object kind = defaults[0].length > 1 ? defaults[0][1] : null;
+        // Modes of each clip in the built-in list, the modes of the cases which have none
+        Map<String, LinkedHashSet<String>> defaultModes = new LinkedHashMap<>();
+        LinkedHashSet<String> allModes = new LinkedHashSet<>();
+        BenchmarkManifest builtIn = new BenchmarkManifest();
+        for (Object[] row : defaults) {
+            String clip = (String) row[0];
+            String mode = toMode(row.length > 1 ? row[1] : null);
+            if (kind instanceof Integer) {
+                builtIn.add(new BenchmarkManifest.Case(test, clip, new int[]{(Integer) row[1]},
+                        new String[0], null, null, 1, 0));
+                continue;
+            }
+            builtIn.add(BenchmarkManifest.Case.of(test, clip, mode));
+            if (mode != null) {
+                defaultModes.computeIfAbsent(clip, k -> new LinkedHashSet<>()).add(mode);
+                allModes.add(mode);
+            }
+        }
+        Bundle args = getArguments();
+        String manifest = args.getString("manifest");
+        List<BenchmarkManifest.Case> cases;
+        if (manifest != null) {
+            cases = new ArrayList<>();
+            for (BenchmarkManifest.Case testCase : getManifestShard(manifest)) {
+                if (testCase.getTest().equals(test)) {
+                    cases.add(testCase);
+                }
+            }
+        } else {
+            cases = getShard(builtIn, args);
+        }
+
+        ArrayList<Object[]> params = new ArrayList<>();
+        for (BenchmarkManifest.Case testCase : cases) {
+            List<Object[]> rows = new ArrayList<>();
+            String clip = testCase.getClip();
+            if (kind == null) {
+                rows.add(new Object[]{clip, testCase});
+            } else if (kind instanceof Integer) {
+                int[] tracks = testCase.getTracks().length > 0 ? testCase.getTracks()
+                        : new int[]{0};
+                for (int track : tracks) {
+                    rows.add(new Object[]{clip, track, testCase});
+                }
+            } else {
+                Collection<String> modes = testCase.getModes().length > 0
+                        ? Arrays.asList(testCase.getModes())
+                        : defaultModes.getOrDefault(clip, allModes);
+                for (String mode : modes) {
+                    Object value = kind instanceof Boolean ? (Object) mode.equals("async") : mode;
+                    rows.add(new Object[]{clip, value, testCase.withModes(new String[]{mode})});
+                }
+            }
+            for (int repetition = 0; repetition < testCase.getRepetitions(); repetition++) {
+                params.addAll(rows);
+            }
+        }
+        Log.i(TAG, test + ": " + params.size() + " runs of " + cases.size() + " cases");
+        return params;
+    }
+
+    private static String toMode(Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean) value ? "async" : "sync";
+        }
+        return value instanceof String ? (String) value : null;
+    }
+
+    /**
+     * Returns a rule bounding every test method of the case by its timeout, if it has one. The
+     * timeouts of the test methods still apply.
+     */
+    static TestRule newTimeout(BenchmarkManifest.Case testCase) {
+        if (testCase.getTimeoutMs() > 0) {
+            return Timeout.millis(testCase.getTimeoutMs());
+        }
+        return (base, description) -> base;
+    }
+
+    /**
+     * Returns a rule appending the wall time of every passing test method of the case to the
+     * cost file
+     */
+    static TestRule newCostRecorder(BenchmarkManifest.Case testCase) {
+        return new Stopwatch() {
+            @Override
+            protected void succeeded(long nanos, Description description) {
+                String mode = testCase.getModes().length > 0 ? testCase.getModes()[0] : "";
+                // Parameterized appends the index of the row, which changes with the shards
+                String method = description.getMethodName().replaceAll("\\[.*\\]$", "");
+                try {
+                    BenchmarkManifest.appendCost(mCostFile, testCase, mode, method,
+                            nanos / 1000000);
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to record the cost of " + testCase, e);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.tests;
+
+import android.content.Context;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.android.media.benchmark.R;
+import com.android.media.benchmark.library.CodecUtils;
+import com.android.media.benchmark.library.Distribution;
+import com.android.media.benchmark.library.Extractor;
+import com.android.media.benchmark.library.Metrics;
+import com.android.media.benchmark.library.Native;
+import com.android.media.benchmark.library.NativeResults;
+import com.android.media.benchmark.library.Stats;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Decodes each clip in async mode with the NDK, the callbacks of the codec reaching its IO
+ * thread alternately through the locked queue and through the lock-free ring, and reports the
+ * time from a callback to its handling and the decode time with both queues.
+ */
+@RunWith(Parameterized.class)
+public class CallBackQueueTest {
+    private static final Context mContext =
+            InstrumentationRegistry.getInstrumentation().getTargetContext();
+    private static final String mInputFilePath = mContext.getString(R.string.input_file_path);
+    private static final String mStatsFile = mContext.getExternalFilesDir(null)
+            + "/CallBackQueueStats." + System.currentTimeMillis() + ".csv";
+    private static final String mMetricsFile = mContext.getExternalFilesDir(null)
+            + "/CallBackQueue." + System.currentTimeMillis() + ".csv";
+    private static final String TAG = "CallBackQueueTest";
+    private static final long PER_TEST_TIMEOUT_MS = 600000;
+    // Runs per queue and codec, the queue going first alternates from one pair to the next
+    private static final int NUM_REPETITIONS = 5;
+    private static final int[] QUEUES = {Native.CALLBACK_QUEUE_LOCKED, Native.CALLBACK_QUEUE_SPSC};
+    private static final String[] QUEUE_NAMES = {"locked", "spsc"};
+    private String mInputFile;
+
+    public CallBackQueueTest(String inputFile) {
+        this.mInputFile = inputFile;
+    }
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> input() {
+        // Single track clips, the native decoder decodes every track of the clip
+        return Arrays.asList(new Object[][]{
+                {"bbb_44100hz_2ch_128kbps_aac_30sec.mp4"},
+                {"bbb_8000hz_1ch_8kbps_amrnb_30sec.3gp"},
+                {"crowd_1920x1080_25fps_6700kbps_h264.ts"},
+                {"crowd_1920x1080_25fps_4000kbps_vp9.webm"},
+                {"crowd_352x288_25fps_6000kbps_h263.3gp"}});
+    }
+
+    @BeforeClass
+    public static void writeMetricsHeaderToFile() throws IOException {
+        boolean status = new Stats().writeStatsHeader(mStatsFile);
+        assertTrue("Unable to open stats file for writing!", status);
+        status = Metrics.writeMetricsHeader(mMetricsFile);
+        assertTrue("Unable to open metrics file for writing!", status);
+        Log.d(TAG, "Saving Benchmark results in: " + mMetricsFile);
+    }
+
+    @AfterClass
+    public static void restoreDefaultQueue() {
+        new Native().SetCallBackQueue(Native.CALLBACK_QUEUE_LOCKED);
+    }
+
+    @Test(timeout = PER_TEST_TIMEOUT_MS)
+    public void testCallBackQueue() throws IOException {
+        File inputFile = new File(mInputFilePath + mInputFile);
+        assertTrue("Cannot find " + mInputFile + " in directory " + mInputFilePath,
+                inputFile.exists());
+        FileInputStream fileInput = new FileInputStream(inputFile);
+        Extractor extractor = new Extractor();
+        int trackCount = extractor.setUpExtractor(fileInput.getFD());
+        assertEquals("Clip " + mInputFile + " is not single track", 1, trackCount);
+        MediaFormat format = extractor.getFormat(0);
+        extractor.deinitExtractor();
+        fileInput.close();
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        ArrayList<String> mediaCodecs = CodecUtils.selectCodecs(mime, false);
+        assertTrue("No suitable codecs found for file: " + mInputFile + " mime: " + mime,
+                (mediaCodecs.size() > 0));
+        Native nativeDecoder = new Native();
+        NativeResults results = new NativeResults(1);
+        for (String codecName : mediaCodecs) {
+            Distribution[] latencyP50 = {new Distribution(), new Distribution()};
+            Distribution[] latencyP99 = {new Distribution(), new Distribution()};
+            Distribution[] processTimes = {new Distribution(), new Distribution()};
+            for (int run = 0; run < 2 * NUM_REPETITIONS; run++) {
+                // Locked, spsc, then spsc, locked, and so on
+                int queue = (run / 2 + run) % 2;
+                nativeDecoder.SetCallBackQueue(QUEUES[queue]);
+                results.reset();
+                int status = nativeDecoder.Decode(mInputFilePath, mInputFile, mStatsFile,
+                        codecName, true, results.getBuffer());
+                assertEquals("Decoder returned error " + status + " for file: " + mInputFile +
+                        " with codec: " + codecName, 0, status);
+                assertEquals("Native runs for " + mInputFile, 1, results.getNumRuns());
+                assertEquals("Callback queue", QUEUES[queue], results.getCallBackQueue(0));
+                latencyP50[queue].add(results.getCallBackLatencyNs(0, 50));
+                latencyP99[queue].add(results.getCallBackLatencyNs(0, 99));
+                processTimes[queue].add(results.getPhaseTimeNs(0, NativeResults.PHASE_PROCESS));
+                results.getMetrics(0, mInputFile, "callBackQueue", codecName)
+                        .dumpMetrics(mMetricsFile);
+            }
+            Metrics metrics = new Metrics(mInputFile, "callBackQueueSummary", codecName);
+            for (int queue = 0; queue < QUEUES.length; queue++) {
+                String name = QUEUE_NAMES[queue];
+                metrics.add(name + "LatencyP50Ns", latencyP50[queue].getPercentile(50));
+                metrics.add(name + "LatencyP99Ns", latencyP99[queue].getPercentile(50));
+                metrics.add(name + "ProcessTimeNs", processTimes[queue].getPercentile(50));
+            }
+            // Ratios of the medians over the runs, below 1 when the ring is faster
+            metrics.add("latencyP50Ratio", (double) latencyP50[1].getPercentile(50)
+                    / Math.max(1, latencyP50[0].getPercentile(50)));
+            metrics.add("latencyP99Ratio", (double) latencyP99[1].getPercentile(50)
+                    / Math.max(1, latencyP99[0].getPercentile(50)));
+            metrics.add("processTimeRatio", (double) processTimes[1].getPercentile(50)
+                    / Math.max(1, processTimes[0].getPercentile(50)));
+            metrics.dumpMetrics(mMetricsFile);
+            Log.i(TAG, metrics.toString());
+        }
+    }
+}
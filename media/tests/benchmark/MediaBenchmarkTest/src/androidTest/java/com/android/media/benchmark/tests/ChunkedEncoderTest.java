@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.tests;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.android.media.benchmark.R;
+import com.android.media.benchmark.library.ChunkedEncoder;
+import com.android.media.benchmark.library.CodecUtils;
+import com.android.media.benchmark.library.Decoder;
+import com.android.media.benchmark.library.Extractor;
+import com.android.media.benchmark.library.Metrics;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+import static android.media.MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Encodes a decoded clip as key frame aligned segments on 1 to MAX_WORKERS encoder instances
+ * and compares each run with a single encoder over the whole clip.
+ */
+@RunWith(Parameterized.class)
+public class ChunkedEncoderTest {
+    private static final Context mContext =
+            InstrumentationRegistry.getInstrumentation().getTargetContext();
+    private static final String mInputFilePath = mContext.getString(R.string.input_file_path);
+    private static final String mMetricsFile = mContext.getExternalFilesDir(null)
+            + "/ChunkedEncoder." + System.currentTimeMillis() + ".csv";
+    private static final String TAG = "ChunkedEncoderTest";
+    private static final long PER_TEST_TIMEOUT_MS = 600000;
+    private static final int MAX_WORKERS = 4;
+    private static final int SEGMENT_GOPS = 2;
+    private static final int ENCODE_DEFAULT_FRAME_RATE = 25;
+    private static final int ENCODE_DEFAULT_BIT_RATE = 8000000 /* 8 Mbps */;
+    private static final int ENCODE_MIN_BIT_RATE = 600000 /* 600 Kbps */;
+    private String mInputFile;
+
+    public ChunkedEncoderTest(String inputFile) { this.mInputFile = inputFile; }
+
+    @Parameterized.Parameters
+    public static Collection<Object[]> input() {
+        return Arrays.asList(new Object[][]{
+                {"crowd_1920x1080_25fps_4000kbps_vp8.webm"},
+                {"crowd_1920x1080_25fps_6700kbps_h264.ts"},
+                {"crowd_1920x1080_25fps_4000kbps_h265.mkv"},
+                {"crowd_1920x1080_25fps_4000kbps_vp9.webm"},
+                {"crowd_176x144_25fps_6000kbps_mpeg4.mp4"},
+                {"crowd_176x144_25fps_6000kbps_h263.3gp"}});
+    }
+
+    @BeforeClass
+    public static void writeMetricsHeaderToFile() throws IOException {
+        boolean status = Metrics.writeMetricsHeader(mMetricsFile);
+        assertTrue("Unable to open metrics file for writing!", status);
+        Log.d(TAG, "Saving Benchmark results in: " + mMetricsFile);
+    }
+
+    @Test(timeout = PER_TEST_TIMEOUT_MS)
+    public void testChunkedEncoder() throws Exception {
+        File inputFile = new File(mInputFilePath + mInputFile);
+        assertTrue("Cannot find " + mInputFile + " in directory " + mInputFilePath,
+                inputFile.exists());
+        FileInputStream fileInput = new FileInputStream(inputFile);
+        Extractor extractor = new Extractor();
+        int trackCount = extractor.setUpExtractor(fileInput.getFD());
+        assertTrue("Extraction failed. No tracks for file: " + mInputFile, (trackCount > 0));
+        extractor.selectExtractorTrack(0);
+        MediaFormat format = extractor.getFormat(0);
+        ArrayList<ByteBuffer> inputBuffer = new ArrayList<>();
+        ArrayList<MediaCodec.BufferInfo> frameInfo = new ArrayList<>();
+        int sampleSize;
+        do {
+            sampleSize = extractor.getFrameSample();
+            MediaCodec.BufferInfo bufInfo = new MediaCodec.BufferInfo();
+            MediaCodec.BufferInfo info = extractor.getBufferInfo();
+            ByteBuffer dataBuffer = ByteBuffer.allocate(info.size);
+            dataBuffer.put(extractor.getFrameBuffer());
+            bufInfo.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+            inputBuffer.add(dataBuffer);
+            frameInfo.add(bufInfo);
+        } while (sampleSize > 0);
+        extractor.deinitExtractor();
+        fileInput.close();
+
+        int tid = android.os.Process.myTid();
+        File decodedFile = new File(mContext.getFilesDir() + "/decoder_" + tid + ".out");
+        FileOutputStream decodeOutputStream = new FileOutputStream(decodedFile);
+        Decoder decoder = new Decoder();
+        decoder.setupDecoder(decodeOutputStream);
+        int status = decoder.decode(inputBuffer, frameInfo, false, format, "");
+        assertEquals("Decoder returned error " + status + " for file: " + mInputFile, 0, status);
+        MediaFormat decoderFormat = decoder.getFormat();
+        decoder.deInitCodec();
+        decodeOutputStream.close();
+
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        int width = format.getInteger(MediaFormat.KEY_WIDTH);
+        int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+        int frameRate = format.containsKey(MediaFormat.KEY_FRAME_RATE)
+                ? format.getInteger(MediaFormat.KEY_FRAME_RATE) : ENCODE_DEFAULT_FRAME_RATE;
+        int bitRate;
+        if (format.containsKey(MediaFormat.KEY_BIT_RATE)) {
+            bitRate = format.getInteger(MediaFormat.KEY_BIT_RATE);
+        } else if (mime.contains("video/3gpp") || mime.contains("video/mp4v-es")) {
+            bitRate = ENCODE_MIN_BIT_RATE;
+        } else {
+            bitRate = ENCODE_DEFAULT_BIT_RATE;
+        }
+        int colorFormat = COLOR_FormatYUV420Flexible;
+        if (decoderFormat.containsKey(MediaFormat.KEY_COLOR_FORMAT)) {
+            colorFormat = decoderFormat.getInteger(MediaFormat.KEY_COLOR_FORMAT);
+        }
+        int frameSize = width * height * 3 / 2;
+        MediaFormat encodeFormat = MediaFormat.createVideoFormat(mime, width, height);
+        encodeFormat.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        encodeFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        encodeFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+        encodeFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, frameSize);
+        encodeFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+
+        ArrayList<String> mediaCodecs = CodecUtils.selectCodecs(mime, true);
+        assertTrue("No suitable codecs found for file: " + mInputFile + " mime: " + mime,
+                (mediaCodecs.size() > 0));
+        int segmentFrames = SEGMENT_GOPS * frameRate;
+        for (String codecName : mediaCodecs) {
+            ChunkedEncoder baseline = new ChunkedEncoder(1, 0);
+            status = encode(baseline, decodedFile, codecName, encodeFormat, frameSize);
+            assertEquals(codecName + " encoder returned error " + status + " for file: "
+                    + mInputFile, 0, status);
+            Metrics metrics = baseline.getMetrics(mInputFile, codecName, null);
+            metrics.dumpMetrics(mMetricsFile);
+            Log.i(TAG, metrics.toString());
+            for (int workers = 1; workers <= MAX_WORKERS; workers++) {
+                ChunkedEncoder chunkedEncoder = new ChunkedEncoder(workers, segmentFrames);
+                status = encode(chunkedEncoder, decodedFile, codecName, encodeFormat, frameSize);
+                assertEquals(codecName + " chunked encode with " + workers + " workers returned "
+                        + "error " + status + " for file: " + mInputFile, 0, status);
+                metrics = chunkedEncoder.getMetrics(mInputFile, codecName, baseline);
+                metrics.dumpMetrics(mMetricsFile);
+                Log.i(TAG, metrics.toString());
+            }
+        }
+        assertTrue("Unable to delete decoded file " + decodedFile, decodedFile.delete());
+    }
+
+    private int encode(ChunkedEncoder encoder, File rawFile, String codecName,
+            MediaFormat encodeFormat, int frameSize) throws Exception {
+        FileInputStream rawInput = new FileInputStream(rawFile);
+        try {
+            return encoder.encode(rawInput, codecName, encodeFormat, frameSize);
+        } finally {
+            rawInput.close();
+        }
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.tests;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.android.media.benchmark.R;
+import com.android.media.benchmark.library.ContainerParser;
+import com.android.media.benchmark.library.ElementaryStreamParser;
+import com.android.media.benchmark.library.Extractor;
+import com.android.media.benchmark.library.Metrics;
+import com.android.media.benchmark.library.MkvParser;
+import com.android.media.benchmark.library.Mp4Parser;
+import com.android.media.benchmark.library.TsParser;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reads every track of a clip with MediaExtractor and with a container parser written in Java,
+ * checks that both return the same samples and compares their setup, read and seek times.
+ */
+@RunWith(Parameterized.class)
+public class ContainerParserTest {
+    private static final Context mContext =
+            InstrumentationRegistry.getInstrumentation().getTargetContext();
+    private static final String mInputFilePath = mContext.getString(R.string.input_file_path);
+    private static final String mMetricsFile = mContext.getExternalFilesDir(null)
+            + "/ContainerParser." + System.currentTimeMillis() + ".csv";
+    private static final String TAG = "ContainerParserTest";
+    private static final int kMaxBufSize = 1024 * 1024 * 16;
+    private static final int kNumSeeks = 20;
+    // How the samples of MediaExtractor relate to the parsed ones
+    private static final int SAMPLES_EQUAL = 0;
+    private static final int SAMPLES_SAME_NAL_UNITS = 1;
+    private static final int SAMPLES_VORBIS_PAGE_SAMPLES = 2;
+    private static final int kVorbisPageSamplesSize = 4;
+    private String mInputFileName;
+    private int mSampleMatch;
+
+    public ContainerParserTest(String inputFileName, int sampleMatch) {
+        this.mInputFileName = inputFileName;
+        this.mSampleMatch = sampleMatch;
+    }
+
+    @Parameterized.Parameters
+    public static Collection<Object[]> inputFiles() {
+        return Arrays.asList(new Object[][]{
+                /* Parameters: filename, relation of the samples */
+                {"crowd_1920x1080_25fps_6000kbps_mpeg4.mp4", SAMPLES_EQUAL},
+                {"crowd_1920x1080_25fps_7300kbps_mpeg2.mp4", SAMPLES_EQUAL},
+                {"crowd_176x144_25fps_6000kbps_mpeg4.mp4", SAMPLES_EQUAL},
+                {"crowd_352x288_25fps_6000kbps_h263.3gp", SAMPLES_EQUAL},
+                {"crowd_1920x1080_25fps_6000kbps_h263.3gp", SAMPLES_EQUAL},
+                {"bbb_44100hz_2ch_128kbps_aac_5mins.mp4", SAMPLES_EQUAL},
+                {"bbb_44100hz_2ch_600kbps_flac_30sec.mp4", SAMPLES_EQUAL},
+                {"bbb_8000hz_1ch_8kbps_amrnb_5mins.3gp", SAMPLES_EQUAL},
+                {"bbb_16000hz_1ch_9kbps_amrwb_5mins.3gp", SAMPLES_EQUAL},
+                // MediaExtractor rewrites the start codes of H.264 access units in ts files and
+                // drops the zero bytes trailing the NAL units, which are compared instead
+                {"crowd_1920x1080_25fps_6700kbps_h264.ts", SAMPLES_SAME_NAL_UNITS},
+                {"bbb_44100hz_2ch_128kbps_mp3_5mins.mp3", SAMPLES_EQUAL},
+                {"crowd_1920x1080_25fps_4000kbps_vp8.webm", SAMPLES_EQUAL},
+                {"crowd_1920x1080_25fps_4000kbps_vp9.webm", SAMPLES_EQUAL},
+                {"crowd_1920x1080_25fps_4000kbps_av1.webm", SAMPLES_EQUAL},
+                {"crowd_1920x1080_25fps_4000kbps_h265.mkv", SAMPLES_EQUAL},
+                {"bbb_48000hz_2ch_100kbps_opus_5mins.webm", SAMPLES_EQUAL},
+                // MediaExtractor appends the number of valid samples of the page to Vorbis
+                // samples as a 32 bit integer
+                {"bbb_44100hz_2ch_80kbps_vorbis_5mins.webm", SAMPLES_VORBIS_PAGE_SAMPLES}});
+    }
+
+    @BeforeClass
+    public static void writeMetricsHeaderToFile() throws IOException {
+        boolean status = Metrics.writeMetricsHeader(mMetricsFile);
+        assertTrue("Unable to open metrics file for writing!", status);
+        Log.d(TAG, "Saving Benchmark results in: " + mMetricsFile);
+    }
+
+    /**
+     * Creates the parser for the container of the file, null if there is none
+     */
+    private static ContainerParser createParser(String fileName, FileInputStream input)
+            throws IOException {
+        if (fileName.endsWith(".mp4") || fileName.endsWith(".3gp")) {
+            return new Mp4Parser(input.getChannel());
+        } else if (fileName.endsWith(".ts")) {
+            return new TsParser(input.getChannel());
+        } else if (fileName.endsWith(".mp3") || fileName.endsWith(".aac")) {
+            return new ElementaryStreamParser(input.getChannel());
+        } else if (fileName.endsWith(".webm") || fileName.endsWith(".mkv")) {
+            return new MkvParser(input.getChannel());
+        }
+        return null;
+    }
+
+    /**
+     * Hashes the NAL units of an Annex B access unit, whatever the length of their start codes
+     * and the number of zero bytes trailing them
+     */
+    private static int getNalUnitsHash(ByteBuffer buffer, int size) {
+        int hash = 1;
+        int zeros = 0;
+        boolean inNalUnit = false;
+        for (int i = 0; i < size; i++) {
+            int value = buffer.get(i) & 0xff;
+            if (value == 0) {
+                // Only hashed once a non zero byte shows they are inside the NAL unit
+                zeros++;
+                continue;
+            }
+            if (value == 1 && zeros >= 2) {
+                // Start code, hashed as a value no byte can take
+                hash = 31 * hash + 256;
+                inNalUnit = true;
+            } else if (inNalUnit) {
+                for (; zeros > 0; zeros--) {
+                    hash = 31 * hash;
+                }
+                hash = 31 * hash + value;
+            }
+            zeros = 0;
+        }
+        return hash;
+    }
+
+    @Test
+    public void testContainerParser() throws IOException {
+        File inputFile = new File(mInputFilePath + mInputFileName);
+        assertTrue("Cannot find " + mInputFileName + " in directory " + mInputFilePath,
+                inputFile.exists());
+        ByteBuffer parserBuffer = ByteBuffer.allocateDirect(kMaxBufSize);
+
+        FileInputStream extractorInput = new FileInputStream(inputFile);
+        long sTime = System.nanoTime();
+        Extractor extractor = new Extractor();
+        int trackCount = extractor.setUpExtractor(extractorInput.getFD());
+        long extractorSetupNs = System.nanoTime() - sTime;
+
+        FileInputStream parserInput = new FileInputStream(inputFile);
+        sTime = System.nanoTime();
+        ContainerParser parser = createParser(mInputFileName, parserInput);
+        long parserSetupNs = System.nanoTime() - sTime;
+        assertNotNull("No parser for " + mInputFileName, parser);
+
+        boolean[] parserTrackUsed = new boolean[parser.getTrackCount()];
+        for (int track = 0; track < trackCount; track++) {
+            // Track order can differ between the two, tracks are matched by mime type
+            String mime = extractor.getFormat(track).getString(MediaFormat.KEY_MIME);
+            int parserTrack = -1;
+            for (int i = 0; i < parserTrackUsed.length && parserTrack < 0; i++) {
+                if (!parserTrackUsed[i] && mime.equals(parser.getTrackMime(i))) {
+                    parserTrack = i;
+                }
+            }
+            assertTrue("No " + mime + " track parsed in " + mInputFileName, parserTrack >= 0);
+            parserTrackUsed[parserTrack] = true;
+
+            // Extractor samples, kept to be compared with the parser
+            extractor.selectExtractorTrack(track);
+            int numSamples = 0;
+            int[] sizes = new int[1024];
+            long[] timesUs = new long[1024];
+            int[] flags = new int[1024];
+            int[] nalUnitHashes = new int[1024];
+            long numBytes = 0;
+            long extractorReadNs = 0;
+            while (true) {
+                sTime = System.nanoTime();
+                int sampleSize = extractor.getFrameSample();
+                extractorReadNs += System.nanoTime() - sTime;
+                if (sampleSize < 0) {
+                    break;
+                }
+                if (numSamples == sizes.length) {
+                    sizes = Arrays.copyOf(sizes, numSamples * 2);
+                    timesUs = Arrays.copyOf(timesUs, numSamples * 2);
+                    flags = Arrays.copyOf(flags, numSamples * 2);
+                    nalUnitHashes = Arrays.copyOf(nalUnitHashes, numSamples * 2);
+                }
+                MediaCodec.BufferInfo info = extractor.getBufferInfo();
+                sizes[numSamples] = sampleSize;
+                numBytes += sampleSize;
+                timesUs[numSamples] = info.presentationTimeUs;
+                flags[numSamples] = info.flags & ContainerParser.SAMPLE_FLAG_SYNC;
+                if (mSampleMatch == SAMPLES_SAME_NAL_UNITS) {
+                    nalUnitHashes[numSamples] =
+                            getNalUnitsHash(extractor.getFrameBuffer(), sampleSize);
+                }
+                numSamples++;
+            }
+            extractor.unselectExtractorTrack(track);
+
+            // Parser samples, read the same way
+            parser.selectTrack(parserTrack);
+            int parsedSamples = 0;
+            int sizeMismatches = 0;
+            int flagMismatches = 0;
+            int timeMismatches = 0;
+            long parserReadNs = 0;
+            while (true) {
+                sTime = System.nanoTime();
+                int sampleSize = parser.readSampleData(parserBuffer, 0);
+                long timeUs = parser.getSampleTime();
+                int sampleFlags = parser.getSampleFlags();
+                parser.advance();
+                parserReadNs += System.nanoTime() - sTime;
+                if (sampleSize < 0) {
+                    break;
+                }
+                if (parsedSamples < numSamples) {
+                    boolean sampleMatches;
+                    if (mSampleMatch == SAMPLES_SAME_NAL_UNITS) {
+                        sampleMatches = nalUnitHashes[parsedSamples]
+                                == getNalUnitsHash(parserBuffer, sampleSize);
+                    } else if (mSampleMatch == SAMPLES_VORBIS_PAGE_SAMPLES) {
+                        sampleMatches =
+                                sizes[parsedSamples] == sampleSize + kVorbisPageSamplesSize;
+                    } else {
+                        sampleMatches = sizes[parsedSamples] == sampleSize;
+                    }
+                    sizeMismatches += sampleMatches ? 0 : 1;
+                    flagMismatches += flags[parsedSamples] != (sampleFlags & 1) ? 1 : 0;
+                    timeMismatches += timesUs[parsedSamples] != timeUs ? 1 : 0;
+                }
+                parsedSamples++;
+            }
+            parser.unselectTrack(parserTrack);
+
+            // Seeks to the same times with both, then reads the sample seeked to
+            Random random = new Random(track);
+            long lastTimeUs = numSamples > 0 ? timesUs[numSamples - 1] : 0;
+            long extractorSeekNs = 0;
+            long parserSeekNs = 0;
+            int seekMismatches = 0;
+            extractor.selectExtractorTrack(track);
+            parser.selectTrack(parserTrack);
+            for (int i = 0; i < kNumSeeks; i++) {
+                long seekTimeUs = (long) (random.nextDouble() * lastTimeUs);
+                sTime = System.nanoTime();
+                extractor.seekTo(seekTimeUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                extractor.getFrameSample();
+                extractorSeekNs += System.nanoTime() - sTime;
+                sTime = System.nanoTime();
+                parser.seekTo(seekTimeUs);
+                parser.readSampleData(parserBuffer, 0);
+                parserSeekNs += System.nanoTime() - sTime;
+                if (extractor.getBufferInfo().presentationTimeUs != parser.getSampleTime()) {
+                    seekMismatches++;
+                }
+            }
+            extractor.unselectExtractorTrack(track);
+            parser.unselectTrack(parserTrack);
+
+            Metrics metrics = new Metrics(mInputFileName, "containerParse",
+                    parser.getClass().getSimpleName());
+            metrics.add("track", track);
+            metrics.add("samples", numSamples);
+            metrics.add("extractorSetupTimeNs", extractorSetupNs);
+            metrics.add("parserSetupTimeNs", parserSetupNs);
+            metrics.add("extractorReadTimeNs", extractorReadNs);
+            metrics.add("parserReadTimeNs", parserReadNs);
+            metrics.add("readSpeedup", (double) extractorReadNs / Math.max(1, parserReadNs));
+            metrics.add("extractorReadMBps", numBytes * 1000.0 / Math.max(1, extractorReadNs));
+            metrics.add("parserReadMBps", numBytes * 1000.0 / Math.max(1, parserReadNs));
+            metrics.add("extractorSeekTimeNs", extractorSeekNs / kNumSeeks);
+            metrics.add("parserSeekTimeNs", parserSeekNs / kNumSeeks);
+            metrics.add("sizeMismatches", sizeMismatches);
+            metrics.add("flagMismatches", flagMismatches);
+            metrics.add("timeMismatches", timeMismatches);
+            metrics.add("seekMismatches", seekMismatches);
+            metrics.dumpMetrics(mMetricsFile);
+            Log.i(TAG, metrics.toString());
+            assertEquals("Sample count mismatch for " + mInputFileName + " track " + track,
+                    numSamples, parsedSamples);
+            assertEquals("Sample mismatch for " + mInputFileName + " track " + track, 0,
+                    sizeMismatches);
+            assertEquals("Timestamp mismatch for " + mInputFileName + " track " + track, 0,
+                    timeMismatches);
+            assertEquals("Sync flag mismatch for " + mInputFileName + " track " + track, 0,
+                    flagMismatches);
+            assertEquals("Seek mismatch for " + mInputFileName + " track " + track, 0,
+                    seekMismatches);
+        }
+        parser.release();
+        parserInput.close();
+        extractor.deinitExtractor();
+        extractorInput.close();
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.tests;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.android.media.benchmark.R;
+import com.android.media.benchmark.library.CodecUtils;
+import com.android.media.benchmark.library.Decoder;
+import com.android.media.benchmark.library.Extractor;
+import com.android.media.benchmark.library.Metrics;
+import com.android.media.benchmark.library.Native;
+import com.android.media.benchmark.library.NativeResults;
+import com.android.media.benchmark.library.PairedRuns;
+import com.android.media.benchmark.library.SampleIndexCache;
+import com.android.media.benchmark.library.Stats;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Decodes each clip with each codec alternately through MediaCodec and through the NDK, and
+ * attributes the difference between both layers to the create, configure, start, first frame,
+ * steady state frame and release phases of the codec.
+ */
+@RunWith(Parameterized.class)
+public class DecoderOverheadTest {
+    private static final Context mContext =
+            InstrumentationRegistry.getInstrumentation().getTargetContext();
+    private static final String mInputFilePath = mContext.getString(R.string.input_file_path);
+    private static final String mStatsFile = mContext.getExternalFilesDir(null)
+            + "/DecoderOverheadStats." + System.currentTimeMillis() + ".csv";
+    private static final String mMetricsFile = mContext.getExternalFilesDir(null)
+            + "/DecoderOverhead." + System.currentTimeMillis() + ".csv";
+    private static final String TAG = "DecoderOverheadTest";
+    private static final SampleIndexCache mSampleIndexCache =
+            SampleIndexCache.getShared(new File(mContext.getFilesDir(), "SampleIndex"));
+    private static final long PER_TEST_TIMEOUT_MS = 600000;
+    // Pairs of runs per codec, the layer going first alternates from one pair to the next
+    private static final int NUM_PAIRS = 6;
+    private String mInputFile;
+    private boolean mAsyncMode;
+
+    public DecoderOverheadTest(String inputFile, boolean asyncMode) {
+        this.mInputFile = inputFile;
+        this.mAsyncMode = asyncMode;
+    }
+
+    @Parameterized.Parameters(name = "{0}_async_{1}")
+    public static Collection<Object[]> input() {
+        // Single track clips, the native decoder decodes every track of the clip
+        String[] files = {
+                "bbb_44100hz_2ch_128kbps_aac_30sec.mp4",
+                "bbb_48000hz_2ch_100kbps_opus_30sec.webm",
+                "crowd_1920x1080_25fps_6700kbps_h264.ts",
+                "crowd_1920x1080_25fps_4000kbps_vp9.webm",
+                "crowd_352x288_25fps_6000kbps_h263.3gp"};
+        ArrayList<Object[]> params = new ArrayList<>();
+        for (boolean asyncMode : new boolean[]{false, true}) {
+            for (String file : files) {
+                params.add(new Object[]{file, asyncMode});
+            }
+        }
+        return params;
+    }
+
+    @BeforeClass
+    public static void writeMetricsHeaderToFile() throws IOException {
+        boolean status = new Stats().writeStatsHeader(mStatsFile);
+        assertTrue("Unable to open stats file for writing!", status);
+        status = Metrics.writeMetricsHeader(mMetricsFile);
+        assertTrue("Unable to open metrics file for writing!", status);
+        Log.d(TAG, "Saving Benchmark results in: " + mMetricsFile);
+    }
+
+    private Stats decodeSdk(ArrayList<ByteBuffer> inputBuffer,
+            ArrayList<MediaCodec.BufferInfo> frameInfo, MediaFormat format, String codecName)
+            throws IOException {
+        Decoder decoder = new Decoder();
+        decoder.setupDecoder(null);
+        int status = decoder.decode(inputBuffer, frameInfo, mAsyncMode, format, codecName);
+        decoder.deInitCodec();
+        assertEquals("Decoder returned error " + status + " for file: " + mInputFile +
+                " with codec: " + codecName, 0, status);
+        return decoder.getStats();
+    }
+
+    /**
+     * Decodes the clip with the native decoder, returning its stats and the time of the native
+     * call not spent in the run in callOverheadNs[0]
+     */
+    private Stats decodeNdk(NativeResults results, String codecName, long[] callOverheadNs) {
+        results.reset();
+        long sTime = System.nanoTime();
+        int status = new Native().Decode(mInputFilePath, mInputFile, mStatsFile, codecName,
+                mAsyncMode, results.getBuffer());
+        long callTime = System.nanoTime() - sTime;
+        assertEquals("Native decoder returned error " + status + " for file: " + mInputFile +
+                " with codec: " + codecName, 0, status);
+        assertEquals("Native runs for " + mInputFile, 1, results.getNumRuns());
+        callOverheadNs[0] = callTime - results.getPhaseTimeNs(0, NativeResults.PHASE_TOTAL);
+        return results.getStats(0);
+    }
+
+    @Test(timeout = PER_TEST_TIMEOUT_MS)
+    public void testDecoderOverhead() throws IOException {
+        File inputFile = new File(mInputFilePath + mInputFile);
+        assertTrue("Cannot find " + mInputFile + " in directory " + mInputFilePath,
+                inputFile.exists());
+        FileInputStream fileInput = new FileInputStream(inputFile);
+        Extractor extractor = new Extractor();
+        int trackCount = extractor.setUpExtractor(fileInput.getFD());
+        assertEquals("Clip " + mInputFile + " is not single track", 1, trackCount);
+        MediaFormat format = extractor.getFormat(0);
+        extractor.deinitExtractor();
+        fileInput.close();
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        ArrayList<String> mediaCodecs = CodecUtils.selectCodecs(mime, false);
+        assertTrue("No suitable codecs found for file: " + mInputFile + " mime: " + mime,
+                (mediaCodecs.size() > 0));
+        ArrayList<ByteBuffer> inputBuffer = new ArrayList<>();
+        ArrayList<MediaCodec.BufferInfo> frameInfo = new ArrayList<>();
+        mSampleIndexCache.readSamples(inputFile, 0, inputBuffer, frameInfo);
+        NativeResults results = new NativeResults(1);
+        long[] callOverheadNs = new long[1];
+        for (String codecName : mediaCodecs) {
+            PairedRuns pairs = new PairedRuns();
+            for (int pair = 0; pair < NUM_PAIRS; pair++) {
+                Stats sdkStats;
+                Stats ndkStats;
+                if (PairedRuns.isSdkFirst(pair)) {
+                    sdkStats = decodeSdk(inputBuffer, frameInfo, format, codecName);
+                    ndkStats = decodeNdk(results, codecName, callOverheadNs);
+                } else {
+                    ndkStats = decodeNdk(results, codecName, callOverheadNs);
+                    sdkStats = decodeSdk(inputBuffer, frameInfo, format, codecName);
+                }
+                pairs.add(sdkStats, ndkStats, callOverheadNs[0]);
+            }
+            Metrics metrics = pairs.getMetrics(mInputFile, "decodeOverhead", codecName,
+                    mAsyncMode ? "async" : "sync");
+            metrics.dumpMetrics(mMetricsFile);
+            Log.i(TAG, metrics.toString());
+        }
+    }
+}
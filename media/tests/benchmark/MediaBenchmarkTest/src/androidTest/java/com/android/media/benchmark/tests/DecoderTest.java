@@ -24,14 +24,21 @@ import android.util.Log;
 import androidx.test.platform.app.InstrumentationRegistry;
 
 import com.android.media.benchmark.R;
+import com.android.media.benchmark.library.BenchmarkManifest;
 import com.android.media.benchmark.library.CodecUtils;
 import com.android.media.benchmark.library.Decoder;
 import com.android.media.benchmark.library.Extractor;
+import com.android.media.benchmark.library.Metrics;
 import com.android.media.benchmark.library.Native;
+import com.android.media.benchmark.library.NativeResults;
+import com.android.media.benchmark.library.SampleIndexCache;
 import com.android.media.benchmark.library.Stats;
 
+import org.junit.AfterClass;
 import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TestRule;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
@@ -44,7 +51,6 @@ import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 
 import static org.junit.Assert.assertTrue;
@@ -58,21 +64,34 @@ public class DecoderTest {
     private static final String mOutputFilePath = mContext.getString(R.string.output_file_path);
     private static final String mStatsFile =
             mContext.getExternalFilesDir(null) + "/Decoder." + System.currentTimeMillis() + ".csv";
+    private static final String mSummaryFile = mContext.getExternalFilesDir(null)
+            + "/DecoderSummary." + System.currentTimeMillis() + ".csv";
     private static final String TAG = "DecoderTest";
+    private static final SampleIndexCache mSampleIndexCache =
+            SampleIndexCache.getShared(new File(mContext.getFilesDir(), "SampleIndex"));
     private static final long PER_TEST_TIMEOUT_MS = 60000;
     private static final boolean DEBUG = false;
     private static final boolean WRITE_OUTPUT = false;
     private String mInputFile;
     private boolean mAsyncMode;
+    private BenchmarkManifest.Case mCase;
 
-    public DecoderTest(String inputFile, boolean asyncMode) {
+    @Rule
+    public final TestRule mTimeout;
+    @Rule
+    public final TestRule mCostRecorder;
+
+    public DecoderTest(String inputFile, boolean asyncMode, BenchmarkManifest.Case testCase) {
         this.mInputFile = inputFile;
         this.mAsyncMode = asyncMode;
+        this.mCase = testCase;
+        mTimeout = BenchmarkCases.newTimeout(testCase);
+        mCostRecorder = BenchmarkCases.newCostRecorder(testCase);
     }
 
     @Parameterized.Parameters
-    public static Collection<Object[]> input() {
-        return Arrays.asList(new Object[][]{
+    public static Collection<Object[]> input() throws IOException {
+        return BenchmarkCases.select("DecoderTest", new Object[][]{
                 //Audio Sync Test
                 {"bbb_44100hz_2ch_128kbps_aac_30sec.mp4", false},
                 {"bbb_44100hz_2ch_128kbps_mp3_30sec.mp3", false},
@@ -115,6 +134,18 @@ public class DecoderTest {
         boolean status = mStats.writeStatsHeader(mStatsFile);
         assertTrue("Unable to open stats file for writing!", status);
         Log.d(TAG, "Saving Benchmark results in: " + mStatsFile);
+        status = Metrics.writeMetricsHeader(mSummaryFile);
+        assertTrue("Unable to open summary file for writing!", status);
+    }
+
+    @AfterClass
+    public static void writeSampleIndexSummary() throws IOException {
+        String summaryFile = mContext.getExternalFilesDir(null) + "/SampleIndexCache."
+                + System.currentTimeMillis() + ".csv";
+        Metrics summary = mSampleIndexCache.getMetrics("DecoderTest");
+        Metrics.writeMetricsHeader(summaryFile);
+        summary.dumpMetrics(summaryFile);
+        Log.i(TAG, summary.toString());
     }
 
     @Test(timeout = PER_TEST_TIMEOUT_MS)
@@ -130,6 +161,9 @@ public class DecoderTest {
         ArrayList<ByteBuffer> inputBuffer = new ArrayList<>();
         ArrayList<MediaCodec.BufferInfo> frameInfo = new ArrayList<>();
         for (int currentTrack = 0; currentTrack < trackCount; currentTrack++) {
+            if (!mCase.acceptsTrack(currentTrack)) {
+                continue;
+            }
             extractor.selectExtractorTrack(currentTrack);
             MediaFormat format = extractor.getFormat(currentTrack);
             String mime = format.getString(MediaFormat.KEY_MIME);
@@ -137,23 +171,9 @@ public class DecoderTest {
             assertTrue("No suitable codecs found for file: " + mInputFile + " track : " +
                     currentTrack + " mime: " + mime, (mediaCodecs.size() > 0));
 
-            // Get samples from extractor
-            int sampleSize;
-            do {
-                sampleSize = extractor.getFrameSample();
-                MediaCodec.BufferInfo bufInfo = new MediaCodec.BufferInfo();
-                MediaCodec.BufferInfo info = extractor.getBufferInfo();
-                ByteBuffer dataBuffer = ByteBuffer.allocate(info.size);
-                dataBuffer.put(extractor.getFrameBuffer().array(), 0, info.size);
-                bufInfo.set(info.offset, info.size, info.presentationTimeUs, info.flags);
-                inputBuffer.add(dataBuffer);
-                frameInfo.add(bufInfo);
-                if (DEBUG) {
-                    Log.d(TAG, "Extracted bufInfo: flag = " + bufInfo.flags + " timestamp = " +
-                            bufInfo.presentationTimeUs + " size = " + bufInfo.size);
-                }
-            } while (sampleSize > 0);
-            for (String codecName : mediaCodecs) {
+            // Get samples from the sample index, the track is only extracted on first use
+            mSampleIndexCache.readSamples(inputFile, currentTrack, inputBuffer, frameInfo);
+            for (String codecName : mCase.filterCodecs(mediaCodecs)) {
                 FileOutputStream decodeOutputStream = null;
                 if (WRITE_OUTPUT) {
                     if (!Paths.get(mOutputFilePath).toFile().exists()) {
@@ -176,6 +196,9 @@ public class DecoderTest {
                         " with codec: " + codecName, 0, status);
                 decoder.dumpStatistics(mInputFile, codecName, (mAsyncMode ? "async" : "sync"),
                         extractor.getClipDuration(), mStatsFile);
+                Metrics summary = decoder.getStats().getMetrics(mInputFile, "decode", codecName,
+                        (mAsyncMode ? "async" : "sync"), extractor.getClipDuration());
+                summary.dumpMetrics(mSummaryFile);
                 Log.i(TAG, "Decoding Successful for file: " + mInputFile + " with codec: " +
                         codecName);
                 decoder.resetDecoder();
@@ -202,17 +225,27 @@ public class DecoderTest {
         int trackCount = extractor.setUpExtractor(fileDescriptor);
         assertTrue("Extraction failed. No tracks for file: ", trackCount > 0);
         for (int currentTrack = 0; currentTrack < trackCount; currentTrack++) {
+            if (!mCase.acceptsTrack(currentTrack)) {
+                continue;
+            }
             extractor.selectExtractorTrack(currentTrack);
             MediaFormat format = extractor.getFormat(currentTrack);
             String mime = format.getString(MediaFormat.KEY_MIME);
             ArrayList<String> mediaCodecs = CodecUtils.selectCodecs(mime, false);
-            for (String codecName : mediaCodecs) {
+            for (String codecName : mCase.filterCodecs(mediaCodecs)) {
                 Log.i("Test: %s\n", mInputFile);
                 Native nativeDecoder = new Native();
-                int status = nativeDecoder.Decode(
-                        mInputFilePath, mInputFile, mStatsFile, codecName, mAsyncMode);
+                // The native decoder runs once per track
+                NativeResults results = new NativeResults(trackCount);
+                int status = nativeDecoder.Decode(mInputFilePath, mInputFile, mStatsFile,
+                        codecName, mAsyncMode, results.getBuffer());
                 assertEquals("Decoder returned error " + status + " for file: " + mInputFile, 0,
                         status);
+                for (int run = 0; run < results.getNumRuns(); run++) {
+                    Metrics summary = results.getMetrics(run, mInputFile, "decode", codecName);
+                    summary.dumpMetrics(mSummaryFile);
+                    Log.i(TAG, summary.toString());
+                }
             }
         }
         fileInput.close();
@@ -27,15 +27,22 @@ import android.util.Log;
 import androidx.test.platform.app.InstrumentationRegistry;
 
 import com.android.media.benchmark.R;
+import com.android.media.benchmark.library.BenchmarkManifest;
 import com.android.media.benchmark.library.CodecUtils;
 import com.android.media.benchmark.library.Decoder;
 import com.android.media.benchmark.library.Encoder;
 import com.android.media.benchmark.library.Extractor;
+import com.android.media.benchmark.library.Metrics;
 import com.android.media.benchmark.library.Native;
+import com.android.media.benchmark.library.NativeResults;
+import com.android.media.benchmark.library.SampleIndexCache;
 import com.android.media.benchmark.library.Stats;
 
+import org.junit.AfterClass;
 import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TestRule;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
@@ -47,7 +54,6 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 
 import static org.junit.Assert.assertTrue;
@@ -61,7 +67,11 @@ public class EncoderTest {
     private static final String mOutputFilePath = mContext.getString(R.string.output_file_path);
     private static final String mStatsFile =
             mContext.getExternalFilesDir(null) + "/Encoder." + System.currentTimeMillis() + ".csv";
+    private static final String mSummaryFile = mContext.getExternalFilesDir(null)
+            + "/EncoderSummary." + System.currentTimeMillis() + ".csv";
     private static final String TAG = "EncoderTest";
+    private static final SampleIndexCache mSampleIndexCache =
+            SampleIndexCache.getShared(new File(mContext.getFilesDir(), "SampleIndex"));
     private static final long PER_TEST_TIMEOUT_MS = 120000;
     private static final boolean DEBUG = false;
     private static final boolean WRITE_OUTPUT = false;
@@ -70,10 +80,16 @@ public class EncoderTest {
     private static final int ENCODE_MIN_BIT_RATE = 600000 /* 600 Kbps */;
     private static final int ENCODE_DEFAULT_AUDIO_BIT_RATE = 128000 /* 128 Kbps */;
     private String mInputFile;
+    private BenchmarkManifest.Case mCase;
+
+    @Rule
+    public final TestRule mTimeout;
+    @Rule
+    public final TestRule mCostRecorder;
 
     @Parameterized.Parameters
-    public static Collection<Object[]> inputFiles() {
-        return Arrays.asList(new Object[][]{
+    public static Collection<Object[]> inputFiles() throws IOException {
+        return BenchmarkCases.select("EncoderTest", new Object[][]{
                 // Audio Test
                 {"bbb_44100hz_2ch_128kbps_aac_30sec.mp4"},
                 {"bbb_8000hz_1ch_8kbps_amrnb_30sec.3gp"},
@@ -89,8 +105,11 @@ public class EncoderTest {
                 {"crowd_176x144_25fps_6000kbps_h263.3gp"}});
     }
 
-    public EncoderTest(String inputFileName) {
+    public EncoderTest(String inputFileName, BenchmarkManifest.Case testCase) {
         this.mInputFile = inputFileName;
+        this.mCase = testCase;
+        mTimeout = BenchmarkCases.newTimeout(testCase);
+        mCostRecorder = BenchmarkCases.newCostRecorder(testCase);
     }
 
     @BeforeClass
@@ -99,6 +118,18 @@ public class EncoderTest {
         boolean status = mStats.writeStatsHeader(mStatsFile);
         assertTrue("Unable to open stats file for writing!", status);
         Log.d(TAG, "Saving Benchmark results in: " + mStatsFile);
+        status = Metrics.writeMetricsHeader(mSummaryFile);
+        assertTrue("Unable to open summary file for writing!", status);
+    }
+
+    @AfterClass
+    public static void writeSampleIndexSummary() throws IOException {
+        String summaryFile = mContext.getExternalFilesDir(null) + "/SampleIndexCache."
+                + System.currentTimeMillis() + ".csv";
+        Metrics summary = mSampleIndexCache.getMetrics("EncoderTest");
+        Metrics.writeMetricsHeader(summaryFile);
+        summary.dumpMetrics(summaryFile);
+        Log.i(TAG, summary.toString());
     }
 
     @Test(timeout = PER_TEST_TIMEOUT_MS)
@@ -127,25 +158,14 @@ public class EncoderTest {
         ArrayList<ByteBuffer> inputBuffer = new ArrayList<>();
         ArrayList<MediaCodec.BufferInfo> frameInfo = new ArrayList<>();
         for (int currentTrack = 0; currentTrack < trackCount; currentTrack++) {
+            if (!mCase.acceptsTrack(currentTrack)) {
+                continue;
+            }
             int colorFormat = COLOR_FormatYUV420Flexible;
             extractor.selectExtractorTrack(currentTrack);
             MediaFormat format = extractor.getFormat(currentTrack);
-            // Get samples from extractor
-            int sampleSize;
-            do {
-                sampleSize = extractor.getFrameSample();
-                MediaCodec.BufferInfo bufInfo = new MediaCodec.BufferInfo();
-                MediaCodec.BufferInfo info = extractor.getBufferInfo();
-                ByteBuffer dataBuffer = ByteBuffer.allocate(info.size);
-                dataBuffer.put(extractor.getFrameBuffer().array(), 0, info.size);
-                bufInfo.set(info.offset, info.size, info.presentationTimeUs, info.flags);
-                inputBuffer.add(dataBuffer);
-                frameInfo.add(bufInfo);
-                if (DEBUG) {
-                    Log.d(TAG, "Extracted bufInfo: flag = " + bufInfo.flags + " timestamp = " +
-                            bufInfo.presentationTimeUs + " size = " + bufInfo.size);
-                }
-            } while (sampleSize > 0);
+            // Get samples from the sample index, the track is only extracted on first use
+            mSampleIndexCache.readSamples(inputFile, currentTrack, inputBuffer, frameInfo);
             int tid = android.os.Process.myTid();
             File decodedFile = new File(mContext.getFilesDir() + "/decoder_" + tid + ".out");
             FileOutputStream decodeOutputStream = new FileOutputStream(decodedFile);
@@ -169,7 +189,7 @@ public class EncoderTest {
             Boolean[] encodeMode = {true, false};
             /* Encoding the decoder's output */
             for (Boolean asyncMode : encodeMode) {
-                for (String codecName : mediaCodecs) {
+                for (String codecName : mCase.filterCodecs(mediaCodecs)) {
                     FileOutputStream encodeOutputStream = null;
                     if (WRITE_OUTPUT) {
                         File outEncodeFile = new File(mOutputFilePath + "encoder.out");
@@ -249,6 +269,10 @@ public class EncoderTest {
                                     " " + mInputFile, 0, status);
                     encoder.dumpStatistics(mInputFile, codecName, (asyncMode ? "async" : "sync"),
                             extractor.getClipDuration(), mStatsFile);
+                    Metrics summary = encoder.getStats().getMetrics(mInputFile, "encode",
+                            codecName, (asyncMode ? "async" : "sync"),
+                            extractor.getClipDuration());
+                    summary.dumpMetrics(mSummaryFile);
                     Log.i(TAG, "Encoding complete for file: " + mInputFile + " with codec: " +
                             codecName + " for aSyncMode = " + asyncMode);
                     encoder.resetEncoder();
@@ -283,18 +307,28 @@ public class EncoderTest {
         int trackCount = extractor.setUpExtractor(fileDescriptor);
         assertTrue("Extraction failed. No tracks for file: ", trackCount > 0);
         for (int currentTrack = 0; currentTrack < trackCount; currentTrack++) {
+            if (!mCase.acceptsTrack(currentTrack)) {
+                continue;
+            }
             extractor.selectExtractorTrack(currentTrack);
             MediaFormat format = extractor.getFormat(currentTrack);
             String mime = format.getString(MediaFormat.KEY_MIME);
             ArrayList<String> mediaCodecs = CodecUtils.selectCodecs(mime, true);
             // Encoding the decoder's output
-            for (String codecName : mediaCodecs) {
+            for (String codecName : mCase.filterCodecs(mediaCodecs)) {
                 Native nativeEncoder = new Native();
-                int status = nativeEncoder
-                        .Encode(mInputFilePath, mInputFile, mDecodedFile, mStatsFile, codecName);
+                // The native encoder runs in async and sync mode for each track
+                NativeResults results = new NativeResults(2 * trackCount);
+                int status = nativeEncoder.Encode(mInputFilePath, mInputFile, mDecodedFile,
+                        mStatsFile, codecName, results.getBuffer());
                 assertEquals(
                         codecName + " encoder returned error " + status + " for " + "file:" + " " +
                                 mInputFile, 0, status);
+                for (int run = 0; run < results.getNumRuns(); run++) {
+                    Metrics summary = results.getMetrics(run, mInputFile, "encode", codecName);
+                    summary.dumpMetrics(mSummaryFile);
+                    Log.i(TAG, summary.toString());
+                }
             }
         }
         File decodedFile = new File(mDecodedFile);
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.tests;
+
+import com.android.media.benchmark.R;
+import com.android.media.benchmark.library.BenchmarkDataSource;
+import com.android.media.benchmark.library.Extractor;
+import com.android.media.benchmark.library.Metrics;
+import com.android.media.benchmark.library.Stats;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sets up the extractor on MediaDataSources which read the file from memory, from a memory
+ * mapping, with positional file reads and with throttled reads simulating slow storage and a
+ * network, and reports the setup and extraction time together with the reads of the extractor.
+ */
+@RunWith(Parameterized.class)
+public class ExtractorDataSourceTest {
+    private static Context mContext =
+            InstrumentationRegistry.getInstrumentation().getTargetContext();
+    private static final String mInputFilePath = mContext.getString(R.string.input_file_path);
+    private static final String mMetricsFile = mContext.getExternalFilesDir(null)
+            + "/ExtractorDataSource." + System.currentTimeMillis() + ".csv";
+    private static final String TAG = "ExtractorDataSourceTest";
+    // Latency per read and bandwidth of the throttled modes
+    private static final long kStorageLatencyUs = 200;
+    private static final long kStorageBytesPerSecond = 50 * 1024 * 1024;
+    private static final long kNetworkLatencyUs = 5000;
+    private static final long kNetworkBytesPerSecond = 2 * 1024 * 1024;
+    private String mInputFileName;
+    private String mMode;
+
+    @Parameterized.Parameters(name = "{0}_{1}")
+    public static Collection<Object[]> inputFiles() {
+        String[] files = {
+                "crowd_1920x1080_25fps_6000kbps_mpeg4.mp4",
+                "crowd_1920x1080_25fps_6700kbps_h264.ts",
+                "crowd_1920x1080_25fps_4000kbps_vp9.webm",
+                "bbb_44100hz_2ch_128kbps_aac_30sec.mp4",
+                "bbb_44100hz_2ch_128kbps_mp3_30sec.mp3",
+                "bbb_48000hz_2ch_100kbps_opus_30sec.webm"};
+        String[] modes = {"fd", "file", "memory", "mmap", "storage", "network"};
+        Collection<Object[]> params = new ArrayList<>();
+        for (String file : files) {
+            for (String mode : modes) {
+                params.add(new Object[]{file, mode});
+            }
+        }
+        return params;
+    }
+
+    public ExtractorDataSourceTest(String filename, String mode) {
+        this.mInputFileName = filename;
+        this.mMode = mode;
+    }
+
+    @BeforeClass
+    public static void writeMetricsHeaderToFile() throws IOException {
+        boolean status = Metrics.writeMetricsHeader(mMetricsFile);
+        assertTrue("Unable to open metrics file for writing!", status);
+        Log.d(TAG, "Saving Benchmark results in: " + mMetricsFile);
+    }
+
+    private BenchmarkDataSource createDataSource(File inputFile) throws IOException {
+        switch (mMode) {
+            case "file":
+                return BenchmarkDataSource.file(inputFile);
+            case "memory":
+                return BenchmarkDataSource.inMemory(inputFile);
+            case "mmap":
+                return BenchmarkDataSource.mapped(inputFile);
+            case "storage":
+                return BenchmarkDataSource.throttled(BenchmarkDataSource.mapped(inputFile),
+                        kStorageLatencyUs, kStorageBytesPerSecond);
+            case "network":
+                return BenchmarkDataSource.throttled(BenchmarkDataSource.inMemory(inputFile),
+                        kNetworkLatencyUs, kNetworkBytesPerSecond);
+            default:
+                return null;
+        }
+    }
+
+    @Test
+    public void testExtractorDataSource() throws IOException {
+        File inputFile = new File(mInputFilePath + mInputFileName);
+        assertTrue("Cannot find " + mInputFileName + " in directory " + mInputFilePath,
+                inputFile.exists());
+        Stats stats = new Stats();
+        Extractor extractor = new Extractor();
+        FileInputStream fileInput = null;
+        BenchmarkDataSource dataSource = null;
+        long createTime = stats.getCurTime();
+        if (mMode.equals("fd")) {
+            fileInput = new FileInputStream(inputFile);
+            createTime = stats.getTimeDiff(createTime, stats.getCurTime());
+            extractor.setUpExtractor(fileInput.getFD());
+        } else {
+            dataSource = createDataSource(inputFile);
+            createTime = stats.getTimeDiff(createTime, stats.getCurTime());
+            extractor.setUpExtractor(dataSource);
+        }
+        long setupTime = extractor.getInitTime();
+        Metrics setupReads = null;
+        if (dataSource != null) {
+            setupReads = dataSource.getMetrics(mInputFileName, "setup");
+            dataSource.resetCounters();
+        }
+
+        long sTime = stats.getCurTime();
+        int status = extractor.extractSample(0);
+        long extractTime = stats.getTimeDiff(sTime, stats.getCurTime());
+        extractor.deinitExtractor();
+        assertEquals("Extraction failed for " + mInputFileName + " in mode " + mMode, 0, status);
+
+        Metrics metrics = dataSource != null ? dataSource.getMetrics(mInputFileName, "extract")
+                : new Metrics(mInputFileName, "extract", mMode);
+        metrics.add("createTimeNs", createTime);
+        metrics.add("setupTimeNs", setupTime);
+        metrics.add("extractTimeNs", extractTime);
+        if (setupReads != null) {
+            setupReads.add("setupTimeNs", setupTime);
+            setupReads.dumpMetrics(mMetricsFile);
+            Log.i(TAG, setupReads.toString());
+        }
+        metrics.dumpMetrics(mMetricsFile);
+        Log.i(TAG, metrics.toString());
+        if (dataSource != null) {
+            dataSource.close();
+        }
+        if (fileInput != null) {
+            fileInput.close();
+        }
+    }
+}
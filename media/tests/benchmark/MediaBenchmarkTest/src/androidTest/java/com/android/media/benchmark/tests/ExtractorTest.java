@@ -17,8 +17,12 @@
 package com.android.media.benchmark.tests;
 
 import com.android.media.benchmark.R;
+import com.android.media.benchmark.library.BenchmarkManifest;
+import com.android.media.benchmark.library.BufferPool;
 import com.android.media.benchmark.library.Extractor;
+import com.android.media.benchmark.library.Metrics;
 import com.android.media.benchmark.library.Native;
+import com.android.media.benchmark.library.NativeResults;
 import com.android.media.benchmark.library.Stats;
 
 import android.content.Context;
@@ -28,7 +32,9 @@ import android.util.Log;
 import androidx.test.platform.app.InstrumentationRegistry;
 
 import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TestRule;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
@@ -37,7 +43,6 @@ import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.Collection;
 
 import static org.junit.Assert.assertTrue;
@@ -52,13 +57,24 @@ public class ExtractorTest {
     private static final String mInputFilePath = mContext.getString(R.string.input_file_path);
     private static final String mStatsFile = mContext.getExternalFilesDir(null) + "/Extractor."
             + System.currentTimeMillis() + ".csv";
+    private static final String mBufferPoolFile = mContext.getExternalFilesDir(null)
+            + "/ExtractorBufferPool." + System.currentTimeMillis() + ".csv";
+    private static final String mSummaryFile = mContext.getExternalFilesDir(null)
+            + "/ExtractorSummary." + System.currentTimeMillis() + ".csv";
     private static final String TAG = "ExtractorTest";
     private String mInputFileName;
     private int mTrackId;
+    private BenchmarkManifest.Case mCase;
+
+    @Rule
+    public final TestRule mTimeout;
+    @Rule
+    public final TestRule mCostRecorder;
 
     @Parameterized.Parameters
-    public static Collection<Object[]> inputFiles() {
-        return Arrays.asList(new Object[][]{/* Parameters: filename, trackId*/
+    public static Collection<Object[]> inputFiles() throws IOException {
+        return BenchmarkCases.select("ExtractorTest", new Object[][]{
+                /* Parameters: filename, trackId*/
                 {"crowd_1920x1080_25fps_6000kbps_mpeg4.mp4", 0},
                 {"crowd_1920x1080_25fps_6700kbps_h264.ts", 0},
                 {"crowd_1920x1080_25fps_7300kbps_mpeg2.mp4", 0},
@@ -74,9 +90,12 @@ public class ExtractorTest {
                 {"bbb_48000hz_2ch_100kbps_opus_5mins.webm", 0}});
     }
 
-    public ExtractorTest(String filename, int track) {
+    public ExtractorTest(String filename, int track, BenchmarkManifest.Case testCase) {
         this.mInputFileName = filename;
         this.mTrackId = track;
+        this.mCase = testCase;
+        mTimeout = BenchmarkCases.newTimeout(testCase);
+        mCostRecorder = BenchmarkCases.newCostRecorder(testCase);
     }
 
     @BeforeClass
@@ -85,6 +104,10 @@ public class ExtractorTest {
         boolean status = mStats.writeStatsHeader(mStatsFile);
         assertTrue("Unable to open stats file for writing!", status);
         Log.d(TAG, "Saving Benchmark results in: " + mStatsFile);
+        status = Metrics.writeMetricsHeader(mBufferPoolFile);
+        assertTrue("Unable to open buffer pool file for writing!", status);
+        status = Metrics.writeMetricsHeader(mSummaryFile);
+        assertTrue("Unable to open summary file for writing!", status);
     }
 
     @Test
@@ -103,6 +126,12 @@ public class ExtractorTest {
         Log.i(TAG, "Extracted " + mInputFileName + " successfully.");
         extractor.deinitExtractor();
         extractor.dumpStatistics(mInputFileName, mime, mStatsFile);
+        Metrics summary = extractor.getStats().getMetrics(mInputFileName, "extract", mime, "",
+                extractor.getClipDuration());
+        summary.dumpMetrics(mSummaryFile);
+        Metrics bufferPoolMetrics = BufferPool.getShared().getMetrics(mInputFileName);
+        bufferPoolMetrics.dumpMetrics(mBufferPoolFile);
+        Log.i(TAG, bufferPoolMetrics.toString());
         fileInput.close();
     }
 
@@ -113,9 +142,19 @@ public class ExtractorTest {
         assertTrue("Cannot find " + mInputFileName + " in directory " + mInputFilePath,
                 inputFile.exists());
         FileInputStream fileInput = new FileInputStream(inputFile);
-        int status = nativeExtractor.Extract(mInputFilePath, mInputFileName, mStatsFile);
+        Extractor extractor = new Extractor();
+        extractor.setUpExtractor(fileInput.getFD());
+        String mime = extractor.getFormat(mTrackId).getString(MediaFormat.KEY_MIME);
+        extractor.deinitExtractor();
+        NativeResults results = new NativeResults(1);
+        int status = nativeExtractor.Extract(mInputFilePath, mInputFileName, mStatsFile,
+                results.getBuffer());
         fileInput.close();
         assertEquals("Extraction failed for " + mInputFileName, 0, status);
         Log.i(TAG, "Extracted " + mInputFileName + " successfully.");
+        assertEquals("No native results for " + mInputFileName, 1, results.getNumRuns());
+        Metrics summary = results.getMetrics(0, mInputFileName, "extract", mime);
+        summary.dumpMetrics(mSummaryFile);
+        Log.i(TAG, summary.toString());
     }
 }
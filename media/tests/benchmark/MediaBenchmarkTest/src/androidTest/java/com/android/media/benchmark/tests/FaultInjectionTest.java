@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.tests;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.android.media.benchmark.R;
+import com.android.media.benchmark.library.CodecUtils;
+import com.android.media.benchmark.library.Extractor;
+import com.android.media.benchmark.library.FaultBenchmark;
+import com.android.media.benchmark.library.FaultProfile;
+import com.android.media.benchmark.library.Metrics;
+import com.android.media.benchmark.library.PlatformCodec;
+import com.android.media.benchmark.library.SampleIndexCache;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Decodes each clip with each codec under every default {@link FaultProfile}: delayed callbacks,
+ * failing dequeue calls, spurious format changes, truncated samples, a codec error, and CPU and
+ * memory load. Reports the recovery latency of the faults and the throughput relative to the
+ * run without faults.
+ */
+@RunWith(Parameterized.class)
+public class FaultInjectionTest {
+    private static final Context mContext =
+            InstrumentationRegistry.getInstrumentation().getTargetContext();
+    private static final String mInputFilePath = mContext.getString(R.string.input_file_path);
+    private static final String mMetricsFile = mContext.getExternalFilesDir(null)
+            + "/FaultInjection." + System.currentTimeMillis() + ".csv";
+    private static final String TAG = "FaultInjectionTest";
+    private static final SampleIndexCache mSampleIndexCache =
+            SampleIndexCache.getShared(new File(mContext.getFilesDir(), "SampleIndex"));
+    private static final long PER_TEST_TIMEOUT_MS = 900000;
+    private String mInputFile;
+    private boolean mAsyncMode;
+
+    public FaultInjectionTest(String inputFile, boolean asyncMode) {
+        this.mInputFile = inputFile;
+        this.mAsyncMode = asyncMode;
+    }
+
+    @Parameterized.Parameters(name = "{0}_async_{1}")
+    public static Collection<Object[]> input() {
+        String[] files = {
+                "bbb_44100hz_2ch_128kbps_aac_30sec.mp4",
+                "crowd_1920x1080_25fps_6700kbps_h264.ts",
+                "crowd_1920x1080_25fps_4000kbps_vp9.webm",
+                "crowd_352x288_25fps_6000kbps_h263.3gp"};
+        ArrayList<Object[]> params = new ArrayList<>();
+        for (boolean asyncMode : new boolean[]{false, true}) {
+            for (String file : files) {
+                params.add(new Object[]{file, asyncMode});
+            }
+        }
+        return params;
+    }
+
+    @BeforeClass
+    public static void writeMetricsHeaderToFile() throws IOException {
+        boolean status = Metrics.writeMetricsHeader(mMetricsFile);
+        assertTrue("Unable to open metrics file for writing!", status);
+        Log.d(TAG, "Saving Benchmark results in: " + mMetricsFile);
+    }
+
+    @Test(timeout = PER_TEST_TIMEOUT_MS)
+    public void testFaultInjection() throws IOException {
+        File inputFile = new File(mInputFilePath + mInputFile);
+        assertTrue("Cannot find " + mInputFile + " in directory " + mInputFilePath,
+                inputFile.exists());
+        FileInputStream fileInput = new FileInputStream(inputFile);
+        Extractor extractor = new Extractor();
+        int trackCount = extractor.setUpExtractor(fileInput.getFD());
+        assertEquals("Clip " + mInputFile + " is not single track", 1, trackCount);
+        MediaFormat format = extractor.getFormat(0);
+        extractor.deinitExtractor();
+        fileInput.close();
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        ArrayList<String> mediaCodecs = CodecUtils.selectCodecs(mime, false);
+        assertTrue("No suitable codecs found for file: " + mInputFile + " mime: " + mime,
+                (mediaCodecs.size() > 0));
+        ArrayList<ByteBuffer> inputBuffer = new ArrayList<>();
+        ArrayList<MediaCodec.BufferInfo> frameInfo = new ArrayList<>();
+        mSampleIndexCache.readSamples(inputFile, 0, inputBuffer, frameInfo);
+        for (String codecName : mediaCodecs) {
+            FaultBenchmark benchmark = new FaultBenchmark(PlatformCodec.FACTORY, inputBuffer,
+                    frameInfo, format, codecName, mAsyncMode);
+            for (FaultProfile profile : FaultProfile.getDefaultProfiles()) {
+                Metrics metrics = benchmark.run(profile, mInputFile);
+                metrics.dumpMetrics(mMetricsFile);
+                Log.i(TAG, metrics.toString());
+                // A codec may not recover from truncated samples, every other profile must end
+                // with all frames decoded
+                if (profile.getTruncateInterval() == 0) {
+                    assertEquals("Decoder returned error for file: " + mInputFile
+                            + " with codec: " + codecName + " under " + profile.getName(),
+                            "0", metrics.getValue("status"));
+                }
+            }
+        }
+    }
+}
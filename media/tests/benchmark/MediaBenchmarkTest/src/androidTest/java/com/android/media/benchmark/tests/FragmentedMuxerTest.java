@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.tests;
+
+import com.android.media.benchmark.R;
+import com.android.media.benchmark.library.Extractor;
+import com.android.media.benchmark.library.FragmentedMuxer;
+import com.android.media.benchmark.library.Metrics;
+import com.android.media.benchmark.library.Muxer;
+import com.android.media.benchmark.library.SampleIndexCache;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Debug;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Muxes a track with MediaMuxer and with the fragmented MP4 writer of the library, and reports
+ * the write throughput, the peak memory used while muxing and the time taken to finish the file.
+ */
+@RunWith(Parameterized.class)
+public class FragmentedMuxerTest {
+    private static Context mContext =
+            InstrumentationRegistry.getInstrumentation().getTargetContext();
+    private static final String mInputFilePath = mContext.getString(R.string.input_file_path);
+    private static final String mMetricsFile = mContext.getExternalFilesDir(null)
+            + "/FragmentedMuxer." + System.currentTimeMillis() + ".csv";
+    private static final String TAG = "FragmentedMuxerTest";
+    private static final String WRITER_MEDIA_MUXER = "mediaMuxer";
+    private static final String WRITER_FMP4 = "fmp4";
+    // Memory is sampled every few samples while muxing
+    private static final int MEMORY_SAMPLING_INTERVAL = 16;
+    private static final SampleIndexCache mSampleIndexCache =
+            SampleIndexCache.getShared(new File(mContext.getFilesDir(), "SampleIndex"));
+    private String mInputFileName;
+    private String mWriter;
+    private long mFragmentDurationMs;
+    private long mBaseJavaHeap;
+    private long mBaseNativeHeap;
+    private long mPeakJavaHeap;
+    private long mPeakNativeHeap;
+
+    @Parameterized.Parameters(name = "{0}_{1}_{2}")
+    public static Collection<Object[]> inputFiles() {
+        String[] files = {
+                "crowd_1920x1080_25fps_6700kbps_h264.ts",
+                "crowd_1920x1080_25fps_6000kbps_mpeg4.mp4",
+                "crowd_352x288_25fps_6000kbps_h263.3gp",
+                "bbb_44100hz_2ch_128kbps_aac_5mins.mp4"};
+        long[] fragmentDurationsMs = {500, 2000};
+        Collection<Object[]> params = new ArrayList<>();
+        for (String file : files) {
+            params.add(new Object[]{file, WRITER_MEDIA_MUXER, 0});
+            for (long fragmentDurationMs : fragmentDurationsMs) {
+                params.add(new Object[]{file, WRITER_FMP4, fragmentDurationMs});
+            }
+        }
+        return params;
+    }
+
+    public FragmentedMuxerTest(String filename, String writer, long fragmentDurationMs) {
+        this.mInputFileName = filename;
+        this.mWriter = writer;
+        this.mFragmentDurationMs = fragmentDurationMs;
+    }
+
+    @BeforeClass
+    public static void writeMetricsHeaderToFile() throws IOException {
+        boolean status = Metrics.writeMetricsHeader(mMetricsFile);
+        assertTrue("Unable to open metrics file for writing!", status);
+        Log.d(TAG, "Saving Benchmark results in: " + mMetricsFile);
+    }
+
+    private static long getJavaHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private void resetMemory() {
+        Runtime.getRuntime().gc();
+        mBaseJavaHeap = getJavaHeap();
+        mBaseNativeHeap = Debug.getNativeHeapAllocatedSize();
+        mPeakJavaHeap = 0;
+        mPeakNativeHeap = 0;
+    }
+
+    private void sampleMemory() {
+        mPeakJavaHeap = Math.max(mPeakJavaHeap, getJavaHeap() - mBaseJavaHeap);
+        mPeakNativeHeap = Math.max(mPeakNativeHeap,
+                Debug.getNativeHeapAllocatedSize() - mBaseNativeHeap);
+    }
+
+    @Test
+    public void testFragmentedMuxer() throws IOException {
+        File inputFile = new File(mInputFilePath + mInputFileName);
+        assertTrue("Cannot find " + mInputFileName + " in directory " + mInputFilePath,
+                inputFile.exists());
+        FileInputStream fileInput = new FileInputStream(inputFile);
+        Extractor extractor = new Extractor();
+        extractor.setUpExtractor(fileInput.getFD());
+        MediaFormat format = extractor.getFormat(0);
+        extractor.deinitExtractor();
+        fileInput.close();
+        ArrayList<ByteBuffer> inputBuffer = new ArrayList<>();
+        ArrayList<MediaCodec.BufferInfo> inputBufferInfo = new ArrayList<>();
+        mSampleIndexCache.readSamples(inputFile, 0, inputBuffer, inputBufferInfo);
+        ArrayList<MediaFormat> trackFormats = new ArrayList<>();
+        trackFormats.add(format);
+
+        boolean fmp4 = mWriter.equals(WRITER_FMP4);
+        Muxer muxer = new Muxer();
+        FragmentedMuxer fragmentedMuxer = new FragmentedMuxer();
+        resetMemory();
+        int numTracks = fmp4
+                ? fragmentedMuxer.setUpMuxer(mContext, trackFormats, mFragmentDurationMs * 1000)
+                : muxer.setUpMuxer(mContext, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4,
+                        trackFormats);
+        assertEquals("Cannot set up " + mWriter + " for " + mInputFileName, 1, numTracks);
+        long payloadSize = 0;
+        long sTime = System.nanoTime();
+        for (int i = 0; i < inputBuffer.size(); i++) {
+            MediaCodec.BufferInfo info = inputBufferInfo.get(i);
+            if (info.size <= 0) {
+                continue;
+            }
+            int status = fmp4 ? fragmentedMuxer.writeSample(0, inputBuffer.get(i), info)
+                    : muxer.writeSample(0, inputBuffer.get(i), info);
+            assertEquals("Cannot perform write operation for " + mInputFileName, 0, status);
+            payloadSize += info.size;
+            if (i % MEMORY_SAMPLING_INTERVAL == 0) {
+                sampleMemory();
+            }
+        }
+        long muxTime = System.nanoTime() - sTime;
+        sampleMemory();
+        if (fmp4) {
+            fragmentedMuxer.deInitMuxer();
+        } else {
+            muxer.deInitMuxer();
+        }
+        Metrics metrics = fmp4 ? fragmentedMuxer.getMetrics(mInputFileName, "fragmentedMux")
+                : muxer.getMetrics(mInputFileName, "fragmentedMux", "mp4");
+        metrics.add("writer", mWriter);
+        metrics.add("fragmentDurationMs", mFragmentDurationMs);
+        metrics.add("muxTimeNs", muxTime);
+        metrics.add("payloadSize", payloadSize);
+        metrics.add("throughputMBps", payloadSize * 1000.0 / Math.max(1, muxTime));
+        metrics.add("peakJavaHeapBytes", mPeakJavaHeap);
+        metrics.add("peakNativeHeapBytes", mPeakNativeHeap);
+        metrics.dumpMetrics(mMetricsFile);
+        Log.i(TAG, metrics.toString());
+    }
+}
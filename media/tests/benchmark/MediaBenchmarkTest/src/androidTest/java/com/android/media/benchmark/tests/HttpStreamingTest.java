@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.tests;
+
+import com.android.media.benchmark.R;
+import com.android.media.benchmark.library.LoopbackHttpServer;
+import com.android.media.benchmark.library.Metrics;
+import com.android.media.benchmark.library.StreamingPlayback;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Streams the clips from a server on the loopback interface, which simulates the bandwidth,
+ * round trip time and jitter of different networks, and reports the startup time, the bytes
+ * fetched before playback could start and the rebuffer events of a paced playback.
+ */
+@RunWith(Parameterized.class)
+public class HttpStreamingTest {
+    private static Context mContext =
+            InstrumentationRegistry.getInstrumentation().getTargetContext();
+    private static final String mInputFilePath = mContext.getString(R.string.input_file_path);
+    private static final String mMetricsFile = mContext.getExternalFilesDir(null)
+            + "/HttpStreaming." + System.currentTimeMillis() + ".csv";
+    private static final String TAG = "HttpStreamingTest";
+    private static final long kPlaybackDurationUs = 10000000;
+    private static LoopbackHttpServer mServer;
+    private String mInputFileName;
+    private String mProfile;
+    private long mBytesPerSecond;
+    private long mRoundTripTimeUs;
+    private long mJitterUs;
+
+    @Parameterized.Parameters(name = "{0}_{1}")
+    public static Collection<Object[]> inputFiles() {
+        String[] files = {
+                "crowd_1920x1080_25fps_6000kbps_mpeg4.mp4",
+                "crowd_1920x1080_25fps_6700kbps_h264.ts",
+                "crowd_1920x1080_25fps_4000kbps_vp9.webm",
+                "bbb_44100hz_2ch_128kbps_aac_30sec.mp4",
+                "bbb_44100hz_2ch_128kbps_mp3_30sec.mp3",
+                "bbb_48000hz_2ch_100kbps_opus_30sec.webm"};
+        Object[][] profiles = {/* Parameters: profile, bytesPerSecond, rttUs, jitterUs */
+                {"lan", 50 * 1024 * 1024L, 1000L, 0L},
+                {"wifi", 4 * 1024 * 1024L, 20000L, 5000L},
+                {"cellular", 1024 * 1024L, 80000L, 30000L},
+                {"slowCellular", 256 * 1024L, 200000L, 80000L}};
+        Collection<Object[]> params = new ArrayList<>();
+        for (String file : files) {
+            for (Object[] profile : profiles) {
+                params.add(new Object[]{file, profile[0], profile[1], profile[2], profile[3]});
+            }
+        }
+        return params;
+    }
+
+    public HttpStreamingTest(String filename, String profile, long bytesPerSecond,
+            long roundTripTimeUs, long jitterUs) {
+        this.mInputFileName = filename;
+        this.mProfile = profile;
+        this.mBytesPerSecond = bytesPerSecond;
+        this.mRoundTripTimeUs = roundTripTimeUs;
+        this.mJitterUs = jitterUs;
+    }
+
+    @BeforeClass
+    public static void setUpServer() throws IOException {
+        boolean status = Metrics.writeMetricsHeader(mMetricsFile);
+        assertTrue("Unable to open metrics file for writing!", status);
+        Log.d(TAG, "Saving Benchmark results in: " + mMetricsFile);
+        mServer = new LoopbackHttpServer(new File(mInputFilePath));
+        mServer.start();
+    }
+
+    @AfterClass
+    public static void tearDownServer() throws IOException {
+        mServer.close();
+    }
+
+    @Test
+    public void testHttpStreaming() throws IOException {
+        File inputFile = new File(mInputFilePath + mInputFileName);
+        assertTrue("Cannot find " + mInputFileName + " in directory " + mInputFilePath,
+                inputFile.exists());
+        mServer.setBandwidth(mBytesPerSecond);
+        mServer.setRoundTripTime(mRoundTripTimeUs);
+        mServer.setJitter(mJitterUs);
+        StreamingPlayback playback = new StreamingPlayback();
+        int status = playback.play(mServer, mInputFileName, 0, "", kPlaybackDurationUs);
+        assertEquals("Streaming failed for " + mInputFileName + " over " + mProfile, 0, status);
+        Metrics metrics = playback.getMetrics(mInputFileName, mProfile);
+        metrics.add("fileSize", inputFile.length());
+        metrics.add("bandwidthBps", mBytesPerSecond);
+        metrics.add("roundTripTimeUs", mRoundTripTimeUs);
+        metrics.add("jitterUs", mJitterUs);
+        metrics.dumpMetrics(mMetricsFile);
+        Log.i(TAG, metrics.toString());
+    }
+}
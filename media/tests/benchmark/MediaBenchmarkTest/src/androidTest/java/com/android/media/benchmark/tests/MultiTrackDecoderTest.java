@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.tests;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.android.media.benchmark.R;
+import com.android.media.benchmark.library.Extractor;
+import com.android.media.benchmark.library.Metrics;
+import com.android.media.benchmark.library.MultiTrackDecoder;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Muxes a video clip and an audio clip into one file and decodes both tracks at the same time,
+ * as a player would.
+ */
+@RunWith(Parameterized.class)
+public class MultiTrackDecoderTest {
+    private static final Context mContext =
+            InstrumentationRegistry.getInstrumentation().getTargetContext();
+    private static final String mInputFilePath = mContext.getString(R.string.input_file_path);
+    private static final String mMetricsFile = mContext.getExternalFilesDir(null)
+            + "/MultiTrackDecoder." + System.currentTimeMillis() + ".csv";
+    private static final String TAG = "MultiTrackDecoderTest";
+    private static final long PER_TEST_TIMEOUT_MS = 300000;
+    private static final int QUEUE_CAPACITY = 4;
+    private static final int kMaxBufSize = 1024 * 1024 * 16;
+    private String mVideoFile;
+    private String mAudioFile;
+
+    public MultiTrackDecoderTest(String videoFile, String audioFile) {
+        this.mVideoFile = videoFile;
+        this.mAudioFile = audioFile;
+    }
+
+    @Parameterized.Parameters
+    public static Collection<Object[]> input() {
+        return Arrays.asList(new Object[][]{
+                {"crowd_1920x1080_25fps_6000kbps_mpeg4.mp4",
+                        "bbb_44100hz_2ch_128kbps_aac_30sec.mp4"},
+                {"crowd_176x144_25fps_6000kbps_mpeg4.mp4", "bbb_44100hz_2ch_128kbps_aac_30sec.mp4"},
+                {"crowd_1920x1080_25fps_4000kbps_vp9.webm",
+                        "bbb_48000hz_2ch_100kbps_opus_30sec.webm"},
+                {"crowd_1920x1080_25fps_4000kbps_vp8.webm",
+                        "bbb_44100hz_2ch_80kbps_vorbis_30sec.webm"}});
+    }
+
+    @BeforeClass
+    public static void writeMetricsHeaderToFile() throws IOException {
+        boolean status = Metrics.writeMetricsHeader(mMetricsFile);
+        assertTrue("Unable to open metrics file for writing!", status);
+        Log.d(TAG, "Saving Benchmark results in: " + mMetricsFile);
+    }
+
+    @Test(timeout = PER_TEST_TIMEOUT_MS)
+    public void testMultiTrackDecoder() throws Exception {
+        String[] inputFiles = {mVideoFile, mAudioFile};
+        for (String input : inputFiles) {
+            assertTrue("Cannot find " + input + " in directory " + mInputFilePath,
+                    new File(mInputFilePath + input).exists());
+        }
+        boolean webm = mVideoFile.endsWith(".webm");
+        int tid = android.os.Process.myTid();
+        File muxedFile = new File(mContext.getFilesDir() + "/multitrack_" + tid
+                + (webm ? ".webm" : ".mp4"));
+        muxTracks(muxedFile, webm ? MediaMuxer.OutputFormat.MUXER_OUTPUT_WEBM
+                : MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4, inputFiles);
+        String inputReference = mVideoFile + "+" + mAudioFile;
+
+        long interleavedReadNs;
+        long sequentialReadNs;
+        try (FileInputStream fileInput = new FileInputStream(muxedFile)) {
+            interleavedReadNs = MultiTrackDecoder.timeReads(fileInput.getFD(), true);
+        }
+        try (FileInputStream fileInput = new FileInputStream(muxedFile)) {
+            sequentialReadNs = MultiTrackDecoder.timeReads(fileInput.getFD(), false);
+        }
+        assertTrue("Reading " + inputReference + " failed",
+                interleavedReadNs >= 0 && sequentialReadNs >= 0);
+
+        FileInputStream fileInput = new FileInputStream(muxedFile);
+        Extractor extractor = new Extractor();
+        int trackCount = extractor.setUpExtractor(fileInput.getFD());
+        assertEquals("Unexpected number of tracks in " + inputReference, inputFiles.length,
+                trackCount);
+        MultiTrackDecoder decoder = new MultiTrackDecoder(QUEUE_CAPACITY);
+        int status = decoder.decode(extractor, trackCount, "");
+        extractor.deinitExtractor();
+        fileInput.close();
+        assertEquals("Decoder returned error " + status + " for " + inputReference, 0, status);
+        Metrics metrics = decoder.getMetrics(inputReference, interleavedReadNs, sequentialReadNs);
+        metrics.dumpMetrics(mMetricsFile);
+        Log.i(TAG, metrics.toString());
+        assertTrue("Unable to delete muxed file " + muxedFile, muxedFile.delete());
+    }
+
+    /**
+     * Writes the first track of every input into one file, interleaved by timestamp
+     */
+    private static void muxTracks(File outputFile, int outputFormat, String[] inputFiles)
+            throws IOException {
+        MediaMuxer muxer = new MediaMuxer(outputFile.getPath(), outputFormat);
+        MediaExtractor[] extractors = new MediaExtractor[inputFiles.length];
+        int[] muxerTracks = new int[inputFiles.length];
+        for (int i = 0; i < inputFiles.length; i++) {
+            extractors[i] = new MediaExtractor();
+            extractors[i].setDataSource(mInputFilePath + inputFiles[i]);
+            extractors[i].selectTrack(0);
+            muxerTracks[i] = muxer.addTrack(extractors[i].getTrackFormat(0));
+        }
+        muxer.start();
+        ByteBuffer buffer = ByteBuffer.allocate(kMaxBufSize);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        while (true) {
+            int next = -1;
+            for (int i = 0; i < extractors.length; i++) {
+                long sampleTime = extractors[i].getSampleTime();
+                if (sampleTime >= 0 && (next < 0
+                        || sampleTime < extractors[next].getSampleTime())) {
+                    next = i;
+                }
+            }
+            if (next < 0) {
+                break;
+            }
+            int sampleSize = extractors[next].readSampleData(buffer, 0);
+            info.set(0, sampleSize, extractors[next].getSampleTime(),
+                    extractors[next].getSampleFlags());
+            muxer.writeSampleData(muxerTracks[next], buffer, info);
+            extractors[next].advance();
+        }
+        muxer.stop();
+        muxer.release();
+        for (MediaExtractor extractor : extractors) {
+            extractor.release();
+        }
+    }
+}
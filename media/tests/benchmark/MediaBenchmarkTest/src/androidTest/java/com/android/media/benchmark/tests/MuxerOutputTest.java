@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.tests;
+
+import com.android.media.benchmark.R;
+import com.android.media.benchmark.library.Extractor;
+import com.android.media.benchmark.library.Metrics;
+import com.android.media.benchmark.library.Muxer;
+import com.android.media.benchmark.library.SampleIndexCache;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Muxes a track to the data partition, to a preallocated file and to a tmpfs, without fsync,
+ * with one fsync at the end and with periodic fsync, and reports the time of the writes and
+ * syncs and the bytes written by the process against the size of the output.
+ */
+@RunWith(Parameterized.class)
+public class MuxerOutputTest {
+    private static Context mContext =
+            InstrumentationRegistry.getInstrumentation().getTargetContext();
+    private static final String mInputFilePath = mContext.getString(R.string.input_file_path);
+    private static final String mMetricsFile = mContext.getExternalFilesDir(null)
+            + "/MuxerOutput." + System.currentTimeMillis() + ".csv";
+    private static final String TAG = "MuxerOutputTest";
+    private static final SampleIndexCache mSampleIndexCache =
+            SampleIndexCache.getShared(new File(mContext.getFilesDir(), "SampleIndex"));
+    private String mInputFileName;
+    private String mOutputMode;
+    private long mSyncIntervalMs;
+
+    @Parameterized.Parameters(name = "{0}_{1}_{2}")
+    public static Collection<Object[]> inputFiles() {
+        String[] files = {
+                "crowd_1920x1080_25fps_6000kbps_mpeg4.mp4",
+                "crowd_1920x1080_25fps_4000kbps_vp9.webm",
+                "bbb_44100hz_2ch_128kbps_aac_5mins.mp4"};
+        String[] outputModes = {Muxer.OUTPUT_DATA, Muxer.OUTPUT_PREALLOCATED, Muxer.OUTPUT_TMPFS};
+        // Never sync, sync once stopped, sync every second of writes
+        long[] syncIntervalsMs = {-1, 0, 1000};
+        Collection<Object[]> params = new ArrayList<>();
+        for (String file : files) {
+            for (String outputMode : outputModes) {
+                for (long syncIntervalMs : syncIntervalsMs) {
+                    params.add(new Object[]{file, outputMode, syncIntervalMs});
+                }
+            }
+        }
+        return params;
+    }
+
+    public MuxerOutputTest(String filename, String outputMode, long syncIntervalMs) {
+        this.mInputFileName = filename;
+        this.mOutputMode = outputMode;
+        this.mSyncIntervalMs = syncIntervalMs;
+    }
+
+    @BeforeClass
+    public static void writeMetricsHeaderToFile() throws IOException {
+        boolean status = Metrics.writeMetricsHeader(mMetricsFile);
+        assertTrue("Unable to open metrics file for writing!", status);
+        Log.d(TAG, "Saving Benchmark results in: " + mMetricsFile);
+    }
+
+    @Test
+    public void testMuxerOutput() throws IOException {
+        File inputFile = new File(mInputFilePath + mInputFileName);
+        assertTrue("Cannot find " + mInputFileName + " in directory " + mInputFilePath,
+                inputFile.exists());
+        FileInputStream fileInput = new FileInputStream(inputFile);
+        Extractor extractor = new Extractor();
+        extractor.setUpExtractor(fileInput.getFD());
+        MediaFormat format = extractor.getFormat(0);
+        extractor.deinitExtractor();
+        fileInput.close();
+        ArrayList<ByteBuffer> inputBuffer = new ArrayList<>();
+        ArrayList<MediaCodec.BufferInfo> inputBufferInfo = new ArrayList<>();
+        mSampleIndexCache.readSamples(inputFile, 0, inputBuffer, inputBufferInfo);
+        long payloadSize = 0;
+        for (MediaCodec.BufferInfo info : inputBufferInfo) {
+            payloadSize += info.size;
+        }
+
+        boolean webm = mInputFileName.endsWith(".webm");
+        Muxer muxer = new Muxer();
+        // The samples are a lower bound of the output size, the index is written past them
+        muxer.setOutputMode(mOutputMode, payloadSize);
+        muxer.setSyncInterval(mSyncIntervalMs);
+        int trackIndex = muxer.setUpMuxer(mContext, webm ? MediaMuxer.OutputFormat.MUXER_OUTPUT_WEBM
+                : MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4, format);
+        assertEquals("Cannot set up muxer for " + mInputFileName + " in mode " + mOutputMode, 0,
+                trackIndex);
+        long sTime = System.nanoTime();
+        int status = muxer.mux(trackIndex, inputBuffer, inputBufferInfo);
+        long muxTime = System.nanoTime() - sTime;
+        assertEquals("Cannot perform write operation for " + mInputFileName, 0, status);
+        muxer.deInitMuxer();
+        Metrics metrics = muxer.getMetrics(mInputFileName, "muxOutput", webm ? "webm" : "mp4");
+        metrics.add("outputMode", mOutputMode);
+        metrics.add("muxTimeNs", muxTime);
+        metrics.add("payloadSize", payloadSize);
+        metrics.dumpMetrics(mMetricsFile);
+        Log.i(TAG, metrics.toString());
+    }
+}
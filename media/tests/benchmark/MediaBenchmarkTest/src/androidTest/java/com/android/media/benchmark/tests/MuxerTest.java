@@ -16,9 +16,13 @@
 package com.android.media.benchmark.tests;
 
 import com.android.media.benchmark.R;
+import com.android.media.benchmark.library.BenchmarkManifest;
 import com.android.media.benchmark.library.Extractor;
+import com.android.media.benchmark.library.Metrics;
 import com.android.media.benchmark.library.Muxer;
 import com.android.media.benchmark.library.Native;
+import com.android.media.benchmark.library.NativeResults;
+import com.android.media.benchmark.library.SampleIndexCache;
 import com.android.media.benchmark.library.Stats;
 
 import androidx.test.platform.app.InstrumentationRegistry;
@@ -29,8 +33,11 @@ import android.media.MediaFormat;
 import android.media.MediaMuxer;
 import android.util.Log;
 
+import org.junit.AfterClass;
 import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TestRule;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
@@ -41,7 +48,6 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Hashtable;
 import java.util.Map;
@@ -59,7 +65,11 @@ public class MuxerTest {
     private static final String mInputFilePath = mContext.getString(R.string.input_file_path);
     private static final String mStatsFile =
             mContext.getExternalFilesDir(null) + "/Muxer." + System.currentTimeMillis() + ".csv";
+    private static final String mSummaryFile = mContext.getExternalFilesDir(null)
+            + "/MuxerSummary." + System.currentTimeMillis() + ".csv";
     private static final String TAG = "MuxerTest";
+    private static final SampleIndexCache mSampleIndexCache =
+            SampleIndexCache.getShared(new File(mContext.getFilesDir(), "SampleIndex"));
     private static final Map<String, Integer> mMapFormat = new Hashtable<String, Integer>() {
         {
             put("mp4", MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
@@ -70,10 +80,16 @@ public class MuxerTest {
     };
     private String mInputFileName;
     private String mFormat;
+    private BenchmarkManifest.Case mCase;
+
+    @Rule
+    public final TestRule mTimeout;
+    @Rule
+    public final TestRule mCostRecorder;
 
     @Parameterized.Parameters
-    public static Collection<Object[]> inputFiles() {
-        return Arrays.asList(new Object[][]{
+    public static Collection<Object[]> inputFiles() throws IOException {
+        return BenchmarkCases.select("MuxerTest", new Object[][]{
                 /* Parameters: filename, format */
                 {"crowd_1920x1080_25fps_4000kbps_vp8.webm", "webm"},
                 {"crowd_1920x1080_25fps_4000kbps_vp9.webm", "webm"},
@@ -96,9 +112,12 @@ public class MuxerTest {
                 {"bbb_16000hz_1ch_9kbps_amrwb_5mins.3gp", "3gpp"}});
     }
 
-    public MuxerTest(String filename, String outputFormat) {
+    public MuxerTest(String filename, String outputFormat, BenchmarkManifest.Case testCase) {
         this.mInputFileName = filename;
         this.mFormat = outputFormat;
+        this.mCase = testCase;
+        mTimeout = BenchmarkCases.newTimeout(testCase);
+        mCostRecorder = BenchmarkCases.newCostRecorder(testCase);
     }
 
     @BeforeClass
@@ -107,6 +126,18 @@ public class MuxerTest {
         boolean status = mStats.writeStatsHeader(mStatsFile);
         assertTrue("Unable to open stats file for writing!", status);
         Log.d(TAG, "Saving Benchmark results in: " + mStatsFile);
+        status = Metrics.writeMetricsHeader(mSummaryFile);
+        assertTrue("Unable to open summary file for writing!", status);
+    }
+
+    @AfterClass
+    public static void writeSampleIndexSummary() throws IOException {
+        String summaryFile = mContext.getExternalFilesDir(null) + "/SampleIndexCache."
+                + System.currentTimeMillis() + ".csv";
+        Metrics summary = mSampleIndexCache.getMetrics("MuxerTest");
+        Metrics.writeMetricsHeader(summaryFile);
+        summary.dumpMetrics(summaryFile);
+        Log.i(TAG, summary.toString());
     }
 
     @Test
@@ -122,21 +153,8 @@ public class MuxerTest {
         int trackCount = extractor.setUpExtractor(fileDescriptor);
         for (int currentTrack = 0; currentTrack < trackCount; currentTrack++) {
             extractor.selectExtractorTrack(currentTrack);
-            while (true) {
-                int sampleSize = extractor.getFrameSample();
-                MediaCodec.BufferInfo bufferInfo = extractor.getBufferInfo();
-                MediaCodec.BufferInfo tempBufferInfo = new MediaCodec.BufferInfo();
-                tempBufferInfo
-                        .set(bufferInfo.offset, bufferInfo.size, bufferInfo.presentationTimeUs,
-                                bufferInfo.flags);
-                inputBufferInfo.add(tempBufferInfo);
-                ByteBuffer tempSampleBuffer = ByteBuffer.allocate(tempBufferInfo.size);
-                tempSampleBuffer.put(extractor.getFrameBuffer().array(), 0, bufferInfo.size);
-                inputBuffer.add(tempSampleBuffer);
-                if (sampleSize < 0) {
-                    break;
-                }
-            }
+            // Get samples from the sample index, the track is only extracted on first use
+            mSampleIndexCache.readSamples(inputFile, currentTrack, inputBuffer, inputBufferInfo);
             MediaFormat format = extractor.getFormat(currentTrack);
             int outputFormat = mMapFormat.getOrDefault(mFormat, -1);
             assertNotEquals("Test failed for " + mInputFileName + ". Returned invalid " +
@@ -148,6 +166,9 @@ public class MuxerTest {
             Log.i(TAG, "Muxed " + mInputFileName + " successfully.");
             muxer.deInitMuxer();
             muxer.dumpStatistics(mInputFileName, mFormat, extractor.getClipDuration(), mStatsFile);
+            Metrics summary = muxer.getStats().getMetrics(mInputFileName, "mux", mFormat, "",
+                    extractor.getClipDuration());
+            summary.dumpMetrics(mSummaryFile);
             muxer.resetMuxer();
             extractor.unselectExtractorTrack(currentTrack);
             inputBufferInfo.clear();
@@ -159,17 +180,29 @@ public class MuxerTest {
     }
 
     @Test
-    public void testNativeMuxer() {
+    public void testNativeMuxer() throws IOException {
         Native nativeMuxer = new Native();
         File inputFile = new File(mInputFilePath + mInputFileName);
         assertTrue("Cannot find " + mInputFileName + " in directory " + mInputFilePath,
                 inputFile.exists());
+        FileInputStream fileInput = new FileInputStream(inputFile);
+        Extractor extractor = new Extractor();
+        int trackCount = extractor.setUpExtractor(fileInput.getFD());
+        extractor.deinitExtractor();
+        fileInput.close();
         int tid = android.os.Process.myTid();
         String mMuxOutputFile = (mContext.getFilesDir() + "/mux_" + tid + ".out");
-        int status = nativeMuxer.Mux(
-                mInputFilePath, mInputFileName, mMuxOutputFile, mStatsFile, mFormat);
+        // The native muxer runs once per track
+        NativeResults results = new NativeResults(trackCount);
+        int status = nativeMuxer.Mux(mInputFilePath, mInputFileName, mMuxOutputFile, mStatsFile,
+                mFormat, results.getBuffer());
         assertEquals("Cannot perform write operation for " + mInputFileName, 0, status);
         Log.i(TAG, "Muxed " + mInputFileName + " successfully.");
+        for (int run = 0; run < results.getNumRuns(); run++) {
+            Metrics summary = results.getMetrics(run, mInputFileName, "mux", mFormat);
+            summary.dumpMetrics(mSummaryFile);
+            Log.i(TAG, summary.toString());
+        }
         File muxedFile = new File(mMuxOutputFile);
         // Cleanup temporary output file
         if (muxedFile.exists()) {
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.tests;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.android.media.benchmark.R;
+import com.android.media.benchmark.library.CodecUtils;
+import com.android.media.benchmark.library.Decoder;
+import com.android.media.benchmark.library.Extractor;
+import com.android.media.benchmark.library.MatrixScheduler;
+import com.android.media.benchmark.library.Metrics;
+import com.android.media.benchmark.library.SampleIndexCache;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Decodes a matrix of clips and codecs once serially and once through the
+ * {@link MatrixScheduler}, running the cases on software codecs and on distinct hardware codec
+ * families concurrently, and reports the time of both suites. The async decode of each clip
+ * with its first codec measures the time to the first frame and runs alone.
+ */
+@RunWith(JUnit4.class)
+public class ParallelMatrixTest {
+    private static final Context mContext =
+            InstrumentationRegistry.getInstrumentation().getTargetContext();
+    private static final String mInputFilePath = mContext.getString(R.string.input_file_path);
+    private static final String mMetricsFile = mContext.getExternalFilesDir(null)
+            + "/ParallelMatrix." + System.currentTimeMillis() + ".csv";
+    private static final String TAG = "ParallelMatrixTest";
+    private static final SampleIndexCache mSampleIndexCache =
+            SampleIndexCache.getShared(new File(mContext.getFilesDir(), "SampleIndex"));
+    private static final long PER_TEST_TIMEOUT_MS = 1800000;
+    // Single track clips
+    private static final String[] INPUT_FILES = {
+            "bbb_44100hz_2ch_128kbps_aac_30sec.mp4",
+            "bbb_8000hz_1ch_8kbps_amrnb_30sec.3gp",
+            "bbb_48000hz_2ch_100kbps_opus_30sec.webm",
+            "crowd_1920x1080_25fps_6700kbps_h264.ts",
+            "crowd_1920x1080_25fps_4000kbps_vp9.webm",
+            "crowd_352x288_25fps_6000kbps_h263.3gp"};
+
+    @BeforeClass
+    public static void writeMetricsHeaderToFile() throws IOException {
+        boolean status = Metrics.writeMetricsHeader(mMetricsFile);
+        assertTrue("Unable to open metrics file for writing!", status);
+        Log.d(TAG, "Saving Benchmark results in: " + mMetricsFile);
+    }
+
+    private static Metrics decode(String inputFile, MediaFormat format, String codecName,
+            boolean asyncMode, long clipDuration) throws IOException {
+        // Every case reads its own samples, the buffers are not shared between decoders
+        ArrayList<ByteBuffer> inputBuffer = new ArrayList<>();
+        ArrayList<MediaCodec.BufferInfo> frameInfo = new ArrayList<>();
+        mSampleIndexCache.readSamples(new File(mInputFilePath + inputFile), 0, inputBuffer,
+                frameInfo);
+        Decoder decoder = new Decoder();
+        decoder.setupDecoder(null);
+        int status = decoder.decode(inputBuffer, frameInfo, asyncMode, format, codecName);
+        decoder.deInitCodec();
+        if (status != 0) {
+            throw new IOException("Decoder returned error " + status + " for file: " + inputFile
+                    + " with codec: " + codecName);
+        }
+        return decoder.getStats().getMetrics(inputFile, "decode", codecName,
+                asyncMode ? "async" : "sync", clipDuration);
+    }
+
+    private static void addCases(MatrixScheduler scheduler) throws IOException {
+        for (String inputFile : INPUT_FILES) {
+            File file = new File(mInputFilePath + inputFile);
+            assertTrue("Cannot find " + inputFile + " in directory " + mInputFilePath,
+                    file.exists());
+            FileInputStream fileInput = new FileInputStream(file);
+            Extractor extractor = new Extractor();
+            int trackCount = extractor.setUpExtractor(fileInput.getFD());
+            assertEquals("Clip " + inputFile + " is not single track", 1, trackCount);
+            MediaFormat format = extractor.getFormat(0);
+            long clipDuration = format.getLong(MediaFormat.KEY_DURATION);
+            extractor.deinitExtractor();
+            fileInput.close();
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            ArrayList<String> mediaCodecs = CodecUtils.selectCodecs(mime, false);
+            assertTrue("No suitable codecs found for file: " + inputFile + " mime: " + mime,
+                    (mediaCodecs.size() > 0));
+            for (String codecName : mediaCodecs) {
+                MatrixScheduler.Resources resources = MatrixScheduler.Resources.forCodec(
+                        codecName, false, CodecUtils.isHardwareAccelerated(codecName));
+                scheduler.add(inputFile + "/" + codecName, resources,
+                        () -> decode(inputFile, format, codecName, false, clipDuration));
+            }
+            String firstCodec = mediaCodecs.get(0);
+            scheduler.add(inputFile + "/" + firstCodec + "/firstFrame",
+                    MatrixScheduler.Resources.exclusive(),
+                    () -> decode(inputFile, format, firstCodec, true, clipDuration));
+        }
+    }
+
+    private static Metrics runMatrix(MatrixScheduler scheduler, String schedule)
+            throws IOException, InterruptedException {
+        addCases(scheduler);
+        int failures = scheduler.run();
+        for (Metrics metrics : scheduler.getResults()) {
+            metrics.add("schedule", schedule);
+            metrics.dumpMetrics(mMetricsFile);
+        }
+        assertEquals("Failed cases in the " + schedule + " run", 0, failures);
+        Metrics suite = scheduler.getMetrics(schedule);
+        suite.dumpMetrics(mMetricsFile);
+        Log.i(TAG, suite.toString());
+        return suite;
+    }
+
+    @Test(timeout = PER_TEST_TIMEOUT_MS)
+    public void testParallelMatrix() throws IOException, InterruptedException {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        Metrics serial = runMatrix(new MatrixScheduler(1, cpus), "serial");
+        Metrics parallel = runMatrix(new MatrixScheduler(cpus, cpus), "parallel");
+        long serialTimeNs = Long.parseLong(serial.getValue("suiteTimeNs"));
+        long parallelTimeNs = Long.parseLong(parallel.getValue("suiteTimeNs"));
+        Metrics metrics = new Metrics("matrix", "schedule", "");
+        metrics.add("serialSuiteTimeNs", serialTimeNs);
+        metrics.add("parallelSuiteTimeNs", parallelTimeNs);
+        metrics.add("speedup", parallelTimeNs > 0 ? (double) serialTimeNs / parallelTimeNs : 0.0);
+        metrics.dumpMetrics(mMetricsFile);
+        Log.i(TAG, metrics.toString());
+    }
+}
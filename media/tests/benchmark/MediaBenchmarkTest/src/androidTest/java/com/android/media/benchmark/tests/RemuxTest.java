@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.tests;
+
+import com.android.media.benchmark.R;
+import com.android.media.benchmark.library.Extractor;
+import com.android.media.benchmark.library.Metrics;
+import com.android.media.benchmark.library.Muxer;
+import com.android.media.benchmark.library.SampleIndexCache;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Remuxes a video and an audio track into one file, with the samples interleaved by timestamp
+ * and with each track written after the other, and reports the write call latencies, the
+ * interleaving overhead and the cost of stopping the muxer.
+ */
+@RunWith(Parameterized.class)
+public class RemuxTest {
+    private static Context mContext =
+            InstrumentationRegistry.getInstrumentation().getTargetContext();
+    private static final String mInputFilePath = mContext.getString(R.string.input_file_path);
+    private static final String mMetricsFile = mContext.getExternalFilesDir(null)
+            + "/Remux." + System.currentTimeMillis() + ".csv";
+    private static final String TAG = "RemuxTest";
+    private static final SampleIndexCache mSampleIndexCache =
+            SampleIndexCache.getShared(new File(mContext.getFilesDir(), "SampleIndex"));
+    private String mVideoFile;
+    private String mAudioFile;
+    private String mFormat;
+    private int mOutputFormat;
+
+    @Parameterized.Parameters(name = "{0}+{1}_{2}")
+    public static Collection<Object[]> inputFiles() {
+        return Arrays.asList(new Object[][]{
+                /* Parameters: video file, audio file, format, output format */
+                {"crowd_1920x1080_25fps_6000kbps_mpeg4.mp4",
+                        "bbb_44100hz_2ch_128kbps_aac_30sec.mp4", "mp4",
+                        MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4},
+                {"crowd_1920x1080_25fps_4000kbps_h265.mkv",
+                        "bbb_44100hz_2ch_128kbps_aac_30sec.mp4", "mp4",
+                        MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4},
+                {"crowd_352x288_25fps_6000kbps_h263.3gp",
+                        "bbb_8000hz_1ch_8kbps_amrnb_30sec.3gp", "3gpp",
+                        MediaMuxer.OutputFormat.MUXER_OUTPUT_3GPP},
+                {"crowd_1920x1080_25fps_4000kbps_vp9.webm",
+                        "bbb_48000hz_2ch_100kbps_opus_30sec.webm", "webm",
+                        MediaMuxer.OutputFormat.MUXER_OUTPUT_WEBM},
+                {"crowd_1920x1080_25fps_4000kbps_vp8.webm",
+                        "bbb_44100hz_2ch_80kbps_vorbis_30sec.webm", "webm",
+                        MediaMuxer.OutputFormat.MUXER_OUTPUT_WEBM}});
+    }
+
+    public RemuxTest(String videoFile, String audioFile, String format, int outputFormat) {
+        this.mVideoFile = videoFile;
+        this.mAudioFile = audioFile;
+        this.mFormat = format;
+        this.mOutputFormat = outputFormat;
+    }
+
+    @BeforeClass
+    public static void writeMetricsHeaderToFile() throws IOException {
+        boolean status = Metrics.writeMetricsHeader(mMetricsFile);
+        assertTrue("Unable to open metrics file for writing!", status);
+        Log.d(TAG, "Saving Benchmark results in: " + mMetricsFile);
+    }
+
+    @Test
+    public void testRemux() throws IOException {
+        ArrayList<MediaFormat> formats = new ArrayList<>();
+        ArrayList<ArrayList<ByteBuffer>> inputBuffers = new ArrayList<>();
+        ArrayList<ArrayList<MediaCodec.BufferInfo>> inputBufferInfo = new ArrayList<>();
+        for (String inputFileName : new String[]{mVideoFile, mAudioFile}) {
+            File inputFile = new File(mInputFilePath + inputFileName);
+            assertTrue("Cannot find " + inputFileName + " in directory " + mInputFilePath,
+                    inputFile.exists());
+            FileInputStream fileInput = new FileInputStream(inputFile);
+            Extractor extractor = new Extractor();
+            extractor.setUpExtractor(fileInput.getFD());
+            formats.add(extractor.getFormat(0));
+            extractor.deinitExtractor();
+            fileInput.close();
+            ArrayList<ByteBuffer> buffers = new ArrayList<>();
+            ArrayList<MediaCodec.BufferInfo> bufferInfo = new ArrayList<>();
+            mSampleIndexCache.readSamples(inputFile, 0, buffers, bufferInfo);
+            inputBuffers.add(buffers);
+            inputBufferInfo.add(bufferInfo);
+        }
+
+        String inputReference = mVideoFile + "+" + mAudioFile;
+        long[] writeTimeNs = new long[2];
+        for (int pass = 0; pass < 2; pass++) {
+            boolean interleave = pass == 0;
+            Muxer muxer = new Muxer();
+            int status = muxer.setUpMuxer(mContext, mOutputFormat, formats);
+            assertEquals("Cannot add tracks of " + inputReference + " to the muxer",
+                    formats.size(), status);
+            long sTime = System.nanoTime();
+            status = muxer.mux(inputBuffers, inputBufferInfo, interleave);
+            writeTimeNs[pass] = System.nanoTime() - sTime;
+            assertEquals("Cannot perform write operation for " + inputReference, 0, status);
+            muxer.deInitMuxer();
+            Metrics metrics = muxer.getMetrics(inputReference,
+                    interleave ? "remuxInterleaved" : "remuxSequential", mFormat);
+            metrics.add("muxTimeNs", writeTimeNs[pass]);
+            if (!interleave) {
+                metrics.add("interleaveOverheadNs", writeTimeNs[0] - writeTimeNs[1]);
+            }
+            metrics.dumpMetrics(mMetricsFile);
+            Log.i(TAG, metrics.toString());
+        }
+    }
+}
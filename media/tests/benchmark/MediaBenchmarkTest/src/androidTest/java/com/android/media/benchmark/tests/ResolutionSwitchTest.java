@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.media.benchmark.tests;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.android.media.benchmark.R;
+import com.android.media.benchmark.library.AdaptivePlayback;
+import com.android.media.benchmark.library.AdaptiveStream;
+import com.android.media.benchmark.library.CodecUtils;
+import com.android.media.benchmark.library.Extractor;
+import com.android.media.benchmark.library.Metrics;
+import com.android.media.benchmark.library.PlatformCodec;
+import com.android.media.benchmark.library.SampleIndexCache;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Decodes streams switching between renditions of the crowd clips every second with each codec,
+ * configured with the resolution of the first rendition only and with the largest resolution
+ * as its maximum. Reports the format change latency, the output gap and the cost of each
+ * switch, and the time spent reallocating buffers without the maximum resolution.
+ */
+@RunWith(Parameterized.class)
+public class ResolutionSwitchTest {
+    private static final Context mContext =
+            InstrumentationRegistry.getInstrumentation().getTargetContext();
+    private static final String mInputFilePath = mContext.getString(R.string.input_file_path);
+    private static final String mMetricsFile = mContext.getExternalFilesDir(null)
+            + "/ResolutionSwitch." + System.currentTimeMillis() + ".csv";
+    private static final String TAG = "ResolutionSwitchTest";
+    private static final SampleIndexCache mSampleIndexCache =
+            SampleIndexCache.getShared(new File(mContext.getFilesDir(), "SampleIndex"));
+    private static final long PER_TEST_TIMEOUT_MS = 600000;
+    private static final int NUM_SEGMENTS = 8;
+    private static final int SEGMENT_FRAMES = 25;
+    // Fixed and adaptive runs per codec
+    private static final int NUM_REPETITIONS = 3;
+    private String mStreamName;
+    private String[] mInputFiles;
+    private boolean mAsyncMode;
+
+    public ResolutionSwitchTest(String streamName, String[] inputFiles, boolean asyncMode) {
+        this.mStreamName = streamName;
+        this.mInputFiles = inputFiles;
+        this.mAsyncMode = asyncMode;
+    }
+
+    @Parameterized.Parameters(name = "{0}_async_{2}")
+    public static Collection<Object[]> input() {
+        // Renditions of a stream, the segments cycle through them
+        Object[][] streams = {
+                {"h263_176x144_352x288", new String[]{
+                        "crowd_176x144_25fps_6000kbps_h263.3gp",
+                        "crowd_352x288_25fps_6000kbps_h263.3gp"}},
+                {"mpeg4_176x144_1920x1080", new String[]{
+                        "crowd_176x144_25fps_6000kbps_mpeg4.mp4",
+                        "crowd_1920x1080_25fps_6000kbps_mpeg4.mp4"}}};
+        ArrayList<Object[]> params = new ArrayList<>();
+        for (boolean asyncMode : new boolean[]{false, true}) {
+            for (Object[] stream : streams) {
+                params.add(new Object[]{stream[0], stream[1], asyncMode});
+            }
+        }
+        return params;
+    }
+
+    @BeforeClass
+    public static void writeMetricsHeaderToFile() throws IOException {
+        boolean status = Metrics.writeMetricsHeader(mMetricsFile);
+        assertTrue("Unable to open metrics file for writing!", status);
+        Log.d(TAG, "Saving Benchmark results in: " + mMetricsFile);
+    }
+
+    @Test(timeout = PER_TEST_TIMEOUT_MS)
+    public void testResolutionSwitch() throws IOException {
+        int numRenditions = mInputFiles.length;
+        MediaFormat[] formats = new MediaFormat[numRenditions];
+        ArrayList<ArrayList<ByteBuffer>> inputBuffers = new ArrayList<>();
+        ArrayList<ArrayList<MediaCodec.BufferInfo>> frameInfos = new ArrayList<>();
+        for (int i = 0; i < numRenditions; i++) {
+            File inputFile = new File(mInputFilePath + mInputFiles[i]);
+            assertTrue("Cannot find " + mInputFiles[i] + " in directory " + mInputFilePath,
+                    inputFile.exists());
+            FileInputStream fileInput = new FileInputStream(inputFile);
+            Extractor extractor = new Extractor();
+            int trackCount = extractor.setUpExtractor(fileInput.getFD());
+            assertEquals("Clip " + mInputFiles[i] + " is not single track", 1, trackCount);
+            formats[i] = extractor.getFormat(0);
+            extractor.deinitExtractor();
+            fileInput.close();
+            ArrayList<ByteBuffer> inputBuffer = new ArrayList<>();
+            ArrayList<MediaCodec.BufferInfo> frameInfo = new ArrayList<>();
+            mSampleIndexCache.readSamples(inputFile, 0, inputBuffer, frameInfo);
+            inputBuffers.add(inputBuffer);
+            frameInfos.add(frameInfo);
+        }
+        AdaptiveStream stream = new AdaptiveStream();
+        for (int segment = 0; segment < NUM_SEGMENTS; segment++) {
+            int rendition = segment % numRenditions;
+            if (stream.addSegment(formats[rendition], inputBuffers.get(rendition),
+                    frameInfos.get(rendition), SEGMENT_FRAMES) < 0) {
+                break;
+            }
+        }
+        assertTrue("No switch in " + mStreamName, stream.getNumSegments() > 1);
+        String mime = formats[0].getString(MediaFormat.KEY_MIME);
+        ArrayList<String> mediaCodecs = CodecUtils.selectCodecs(mime, false);
+        assertTrue("No suitable codecs found for stream: " + mStreamName + " mime: " + mime,
+                (mediaCodecs.size() > 0));
+        for (String codecName : mediaCodecs) {
+            AdaptivePlayback playback =
+                    new AdaptivePlayback(PlatformCodec.FACTORY, stream, codecName, mAsyncMode);
+            for (int run = 0; run < NUM_REPETITIONS; run++) {
+                // The fixed run goes first, the adaptive one reports the difference to it
+                for (boolean adaptive : new boolean[]{false, true}) {
+                    Metrics metrics = playback.run(adaptive, mStreamName);
+                    metrics.dumpMetrics(mMetricsFile);
+                    Log.i(TAG, metrics.toString());
+                    assertEquals("Decoder returned error for stream: " + mStreamName
+                            + " with codec: " + codecName + " adaptive: " + adaptive,
+                            "0", metrics.getValue("status"));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.tests;
+
+import com.android.media.benchmark.R;
+import com.android.media.benchmark.library.Decoder;
+import com.android.media.benchmark.library.Extractor;
+import com.android.media.benchmark.library.Metrics;
+import com.android.media.benchmark.library.Scrubber;
+
+import android.content.Context;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Scrubs the video track of the clips with random, forward and backward seek patterns, in each
+ * extractor seek mode, and reports the extractor seek, decoder flush and decode to target times.
+ */
+@RunWith(Parameterized.class)
+public class ScrubTest {
+    private static Context mContext =
+            InstrumentationRegistry.getInstrumentation().getTargetContext();
+    private static final String mInputFilePath = mContext.getString(R.string.input_file_path);
+    private static final String mMetricsFile = mContext.getExternalFilesDir(null)
+            + "/Scrub." + System.currentTimeMillis() + ".csv";
+    private static final String TAG = "ScrubTest";
+    private static final int kNumSeeks = 20;
+    private static final String[] kPatterns =
+            {Scrubber.PATTERN_RANDOM, Scrubber.PATTERN_FORWARD, Scrubber.PATTERN_BACKWARD};
+    private String mInputFileName;
+    private int mSeekMode;
+
+    @Parameterized.Parameters(name = "{0}_{1}")
+    public static Collection<Object[]> inputFiles() {
+        String[] files = {
+                "crowd_1920x1080_25fps_6000kbps_mpeg4.mp4",
+                "crowd_1920x1080_25fps_7300kbps_mpeg2.mp4",
+                "crowd_1920x1080_25fps_6700kbps_h264.ts",
+                "crowd_1920x1080_25fps_4000kbps_h265.mkv",
+                "crowd_1920x1080_25fps_4000kbps_vp8.webm",
+                "crowd_1920x1080_25fps_4000kbps_vp9.webm",
+                "crowd_1920x1080_25fps_4000kbps_av1.webm",
+                "crowd_352x288_25fps_6000kbps_h263.3gp"};
+        int[] seekModes = {MediaExtractor.SEEK_TO_PREVIOUS_SYNC, MediaExtractor.SEEK_TO_NEXT_SYNC,
+                MediaExtractor.SEEK_TO_CLOSEST_SYNC};
+        Collection<Object[]> params = new ArrayList<>();
+        for (String file : files) {
+            for (int seekMode : seekModes) {
+                params.add(new Object[]{file, seekMode});
+            }
+        }
+        return params;
+    }
+
+    public ScrubTest(String filename, int seekMode) {
+        this.mInputFileName = filename;
+        this.mSeekMode = seekMode;
+    }
+
+    @BeforeClass
+    public static void writeMetricsHeaderToFile() throws IOException {
+        boolean status = Metrics.writeMetricsHeader(mMetricsFile);
+        assertTrue("Unable to open metrics file for writing!", status);
+        Log.d(TAG, "Saving Benchmark results in: " + mMetricsFile);
+    }
+
+    private static String getSeekModeName(int seekMode) {
+        switch (seekMode) {
+            case MediaExtractor.SEEK_TO_PREVIOUS_SYNC:
+                return "previousSync";
+            case MediaExtractor.SEEK_TO_NEXT_SYNC:
+                return "nextSync";
+            default:
+                return "closestSync";
+        }
+    }
+
+    @Test
+    public void testScrub() throws IOException {
+        File inputFile = new File(mInputFilePath + mInputFileName);
+        assertTrue("Cannot find " + mInputFileName + " in directory " + mInputFilePath,
+                inputFile.exists());
+        FileInputStream fileInput = new FileInputStream(inputFile);
+        Extractor extractor = new Extractor();
+        int trackCount = extractor.setUpExtractor(fileInput.getFD());
+        int trackId = -1;
+        MediaFormat format = null;
+        for (int track = 0; track < trackCount && trackId < 0; track++) {
+            format = extractor.getFormat(track);
+            if (format.getString(MediaFormat.KEY_MIME).startsWith("video/")) {
+                trackId = track;
+            }
+        }
+        assertTrue("No video track in " + mInputFileName, trackId >= 0);
+        assertEquals("Cannot select track of " + mInputFileName, 0,
+                extractor.selectExtractorTrack(trackId));
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        Decoder decoder = new Decoder();
+        decoder.setupDecoder(null);
+        int status = decoder.setupStreamingDecoder(format, "");
+        assertEquals("Decoder not created for " + mime, 0, status);
+
+        String container = mInputFileName.substring(mInputFileName.lastIndexOf('.') + 1);
+        Scrubber scrubber = new Scrubber();
+        for (String pattern : kPatterns) {
+            long[] targetsUs = Scrubber.createTargets(pattern, extractor.getClipDuration(),
+                    kNumSeeks, mSeekMode);
+            scrubber.reset();
+            status = scrubber.scrub(extractor, decoder, targetsUs, mSeekMode);
+            assertEquals("Scrubbing failed for " + mInputFileName, 0, status);
+            Metrics metrics = scrubber.getMetrics(mInputFileName,
+                    "scrub." + pattern + "." + getSeekModeName(mSeekMode), mime);
+            metrics.add("container", container);
+            metrics.dumpMetrics(mMetricsFile);
+            Log.i(TAG, metrics.toString());
+        }
+        decoder.deInitCodec();
+        extractor.deinitExtractor();
+        fileInput.close();
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.tests;
+
+import com.android.media.benchmark.R;
+import com.android.media.benchmark.library.Extractor;
+import com.android.media.benchmark.library.Metrics;
+import com.android.media.benchmark.library.SampleIndex;
+import com.android.media.benchmark.library.SampleIndexCache;
+import com.android.media.benchmark.library.ThumbnailExtractor;
+
+import android.content.Context;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Decodes thumbnails from the sync samples of the video clips with one or more parallel decoders
+ * and reports the thumbnails per second and the latency of each thumbnail.
+ */
+@RunWith(Parameterized.class)
+public class ThumbnailTest {
+    private static Context mContext =
+            InstrumentationRegistry.getInstrumentation().getTargetContext();
+    private static final String mInputFilePath = mContext.getString(R.string.input_file_path);
+    private static final String mMetricsFile = mContext.getExternalFilesDir(null)
+            + "/Thumbnail." + System.currentTimeMillis() + ".csv";
+    private static final SampleIndexCache mSampleIndexCache =
+            SampleIndexCache.getShared(new File(mContext.getFilesDir(), "SampleIndex"));
+    private static final String TAG = "ThumbnailTest";
+    private static final int kNumThumbnails = 16;
+    private String mInputFileName;
+    private int mNumDecoders;
+
+    @Parameterized.Parameters(name = "{0}_{1}")
+    public static Collection<Object[]> inputFiles() {
+        String[] files = {
+                "crowd_1920x1080_25fps_6000kbps_mpeg4.mp4",
+                "crowd_1920x1080_25fps_7300kbps_mpeg2.mp4",
+                "crowd_1920x1080_25fps_6700kbps_h264.ts",
+                "crowd_1920x1080_25fps_4000kbps_h265.mkv",
+                "crowd_1920x1080_25fps_4000kbps_vp9.webm",
+                "crowd_1920x1080_25fps_4000kbps_av1.webm"};
+        int[] numDecoders = {1, 2, 4};
+        Collection<Object[]> params = new ArrayList<>();
+        for (String file : files) {
+            for (int decoders : numDecoders) {
+                params.add(new Object[]{file, decoders});
+            }
+        }
+        return params;
+    }
+
+    public ThumbnailTest(String filename, int numDecoders) {
+        this.mInputFileName = filename;
+        this.mNumDecoders = numDecoders;
+    }
+
+    @BeforeClass
+    public static void writeMetricsHeaderToFile() throws IOException {
+        boolean status = Metrics.writeMetricsHeader(mMetricsFile);
+        assertTrue("Unable to open metrics file for writing!", status);
+        Log.d(TAG, "Saving Benchmark results in: " + mMetricsFile);
+    }
+
+    @Test
+    public void testThumbnails() throws IOException, InterruptedException {
+        File inputFile = new File(mInputFilePath + mInputFileName);
+        assertTrue("Cannot find " + mInputFileName + " in directory " + mInputFilePath,
+                inputFile.exists());
+        int trackId = -1;
+        String mime = null;
+        try (FileInputStream fileInput = new FileInputStream(inputFile)) {
+            Extractor extractor = new Extractor();
+            int trackCount = extractor.setUpExtractor(fileInput.getFD());
+            for (int track = 0; track < trackCount && trackId < 0; track++) {
+                mime = extractor.getFormat(track).getString(MediaFormat.KEY_MIME);
+                if (mime.startsWith("video/")) {
+                    trackId = track;
+                }
+            }
+            extractor.deinitExtractor();
+        }
+        assertTrue("No video track in " + mInputFileName, trackId >= 0);
+        SampleIndex index = mSampleIndexCache.getIndex(inputFile, trackId, false);
+        long[] timesUs = ThumbnailExtractor.getThumbnailTimes(index, kNumThumbnails);
+        assertEquals("No sync samples in " + mInputFileName, kNumThumbnails, timesUs.length);
+
+        ThumbnailExtractor thumbnailExtractor = new ThumbnailExtractor(mNumDecoders);
+        int status = thumbnailExtractor.extract(inputFile, trackId, "", timesUs, false);
+        assertEquals("Thumbnail extraction failed for " + mInputFileName, 0, status);
+        Metrics metrics = thumbnailExtractor.getMetrics(mInputFileName, mime);
+        metrics.dumpMetrics(mMetricsFile);
+        Log.i(TAG, metrics.toString());
+    }
+}
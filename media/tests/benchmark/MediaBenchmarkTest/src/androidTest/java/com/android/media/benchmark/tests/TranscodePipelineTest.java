@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.tests;
+
+import android.content.Context;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.android.media.benchmark.R;
+import com.android.media.benchmark.library.Decoder;
+import com.android.media.benchmark.library.Encoder;
+import com.android.media.benchmark.library.Extractor;
+import com.android.media.benchmark.library.Metrics;
+import com.android.media.benchmark.library.Muxer;
+import com.android.media.benchmark.library.Pipeline;
+import com.android.media.benchmark.library.PipelineStages;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+
+import static android.media.MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Transcodes a video track with extract, decode, process, encode and mux running concurrently as
+ * a {@link Pipeline}, as in live transcoding.
+ */
+@RunWith(Parameterized.class)
+public class TranscodePipelineTest {
+    private static final Context mContext =
+            InstrumentationRegistry.getInstrumentation().getTargetContext();
+    private static final String mInputFilePath = mContext.getString(R.string.input_file_path);
+    private static final String mMetricsFile = mContext.getExternalFilesDir(null)
+            + "/TranscodePipeline." + System.currentTimeMillis() + ".csv";
+    private static final String TAG = "TranscodePipelineTest";
+    private static final long PER_TEST_TIMEOUT_MS = 120000;
+    private static final int QUEUE_CAPACITY = 4;
+    private static final int ENCODE_DEFAULT_FRAME_RATE = 25;
+    private static final int ENCODE_DEFAULT_BIT_RATE = 8000000 /* 8 Mbps */;
+    private String mInputFile;
+    private boolean mRealTime;
+
+    public TranscodePipelineTest(String inputFile, boolean realTime) {
+        this.mInputFile = inputFile;
+        this.mRealTime = realTime;
+    }
+
+    @Parameterized.Parameters
+    public static Collection<Object[]> input() {
+        return Arrays.asList(new Object[][]{
+                /* Parameters: filename, real time source */
+                {"crowd_1920x1080_25fps_6700kbps_h264.ts", false},
+                {"crowd_1920x1080_25fps_4000kbps_h265.mkv", false},
+                {"crowd_1920x1080_25fps_6000kbps_mpeg4.mp4", false},
+                {"crowd_352x288_25fps_6000kbps_h263.3gp", false},
+                {"crowd_1920x1080_25fps_6700kbps_h264.ts", true},
+                {"crowd_1920x1080_25fps_4000kbps_h265.mkv", true}});
+    }
+
+    @BeforeClass
+    public static void writeMetricsHeaderToFile() throws IOException {
+        boolean status = Metrics.writeMetricsHeader(mMetricsFile);
+        assertTrue("Unable to open metrics file for writing!", status);
+        Log.d(TAG, "Saving Benchmark results in: " + mMetricsFile);
+    }
+
+    @Test(timeout = PER_TEST_TIMEOUT_MS)
+    public void testTranscodePipeline() throws Exception {
+        File inputFile = new File(mInputFilePath + mInputFile);
+        assertTrue("Cannot find " + mInputFile + " in directory " + mInputFilePath,
+                inputFile.exists());
+        FileInputStream fileInput = new FileInputStream(inputFile);
+        Extractor extractor = new Extractor();
+        int trackCount = extractor.setUpExtractor(fileInput.getFD());
+        assertTrue("Extraction failed. No tracks for file: " + mInputFile, (trackCount > 0));
+        int trackId = 0;
+        MediaFormat format = extractor.getFormat(trackId);
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        assertTrue("Not a video track: " + mime, mime.startsWith("video/"));
+
+        int width = format.getInteger(MediaFormat.KEY_WIDTH);
+        int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+        int frameRate = format.containsKey(MediaFormat.KEY_FRAME_RATE) ?
+                format.getInteger(MediaFormat.KEY_FRAME_RATE) : ENCODE_DEFAULT_FRAME_RATE;
+        MediaFormat encodeFormat = MediaFormat.createVideoFormat(mime, width, height);
+        encodeFormat.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        encodeFormat.setInteger(MediaFormat.KEY_BIT_RATE, ENCODE_DEFAULT_BIT_RATE);
+        encodeFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+        encodeFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, COLOR_FormatYUV420Flexible);
+        encodeFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, width * height * 3 / 2);
+
+        Decoder decoder = new Decoder();
+        Encoder encoder = new Encoder();
+        Muxer muxer = new Muxer();
+        PipelineStages.EncoderStage encoderStage =
+                new PipelineStages.EncoderStage(encoder, encodeFormat, "");
+        Pipeline pipeline = new Pipeline(QUEUE_CAPACITY);
+        pipeline.addStage(new PipelineStages.ExtractorStage(extractor, trackId, mRealTime));
+        pipeline.addStage(new PipelineStages.DecoderStage(decoder, format, ""),
+                width * height * 3 / 2);
+        pipeline.addStage(new PipelineStages.ProcessStage(null));
+        pipeline.addStage(encoderStage);
+        pipeline.addStage(new PipelineStages.MuxerStage(muxer, mContext,
+                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4, encoderStage));
+        int status = pipeline.run();
+        assertEquals("Pipeline failed for file: " + mInputFile, 0, status);
+
+        Metrics metrics = pipeline.getMetrics(mInputFile);
+        metrics.add("realTime", mRealTime ? 1 : 0);
+        metrics.dumpMetrics(mMetricsFile);
+        Log.i(TAG, metrics.toString());
+        Log.i(TAG, "Bottleneck for " + mInputFile + ": " + pipeline.getBottleneckStage());
+        extractor.deinitExtractor();
+        fileInput.close();
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+//#define LOG_NDEBUG 0
+#define LOG_TAG "NativeCommon"
+
+#include <jni.h>
+
+#include "BenchmarkCommon.h"
+
+extern "C" JNIEXPORT void JNICALL Java_com_android_media_benchmark_library_Native_SetCallBackQueue(
+        JNIEnv *env, jobject thiz, jint queueType) {
+    UNUSED(env);
+    UNUSED(thiz);
+    if (queueType != CALLBACK_QUEUE_LOCKED && queueType != CALLBACK_QUEUE_SPSC) {
+        ALOGE("Unknown callback queue %d", queueType);
+        return;
+    }
+    setDefaultCallBackQueueType((CallBackQueueType)queueType);
+}
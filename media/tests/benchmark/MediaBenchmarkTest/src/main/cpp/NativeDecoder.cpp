@@ -25,11 +25,12 @@
 
 #include <android/log.h>
 
+#include "BenchmarkResults.h"
 #include "Decoder.h"
 
 extern "C" JNIEXPORT int JNICALL Java_com_android_media_benchmark_library_Native_Decode(
         JNIEnv *env, jobject thiz, jstring jFilePath, jstring jFileName, jstring jStatsFile,
-        jstring jCodecName, jboolean asyncMode) {
+        jstring jCodecName, jboolean asyncMode, jobject jResults) {
     const char *filePath = env->GetStringUTFChars(jFilePath, nullptr);
     const char *fileName = env->GetStringUTFChars(jFileName, nullptr);
     string sFilePath = string(filePath) + string(fileName);
@@ -41,6 +42,8 @@ extern "C" JNIEXPORT int JNICALL Java_com_android_media_benchmark_library_Native
         ALOGE("Unable to open input file for reading");
         return -1;
     }
+    BenchmarkResults results(jResults ? env->GetDirectBufferAddress(jResults) : nullptr,
+                             jResults ? env->GetDirectBufferCapacity(jResults) : 0);
 
     Decoder *decoder = new Decoder();
     Extractor *extractor = decoder->getExtractor();
@@ -64,6 +67,7 @@ extern "C" JNIEXPORT int JNICALL Java_com_android_media_benchmark_library_Native
         return -1;
     }
     for (int curTrack = 0; curTrack < trackCount; curTrack++) {
+        nsecs_t runStartTime = systemTime(CLOCK_MONOTONIC);
         int32_t status = extractor->setupTrackFormat(curTrack);
         if (status != 0) {
             ALOGE("Track Format invalid");
@@ -94,11 +98,14 @@ extern "C" JNIEXPORT int JNICALL Java_com_android_media_benchmark_library_Native
             frameInfo.push_back(info);
             inputBufferOffset += info.size;
         }
+        results.setPhaseTime(RESULTS_PHASE_READ_INPUT, systemTime(CLOCK_MONOTONIC) - runStartTime);
 
         const char *codecName = env->GetStringUTFChars(jCodecName, nullptr);
         string sCodecName = string(codecName);
         decoder->setupDecoder();
+        nsecs_t sTime = systemTime(CLOCK_MONOTONIC);
         status = decoder->decode(inputBuffer, frameInfo, sCodecName, asyncMode);
+        results.setPhaseTime(RESULTS_PHASE_PROCESS, systemTime(CLOCK_MONOTONIC) - sTime);
         if (status != AMEDIA_OK) {
             ALOGE("Decode returned error");
             free(inputBuffer);
@@ -111,6 +118,10 @@ extern "C" JNIEXPORT int JNICALL Java_com_android_media_benchmark_library_Native
         string sInputReference = string(inputReference);
         decoder->dumpStatistics(sInputReference, sCodecName, (asyncMode ? "async" : "sync"),
                                 statsFile);
+        results.setPhaseTime(RESULTS_PHASE_TOTAL, systemTime(CLOCK_MONOTONIC) - runStartTime);
+        results.addRun(decoder->getStats(), curTrack,
+                       asyncMode ? RESULTS_MODE_ASYNC : RESULTS_MODE_SYNC,
+                       extractor->getClipDuration());
         env->ReleaseStringUTFChars(jCodecName, codecName);
         env->ReleaseStringUTFChars(jStatsFile, statsFile);
         env->ReleaseStringUTFChars(jFileName, inputReference);
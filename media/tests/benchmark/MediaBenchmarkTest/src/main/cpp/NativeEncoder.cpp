@@ -24,6 +24,7 @@
 
 #include <android/log.h>
 
+#include "BenchmarkResults.h"
 #include "Decoder.h"
 #include "Encoder.h"
 
@@ -36,7 +37,7 @@ constexpr int32_t ENCODE_MIN_BIT_RATE = 600000 /* 600 Kbps */;
 
 extern "C" JNIEXPORT int JNICALL Java_com_android_media_benchmark_library_Native_Encode(
         JNIEnv *env, jobject thiz, jstring jFilePath, jstring jFileName, jstring jOutFilePath,
-        jstring jStatsFile, jstring jCodecName) {
+        jstring jStatsFile, jstring jCodecName, jobject jResults) {
     const char *filePath = env->GetStringUTFChars(jFilePath, nullptr);
     const char *fileName = env->GetStringUTFChars(jFileName, nullptr);
     string sFilePath = string(filePath) + string(fileName);
@@ -48,6 +49,8 @@ extern "C" JNIEXPORT int JNICALL Java_com_android_media_benchmark_library_Native
         ALOGE("Unable to open input file for reading");
         return -1;
     }
+    BenchmarkResults results(jResults ? env->GetDirectBufferAddress(jResults) : nullptr,
+                             jResults ? env->GetDirectBufferCapacity(jResults) : 0);
 
     Decoder *decoder = new Decoder();
     Extractor *extractor = decoder->getExtractor();
@@ -72,6 +75,7 @@ extern "C" JNIEXPORT int JNICALL Java_com_android_media_benchmark_library_Native
     }
 
     for (int curTrack = 0; curTrack < trackCount; curTrack++) {
+        nsecs_t readStartTime = systemTime(CLOCK_MONOTONIC);
         int32_t status = extractor->setupTrackFormat(curTrack);
         if (status != 0) {
             ALOGE("Track Format invalid");
@@ -116,6 +120,8 @@ extern "C" JNIEXPORT int JNICALL Java_com_android_media_benchmark_library_Native
             return -1;
         }
 
+        // Reading the input of the encoder includes decoding it to a file
+        nsecs_t readInputTime = systemTime(CLOCK_MONOTONIC) - readStartTime;
         AMediaFormat *decoderFormat = decoder->getFormat();
         AMediaFormat *format = extractor->getFormat();
         if (inputBuffer) {
@@ -142,6 +148,7 @@ extern "C" JNIEXPORT int JNICALL Java_com_android_media_benchmark_library_Native
 
         bool asyncMode[2] = {true, false};
         for (int i = 0; i < 2; i++) {
+            nsecs_t runStartTime = systemTime(CLOCK_MONOTONIC);
             size_t eleSize = eleStream.tellg();
             eleStream.seekg(0, ifstream::beg);
 
@@ -172,8 +179,10 @@ extern "C" JNIEXPORT int JNICALL Java_com_android_media_benchmark_library_Native
             }
             Encoder *encoder = new Encoder();
             encoder->setupEncoder();
+            nsecs_t sTime = systemTime(CLOCK_MONOTONIC);
             status = encoder->encode(sCodecName, eleStream, eleSize, asyncMode[i], encParams,
                                      (char *)mime);
+            results.setPhaseTime(RESULTS_PHASE_PROCESS, systemTime(CLOCK_MONOTONIC) - sTime);
             if (status != AMEDIA_OK) {
                 ALOGE("Encoder returned error");
                 return -1;
@@ -185,6 +194,11 @@ extern "C" JNIEXPORT int JNICALL Java_com_android_media_benchmark_library_Native
             encoder->dumpStatistics(sInputReference, extractor->getClipDuration(), sCodecName,
                                     (asyncMode[i] ? "async" : "sync"), statsFile);
             env->ReleaseStringUTFChars(jStatsFile, statsFile);
+            results.setPhaseTime(RESULTS_PHASE_READ_INPUT, readInputTime);
+            results.setPhaseTime(RESULTS_PHASE_TOTAL, systemTime(CLOCK_MONOTONIC) - runStartTime);
+            results.addRun(encoder->getStats(), curTrack,
+                           asyncMode[i] ? RESULTS_MODE_ASYNC : RESULTS_MODE_SYNC,
+                           extractor->getClipDuration());
             encoder->resetEncoder();
             delete encoder;
             encoder = nullptr;
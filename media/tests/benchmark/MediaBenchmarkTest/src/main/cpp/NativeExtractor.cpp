@@ -22,12 +22,16 @@
 #include <string>
 #include <sys/stat.h>
 
+#include "BenchmarkResults.h"
 #include "Extractor.h"
 
 extern "C" JNIEXPORT int32_t JNICALL Java_com_android_media_benchmark_library_Native_Extract(
         JNIEnv *env, jobject thiz, jstring jInputFilePath, jstring jInputFileName,
-        jstring jStatsFile) {
+        jstring jStatsFile, jobject jResults) {
     UNUSED(thiz);
+    nsecs_t runStartTime = systemTime(CLOCK_MONOTONIC);
+    BenchmarkResults results(jResults ? env->GetDirectBufferAddress(jResults) : nullptr,
+                             jResults ? env->GetDirectBufferCapacity(jResults) : 0);
     const char *inputFilePath = env->GetStringUTFChars(jInputFilePath, nullptr);
     const char *inputFileName = env->GetStringUTFChars(jInputFileName, nullptr);
     string sFilePath = string(inputFilePath) + string(inputFileName);
@@ -48,7 +52,9 @@ extern "C" JNIEXPORT int32_t JNICALL Java_com_android_media_benchmark_library_Na
 
     int32_t trackID = 0;
     const char *mime = nullptr;
+    nsecs_t sTime = systemTime(CLOCK_MONOTONIC);
     int32_t status = extractObj->extract(trackID);
+    results.setPhaseTime(RESULTS_PHASE_PROCESS, systemTime(CLOCK_MONOTONIC) - sTime);
     if (status != AMEDIA_OK) {
         ALOGE("Extraction failed");
         return -1;
@@ -72,6 +78,9 @@ extern "C" JNIEXPORT int32_t JNICALL Java_com_android_media_benchmark_library_Na
     extractObj->deInitExtractor();
     const char *statsFile = env->GetStringUTFChars(jStatsFile, nullptr);
     extractObj->dumpStatistics(string(inputFileName), string(mime), statsFile);
+    results.setPhaseTime(RESULTS_PHASE_TOTAL, systemTime(CLOCK_MONOTONIC) - runStartTime);
+    results.addRun(extractObj->getStats(), trackID, RESULTS_MODE_NONE,
+                   extractObj->getClipDuration());
     env->ReleaseStringUTFChars(jStatsFile, statsFile);
     env->ReleaseStringUTFChars(jInputFilePath, inputFilePath);
     env->ReleaseStringUTFChars(jInputFileName, inputFileName);
@@ -22,15 +22,18 @@
 #include <string>
 #include <sys/stat.h>
 
+#include "BenchmarkResults.h"
 #include "Muxer.h"
 
 MUXER_OUTPUT_T getMuxerOutFormat(const char *fmt);
 
 extern "C" JNIEXPORT int32_t JNICALL Java_com_android_media_benchmark_library_Native_Mux(
         JNIEnv *env, jobject thiz, jstring jInputFilePath, jstring jInputFileName,
-        jstring jOutputFilePath, jstring jStatsFile, jstring jFormat) {
+        jstring jOutputFilePath, jstring jStatsFile, jstring jFormat, jobject jResults) {
     UNUSED(thiz);
     ALOGV("Mux the samples given by extractor");
+    BenchmarkResults results(jResults ? env->GetDirectBufferAddress(jResults) : nullptr,
+                             jResults ? env->GetDirectBufferCapacity(jResults) : 0);
     const char *inputFilePath = env->GetStringUTFChars(jInputFilePath, nullptr);
     const char *inputFileName = env->GetStringUTFChars(jInputFileName, nullptr);
     string sInputFile = string(inputFilePath) + string(inputFileName);
@@ -67,6 +70,7 @@ extern "C" JNIEXPORT int32_t JNICALL Java_com_android_media_benchmark_library_Na
     }
 
     for (int curTrack = 0; curTrack < trackCount; curTrack++) {
+        nsecs_t runStartTime = systemTime(CLOCK_MONOTONIC);
         int32_t status = extractor->setupTrackFormat(curTrack);
         if (status != 0) {
             ALOGE("Track Format invalid");
@@ -101,6 +105,7 @@ extern "C" JNIEXPORT int32_t JNICALL Java_com_android_media_benchmark_library_Na
             frameInfos.push_back(info);
             inputBufferOffset += info.size;
         }
+        results.setPhaseTime(RESULTS_PHASE_READ_INPUT, systemTime(CLOCK_MONOTONIC) - runStartTime);
 
         const char *outputFilePath = env->GetStringUTFChars(jOutputFilePath, nullptr);
         FILE *outputFp = fopen(((string) outputFilePath).c_str(), "w+b");
@@ -126,7 +131,9 @@ extern "C" JNIEXPORT int32_t JNICALL Java_com_android_media_benchmark_library_Na
             return -1;
         }
 
+        nsecs_t sTime = systemTime(CLOCK_MONOTONIC);
         status = muxerObj->mux(inputBuffer, frameInfos);
+        results.setPhaseTime(RESULTS_PHASE_PROCESS, systemTime(CLOCK_MONOTONIC) - sTime);
         if (status != 0) {
             ALOGE("Mux failed");
             if (inputBuffer) {
@@ -140,6 +147,9 @@ extern "C" JNIEXPORT int32_t JNICALL Java_com_android_media_benchmark_library_Na
         string muxFormat(fmt);
         muxerObj->dumpStatistics(string(inputFileName), muxFormat, statsFile);
         env->ReleaseStringUTFChars(jStatsFile, statsFile);
+        results.setPhaseTime(RESULTS_PHASE_TOTAL, systemTime(CLOCK_MONOTONIC) - runStartTime);
+        results.addRun(muxerObj->getStats(), curTrack, RESULTS_MODE_NONE,
+                       extractor->getClipDuration());
         env->ReleaseStringUTFChars(jInputFilePath, inputFilePath);
         env->ReleaseStringUTFChars(jInputFileName, inputFileName);
 
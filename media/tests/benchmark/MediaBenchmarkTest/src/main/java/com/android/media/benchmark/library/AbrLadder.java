@@ -0,0 +1,436 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Encodes one source into several renditions at the same time, as done for adaptive streaming.
+ * <p>
+ * The source is decoded once. Every decoded frame is shared by reference with all renditions,
+ * each of which runs its own encoder on its own thread. Renditions whose size differs from the
+ * source downscale the shared frame on their thread first, so scaling runs in parallel across
+ * renditions. A slow rendition throttles the decoder once the shared frames are exhausted.
+ */
+public class AbrLadder {
+    private static final String TAG = "AbrLadder";
+    private static final int kExtraFrames = 2;
+    private static final int kDefaultFrameRate = 25;
+    // Byte buffer layouts of decoded frames the renditions can read, I420 and NV12. These are
+    // the values of COLOR_FormatYUV420Planar and COLOR_FormatYUV420SemiPlanar, deprecated in
+    // favour of flexible formats whose layout a byte buffer does not describe.
+    private static final int kColorFormatI420 = 19;
+    private static final int kColorFormatNv12 = 21;
+
+    private final ArrayList<Rendition> mRenditions;
+    private final int mQueueCapacity;
+    private final ByteBuffer mEmptyBuffer = ByteBuffer.allocate(0);
+    private Thread mDecodeThread;
+    private volatile MediaFormat mDecodedFormat;
+    private volatile boolean mAborted;
+    private Frame.Pool mFramePool;
+    private String mMime;
+    private int mFrameRate;
+    private int mNumDecodedFrames;
+    private int mDecodedFrameSize;
+    private long mDurationUs;
+    private long mWallTimeNs;
+
+    private class Rendition implements Runnable {
+        private final int mWidth;
+        private final int mHeight;
+        private final int mBitRate;
+        private final String mCodecName;
+        private final ArrayBlockingQueue<Frame> mQueue;
+        private final Encoder mEncoder;
+        private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+        private Thread mThread;
+        private Scaler mScaler;
+        private Frame mScaledFrame;
+        private boolean mEncoderStarted;
+        private int mStatus;
+        private int mNumOutputFrames;
+        private long mOutputBytes;
+        private long mScaleTimeNs;
+        private long mStartTimeNs;
+        private long mEndTimeNs;
+
+        Rendition(int width, int height, int bitRate, String codecName) {
+            mWidth = width;
+            mHeight = height;
+            mBitRate = bitRate;
+            mCodecName = codecName;
+            mQueue = new ArrayBlockingQueue<>(mQueueCapacity + kExtraFrames);
+            mEncoder = new Encoder();
+        }
+
+        String getName() { return mWidth + "x" + mHeight + "@" + mBitRate; }
+
+        @Override
+        public void run() {
+            mStatus = 0;
+            mEncoderStarted = false;
+            mNumOutputFrames = 0;
+            mOutputBytes = 0;
+            mScaleTimeNs = 0;
+            mStartTimeNs = System.nanoTime();
+            try {
+                while (mStatus == 0) {
+                    Frame frame = mQueue.take();
+                    if (frame.isEndOfStream()) {
+                        frame.release();
+                        if (mEncoderStarted) {
+                            mStatus = encode(null, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        }
+                        break;
+                    }
+                    if (!mEncoderStarted && startEncoder() != 0) {
+                        frame.release();
+                        mStatus = -1;
+                        break;
+                    }
+                    if (mScaler != null) {
+                        long sTime = System.nanoTime();
+                        int size = mScaler.scale(frame.getBuffer(), frame.getOffset(),
+                                mScaledFrame.getBuffer());
+                        mScaleTimeNs += System.nanoTime() - sTime;
+                        long presentationTimeUs = frame.getPresentationTimeUs();
+                        frame.release();
+                        mStatus = encode(mScaledFrame, 0, size, presentationTimeUs, 0);
+                    } else {
+                        mStatus = encode(frame, frame.getOffset(), frame.getSize(),
+                                frame.getPresentationTimeUs(), 0);
+                        frame.release();
+                    }
+                }
+            } catch (InterruptedException e) {
+                mStatus = -1;
+            } finally {
+                mEndTimeNs = System.nanoTime();
+                if (mEncoderStarted) {
+                    mEncoder.deInitEncoder();
+                }
+            }
+            if (mStatus != 0) {
+                Log.e(TAG, "Rendition " + getName() + " failed");
+                abort();
+            }
+        }
+
+        private int startEncoder() {
+            MediaFormat decodedFormat = mDecodedFormat;
+            int srcWidth = decodedFormat.getInteger(MediaFormat.KEY_WIDTH);
+            int srcHeight = decodedFormat.getInteger(MediaFormat.KEY_HEIGHT);
+            int colorFormat = decodedFormat.containsKey(MediaFormat.KEY_COLOR_FORMAT) ?
+                    decodedFormat.getInteger(MediaFormat.KEY_COLOR_FORMAT) : 0;
+            if (colorFormat != kColorFormatI420 && colorFormat != kColorFormatNv12) {
+                // Vendor and tiled layouts cannot be scaled nor passed to another codec
+                Log.e(TAG, "Rendition " + getName() + " skipped, decoded color format "
+                        + colorFormat + " is not a known YUV 4:2:0 layout");
+                return -1;
+            }
+            int stride = decodedFormat.containsKey(MediaFormat.KEY_STRIDE) ?
+                    decodedFormat.getInteger(MediaFormat.KEY_STRIDE) : srcWidth;
+            int sliceHeight = decodedFormat.containsKey(MediaFormat.KEY_SLICE_HEIGHT) ?
+                    decodedFormat.getInteger(MediaFormat.KEY_SLICE_HEIGHT) : srcHeight;
+            // Padded frames are repacked as well, the encoder expects tightly packed input
+            if (srcWidth != mWidth || srcHeight != mHeight || stride != srcWidth
+                    || sliceHeight != srcHeight) {
+                mScaler = new Scaler(srcWidth, srcHeight, stride, sliceHeight,
+                        colorFormat == kColorFormatNv12, mWidth, mHeight);
+                mScaledFrame = Frame.createUnpooled(mScaler.getOutputSize());
+            }
+            MediaFormat encodeFormat = MediaFormat.createVideoFormat(mMime, mWidth, mHeight);
+            encodeFormat.setInteger(MediaFormat.KEY_FRAME_RATE, mFrameRate);
+            encodeFormat.setInteger(MediaFormat.KEY_BIT_RATE, mBitRate);
+            encodeFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+            encodeFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+            encodeFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, mWidth * mHeight * 3 / 2);
+            try {
+                if (mEncoder.setupStreamingEncoder(mCodecName, encodeFormat, mMime) != 0) {
+                    return -1;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to create encoder " + mCodecName + ": " + e.toString());
+                return -1;
+            }
+            mEncoderStarted = true;
+            return 0;
+        }
+
+        /**
+         * Queues one frame, or the end of stream if frame is null, and drains the encoder
+         */
+        private int encode(Frame frame, int offset, int size, long presentationTimeUs, int flags) {
+            mInfo.offset = offset;
+            mInfo.size = size;
+            mInfo.presentationTimeUs = presentationTimeUs;
+            mInfo.flags = flags;
+            while (true) {
+                int status = mEncoder.queueInputFrame(
+                        frame != null ? frame.getBuffer() : mEmptyBuffer, mInfo);
+                if (status == 0) {
+                    break;
+                } else if (status < 0 || drain(false) < 0) {
+                    return -1;
+                }
+            }
+            return drain((flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0);
+        }
+
+        private int drain(boolean untilEndOfStream) {
+            MediaCodec.BufferInfo outputInfo = new MediaCodec.BufferInfo();
+            while (!mEncoder.sawOutputEOS()) {
+                int status = mEncoder.dequeueOutputSample(outputInfo, null);
+                if (status == Encoder.TRY_AGAIN) {
+                    if (untilEndOfStream) {
+                        continue;
+                    }
+                    return 0;
+                } else if (status < 0) {
+                    return -1;
+                }
+                if (outputInfo.size > 0 &&
+                        (outputInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                    mNumOutputFrames++;
+                    mOutputBytes += outputInfo.size;
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * @param queueCapacity Maximum number of decoded frames waiting for each rendition
+     */
+    public AbrLadder(int queueCapacity) {
+        mQueueCapacity = queueCapacity;
+        mRenditions = new ArrayList<>();
+    }
+
+    /**
+     * Adds a rendition to the ladder
+     *
+     * @param width     Width of the rendition, even
+     * @param height    Height of the rendition, even
+     * @param bitRate   Bit rate of the rendition
+     * @param codecName Will create the encoder with codecName, empty to select one by mime
+     */
+    public void addRendition(int width, int height, int bitRate, String codecName) {
+        mRenditions.add(new Rendition(width, height, bitRate, codecName));
+    }
+
+    public int getNumRenditions() { return mRenditions.size(); }
+
+    private void abort() {
+        mAborted = true;
+        mDecodeThread.interrupt();
+        for (Rendition rendition : mRenditions) {
+            if (rendition.mThread != null) {
+                rendition.mThread.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Decodes the track once and encodes all renditions from it
+     *
+     * @param extractor   Extractor already set up with the input
+     * @param trackId     Video track to be encoded
+     * @param decoderName Will create the decoder with decoderName, empty to select one by mime
+     * @return 0 if all renditions were encoded, -1 for fail, -2 for decoder not created
+     */
+    public int encode(Extractor extractor, int trackId, String decoderName)
+            throws IOException, InterruptedException {
+        if (mRenditions.isEmpty() || extractor.selectExtractorTrack(trackId) != 0) {
+            return -1;
+        }
+        MediaFormat format = extractor.getFormat(trackId);
+        mMime = format.getString(MediaFormat.KEY_MIME);
+        mFrameRate = format.containsKey(MediaFormat.KEY_FRAME_RATE) ?
+                format.getInteger(MediaFormat.KEY_FRAME_RATE) : kDefaultFrameRate;
+        mDurationUs = extractor.getClipDuration();
+        int frameSize = format.getInteger(MediaFormat.KEY_WIDTH)
+                * format.getInteger(MediaFormat.KEY_HEIGHT) * 3 / 2;
+        mFramePool = new Frame.Pool(mQueueCapacity + kExtraFrames, frameSize);
+        mDecodedFormat = null;
+        mAborted = false;
+        mNumDecodedFrames = 0;
+
+        Decoder decoder = new Decoder();
+        decoder.setupDecoder(null);
+        int status = decoder.setupStreamingDecoder(format, decoderName);
+        if (status != 0) {
+            extractor.unselectExtractorTrack(trackId);
+            return status;
+        }
+        mDecodeThread = Thread.currentThread();
+        long startTimeNs = System.nanoTime();
+        for (Rendition rendition : mRenditions) {
+            rendition.mThread = new Thread(rendition, "AbrLadder-" + rendition.getName());
+            rendition.mThread.start();
+        }
+        try {
+            status = decodeAndFanOut(extractor, decoder);
+            if (status == 0) {
+                Frame eos = mFramePool.obtain();
+                eos.set(0, 0, 0, Frame.FLAG_END_OF_STREAM);
+                fanOut(eos);
+            }
+        } catch (InterruptedException e) {
+            if (!mAborted) {
+                throw e;
+            }
+            status = -1;
+        }
+        if (status != 0) {
+            abort();
+        }
+        for (Rendition rendition : mRenditions) {
+            joinUninterruptibly(rendition.mThread);
+            if (rendition.mStatus != 0) {
+                status = -1;
+            }
+        }
+        // Clears an interrupt raised by a failing rendition.
+        Thread.interrupted();
+        mWallTimeNs = System.nanoTime() - startTimeNs;
+        decoder.deInitCodec();
+        extractor.unselectExtractorTrack(trackId);
+        return status;
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        while (true) {
+            try {
+                thread.join();
+                return;
+            } catch (InterruptedException e) {
+                // A failing rendition interrupts the decode thread, keep waiting for the others.
+            }
+        }
+    }
+
+    private int decodeAndFanOut(Extractor extractor, Decoder decoder) throws InterruptedException {
+        MediaCodec.BufferInfo outputInfo = new MediaCodec.BufferInfo();
+        boolean sawInputEOS = false;
+        boolean samplePending = false;
+        Frame frame = null;
+        while (!decoder.sawOutputEOS() && !mAborted) {
+            if (!sawInputEOS) {
+                if (!samplePending) {
+                    extractor.getFrameSample();
+                    samplePending = true;
+                }
+                MediaCodec.BufferInfo inputInfo = extractor.getBufferInfo();
+                int status = decoder.queueInputSample(extractor.getFrameBuffer(), inputInfo);
+                if (status < 0) {
+                    break;
+                } else if (status == 0) {
+                    samplePending = false;
+                    sawInputEOS = (inputInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                }
+            }
+            if (frame == null) {
+                frame = mFramePool.obtain();
+            }
+            int status = decoder.dequeueOutputFrame(outputInfo, frame);
+            if (status < 0) {
+                break;
+            } else if (status == Decoder.TRY_AGAIN || outputInfo.size == 0) {
+                continue;
+            }
+            if (mDecodedFormat == null) {
+                mDecodedFormat = decoder.getFormat();
+                mDecodedFrameSize = outputInfo.size;
+            }
+            frame.set(0, outputInfo.size, outputInfo.presentationTimeUs, 0);
+            frame.setOriginTimeNs(System.nanoTime());
+            mNumDecodedFrames++;
+            fanOut(frame);
+            frame = null;
+        }
+        if (frame != null) {
+            frame.release();
+        }
+        return decoder.sawOutputEOS() && !mAborted ? 0 : -1;
+    }
+
+    private void fanOut(Frame frame) throws InterruptedException {
+        frame.retain(mRenditions.size() - 1);
+        for (Rendition rendition : mRenditions) {
+            rendition.mQueue.put(frame);
+        }
+    }
+
+    /**
+     * Returns true if every rendition was encoded at least as fast as the content plays
+     */
+    public boolean isRealTime() {
+        for (Rendition rendition : mRenditions) {
+            long renditionTimeNs = rendition.mEndTimeNs - rendition.mStartTimeNs;
+            if (renditionTimeNs > mDurationUs * 1000) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Collects the measurements of the last run
+     *
+     * @param inputReference Name of the input media
+     * @return Metrics of the ladder and of every rendition
+     */
+    public Metrics getMetrics(String inputReference) {
+        Metrics metrics = new Metrics(inputReference, "abrLadder", mMime);
+        int numRenditions = mRenditions.size();
+        long totalOutputFrames = 0;
+        for (Rendition rendition : mRenditions) {
+            totalOutputFrames += rendition.mNumOutputFrames;
+        }
+        metrics.add("renditions", numRenditions);
+        metrics.add("wallTimeNs", mWallTimeNs);
+        metrics.add("decodedFrames", mNumDecodedFrames);
+        metrics.add("aggregateFps", totalOutputFrames * 1e9 / Math.max(1, mWallTimeNs));
+        metrics.add("realTime", isRealTime() ? 1 : 0);
+        // Copying would give every rendition its own buffer for every frame in flight.
+        long peakSharedBytes = (long) mFramePool.getPeakFramesInUse() * mDecodedFrameSize;
+        metrics.add("peakSharedBytes", peakSharedBytes);
+        metrics.add("peakCopiedBytes", peakSharedBytes * numRenditions);
+        metrics.add("copyBytesAvoided",
+                (long) mNumDecodedFrames * mDecodedFrameSize * (numRenditions - 1));
+        for (Rendition rendition : mRenditions) {
+            String prefix = rendition.getName() + ".";
+            long renditionTimeNs = rendition.mEndTimeNs - rendition.mStartTimeNs;
+            metrics.add(prefix + "frames", rendition.mNumOutputFrames);
+            metrics.add(prefix + "bytes", rendition.mOutputBytes);
+            metrics.add(prefix + "fps",
+                    rendition.mNumOutputFrames * 1e9 / Math.max(1, renditionTimeNs));
+            metrics.add(prefix + "speed", mDurationUs * 1000.0 / Math.max(1, renditionTimeNs));
+            metrics.add(prefix + "scaleTimeNs", rendition.mScaleTimeNs);
+        }
+        return metrics;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.media.benchmark.library;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Decodes an {@link AdaptiveStream} and reports what each switch of resolution costs.
+ * <p>
+ * The decoder is configured either with the resolution of the first segment only, or also
+ * with the largest resolution of the stream as its maximum, which lets an adaptive decoder keep
+ * its output buffers across switches. At each switch, the format change latency is the time
+ * from queueing the first sample of the new segment to the output format change, and the output
+ * gap is the time between the last frame of the old segment and the first frame of the new one.
+ * The switch cost is the part of the gap above the median interval between the other frames.
+ * The reallocation cost of an adaptive run is how much lower its median switch cost is than the
+ * one of the last run without the maximum resolution, the time spent reallocating buffers.
+ */
+public class AdaptivePlayback {
+    private static final String TAG = "AdaptivePlayback";
+
+    private final BenchmarkCodec.Factory mCodecFactory;
+    private final AdaptiveStream mStream;
+    private final String mCodecName;
+    private final boolean mAsyncMode;
+    private long mFixedSwitchCostNs = -1;
+
+    /**
+     * @param codecFactory Creates the decoders
+     * @param stream       Stream to decode
+     * @param codecName    Name of the decoder, empty to select it by mime
+     * @param asyncMode    Will run on async implementation if true
+     */
+    public AdaptivePlayback(BenchmarkCodec.Factory codecFactory, AdaptiveStream stream,
+            String codecName, boolean asyncMode) {
+        mCodecFactory = codecFactory;
+        mStream = stream;
+        mCodecName = codecName;
+        mAsyncMode = asyncMode;
+    }
+
+    /**
+     * Decodes the stream once
+     *
+     * @param adaptive       Configures the decoder with the maximum resolution of the stream
+     * @param inputReference Name of the stream
+     * @return Metrics of the run, its status is 0 if decode was successful, -1 for fail, -2 for
+     * decoder not created
+     */
+    public Metrics run(boolean adaptive, String inputReference) throws IOException {
+        Metrics metrics = new Metrics(inputReference, "adaptivePlayback", mCodecName);
+        metrics.add("mode", mAsyncMode ? "async" : "sync");
+        metrics.add("configuration", adaptive ? "adaptive" : "fixed");
+        ArrayList<ByteBuffer> inputBuffer = new ArrayList<>();
+        ArrayList<MediaCodec.BufferInfo> frameInfo = new ArrayList<>();
+        mStream.getStream(inputBuffer, frameInfo);
+        Decoder decoder = new Decoder(mCodecFactory);
+        decoder.setupDecoder(null);
+        decoder.setRecordSampleTimes(true);
+        int status = decoder.decode(inputBuffer, frameInfo, mAsyncMode,
+                mStream.getFormat(adaptive), mCodecName);
+        decoder.deInitCodec();
+        metrics.add("status", status);
+        if (status != 0) {
+            Log.e(TAG, "Decoder returned error " + status + " for " + inputReference);
+            return metrics;
+        }
+        Stats stats = decoder.getStats();
+        int numFrames = decoder.getNumOutputFrames();
+        int numSegments = mStream.getNumSegments();
+        // The first output frame of each segment, numFrames if it has none. The presentation
+        // times of the stream increase from one segment to the next, and the decoder outputs the
+        // frames in presentation order, so frames dropped or reordered by the decoder do not
+        // shift the segments.
+        int[] firstFrames = new int[numSegments + 1];
+        int frame = 0;
+        for (int segment = 0; segment < numSegments; segment++) {
+            long startTimeUs = frameInfo.get(mStream.getSegmentStart(segment)).presentationTimeUs;
+            while (frame < numFrames && decoder.getOutputPresentationTimeUs(frame) < startTimeUs) {
+                frame++;
+            }
+            firstFrames[segment] = frame;
+        }
+        firstFrames[numSegments] = numFrames;
+        boolean[] isSwitch = new boolean[numFrames];
+        for (int segment = 1; segment < numSegments; segment++) {
+            if (firstFrames[segment] < numFrames) {
+                isSwitch[firstFrames[segment]] = true;
+            }
+        }
+        Distribution intervals = new Distribution();
+        for (int i = 1; i < numFrames; i++) {
+            if (!isSwitch[i]) {
+                intervals.add(stats.getOutputTime(i) - stats.getOutputTime(i - 1));
+            }
+        }
+        long frameIntervalNs = intervals.getPercentile(50);
+
+        Distribution latencies = new Distribution();
+        Distribution gaps = new Distribution();
+        Distribution switchCosts = new Distribution();
+        Distribution upSwitchCosts = new Distribution();
+        Distribution downSwitchCosts = new Distribution();
+        int numFormatChanges = 0;
+        for (int segment = 1; segment < numSegments; segment++) {
+            int start = firstFrames[segment];
+            int end = firstFrames[segment + 1];
+            long queueTimeNs = decoder.getQueueTimeNs(mStream.getSegmentStart(segment));
+            for (int change = 0; change < decoder.getNumFormatChanges(); change++) {
+                int changeFrame = decoder.getFormatChangeFrame(change);
+                if (changeFrame >= start && changeFrame < end) {
+                    numFormatChanges++;
+                    if (queueTimeNs > 0) {
+                        latencies.add(decoder.getFormatChangeTimeNs(change) - queueTimeNs);
+                    }
+                    break;
+                }
+            }
+            if (start > 0 && start < numFrames) {
+                long gapNs = stats.getOutputTime(start) - stats.getOutputTime(start - 1);
+                gaps.add(gapNs);
+                switchCosts.add(gapNs - frameIntervalNs);
+                if (mStream.isUpSwitch(segment)) {
+                    upSwitchCosts.add(gapNs - frameIntervalNs);
+                } else {
+                    downSwitchCosts.add(gapNs - frameIntervalNs);
+                }
+            }
+        }
+        long switchCostNs = switchCosts.getPercentile(50);
+        if (!adaptive && switchCosts.getCount() > 0) {
+            mFixedSwitchCostNs = switchCostNs;
+        }
+        metrics.add("segments", numSegments);
+        metrics.add("switches", numSegments - 1);
+        metrics.add("outputs", numFrames);
+        metrics.add("formatChanges", numFormatChanges);
+        metrics.add("missedFormatChanges", numSegments - 1 - numFormatChanges);
+        metrics.add("formatChangeLatencyNs", latencies);
+        metrics.add("outputGapNs", gaps);
+        metrics.add("frameIntervalNs", frameIntervalNs);
+        metrics.add("switchCostNs", switchCosts);
+        if (upSwitchCosts.getCount() > 0) {
+            metrics.add("upSwitchCostNs", upSwitchCosts.getPercentile(50));
+        }
+        if (downSwitchCosts.getCount() > 0) {
+            metrics.add("downSwitchCostNs", downSwitchCosts.getPercentile(50));
+        }
+        if (adaptive && mFixedSwitchCostNs >= 0 && switchCosts.getCount() > 0) {
+            metrics.add("reallocationCostNs", mFixedSwitchCostNs - switchCostNs);
+        }
+        return metrics;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.media.benchmark.library;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Stream switching between renditions of the same content mid-stream, as done by adaptive
+ * bitrate playback.
+ * <p>
+ * Segments are cut from clips of the same content and codec at different resolutions and
+ * bitrates. Each segment starts at the first sync sample of its clip at or after the end of the
+ * previous segment, so the content keeps going across switches, and its timestamps are moved to
+ * follow the previous segment. The codec specific data of a segment is sent in-band with its
+ * first sample, where a switching stream carries it, and the stream only ends after the last
+ * segment.
+ */
+public class AdaptiveStream {
+    private static final String TAG = "AdaptiveStream";
+    private static final String[] kCsdKeys = {"csd-0", "csd-1"};
+
+    private final ArrayList<ByteBuffer> mSamples = new ArrayList<>();
+    private final ArrayList<MediaCodec.BufferInfo> mSampleInfo = new ArrayList<>();
+    private final ArrayList<Integer> mSegmentStarts = new ArrayList<>();
+    private final ArrayList<MediaFormat> mSegmentFormats = new ArrayList<>();
+    private long mSourcePositionUs;
+    private long mNextTimeUs;
+    private int mMaxSampleSize;
+
+    /**
+     * Appends a segment of the given clip
+     *
+     * @param format     Format of the clip
+     * @param buffers    Samples of the clip, as read by {@link SampleIndexCache#readSamples}
+     * @param bufferInfo Buffer info of the samples
+     * @param numFrames  Number of samples of the segment, less if the clip ends before
+     * @return Number of samples appended, -1 if the clip has no sync sample left
+     */
+    public int addSegment(MediaFormat format, ArrayList<ByteBuffer> buffers,
+            ArrayList<MediaCodec.BufferInfo> bufferInfo, int numFrames) {
+        int first = -1;
+        for (int i = 0; i < bufferInfo.size(); i++) {
+            MediaCodec.BufferInfo info = bufferInfo.get(i);
+            if (info.size > 0 && (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0
+                    && info.presentationTimeUs >= mSourcePositionUs) {
+                first = i;
+                break;
+            }
+        }
+        if (first < 0) {
+            Log.e(TAG, "No sync sample after " + mSourcePositionUs + " us");
+            return -1;
+        }
+        int end = first;
+        long minTimeUs = Long.MAX_VALUE;
+        long maxTimeUs = Long.MIN_VALUE;
+        while (end < bufferInfo.size() && end - first < numFrames) {
+            MediaCodec.BufferInfo info = bufferInfo.get(end);
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                break;
+            }
+            minTimeUs = Math.min(minTimeUs, info.presentationTimeUs);
+            maxTimeUs = Math.max(maxTimeUs, info.presentationTimeUs);
+            end++;
+        }
+        int count = end - first;
+        long frameDurationUs = count > 1 ? (maxTimeUs - minTimeUs) / (count - 1) : 0;
+        ByteBuffer csd = mSamples.isEmpty() ? null : getCodecSpecificData(format);
+        mSegmentStarts.add(mSamples.size());
+        mSegmentFormats.add(format);
+        for (int i = first; i < end; i++) {
+            MediaCodec.BufferInfo source = bufferInfo.get(i);
+            ByteBuffer data = buffers.get(i);
+            int size = source.size;
+            if (i == first && csd != null) {
+                ByteBuffer merged = ByteBuffer.allocate(csd.remaining() + size);
+                merged.put(csd.duplicate());
+                merged.put(data.array(), source.offset, size);
+                data = merged;
+                size = merged.capacity();
+            }
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            info.offset = 0;
+            info.size = size;
+            info.presentationTimeUs = source.presentationTimeUs - minTimeUs + mNextTimeUs;
+            info.flags = source.flags;
+            mSamples.add(data);
+            mSampleInfo.add(info);
+            mMaxSampleSize = Math.max(mMaxSampleSize, size);
+        }
+        mSourcePositionUs = maxTimeUs + frameDurationUs;
+        mNextTimeUs += maxTimeUs - minTimeUs + frameDurationUs;
+        return count;
+    }
+
+    private static ByteBuffer getCodecSpecificData(MediaFormat format) {
+        int size = 0;
+        for (String key : kCsdKeys) {
+            ByteBuffer csd = format.containsKey(key) ? format.getByteBuffer(key) : null;
+            size += csd != null ? csd.remaining() : 0;
+        }
+        if (size == 0) {
+            return null;
+        }
+        ByteBuffer data = ByteBuffer.allocate(size);
+        for (String key : kCsdKeys) {
+            ByteBuffer csd = format.containsKey(key) ? format.getByteBuffer(key) : null;
+            if (csd != null) {
+                data.put(csd.duplicate());
+            }
+        }
+        data.flip();
+        return data;
+    }
+
+    public int getNumSegments() { return mSegmentStarts.size(); }
+
+    /**
+     * Returns the index of the first sample of the given segment in the stream
+     */
+    public int getSegmentStart(int segment) { return mSegmentStarts.get(segment); }
+
+    /**
+     * Returns the number of samples of the stream, the end of stream one excluded
+     */
+    public int getNumSamples() { return mSamples.size(); }
+
+    /**
+     * Returns the duration of the stream
+     */
+    public long getDurationUs() { return mNextTimeUs; }
+
+    /**
+     * Returns true if the given segment is larger than the previous one
+     */
+    public boolean isUpSwitch(int segment) {
+        return getArea(mSegmentFormats.get(segment)) > getArea(mSegmentFormats.get(segment - 1));
+    }
+
+    private static long getArea(MediaFormat format) {
+        return (long) format.getInteger(MediaFormat.KEY_WIDTH)
+                * format.getInteger(MediaFormat.KEY_HEIGHT);
+    }
+
+    /**
+     * Copies the samples of the stream to the given lists, followed by an end of stream sample
+     */
+    public void getStream(ArrayList<ByteBuffer> buffers,
+            ArrayList<MediaCodec.BufferInfo> bufferInfo) {
+        buffers.addAll(mSamples);
+        bufferInfo.addAll(mSampleInfo);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.offset = 0;
+        info.size = 0;
+        info.presentationTimeUs = mNextTimeUs;
+        info.flags = MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+        buffers.add(ByteBuffer.allocate(0));
+        bufferInfo.add(info);
+    }
+
+    /**
+     * Returns the format to configure the decoder of the stream with, the one of the first
+     * segment with input buffers large enough for the samples of all segments
+     *
+     * @param adaptive Also sets the largest resolution of the segments as the maximum
+     *                 resolution, so that the decoder can allocate its output buffers once
+     */
+    public MediaFormat getFormat(boolean adaptive) {
+        MediaFormat first = mSegmentFormats.get(0);
+        MediaFormat format = new MediaFormat();
+        format.setString(MediaFormat.KEY_MIME, first.getString(MediaFormat.KEY_MIME));
+        format.setInteger(MediaFormat.KEY_WIDTH, first.getInteger(MediaFormat.KEY_WIDTH));
+        format.setInteger(MediaFormat.KEY_HEIGHT, first.getInteger(MediaFormat.KEY_HEIGHT));
+        for (String key : kCsdKeys) {
+            if (first.containsKey(key)) {
+                format.setByteBuffer(key, first.getByteBuffer(key));
+            }
+        }
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, mMaxSampleSize);
+        if (adaptive) {
+            int maxWidth = 0;
+            int maxHeight = 0;
+            for (MediaFormat segment : mSegmentFormats) {
+                maxWidth = Math.max(maxWidth, segment.getInteger(MediaFormat.KEY_WIDTH));
+                maxHeight = Math.max(maxHeight, segment.getInteger(MediaFormat.KEY_HEIGHT));
+            }
+            format.setInteger(MediaFormat.KEY_MAX_WIDTH, maxWidth);
+            format.setInteger(MediaFormat.KEY_MAX_HEIGHT, maxHeight);
+        }
+        return format;
+    }
+}
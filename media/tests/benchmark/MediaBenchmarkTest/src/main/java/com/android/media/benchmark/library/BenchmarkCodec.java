@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The calls of {@link MediaCodec} the decoder and the encoder make, so that they can run on
+ * either a platform codec, see {@link PlatformCodec}, or a {@link SimulatedCodec} on a host JVM.
+ * <p>
+ * The calls behave as those of MediaCodec of the same name: buffer indices, INFO_* values,
+ * BUFFER_FLAG_* flags and the exceptions thrown are the same.
+ */
+public interface BenchmarkCodec {
+    /**
+     * Receives the events of a codec in async mode, as {@link MediaCodec.Callback} does
+     */
+    interface Callback {
+        void onInputBufferAvailable(BenchmarkCodec codec, int index);
+
+        void onOutputBufferAvailable(BenchmarkCodec codec, int index, BufferInfo info);
+
+        void onOutputFormatChanged(BenchmarkCodec codec, MediaFormat format);
+
+        /**
+         * @param e The {@link MediaCodec.CodecException} of a platform codec, which is an
+         *          IllegalStateException
+         */
+        void onError(BenchmarkCodec codec, IllegalStateException e);
+    }
+
+    /**
+     * Creates codecs, as the static methods of {@link MediaCodec} do
+     */
+    interface Factory {
+        BenchmarkCodec createByCodecName(String name) throws IOException;
+
+        BenchmarkCodec createDecoderByType(String mime) throws IOException;
+
+        BenchmarkCodec createEncoderByType(String mime) throws IOException;
+    }
+
+    String getName();
+
+    /**
+     * Selects async mode, to be called before {@link #configure}
+     */
+    void setCallback(Callback callback);
+
+    /**
+     * Configures the codec without an output surface or crypto
+     *
+     * @param flags {@link MediaCodec#CONFIGURE_FLAG_ENCODE} for an encoder, 0 otherwise
+     */
+    void configure(MediaFormat format, int flags);
+
+    MediaFormat getInputFormat();
+
+    MediaFormat getOutputFormat();
+
+    void start();
+
+    void flush();
+
+    void stop();
+
+    void release();
+
+    int dequeueInputBuffer(long timeoutUs);
+
+    ByteBuffer getInputBuffer(int index);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    int dequeueOutputBuffer(BufferInfo info, long timeoutUs);
+
+    ByteBuffer getOutputBuffer(int index);
+
+    void releaseOutputBuffer(int index, boolean render);
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import android.media.MediaDataSource;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * MediaDataSource which records how the extractor reads it.
+ * <p>
+ * Every readAt() call is counted with its size in a power of two histogram and its duration, so
+ * that the bytes the extractor reads can be compared with the size of the file. The data comes
+ * from a file read in memory, a memory mapping or positional reads of the file, and can be
+ * throttled to simulate slow storage or a network.
+ */
+public abstract class BenchmarkDataSource extends MediaDataSource {
+    private static final int kNumSizeBuckets = 32;
+
+    private final String mMode;
+    private final long mSize;
+    private final long[] mSizeBuckets = new long[kNumSizeBuckets];
+    private final Distribution mReadTimes = new Distribution();
+    private long mNumReads;
+    private long mBytesRequested;
+    private long mBytesRead;
+
+    protected BenchmarkDataSource(String mode, long size) {
+        mMode = mode;
+        mSize = size;
+    }
+
+    /**
+     * Reads the whole file in memory, so that reads do not touch the storage
+     */
+    public static BenchmarkDataSource inMemory(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        try (FileInputStream input = new FileInputStream(file)) {
+            int offset = 0;
+            while (offset < data.length) {
+                int read = input.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    throw new IOException("File shorter than its length");
+                }
+                offset += read;
+            }
+        }
+        return new BufferDataSource("memory", ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Maps the file, so that reads are page faults on first access
+     */
+    public static BenchmarkDataSource mapped(File file) throws IOException {
+        try (FileInputStream input = new FileInputStream(file)) {
+            FileChannel channel = input.getChannel();
+            return new BufferDataSource("mmap", channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size()));
+        }
+    }
+
+    /**
+     * Reads the file with one positional read per call, like a file descriptor data source
+     */
+    public static BenchmarkDataSource file(File file) throws IOException {
+        return new FileDataSource(new FileInputStream(file));
+    }
+
+    /**
+     * Delays the reads of another source by a fixed latency per call and a transfer time
+     *
+     * @param source         Source the data is read from
+     * @param latencyUs      Delay added to every call, in microseconds
+     * @param bytesPerSecond Bandwidth the transfer time is computed from, 0 for unlimited
+     */
+    public static BenchmarkDataSource throttled(BenchmarkDataSource source, long latencyUs,
+            long bytesPerSecond) {
+        return new ThrottledDataSource(source, latencyUs, bytesPerSecond);
+    }
+
+    private static class BufferDataSource extends BenchmarkDataSource {
+        private final ByteBuffer mData;
+
+        BufferDataSource(String mode, ByteBuffer data) {
+            super(mode, data.limit());
+            mData = data;
+        }
+
+        @Override
+        protected int read(long position, byte[] buffer, int offset, int size) {
+            ByteBuffer view = mData.duplicate();
+            view.position((int) position);
+            view.get(buffer, offset, size);
+            return size;
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    private static class FileDataSource extends BenchmarkDataSource {
+        private final FileInputStream mInput;
+        private final FileChannel mChannel;
+
+        FileDataSource(FileInputStream input) throws IOException {
+            super("file", input.getChannel().size());
+            mInput = input;
+            mChannel = input.getChannel();
+        }
+
+        @Override
+        protected int read(long position, byte[] buffer, int offset, int size)
+                throws IOException {
+            ByteBuffer target = ByteBuffer.wrap(buffer, offset, size);
+            while (target.hasRemaining()) {
+                if (mChannel.read(target, position + target.position() - offset) < 0) {
+                    break;
+                }
+            }
+            return target.position() - offset;
+        }
+
+        @Override
+        public void close() throws IOException { mInput.close(); }
+    }
+
+    private static class ThrottledDataSource extends BenchmarkDataSource {
+        private final BenchmarkDataSource mSource;
+        private final long mLatencyNs;
+        private final long mBytesPerSecond;
+
+        ThrottledDataSource(BenchmarkDataSource source, long latencyUs, long bytesPerSecond) {
+            super(source.getMode() + "Throttled" + latencyUs + "us" + bytesPerSecond + "Bps",
+                    source.getSize());
+            mSource = source;
+            mLatencyNs = latencyUs * 1000;
+            mBytesPerSecond = bytesPerSecond;
+        }
+
+        @Override
+        protected int read(long position, byte[] buffer, int offset, int size)
+                throws IOException {
+            long deadline = System.nanoTime() + mLatencyNs
+                    + (mBytesPerSecond > 0 ? size * 1000000000L / mBytesPerSecond : 0);
+            int read = mSource.read(position, buffer, offset, size);
+            for (long now = System.nanoTime(); now < deadline; now = System.nanoTime()) {
+                LockSupport.parkNanos(deadline - now);
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException { mSource.close(); }
+    }
+
+    /**
+     * Reads size bytes at position, which are within the source
+     *
+     * @return Number of bytes read
+     */
+    protected abstract int read(long position, byte[] buffer, int offset, int size)
+            throws IOException;
+
+    @Override
+    public final synchronized int readAt(long position, byte[] buffer, int offset, int size)
+            throws IOException {
+        long sTime = System.nanoTime();
+        mNumReads++;
+        mBytesRequested += size;
+        mSizeBuckets[size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1)]++;
+        if (position >= mSize) {
+            return -1;
+        }
+        int read = size == 0 ? 0 : read(position, buffer, offset,
+                (int) Math.min(size, mSize - position));
+        mBytesRead += read;
+        mReadTimes.add(System.nanoTime() - sTime);
+        return read;
+    }
+
+    @Override
+    public long getSize() { return mSize; }
+
+    public String getMode() { return mMode; }
+
+    public synchronized long getNumReads() { return mNumReads; }
+
+    public synchronized long getBytesRead() { return mBytesRead; }
+
+    /**
+     * Returns the number of readAt() calls of a size in (2^(bucket - 1), 2^bucket]
+     */
+    public synchronized long getNumReads(int bucket) { return mSizeBuckets[bucket]; }
+
+    /**
+     * Clears the recorded reads, to separate the reads of setup from the reads of samples
+     */
+    public synchronized void resetCounters() {
+        Arrays.fill(mSizeBuckets, 0);
+        mReadTimes.reset();
+        mNumReads = 0;
+        mBytesRequested = 0;
+        mBytesRead = 0;
+    }
+
+    /**
+     * Returns the recorded reads as metrics
+     *
+     * @param inputReference Name of the file read
+     * @param operation      Operation the reads were made for
+     */
+    public synchronized Metrics getMetrics(String inputReference, String operation) {
+        Metrics metrics = new Metrics(inputReference, operation, mMode);
+        metrics.add("fileSize", mSize);
+        metrics.add("readAtCalls", mNumReads);
+        metrics.add("bytesRequested", mBytesRequested);
+        metrics.add("bytesRead", mBytesRead);
+        metrics.add("readAmplification", (double) mBytesRead / Math.max(1, mSize));
+        metrics.add("readAtTimeNs", mReadTimes);
+        for (int bucket = 0; bucket < kNumSizeBuckets; bucket++) {
+            if (mSizeBuckets[bucket] > 0) {
+                metrics.add("readAtSizeUpTo" + (1L << bucket), mSizeBuckets[bucket]);
+            }
+        }
+        return metrics;
+    }
+}
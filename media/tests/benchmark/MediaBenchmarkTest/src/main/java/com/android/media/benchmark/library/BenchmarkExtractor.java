@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The calls of {@link MediaExtractor} the extractor makes on a data source already set, so that
+ * it can read from either a platform extractor, see {@link PlatformExtractor}, or the samples of
+ * a {@link SimulatedExtractor} on a host JVM. The calls behave as those of MediaExtractor of the
+ * same name.
+ */
+public interface BenchmarkExtractor {
+    int getTrackCount();
+
+    MediaFormat getTrackFormat(int index);
+
+    void selectTrack(int index);
+
+    void unselectTrack(int index);
+
+    long getSampleSize();
+
+    int readSampleData(ByteBuffer buffer, int offset);
+
+    int getSampleTrackIndex();
+
+    int getSampleFlags();
+
+    long getSampleTime();
+
+    boolean advance();
+
+    /**
+     * @param mode One of the MediaExtractor.SEEK_TO_* modes
+     */
+    void seekTo(long timeUs, int mode);
+
+    void release();
+}
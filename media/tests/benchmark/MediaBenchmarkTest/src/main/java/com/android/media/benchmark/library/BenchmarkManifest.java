@@ -0,0 +1,457 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The matrix of cases a benchmark run covers, loaded from a CSV manifest instead of the clip
+ * lists built into the tests, filtered and split into shards so that a full run can be spread
+ * over several devices.
+ * <p>
+ * The first line of a manifest names its columns, lines starting with '#' are comments. Every
+ * other line is a case:
+ * <pre>
+ * test,clip,tracks,modes,codecs,excludeCodecs,repetitions,timeoutMs
+ * DecoderTest,crowd_1920x1080_25fps_4000kbps_vp9.webm,,sync;async,^c2\.,,3,120000
+ * MuxerTest,bbb_44100hz_2ch_128kbps_aac_5mins.mp4,0,mp4;3gpp,,,,
+ * </pre>
+ * Only test and clip are required. tracks and modes hold ';' separated values, empty meaning
+ * all tracks and the modes the test defaults to. codecs and excludeCodecs are regular
+ * expressions searched in the codec names, which cannot hold a ','.
+ * <p>
+ * A cost file holds the wall time of earlier runs, one line per test method of a case and mode,
+ * "test,clip,mode,method,timeMs". Shards are balanced by the expected cost of their cases: the
+ * mean recorded time per method, summed over the methods and modes of a case and multiplied by
+ * its repetitions, or the median of the known costs for a case never run. Every device of a run
+ * must be given the same manifest and cost file to agree on the shards.
+ */
+public class BenchmarkManifest {
+    private static final String[] kColumns = {
+            "test", "clip", "tracks", "modes", "codecs", "excludeCodecs", "repetitions",
+            "timeoutMs"};
+
+    /**
+     * A clip of a test, with the tracks, modes and codecs it is run with
+     */
+    public static class Case {
+        private final String mTest;
+        private final String mClip;
+        private final int[] mTracks;
+        private final String[] mModes;
+        private final List<Pattern> mCodecs;
+        private final Pattern mExcludeCodecs;
+        private final int mRepetitions;
+        private final long mTimeoutMs;
+
+        /**
+         * @param test          Simple name of the test class
+         * @param clip          Input file of the case
+         * @param tracks        Tracks to run, empty for all
+         * @param modes         Modes to run, empty for the default ones of the test
+         * @param codecs        Codecs to run, any codec if null
+         * @param excludeCodecs Codecs not to run, none if null
+         * @param repetitions   Number of times the case is run
+         * @param timeoutMs     Timeout of every test method of the case, 0 for the built-in one
+         */
+        public Case(String test, String clip, int[] tracks, String[] modes, Pattern codecs,
+                Pattern excludeCodecs, int repetitions, long timeoutMs) {
+            this(test, clip, tracks, modes,
+                    codecs == null ? Collections.emptyList() : Collections.singletonList(codecs),
+                    excludeCodecs, repetitions, timeoutMs);
+        }
+
+        private Case(String test, String clip, int[] tracks, String[] modes,
+                List<Pattern> codecs, Pattern excludeCodecs, int repetitions, long timeoutMs) {
+            mTest = test;
+            mClip = clip;
+            mTracks = tracks;
+            mModes = modes;
+            mCodecs = codecs;
+            mExcludeCodecs = excludeCodecs;
+            mRepetitions = Math.max(1, repetitions);
+            mTimeoutMs = timeoutMs;
+        }
+
+        /**
+         * Returns a case running the clip once in the given mode, as the tests list them
+         */
+        public static Case of(String test, String clip, String mode) {
+            return new Case(test, clip, new int[0], mode == null ? new String[0]
+                    : new String[]{mode}, (Pattern) null, null, 1, 0);
+        }
+
+        public String getTest() { return mTest; }
+
+        public String getClip() { return mClip; }
+
+        public int[] getTracks() { return mTracks; }
+
+        public String[] getModes() { return mModes; }
+
+        public int getRepetitions() { return mRepetitions; }
+
+        public long getTimeoutMs() { return mTimeoutMs; }
+
+        public boolean acceptsTrack(int track) {
+            if (mTracks.length == 0) {
+                return true;
+            }
+            for (int t : mTracks) {
+                if (t == track) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public boolean acceptsCodec(String codecName) {
+            for (Pattern codecs : mCodecs) {
+                if (!codecs.matcher(codecName).find()) {
+                    return false;
+                }
+            }
+            return mExcludeCodecs == null || !mExcludeCodecs.matcher(codecName).find();
+        }
+
+        /**
+         * Returns the codecs of the list the case runs, in the order of the list
+         */
+        public ArrayList<String> filterCodecs(List<String> codecNames) {
+            ArrayList<String> accepted = new ArrayList<>();
+            for (String codecName : codecNames) {
+                if (acceptsCodec(codecName)) {
+                    accepted.add(codecName);
+                }
+            }
+            return accepted;
+        }
+
+        /**
+         * Returns the case restricted to the codecs the pattern finds
+         */
+        Case withCodecs(Pattern codecs) {
+            List<Pattern> patterns = new ArrayList<>(mCodecs);
+            patterns.add(codecs);
+            return new Case(mTest, mClip, mTracks, mModes, patterns, mExcludeCodecs,
+                    mRepetitions, mTimeoutMs);
+        }
+
+        /**
+         * Returns the case restricted to the given modes
+         */
+        public Case withModes(String[] modes) {
+            return new Case(mTest, mClip, mTracks, modes, mCodecs, mExcludeCodecs, mRepetitions,
+                    mTimeoutMs);
+        }
+
+        @Override
+        public String toString() {
+            return mTest + "," + mClip + (mModes.length > 0 ? "," + String.join(";", mModes) : "");
+        }
+    }
+
+    private final ArrayList<Case> mCases = new ArrayList<>();
+
+    public BenchmarkManifest() {}
+
+    /**
+     * Reads a manifest
+     *
+     * @throws IOException if a line is malformed
+     */
+    public static BenchmarkManifest parse(Reader reader) throws IOException {
+        BenchmarkManifest manifest = new BenchmarkManifest();
+        BufferedReader in = new BufferedReader(reader);
+        int[] columns = null;
+        String line;
+        int lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split(",", -1);
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = fields[i].trim();
+            }
+            if (columns == null) {
+                columns = parseHeader(fields, lineNumber);
+                continue;
+            }
+            String[] values = new String[kColumns.length];
+            Arrays.fill(values, "");
+            for (int i = 0; i < fields.length && i < columns.length; i++) {
+                if (columns[i] >= 0) {
+                    values[columns[i]] = fields[i];
+                }
+            }
+            try {
+                manifest.add(parseCase(values));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Line " + lineNumber + ": " + e.getMessage(), e);
+            }
+        }
+        return manifest;
+    }
+
+    public static BenchmarkManifest load(File manifestFile) throws IOException {
+        try (FileReader reader = new FileReader(manifestFile)) {
+            return parse(reader);
+        }
+    }
+
+    private static int[] parseHeader(String[] fields, int lineNumber) throws IOException {
+        int[] columns = new int[fields.length];
+        boolean hasTest = false;
+        boolean hasClip = false;
+        for (int i = 0; i < fields.length; i++) {
+            columns[i] = Arrays.asList(kColumns).indexOf(fields[i]);
+            if (columns[i] < 0) {
+                throw new IOException("Line " + lineNumber + ": unknown column " + fields[i]);
+            }
+            hasTest |= columns[i] == 0;
+            hasClip |= columns[i] == 1;
+        }
+        if (!hasTest || !hasClip) {
+            throw new IOException("Line " + lineNumber + ": test and clip columns are required");
+        }
+        return columns;
+    }
+
+    private static Case parseCase(String[] values) {
+        if (values[0].isEmpty() || values[1].isEmpty()) {
+            throw new IllegalArgumentException("test and clip are required");
+        }
+        String[] trackValues = split(values[2]);
+        int[] tracks = new int[trackValues.length];
+        for (int i = 0; i < tracks.length; i++) {
+            tracks[i] = Integer.parseInt(trackValues[i]);
+        }
+        return new Case(values[0], values[1], tracks, split(values[3]),
+                values[4].isEmpty() ? null : Pattern.compile(values[4]),
+                values[5].isEmpty() ? null : Pattern.compile(values[5]),
+                values[6].isEmpty() ? 1 : Integer.parseInt(values[6]),
+                values[7].isEmpty() ? 0 : Long.parseLong(values[7]));
+    }
+
+    private static String[] split(String value) {
+        if (value.isEmpty()) {
+            return new String[0];
+        }
+        String[] values = value.split(";");
+        for (int i = 0; i < values.length; i++) {
+            values[i] = values[i].trim();
+        }
+        return values;
+    }
+
+    public void add(Case testCase) { mCases.add(testCase); }
+
+    public List<Case> getCases() { return Collections.unmodifiableList(mCases); }
+
+    /**
+     * Returns the cases of a test, in the order of the manifest
+     */
+    public List<Case> getCases(String test) {
+        ArrayList<Case> cases = new ArrayList<>();
+        for (Case testCase : mCases) {
+            if (testCase.getTest().equals(test)) {
+                cases.add(testCase);
+            }
+        }
+        return cases;
+    }
+
+    /**
+     * Returns the manifest restricted by the given regular expressions, each searched in its
+     * field and ignored if null. A case with none of its modes left is dropped, a case without
+     * modes keeps the default ones of its test.
+     *
+     * @param clips  Clips to run
+     * @param codecs Codecs to run, on top of the codecs of each case
+     * @param modes  Modes to run
+     */
+    public BenchmarkManifest filter(String clips, String codecs, String modes) {
+        Pattern clipPattern = clips == null ? null : Pattern.compile(clips);
+        Pattern codecPattern = codecs == null ? null : Pattern.compile(codecs);
+        Pattern modePattern = modes == null ? null : Pattern.compile(modes);
+        BenchmarkManifest filtered = new BenchmarkManifest();
+        for (Case testCase : mCases) {
+            if (clipPattern != null && !clipPattern.matcher(testCase.getClip()).find()) {
+                continue;
+            }
+            if (modePattern != null && testCase.getModes().length > 0) {
+                ArrayList<String> kept = new ArrayList<>();
+                for (String mode : testCase.getModes()) {
+                    if (modePattern.matcher(mode).find()) {
+                        kept.add(mode);
+                    }
+                }
+                if (kept.isEmpty()) {
+                    continue;
+                }
+                testCase = testCase.withModes(kept.toArray(new String[0]));
+            }
+            if (codecPattern != null) {
+                testCase = testCase.withCodecs(codecPattern);
+            }
+            filtered.add(testCase);
+        }
+        return filtered;
+    }
+
+    private static String getCostKey(String test, String clip, String mode) {
+        return test + "," + clip + "," + mode;
+    }
+
+    /**
+     * Returns the expected cost of a case from the costs of {@link #loadCosts(File)}, or
+     * defaultCost for the modes never run
+     */
+    public static long getExpectedCost(Case testCase, Map<String, Long> costs, long defaultCost) {
+        String[] modes = testCase.getModes().length > 0 ? testCase.getModes() : new String[]{""};
+        long cost = 0;
+        for (String mode : modes) {
+            Long modeCost = costs.get(getCostKey(testCase.getTest(), testCase.getClip(), mode));
+            cost += modeCost != null ? modeCost : defaultCost;
+        }
+        return cost * testCase.getRepetitions();
+    }
+
+    /**
+     * Returns the cases of a shard, in the order of the manifest. The cases are handed out from
+     * the most to the least expensive, each to the shard with the lowest cost so far, the lowest
+     * index first on a tie, so the same manifest and costs give the same shards on every device.
+     *
+     * @param shardIndex Shard to return, from 0 to shardCount - 1
+     * @param shardCount Number of shards the run is split into
+     * @param costs      Costs of earlier runs, may be empty
+     */
+    public List<Case> getShard(int shardIndex, int shardCount, Map<String, Long> costs) {
+        if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount) {
+            throw new IllegalArgumentException(
+                    "Invalid shard " + shardIndex + " of " + shardCount);
+        }
+        ArrayList<Long> known = new ArrayList<>(costs.values());
+        Collections.sort(known);
+        long defaultCost = known.isEmpty() ? 1 : Math.max(1, known.get(known.size() / 2));
+        int numCases = mCases.size();
+        long[] caseCosts = new long[numCases];
+        Integer[] order = new Integer[numCases];
+        for (int i = 0; i < numCases; i++) {
+            caseCosts[i] = getExpectedCost(mCases.get(i), costs, defaultCost);
+            order[i] = i;
+        }
+        // Stable, so equal costs keep the order of the manifest
+        Arrays.sort(order, (a, b) -> Long.compare(caseCosts[b], caseCosts[a]));
+        long[] shardCosts = new long[shardCount];
+        int[] shardOf = new int[numCases];
+        for (int i : order) {
+            int shard = 0;
+            for (int s = 1; s < shardCount; s++) {
+                if (shardCosts[s] < shardCosts[shard]) {
+                    shard = s;
+                }
+            }
+            shardOf[i] = shard;
+            shardCosts[shard] += caseCosts[i];
+        }
+        ArrayList<Case> cases = new ArrayList<>();
+        for (int i = 0; i < numCases; i++) {
+            if (shardOf[i] == shardIndex) {
+                cases.add(mCases.get(i));
+            }
+        }
+        return cases;
+    }
+
+    /**
+     * Reads a cost file, returning the expected time in ms of a case in a mode, keyed by test,
+     * clip and mode. Lines that cannot be parsed are skipped.
+     */
+    public static Map<String, Long> loadCosts(Reader reader) throws IOException {
+        HashMap<String, long[]> methodCosts = new HashMap<>();
+        BufferedReader in = new BufferedReader(reader);
+        String line;
+        while ((line = in.readLine()) != null) {
+            String[] fields = line.split(",", -1);
+            if (fields.length != 5) {
+                continue;
+            }
+            long timeMs;
+            try {
+                timeMs = Long.parseLong(fields[4].trim());
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            String key = getCostKey(fields[0].trim(), fields[1].trim(), fields[2].trim());
+            long[] sum = methodCosts.computeIfAbsent(key + "," + fields[3].trim(),
+                    k -> new long[2]);
+            sum[0] += timeMs;
+            sum[1]++;
+        }
+        HashMap<String, Long> costs = new HashMap<>();
+        for (Map.Entry<String, long[]> entry : methodCosts.entrySet()) {
+            String methodKey = entry.getKey();
+            String key = methodKey.substring(0, methodKey.lastIndexOf(','));
+            long mean = entry.getValue()[0] / entry.getValue()[1];
+            costs.merge(key, mean, Long::sum);
+        }
+        return costs;
+    }
+
+    /**
+     * Reads a cost file, an empty map if it does not exist
+     */
+    public static Map<String, Long> loadCosts(File costFile) throws IOException {
+        if (!costFile.exists()) {
+            return Collections.emptyMap();
+        }
+        try (FileReader reader = new FileReader(costFile)) {
+            return loadCosts(reader);
+        }
+    }
+
+    /**
+     * Appends the wall time of a test method of a case to a cost file
+     *
+     * @param mode Mode of the run, empty if the test has no modes
+     */
+    public static void appendCost(File costFile, Case testCase, String mode, String method,
+            long timeMs) throws IOException {
+        String line = getCostKey(testCase.getTest(), testCase.getClip(), mode) + "," + method
+                + "," + timeMs + "\n";
+        try (FileOutputStream out = new FileOutputStream(costFile, true)) {
+            out.write(line.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
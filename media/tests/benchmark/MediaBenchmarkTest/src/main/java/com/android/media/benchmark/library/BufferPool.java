@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of direct byte buffers shared by the extractors.
+ * <p>
+ * Buffers are allocated in power of two size classes and handed out as leases on a slice of the
+ * requested size. A released buffer is kept for the next request of the same size class, so
+ * extractors created one after another, or running in parallel on tracks of similar size, reuse
+ * the same memory instead of each allocating its own.
+ */
+public class BufferPool {
+    private static final int kMinBufferSize = 4096;
+    private static final int kNumSizeClasses = 31;
+    private static final BufferPool sSharedPool = new BufferPool();
+
+    private final ArrayDeque<ByteBuffer>[] mFreeBuffers;
+    private long mNumRequests;
+    private long mNumHits;
+    private long mPooledBytes;
+    private long mPeakPooledBytes;
+    private long mLeasedBytes;
+    private long mPeakLeasedBytes;
+
+    /**
+     * A buffer of the pool, in use until {@link #release()} is called
+     */
+    public static class Lease {
+        private final BufferPool mPool;
+        private final ByteBuffer mBuffer;
+        private final ByteBuffer mSlice;
+        private boolean mReleased;
+
+        private Lease(BufferPool pool, ByteBuffer buffer, int size) {
+            mPool = pool;
+            mBuffer = buffer;
+            buffer.clear();
+            buffer.limit(size);
+            mSlice = buffer.slice();
+        }
+
+        /**
+         * Returns the leased slice. Its capacity is the size requested from the pool.
+         */
+        public ByteBuffer getBuffer() { return mSlice; }
+
+        /**
+         * Returns the slice to the pool. It must not be used afterwards.
+         */
+        public void release() {
+            if (mReleased) {
+                throw new IllegalStateException("Lease released twice");
+            }
+            mReleased = true;
+            mPool.recycle(mBuffer, mSlice.capacity());
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool() {
+        mFreeBuffers = new ArrayDeque[kNumSizeClasses];
+        for (int i = 0; i < kNumSizeClasses; i++) {
+            mFreeBuffers[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Returns the pool shared by all extractors of the process
+     */
+    public static BufferPool getShared() { return sSharedPool; }
+
+    private static int getSizeClass(int size) {
+        int sizeClass = 32 - Integer.numberOfLeadingZeros(Math.max(size, kMinBufferSize) - 1);
+        if (sizeClass >= kNumSizeClasses) {
+            throw new IllegalArgumentException("Buffer size " + size + " is too large");
+        }
+        return sizeClass;
+    }
+
+    /**
+     * Leases a buffer of at least the given size
+     *
+     * @param size Capacity of the returned slice
+     * @return Lease on a direct buffer, positioned at 0 with its limit at size
+     */
+    public synchronized Lease acquire(int size) {
+        int sizeClass = getSizeClass(size);
+        mNumRequests++;
+        ByteBuffer buffer = mFreeBuffers[sizeClass].pollLast();
+        if (buffer != null) {
+            mNumHits++;
+        } else {
+            buffer = ByteBuffer.allocateDirect(1 << sizeClass);
+            mPooledBytes += buffer.capacity();
+            mPeakPooledBytes = Math.max(mPeakPooledBytes, mPooledBytes);
+        }
+        mLeasedBytes += buffer.capacity();
+        mPeakLeasedBytes = Math.max(mPeakLeasedBytes, mLeasedBytes);
+        return new Lease(this, buffer, size);
+    }
+
+    private synchronized void recycle(ByteBuffer buffer, int size) {
+        mLeasedBytes -= buffer.capacity();
+        mFreeBuffers[getSizeClass(size)].addLast(buffer);
+    }
+
+    /**
+     * Drops all buffers not currently leased
+     */
+    public synchronized void trim() {
+        for (ArrayDeque<ByteBuffer> freeBuffers : mFreeBuffers) {
+            for (ByteBuffer buffer : freeBuffers) {
+                mPooledBytes -= buffer.capacity();
+            }
+            freeBuffers.clear();
+        }
+    }
+
+    public synchronized long getNumRequests() { return mNumRequests; }
+
+    public synchronized long getNumHits() { return mNumHits; }
+
+    /**
+     * Returns the share of requests served by a buffer already in the pool, in percent
+     */
+    public synchronized double getHitRate() {
+        return mNumRequests == 0 ? 0 : 100.0 * mNumHits / mNumRequests;
+    }
+
+    /**
+     * Returns the largest number of bytes allocated by the pool at any time
+     */
+    public synchronized long getPeakPooledBytes() { return mPeakPooledBytes; }
+
+    /**
+     * Returns the largest number of bytes leased at any time
+     */
+    public synchronized long getPeakLeasedBytes() { return mPeakLeasedBytes; }
+
+    /**
+     * Collects the usage of the pool since it was created
+     *
+     * @param inputReference Name of the input media
+     */
+    public synchronized Metrics getMetrics(String inputReference) {
+        Metrics metrics = new Metrics(inputReference, "bufferPool", "");
+        metrics.add("requests", mNumRequests);
+        metrics.add("hits", mNumHits);
+        metrics.add("hitRatePercent", getHitRate());
+        metrics.add("pooledBytes", mPooledBytes);
+        metrics.add("peakPooledBytes", mPeakPooledBytes);
+        metrics.add("peakLeasedBytes", mPeakLeasedBytes);
+        return metrics;
+    }
+}
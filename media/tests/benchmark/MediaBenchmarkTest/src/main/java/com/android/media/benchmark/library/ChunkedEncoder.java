@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Encodes a raw video file as independent segments on a bounded pool of encoder instances and
+ * stitches the encoded segments back together in order.
+ * <p>
+ * Segments are aligned to the key frame interval of the encode format, so every segment starts
+ * with the key frame a single encoder would have produced there anyway. Frames keep their
+ * timestamp in the whole stream, which makes the stitched stream continuous without rewriting
+ * timestamps. Codec config data is taken from the first segment only.
+ */
+public class ChunkedEncoder {
+    private static final String TAG = "ChunkedEncoder";
+
+    private final int mNumWorkers;
+    private final int mSegmentFrames;
+    private final ArrayList<ByteBuffer> mSamples;
+    private final ArrayList<MediaCodec.BufferInfo> mSampleInfos;
+    private final Distribution mSegmentTime;
+    private final Distribution mSegmentInitTime;
+    private MediaFormat mOutputFormat;
+    private int mNumSegments;
+    private int mNumFrames;
+    private int mNumKeyFrames;
+    private long mTotalBytes;
+    private long mWallTimeNs;
+
+    /**
+     * Output of the encoder of one segment
+     */
+    private static class Segment implements Callable<Integer> {
+        private final FileChannel mInput;
+        private final int mFirstFrame;
+        private final int mNumFrames;
+        private final int mFrameSize;
+        private final int mFrameRate;
+        private final String mCodecName;
+        private final MediaFormat mEncodeFormat;
+        private final ArrayList<ByteBuffer> mSamples = new ArrayList<>();
+        private final ArrayList<MediaCodec.BufferInfo> mSampleInfos = new ArrayList<>();
+        private MediaFormat mOutputFormat;
+        // Receive the next dequeued sample, replaced once it is kept
+        private MediaCodec.BufferInfo mDrainInfo = new MediaCodec.BufferInfo();
+        private Frame mDrainSample = Frame.createUnpooled(0);
+        private long mInitTimeNs;
+        private long mEncodeTimeNs;
+
+        Segment(FileChannel input, int firstFrame, int numFrames, int frameSize,
+                int frameRate, String codecName, MediaFormat encodeFormat) {
+            mInput = input;
+            mFirstFrame = firstFrame;
+            mNumFrames = numFrames;
+            mFrameSize = frameSize;
+            mFrameRate = frameRate;
+            mCodecName = codecName;
+            mEncodeFormat = encodeFormat;
+        }
+
+        @Override
+        public Integer call() throws IOException {
+            long sTime = System.nanoTime();
+            // Only the frames of the segment are mapped, the file may exceed a single mapping
+            long length = (long) mNumFrames * mFrameSize;
+            if (length > Integer.MAX_VALUE) {
+                Log.e(TAG, "Segment of " + length + " bytes is too large to be mapped");
+                return -1;
+            }
+            MappedByteBuffer input = mInput.map(FileChannel.MapMode.READ_ONLY,
+                    (long) mFirstFrame * mFrameSize, length);
+            Encoder encoder = new Encoder();
+            String mime = mEncodeFormat.getString(MediaFormat.KEY_MIME);
+            int status = encoder.setupStreamingEncoder(mCodecName, mEncodeFormat, mime);
+            if (status != 0) {
+                return status;
+            }
+            mInitTimeNs = System.nanoTime() - sTime;
+            try {
+                status = encode(encoder, input);
+            } finally {
+                // Also releases the codec of a segment failing with an exception, as the other
+                // segments may be waiting for a hardware codec instance
+                encoder.deInitEncoder();
+            }
+            mEncodeTimeNs = System.nanoTime() - sTime;
+            return status;
+        }
+
+        private int encode(Encoder encoder, MappedByteBuffer input) {
+            int status = 0;
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            for (int frame = 0; frame <= mNumFrames && status == 0; frame++) {
+                int frameIndex = mFirstFrame + frame;
+                long presentationTimeUs = frameIndex * 1000000L / mFrameRate;
+                if (frame < mNumFrames) {
+                    info.offset = frame * mFrameSize;
+                    info.size = mFrameSize;
+                    info.flags = 0;
+                } else {
+                    info.offset = 0;
+                    info.size = 0;
+                    info.flags = MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+                }
+                info.presentationTimeUs = presentationTimeUs;
+                while (true) {
+                    status = encoder.queueInputFrame(input, info);
+                    if (status != Encoder.TRY_AGAIN) {
+                        break;
+                    }
+                    status = drain(encoder, false);
+                    if (status != 0) {
+                        break;
+                    }
+                }
+                if (status == 0) {
+                    status = drain(encoder, frame == mNumFrames);
+                }
+            }
+            return status;
+        }
+
+        private int drain(Encoder encoder, boolean untilEndOfStream) {
+            while (!encoder.sawOutputEOS()) {
+                MediaCodec.BufferInfo info = mDrainInfo;
+                Frame sample = mDrainSample;
+                int status = encoder.dequeueOutputSample(info, sample);
+                if (status == Encoder.TRY_AGAIN) {
+                    if (untilEndOfStream) {
+                        continue;
+                    }
+                    return 0;
+                } else if (status < 0) {
+                    return -1;
+                }
+                if (mOutputFormat == null) {
+                    mOutputFormat = encoder.getOutputFormat();
+                }
+                if (info.size > 0) {
+                    ByteBuffer buffer = sample.getBuffer();
+                    buffer.flip();
+                    info.flags &= ~MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+                    mSamples.add(buffer);
+                    mSampleInfos.add(info);
+                    mDrainInfo = new MediaCodec.BufferInfo();
+                    mDrainSample = Frame.createUnpooled(0);
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * @param numWorkers    Maximum number of encoders running at the same time
+     * @param segmentFrames Number of frames per segment, 0 to encode the input as one segment.
+     *                      Rounded up to a multiple of the key frame interval.
+     */
+    public ChunkedEncoder(int numWorkers, int segmentFrames) {
+        mNumWorkers = numWorkers;
+        mSegmentFrames = segmentFrames;
+        mSamples = new ArrayList<>();
+        mSampleInfos = new ArrayList<>();
+        mSegmentTime = new Distribution();
+        mSegmentInitTime = new Distribution();
+    }
+
+    /**
+     * Rounds the number of frames up to a multiple of the key frame interval
+     *
+     * @param numFrames Number of frames
+     * @param gopFrames Number of frames between two key frames
+     * @return Aligned number of frames
+     */
+    public static int alignToGop(int numFrames, int gopFrames) {
+        if (gopFrames <= 0) {
+            return numFrames;
+        }
+        return (numFrames + gopFrames - 1) / gopFrames * gopFrames;
+    }
+
+    /**
+     * Encodes the raw input file
+     *
+     * @param inputStream  Raw frames of frameSize bytes each
+     * @param codecName    Will create the encoders with codecName
+     * @param encodeFormat Format of the output data, must hold frame rate and key frame interval
+     * @param frameSize    Size of the frame
+     * @return 0 if all segments were encoded, -1 for fail, -2 for encoder not created
+     */
+    public int encode(FileInputStream inputStream, String codecName, MediaFormat encodeFormat,
+            int frameSize) throws IOException, InterruptedException {
+        FileChannel channel = inputStream.getChannel();
+        int frameRate = encodeFormat.getInteger(MediaFormat.KEY_FRAME_RATE);
+        int gopFrames = encodeFormat.getInteger(MediaFormat.KEY_I_FRAME_INTERVAL) * frameRate;
+        mNumFrames = (int) (channel.size() / frameSize);
+        int segmentFrames = mSegmentFrames > 0 ? alignToGop(mSegmentFrames, gopFrames) : mNumFrames;
+        mSamples.clear();
+        mSampleInfos.clear();
+        mSegmentTime.reset();
+        mSegmentInitTime.reset();
+        mOutputFormat = null;
+
+        long sTime = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(mNumWorkers);
+        ArrayList<Segment> segments = new ArrayList<>();
+        ArrayList<Future<Integer>> results = new ArrayList<>();
+        for (int firstFrame = 0; firstFrame < mNumFrames; firstFrame += segmentFrames) {
+            Segment segment = new Segment(channel, firstFrame,
+                    Math.min(segmentFrames, mNumFrames - firstFrame), frameSize, frameRate,
+                    codecName, encodeFormat);
+            segments.add(segment);
+            results.add(pool.submit(segment));
+        }
+        mNumSegments = segments.size();
+        int status = 0;
+        try {
+            for (Future<Integer> result : results) {
+                int segmentStatus = result.get();
+                if (segmentStatus != 0 && status == 0) {
+                    status = segmentStatus;
+                }
+            }
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Segment encode failed: " + e.getCause());
+            status = -1;
+        } finally {
+            pool.shutdownNow();
+        }
+        mWallTimeNs = System.nanoTime() - sTime;
+        if (status != 0) {
+            return status;
+        }
+        return stitch(segments);
+    }
+
+    private int stitch(ArrayList<Segment> segments) {
+        mNumKeyFrames = 0;
+        mTotalBytes = 0;
+        long lastSegmentEndUs = -1;
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            mSegmentTime.add(segment.mEncodeTimeNs);
+            mSegmentInitTime.add(segment.mInitTimeNs);
+            if (i == 0) {
+                mOutputFormat = segment.mOutputFormat;
+            }
+            long segmentStartUs = Long.MAX_VALUE;
+            long segmentEndUs = -1;
+            for (int j = 0; j < segment.mSamples.size(); j++) {
+                MediaCodec.BufferInfo info = segment.mSampleInfos.get(j);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    if (i == 0) {
+                        mSamples.add(segment.mSamples.get(j));
+                        mSampleInfos.add(info);
+                    }
+                    continue;
+                }
+                segmentStartUs = Math.min(segmentStartUs, info.presentationTimeUs);
+                segmentEndUs = Math.max(segmentEndUs, info.presentationTimeUs);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                    mNumKeyFrames++;
+                }
+                mTotalBytes += info.size;
+                mSamples.add(segment.mSamples.get(j));
+                mSampleInfos.add(info);
+            }
+            if (segmentEndUs >= 0 && segmentStartUs <= lastSegmentEndUs) {
+                Log.e(TAG, "Segment " + i + " overlaps the previous segment");
+                return -1;
+            }
+            lastSegmentEndUs = Math.max(lastSegmentEndUs, segmentEndUs);
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the stitched samples in decode order, codec config data first
+     */
+    public ArrayList<ByteBuffer> getSamples() { return mSamples; }
+
+    public ArrayList<MediaCodec.BufferInfo> getSampleInfos() { return mSampleInfos; }
+
+    /**
+     * Returns the output format of the first segment, to be used for muxing the stitched samples
+     */
+    public MediaFormat getOutputFormat() { return mOutputFormat; }
+
+    public int getNumKeyFrames() { return mNumKeyFrames; }
+
+    public long getTotalBytes() { return mTotalBytes; }
+
+    public long getWallTime() { return mWallTimeNs; }
+
+    /**
+     * Collects the measurements of the last encode
+     *
+     * @param inputReference Name of the input media
+     * @param codecName      Name of the codec
+     * @param baseline       Encode of the same input as a single segment, may be null
+     * @return Metrics of the chunked encode, compared to the baseline if given
+     */
+    public Metrics getMetrics(String inputReference, String codecName, ChunkedEncoder baseline) {
+        Metrics metrics = new Metrics(inputReference, "chunkedEncode", codecName);
+        metrics.add("workers", mNumWorkers);
+        metrics.add("segments", mNumSegments);
+        metrics.add("frames", mNumFrames);
+        metrics.add("wallTimeNs", mWallTimeNs);
+        metrics.add("fps", mNumFrames * 1e9 / Math.max(1, mWallTimeNs));
+        metrics.add("segmentTimeNs", mSegmentTime);
+        metrics.add("segmentInitTimeNs", mSegmentInitTime);
+        metrics.add("keyFrames", mNumKeyFrames);
+        metrics.add("totalBytes", mTotalBytes);
+        if (baseline != null) {
+            metrics.add("speedup", (double) baseline.mWallTimeNs / Math.max(1, mWallTimeNs));
+            metrics.add("extraKeyFrames", mNumKeyFrames - baseline.mNumKeyFrames);
+            metrics.add("bitratePenaltyPercent",
+                    100.0 * (mTotalBytes - baseline.mTotalBytes) / Math.max(1,
+                            baseline.mTotalBytes));
+        }
+        return metrics;
+    }
+}
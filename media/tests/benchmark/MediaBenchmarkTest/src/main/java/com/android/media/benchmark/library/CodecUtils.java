@@ -36,4 +36,23 @@ public class CodecUtils {
         }
         return supportedCodecs;
     }
+
+    /**
+     * Returns true if the codec runs on dedicated hardware rather than on the CPU. Before Q the
+     * platform does not tell, the codecs of the platform are then taken as software and the other
+     * ones as hardware.
+     *
+     * @param codecName Name of the codec
+     */
+    public static boolean isHardwareAccelerated(String codecName) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            MediaCodecList codecList = new MediaCodecList(MediaCodecList.ALL_CODECS);
+            for (MediaCodecInfo codecInfo : codecList.getCodecInfos()) {
+                if (codecInfo.getName().equals(codecName)) {
+                    return codecInfo.isHardwareAccelerated();
+                }
+            }
+        }
+        return !codecName.startsWith("OMX.google.") && !codecName.startsWith("c2.android.");
+    }
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Container parser written in Java, used as a baseline for the cost of MediaExtractor.
+ * <p>
+ * The methods follow MediaExtractor, so the same read loop drives both: select tracks, then
+ * read, query and advance sample by sample. Samples of several selected tracks are returned in
+ * timestamp order. Implementations do not allocate per sample.
+ */
+public interface ContainerParser {
+    /**
+     * Sample flag of a sync sample, same value as MediaExtractor.SAMPLE_FLAG_SYNC
+     */
+    int SAMPLE_FLAG_SYNC = 1;
+
+    int getTrackCount();
+
+    /**
+     * Returns the mime type of the track, as MediaFormat.KEY_MIME would be set by MediaExtractor,
+     * or null if the codec is not known to the parser
+     */
+    String getTrackMime(int trackIndex);
+
+    /**
+     * Returns the duration of the track in microseconds, -1 if unknown
+     */
+    long getTrackDurationUs(int trackIndex);
+
+    void selectTrack(int trackIndex);
+
+    void unselectTrack(int trackIndex);
+
+    /**
+     * Copies the current sample into buffer at offset
+     *
+     * @return Size of the sample, -1 if no more samples are available. On success the position
+     * of buffer is offset and its limit is offset + size.
+     */
+    int readSampleData(ByteBuffer buffer, int offset);
+
+    /**
+     * Returns the size of the current sample, -1 if no more samples are available
+     */
+    long getSampleSize();
+
+    /**
+     * Returns the presentation time of the current sample in microseconds, -1 if no more samples
+     * are available
+     */
+    long getSampleTime();
+
+    int getSampleFlags();
+
+    /**
+     * Returns the track of the current sample, -1 if no more samples are available
+     */
+    int getSampleTrackIndex();
+
+    /**
+     * Moves to the next sample
+     *
+     * @return false if no more samples are available
+     */
+    boolean advance();
+
+    /**
+     * Moves every selected track to its last sync sample at or before timeUs
+     */
+    void seekTo(long timeUs);
+
+    void release();
+}
@@ -32,10 +32,18 @@ public class Decoder {
     private static final String TAG = "Decoder";
     private static final boolean DEBUG = false;
     private static final int kQueueDequeueTimeoutUs = 1000;
+    // Buffer requests of decodeSyncFrame for each input and for the output, each blocking for up
+    // to kQueueDequeueTimeoutUs
+    private static final int kMaxSyncFrameAttempts = 1000;
+    /** Returned by the streaming calls when the codec has no buffer available yet */
+    public static final int TRY_AGAIN = 1;
 
     private final Object mLock = new Object();
-    private MediaCodec mCodec;
+    private final BenchmarkCodec.Factory mCodecFactory;
+    private BenchmarkCodec mCodec;
     private ArrayList<BufferInfo> mInputBufferInfo;
+    // Receives the buffers dequeued by dequeueOutputFrame
+    private final BufferInfo mDequeueInfo = new BufferInfo();
     private Stats mStats;
 
     private boolean mSawInputEOS;
@@ -44,11 +52,29 @@ public class Decoder {
 
     private int mNumOutputFrame;
     private int mIndex;
+    private boolean mRecordSampleTimes;
+    private long[] mQueueTimesNs;
+    // Presentation times of the output frames, the empty end of stream buffer excluded
+    private ArrayList<Long> mOutputPtsUs;
+
+    // Output format changes, with the number of frames output before each of them
+    private final ArrayList<Long> mFormatChangeTimesNs = new ArrayList<>();
+    private final ArrayList<Integer> mFormatChangeFrames = new ArrayList<>();
+    private final ArrayList<MediaFormat> mOutputFormats = new ArrayList<>();
 
     private ArrayList<ByteBuffer> mInputBuffer;
     private FileOutputStream mOutputStream;
 
-    public Decoder() { mStats = new Stats(); }
+    public Decoder() { this(PlatformCodec.FACTORY); }
+
+    /**
+     * @param codecFactory Creates the codecs, such as a {@link SimulatedCodec.Factory} to run
+     *                     on a host JVM
+     */
+    public Decoder(BenchmarkCodec.Factory codecFactory) {
+        mCodecFactory = codecFactory;
+        mStats = new Stats();
+    }
 
     /**
      * Setup of decoder
@@ -60,14 +86,21 @@ public class Decoder {
         mOutputStream = outputStream;
     }
 
-    private MediaCodec createCodec(String codecName, MediaFormat format) throws IOException {
+    /**
+     * Records the time each sample of the next decodes is queued to the codec and the
+     * presentation time of each output frame, for {@link #getQueueTimeNs} and
+     * {@link #getOutputPresentationTimeUs}
+     */
+    public void setRecordSampleTimes(boolean record) { mRecordSampleTimes = record; }
+
+    private BenchmarkCodec createCodec(String codecName, MediaFormat format) throws IOException {
         String mime = format.getString(MediaFormat.KEY_MIME);
         try {
-            MediaCodec codec;
+            BenchmarkCodec codec;
             if (codecName.isEmpty()) {
                 Log.i(TAG, "File mime type: " + mime);
                 if (mime != null) {
-                    codec = MediaCodec.createDecoderByType(mime);
+                    codec = mCodecFactory.createDecoderByType(mime);
                     Log.i(TAG, "Decoder created for mime type " + mime);
                     return codec;
                 } else {
@@ -75,7 +108,7 @@ public class Decoder {
                     return null;
                 }
             } else {
-                codec = MediaCodec.createByCodecName(codecName);
+                codec = mCodecFactory.createByCodecName(codecName);
                 Log.i(TAG, "Decoder created with codec name: " + codecName + " mime: " + mime);
                 return codec;
             }
@@ -109,16 +142,20 @@ public class Decoder {
         mSawOutputEOS = false;
         mNumOutputFrame = 0;
         mIndex = 0;
+        mQueueTimesNs = mRecordSampleTimes ? new long[inputBuffer.size()] : null;
+        mOutputPtsUs = mRecordSampleTimes ? new ArrayList<>(inputBuffer.size()) : null;
+        clearFormatChanges();
         long sTime = mStats.getCurTime();
         mCodec = createCodec(codecName, format);
         if (mCodec == null) {
             return -2;
         }
+        long createdTime = mStats.getCurTime();
         if (asyncMode) {
-            mCodec.setCallback(new MediaCodec.Callback() {
+            mCodec.setCallback(new BenchmarkCodec.Callback() {
                 @Override
                 public void onInputBufferAvailable(
-                        @NonNull MediaCodec mediaCodec, int inputBufferId) {
+                        @NonNull BenchmarkCodec mediaCodec, int inputBufferId) {
                     try {
                         mStats.addInputTime();
                         onInputAvailable(inputBufferId, mediaCodec);
@@ -129,8 +166,8 @@ public class Decoder {
                 }
 
                 @Override
-                public void onOutputBufferAvailable(@NonNull MediaCodec mediaCodec,
-                        int outputBufferId, @NonNull MediaCodec.BufferInfo bufferInfo) {
+                public void onOutputBufferAvailable(@NonNull BenchmarkCodec mediaCodec,
+                        int outputBufferId, @NonNull BufferInfo bufferInfo) {
                     mStats.addOutputTime();
                     onOutputAvailable(mediaCodec, outputBufferId, bufferInfo);
                     if (mSawOutputEOS) {
@@ -140,17 +177,19 @@ public class Decoder {
 
                 @Override
                 public void onOutputFormatChanged(
-                        @NonNull MediaCodec mediaCodec, @NonNull MediaFormat format) {
-                    Log.i(TAG, "Output format changed. Format: " + format.toString());
+                        @NonNull BenchmarkCodec mediaCodec, @NonNull MediaFormat format) {
+                    onFormatChanged(format);
                 }
 
                 @Override
                 public void onError(
-                        @NonNull MediaCodec mediaCodec, @NonNull MediaCodec.CodecException e) {
-                    mSignalledError = true;
+                        @NonNull BenchmarkCodec mediaCodec, @NonNull IllegalStateException e) {
                     Log.e(TAG, "Codec Error: " + e.toString());
                     e.printStackTrace();
-                    synchronized (mLock) { mLock.notify(); }
+                    synchronized (mLock) {
+                        mSignalledError = true;
+                        mLock.notify();
+                    }
                 }
             });
         }
@@ -158,15 +197,24 @@ public class Decoder {
         if (DEBUG) {
             Log.d(TAG, "Media Format : " + format.toString());
         }
-        mCodec.configure(format, null, null, isEncoder);
+        mCodec.configure(format, isEncoder);
+        long configuredTime = mStats.getCurTime();
         mCodec.start();
         Log.i(TAG, "Codec started ");
         long eTime = mStats.getCurTime();
         mStats.setInitTime(mStats.getTimeDiff(sTime, eTime));
+        mStats.setCodecSetupTimes(mStats.getTimeDiff(sTime, createdTime),
+                mStats.getTimeDiff(createdTime, configuredTime),
+                mStats.getTimeDiff(configuredTime, eTime));
         mStats.setStartTime();
         if (asyncMode) {
             try {
-                synchronized (mLock) { mLock.wait(); }
+                // The codec may be done before the wait on a fast device or a simulated codec
+                synchronized (mLock) {
+                    while (!mSawOutputEOS && !mSignalledError) {
+                        mLock.wait();
+                    }
+                }
                 if (mSignalledError) {
                     return -1;
                 }
@@ -174,42 +222,47 @@ public class Decoder {
                 e.printStackTrace();
             }
         } else {
-            while (!mSawOutputEOS && !mSignalledError) {
-                /* Queue input data */
-                if (!mSawInputEOS) {
-                    int inputBufferId = mCodec.dequeueInputBuffer(kQueueDequeueTimeoutUs);
-                    if (inputBufferId < 0 && inputBufferId != MediaCodec.INFO_TRY_AGAIN_LATER) {
-                        Log.e(TAG,
-                                "MediaCodec.dequeueInputBuffer "
-                                        + " returned invalid index : " + inputBufferId);
-                        return -1;
-                    }
-                    mStats.addInputTime();
-                    onInputAvailable(inputBufferId, mCodec);
-                }
-                /* Dequeue output data */
-                BufferInfo outputBufferInfo = new BufferInfo();
-                int outputBufferId =
-                        mCodec.dequeueOutputBuffer(outputBufferInfo, kQueueDequeueTimeoutUs);
-                if (outputBufferId < 0) {
-                    if (outputBufferId == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                        MediaFormat outFormat = mCodec.getOutputFormat();
-                        Log.i(TAG, "Output format changed. Format: " + outFormat.toString());
-                    } else if (outputBufferId == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                        Log.i(TAG, "Ignoring deprecated flag: INFO_OUTPUT_BUFFERS_CHANGED");
-                    } else if (outputBufferId != MediaCodec.INFO_TRY_AGAIN_LATER) {
-                        Log.e(TAG,
-                                "MediaCodec.dequeueOutputBuffer"
-                                        + " returned invalid index " + outputBufferId);
-                        return -1;
+            try {
+                while (!mSawOutputEOS && !mSignalledError) {
+                    /* Queue input data */
+                    if (!mSawInputEOS) {
+                        int inputBufferId = mCodec.dequeueInputBuffer(kQueueDequeueTimeoutUs);
+                        if (inputBufferId < 0 && inputBufferId != MediaCodec.INFO_TRY_AGAIN_LATER) {
+                            Log.e(TAG,
+                                    "MediaCodec.dequeueInputBuffer "
+                                            + " returned invalid index : " + inputBufferId);
+                            return -1;
+                        }
+                        mStats.addInputTime();
+                        onInputAvailable(inputBufferId, mCodec);
                     }
-                } else {
-                    mStats.addOutputTime();
-                    if (DEBUG) {
-                        Log.d(TAG, "Dequeue O/P buffer with BufferID " + outputBufferId);
+                    /* Dequeue output data */
+                    BufferInfo outputBufferInfo = new BufferInfo();
+                    int outputBufferId =
+                            mCodec.dequeueOutputBuffer(outputBufferInfo, kQueueDequeueTimeoutUs);
+                    if (outputBufferId < 0) {
+                        if (outputBufferId == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                            onFormatChanged(mCodec.getOutputFormat());
+                        } else if (outputBufferId == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                            Log.i(TAG, "Ignoring deprecated flag: INFO_OUTPUT_BUFFERS_CHANGED");
+                        } else if (outputBufferId != MediaCodec.INFO_TRY_AGAIN_LATER) {
+                            Log.e(TAG,
+                                    "MediaCodec.dequeueOutputBuffer"
+                                            + " returned invalid index " + outputBufferId);
+                            return -1;
+                        }
+                    } else {
+                        mStats.addOutputTime();
+                        if (DEBUG) {
+                            Log.d(TAG, "Dequeue O/P buffer with BufferID " + outputBufferId);
+                        }
+                        onOutputAvailable(mCodec, outputBufferId, outputBufferInfo);
                     }
-                    onOutputAvailable(mCodec, outputBufferId, outputBufferInfo);
                 }
+            } catch (IllegalStateException e) {
+                // Thrown by the calls of a codec in the error state
+                Log.e(TAG, "Codec Error: " + e.toString());
+                return -1;
             }
         }
         mInputBuffer.clear();
@@ -217,6 +270,180 @@ public class Decoder {
         return 0;
     }
 
+    /**
+     * Creates, configures and starts the decoder for frame by frame decoding in sync mode.
+     * Samples are then fed with {@link #queueInputSample} and frames drained with
+     * {@link #dequeueOutputFrame}, which lets the decoder run as a stage of a pipeline.
+     *
+     * @param format    For creating the decoder if codec name is empty and configuring it
+     * @param codecName Will create the decoder with codecName
+     * @return 0 if the decoder was started, -2 for decoder not created
+     * @throws IOException if the codec cannot be created.
+     */
+    public int setupStreamingDecoder(@NonNull MediaFormat format, String codecName)
+            throws IOException {
+        mSawInputEOS = false;
+        mSawOutputEOS = false;
+        mNumOutputFrame = 0;
+        mQueueTimesNs = null;
+        mOutputPtsUs = null;
+        clearFormatChanges();
+        long sTime = mStats.getCurTime();
+        mCodec = createCodec(codecName, format);
+        if (mCodec == null) {
+            return -2;
+        }
+        mCodec.configure(format, 0);
+        mCodec.start();
+        long eTime = mStats.getCurTime();
+        mStats.setInitTime(mStats.getTimeDiff(sTime, eTime));
+        mStats.setStartTime();
+        return 0;
+    }
+
+    /**
+     * Queues one compressed sample to a decoder started by {@link #setupStreamingDecoder}
+     *
+     * @param sample Buffer holding the sample at [info.offset, info.offset + info.size)
+     * @param info   Size, timestamp and flags of the sample
+     * @return 0 if the sample was queued, {@link #TRY_AGAIN} if no input buffer became available,
+     * -1 for fail
+     */
+    public int queueInputSample(@NonNull ByteBuffer sample, @NonNull BufferInfo info) {
+        int inputBufferId = mCodec.dequeueInputBuffer(kQueueDequeueTimeoutUs);
+        if (inputBufferId == MediaCodec.INFO_TRY_AGAIN_LATER) {
+            return TRY_AGAIN;
+        } else if (inputBufferId < 0) {
+            Log.e(TAG, "MediaCodec.dequeueInputBuffer returned invalid index : " + inputBufferId);
+            return -1;
+        }
+        mStats.addInputTime();
+        ByteBuffer inputCodecBuffer = mCodec.getInputBuffer(inputBufferId);
+        if (inputCodecBuffer == null || inputCodecBuffer.remaining() < info.size) {
+            Log.e(TAG, "Sample of " + info.size + " bytes does not fit in input buffer of "
+                    + (inputCodecBuffer == null ? 0 : inputCodecBuffer.remaining()) + " bytes");
+            // Hand the buffer back to the codec empty
+            mCodec.queueInputBuffer(inputBufferId, 0, 0, info.presentationTimeUs, 0);
+            return -1;
+        }
+        if (info.size > 0) {
+            ByteBuffer data = sample.duplicate();
+            data.limit(info.offset + info.size);
+            data.position(info.offset);
+            inputCodecBuffer.put(data);
+        }
+        mSawInputEOS = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+        mStats.addFrameSize(info.size);
+        mCodec.queueInputBuffer(inputBufferId, 0, info.size, info.presentationTimeUs, info.flags);
+        if (DEBUG) {
+            Log.d(TAG, "Codec Input: flag = " + info.flags + " timestamp = "
+                    + info.presentationTimeUs + " size = " + info.size);
+        }
+        return 0;
+    }
+
+    /**
+     * Dequeues one decoded frame from a decoder started by {@link #setupStreamingDecoder}
+     *
+     * @param outputInfo  Receives size, timestamp and flags of the frame. Offset is always 0.
+     * @param outputFrame Receives the frame data if not null
+     * @return 0 if a frame was dequeued, {@link #TRY_AGAIN} if no frame is available yet,
+     * -1 for fail
+     */
+    public int dequeueOutputFrame(@NonNull BufferInfo outputInfo, Frame outputFrame) {
+        while (true) {
+            BufferInfo info = mDequeueInfo;
+            int outputBufferId = mCodec.dequeueOutputBuffer(info, kQueueDequeueTimeoutUs);
+            if (outputBufferId == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                onFormatChanged(mCodec.getOutputFormat());
+                continue;
+            } else if (outputBufferId == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                return TRY_AGAIN;
+            } else if (outputBufferId < 0) {
+                Log.e(TAG, "MediaCodec.dequeueOutputBuffer returned invalid index "
+                        + outputBufferId);
+                return -1;
+            }
+            mStats.addOutputTime();
+            mNumOutputFrame++;
+            if (outputFrame != null && info.size > 0) {
+                ByteBuffer outputBuffer = mCodec.getOutputBuffer(outputBufferId);
+                outputBuffer.limit(info.offset + info.size);
+                outputBuffer.position(info.offset);
+                ByteBuffer frameBuffer = outputFrame.ensureCapacity(info.size);
+                frameBuffer.clear();
+                frameBuffer.put(outputBuffer);
+            }
+            mCodec.releaseOutputBuffer(outputBufferId, false);
+            outputInfo.offset = 0;
+            outputInfo.size = info.size;
+            outputInfo.presentationTimeUs = info.presentationTimeUs;
+            outputInfo.flags = info.flags;
+            mSawOutputEOS = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+            if (mSawOutputEOS) {
+                Log.i(TAG, "Saw output EOS");
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Returns true once the end of stream was dequeued in streaming mode
+     */
+    public boolean sawOutputEOS() { return mSawOutputEOS; }
+
+    /**
+     * Discards the samples and frames pending in a decoder started by
+     * {@link #setupStreamingDecoder}, so that it can decode from a new position
+     */
+    public void flushStreamingDecoder() {
+        mCodec.flush();
+        mSawInputEOS = false;
+        mSawOutputEOS = false;
+    }
+
+    /**
+     * Decodes one sync sample in a decoder started by {@link #setupStreamingDecoder} and returns
+     * as soon as its frame is output. The decoder is flushed first and the sample is followed by
+     * an end of stream, so that the decoder can be reused for unrelated sync samples.
+     *
+     * @param sample      Buffer holding the sample at [info.offset, info.offset + info.size)
+     * @param info        Size, timestamp and flags of the sample
+     * @param outputInfo  Receives size, timestamp and flags of the frame
+     * @param outputFrame Receives the frame data if not null
+     * @return 0 if the frame was output, -1 for fail
+     */
+    public int decodeSyncFrame(@NonNull ByteBuffer sample, @NonNull BufferInfo info,
+            @NonNull BufferInfo outputInfo, Frame outputFrame) {
+        flushStreamingDecoder();
+        BufferInfo eosInfo = new BufferInfo();
+        eosInfo.presentationTimeUs = info.presentationTimeUs;
+        eosInfo.flags = MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+        for (BufferInfo inputInfo : new BufferInfo[]{info, eosInfo}) {
+            // All input buffers are free after the flush, unless the codec is still starting.
+            // Every attempt waits in the codec for a buffer, so this does not spin.
+            int status = TRY_AGAIN;
+            for (int attempt = 0; attempt < kMaxSyncFrameAttempts && status == TRY_AGAIN;
+                    attempt++) {
+                status = queueInputSample(sample, inputInfo);
+            }
+            if (status != 0) {
+                Log.e(TAG, "Failed to queue the sync sample at " + info.presentationTimeUs);
+                return -1;
+            }
+        }
+        for (int attempt = 0; attempt < kMaxSyncFrameAttempts && !mSawOutputEOS; attempt++) {
+            int status = dequeueOutputFrame(outputInfo, outputFrame);
+            if (status < 0) {
+                return -1;
+            } else if (status == 0 && outputInfo.size > 0) {
+                return 0;
+            }
+        }
+        Log.e(TAG, "No frame output for the sync sample at " + info.presentationTimeUs);
+        return -1;
+    }
+
     /**
      * Stops the codec and releases codec resources.
      */
@@ -231,6 +458,12 @@ public class Decoder {
         mStats.setDeInitTime(mStats.getTimeDiff(sTime, eTime));
     }
 
+    /**
+     * Returns the stats of the last operation, summarised with {@link Stats#getMetrics} in the
+     * same way as the results of the native benchmarks
+     */
+    public Stats getStats() { return mStats; }
+
     /**
      * Prints out the statistics in the information log
      *
@@ -259,7 +492,74 @@ public class Decoder {
         return mCodec.getOutputFormat();
     }
 
-    private void onInputAvailable(int inputBufferId, MediaCodec mediaCodec) {
+    /**
+     * Returns the time the given sample of the last {@link #decode} was queued to the codec,
+     * 0 if it was not queued or the queue times were not recorded
+     */
+    public long getQueueTimeNs(int sample) {
+        return mQueueTimesNs == null || sample >= mQueueTimesNs.length ? 0 : mQueueTimesNs[sample];
+    }
+
+    /**
+     * Returns the number of output frames of the last {@link #decode} whose presentation time
+     * was recorded, 0 if they were not recorded
+     */
+    public int getNumOutputFrames() { return mOutputPtsUs == null ? 0 : mOutputPtsUs.size(); }
+
+    /**
+     * Returns the presentation time of the given output frame of the last {@link #decode}
+     */
+    public long getOutputPresentationTimeUs(int frame) { return mOutputPtsUs.get(frame); }
+
+    /**
+     * Returns the number of output format changes of the last decode, the first one reporting
+     * the format of the first frame
+     */
+    public int getNumFormatChanges() {
+        synchronized (mLock) { return mFormatChangeTimesNs.size(); }
+    }
+
+    /**
+     * Returns the time the given output format change was reported
+     */
+    public long getFormatChangeTimeNs(int change) {
+        synchronized (mLock) { return mFormatChangeTimesNs.get(change); }
+    }
+
+    /**
+     * Returns the number of frames output before the given output format change, which is the
+     * index of the first frame in the new format
+     */
+    public int getFormatChangeFrame(int change) {
+        synchronized (mLock) { return mFormatChangeFrames.get(change); }
+    }
+
+    /**
+     * Returns the output format reported by the given output format change
+     */
+    public MediaFormat getOutputFormat(int change) {
+        synchronized (mLock) { return mOutputFormats.get(change); }
+    }
+
+    private void clearFormatChanges() {
+        synchronized (mLock) {
+            mFormatChangeTimesNs.clear();
+            mFormatChangeFrames.clear();
+            mOutputFormats.clear();
+        }
+    }
+
+    private void onFormatChanged(MediaFormat format) {
+        long timeNs = System.nanoTime();
+        Log.i(TAG, "Output format changed. Format: " + format.toString());
+        synchronized (mLock) {
+            mFormatChangeTimesNs.add(timeNs);
+            mFormatChangeFrames.add(mNumOutputFrame);
+            mOutputFormats.add(format);
+        }
+    }
+
+    private void onInputAvailable(int inputBufferId, BenchmarkCodec mediaCodec) {
         if ((inputBufferId >= 0) && !mSawInputEOS) {
             ByteBuffer inputCodecBuffer = mediaCodec.getInputBuffer(inputBufferId);
             BufferInfo bufInfo = mInputBufferInfo.get(mIndex);
@@ -270,6 +570,9 @@ public class Decoder {
                 Log.i(TAG, "Saw input EOS");
             }
             mStats.addFrameSize(bufInfo.size);
+            if (mQueueTimesNs != null) {
+                mQueueTimesNs[mIndex - 1] = System.nanoTime();
+            }
             mediaCodec.queueInputBuffer(inputBufferId, bufInfo.offset, bufInfo.size,
                     bufInfo.presentationTimeUs, bufInfo.flags);
             if (DEBUG) {
@@ -282,7 +585,7 @@ public class Decoder {
     }
 
     private void onOutputAvailable(
-            MediaCodec mediaCodec, int outputBufferId, BufferInfo outputBufferInfo) {
+            BenchmarkCodec mediaCodec, int outputBufferId, BufferInfo outputBufferInfo) {
         if (mSawOutputEOS || outputBufferId < 0) {
             return;
         }
@@ -305,6 +608,9 @@ public class Decoder {
         }
         mediaCodec.releaseOutputBuffer(outputBufferId, false);
         mSawOutputEOS = (outputBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+        if (mOutputPtsUs != null && (outputBufferInfo.size > 0 || !mSawOutputEOS)) {
+            mOutputPtsUs.add(outputBufferInfo.presentationTimeUs);
+        }
         if (mSawOutputEOS) {
             Log.i(TAG, "Saw output EOS");
         }
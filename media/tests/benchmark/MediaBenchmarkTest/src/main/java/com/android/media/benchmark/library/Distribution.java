@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import java.util.Arrays;
+
+/**
+ * Collects long valued samples (typically nanosecond latencies) and reports their distribution.
+ * <p>
+ * Samples are kept in a growable primitive array so that recording does not allocate per sample.
+ * Recording is not thread safe, callers sharing an instance across threads must synchronize.
+ */
+public class Distribution {
+    private static final int kInitialCapacity = 256;
+    private long[] mSamples;
+    private int mCount;
+    private boolean mSorted;
+
+    public Distribution() {
+        mSamples = new long[kInitialCapacity];
+        mCount = 0;
+        mSorted = true;
+    }
+
+    /**
+     * Records a sample
+     *
+     * @param value Value of the sample
+     */
+    public void add(long value) {
+        if (mCount == mSamples.length) {
+            mSamples = Arrays.copyOf(mSamples, mSamples.length * 2);
+        }
+        if (mCount > 0 && value < mSamples[mCount - 1]) {
+            mSorted = false;
+        }
+        mSamples[mCount++] = value;
+    }
+
+    /**
+     * Records all the samples of another distribution
+     */
+    public void addAll(Distribution other) {
+        for (int i = 0; i < other.mCount; i++) {
+            add(other.mSamples[i]);
+        }
+    }
+
+    public void reset() {
+        mCount = 0;
+        mSorted = true;
+    }
+
+    public int getCount() { return mCount; }
+
+    public long getSum() {
+        long sum = 0;
+        for (int i = 0; i < mCount; i++) {
+            sum += mSamples[i];
+        }
+        return sum;
+    }
+
+    public long getMean() { return mCount == 0 ? 0 : getSum() / mCount; }
+
+    public long getMin() { return getPercentile(0); }
+
+    public long getMax() { return getPercentile(100); }
+
+    /**
+     * Returns the nearest-rank percentile of the recorded samples
+     *
+     * @param percentile Percentile in the range [0, 100]
+     * @return Value of the percentile, 0 if no samples are recorded
+     */
+    public long getPercentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        if (!mSorted) {
+            Arrays.sort(mSamples, 0, mCount);
+            mSorted = true;
+        }
+        int rank = (int) Math.ceil(percentile / 100.0 * mCount) - 1;
+        rank = Math.max(0, Math.min(mCount - 1, rank));
+        return mSamples[rank];
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + mCount + " min=" + getMin() + " mean=" + getMean() + " p50="
+                + getPercentile(50) + " p90=" + getPercentile(90) + " p99=" + getPercentile(99)
+                + " max=" + getMax();
+    }
+}
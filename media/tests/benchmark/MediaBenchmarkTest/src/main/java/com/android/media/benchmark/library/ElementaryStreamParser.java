@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Parser for audio elementary stream files, ADTS (AAC) and MPEG audio (MP3), over a memory
+ * mapping.
+ * <p>
+ * The file is scanned frame by frame once, at construction, following the frame headers and
+ * resynchronizing on the header bits that stay fixed in a stream. Samples and timestamps are
+ * returned as MediaExtractor does: ADTS frames without their header and timestamps accumulated
+ * from a rounded up frame duration, MPEG audio frames with their header and timestamps derived
+ * from the number of decoded samples. ID3v2 tags and a Xing, Info or VBRI frame are skipped.
+ */
+public class ElementaryStreamParser implements ContainerParser {
+    private static final String kMimeAac = "audio/mp4a-latm";
+    private static final String kMimeMpegLayer1 = "audio/mpeg-L1";
+    private static final String kMimeMpegLayer2 = "audio/mpeg-L2";
+    private static final String kMimeMpegLayer3 = "audio/mpeg";
+    // Version, layer and sampling rate bits, which must not change within an MPEG audio stream
+    private static final int kMpegAudioFixedMask = 0xfffe0c00;
+    private static final int[] kAdtsSampleRates = {96000, 88200, 64000, 48000, 44100, 32000,
+            24000, 22050, 16000, 12000, 11025, 8000, 7350};
+    private static final int[] kMpegAudioSampleRates = {44100, 48000, 32000};
+    private static final int[][] kMpegAudioBitrates = {
+            // MPEG-1 layer I, II, III
+            {32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+            {32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+            {32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},
+            // MPEG-2 and 2.5 layer I, II and III
+            {32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+            {8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160}};
+
+    private final ByteBuffer mData;
+    private final ByteBuffer mView;
+    private String mMime;
+    private int mSampleRate;
+    private long mDurationUs;
+    private boolean mSelected;
+    private int mIndex;
+    private int mNumSamples;
+    private int mNumResyncs;
+    private int[] mOffsets = new int[1024];
+    private int[] mSizes = new int[1024];
+    private long[] mTimesUs = new long[1024];
+
+    /**
+     * @param channel File to be parsed, mapped for the lifetime of the parser
+     */
+    public ElementaryStreamParser(FileChannel channel) throws IOException {
+        this(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+
+    /**
+     * @param data Complete file from position 0 to limit
+     */
+    public ElementaryStreamParser(ByteBuffer data) throws IOException {
+        mData = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+        mView = mData.duplicate();
+        int position = skipId3Tags(0);
+        if (position + 4 > mData.limit()) {
+            throw new IOException("No frames");
+        }
+        int header = mData.getInt(position);
+        if ((header & 0xfff60000) == 0xfff00000) {
+            parseAdts(position);
+        } else {
+            parseMpegAudio(position);
+        }
+        if (mNumSamples == 0) {
+            throw new IOException("No frames");
+        }
+    }
+
+    private int skipId3Tags(int position) {
+        while (position + 10 <= mData.limit() && mData.get(position) == 'I'
+                && mData.get(position + 1) == 'D' && mData.get(position + 2) == '3') {
+            // Tag size is stored as four 7 bit bytes and excludes the 10 byte header and footer
+            int size = ((mData.get(position + 6) & 0x7f) << 21)
+                    | ((mData.get(position + 7) & 0x7f) << 14)
+                    | ((mData.get(position + 8) & 0x7f) << 7) | (mData.get(position + 9) & 0x7f);
+            boolean hasFooter = (mData.get(position + 5) & 0x10) != 0;
+            position += 10 + size + (hasFooter ? 10 : 0);
+        }
+        return position;
+    }
+
+    private void addSample(int offset, int size, long timeUs) {
+        if (mNumSamples == mOffsets.length) {
+            mOffsets = Arrays.copyOf(mOffsets, mNumSamples * 2);
+            mSizes = Arrays.copyOf(mSizes, mNumSamples * 2);
+            mTimesUs = Arrays.copyOf(mTimesUs, mNumSamples * 2);
+        }
+        mOffsets[mNumSamples] = offset;
+        mSizes[mNumSamples] = size;
+        mTimesUs[mNumSamples] = timeUs;
+        mNumSamples++;
+    }
+
+    /**
+     * Returns the length of the ADTS frame whose header starts at position, including the
+     * header, or 0 if there is no valid header with the sampling rate index of the stream there
+     */
+    private int getAdtsFrameLength(int position, int sampleRateIndex) {
+        if (position + 7 > mData.limit()) {
+            return 0;
+        }
+        int header = mData.getInt(position);
+        if ((header & 0xfff60000) != 0xfff00000 || ((header >> 10) & 0xf) != sampleRateIndex) {
+            return 0;
+        }
+        int length = ((header & 0x3) << 11) | ((mData.get(position + 4) & 0xff) << 3)
+                | ((mData.get(position + 5) & 0xff) >> 5);
+        int headerSize = (header & 0x10000) != 0 ? 7 : 9;
+        return length > headerSize ? length : 0;
+    }
+
+    private void parseAdts(int position) throws IOException {
+        int sampleRateIndex = (mData.getInt(position) >> 10) & 0xf;
+        if (sampleRateIndex >= kAdtsSampleRates.length) {
+            throw new IOException("Invalid ADTS sampling frequency index " + sampleRateIndex);
+        }
+        mMime = kMimeAac;
+        mSampleRate = kAdtsSampleRates[sampleRateIndex];
+        long frameDurationUs = (1024 * 1000000L + mSampleRate - 1) / mSampleRate;
+        long timeUs = 0;
+        int limit = mData.limit();
+        while (position < limit) {
+            int length = getAdtsFrameLength(position, sampleRateIndex);
+            if (length == 0 || position + length > limit) {
+                position++;
+                mNumResyncs++;
+                continue;
+            }
+            int headerSize = (mData.get(position + 1) & 0x1) != 0 ? 7 : 9;
+            addSample(position + headerSize, length - headerSize, timeUs);
+            timeUs += frameDurationUs;
+            position += length;
+        }
+        mDurationUs = timeUs;
+    }
+
+    /**
+     * Returns the length of the MPEG audio frame with the given header, or 0 if the header is
+     * not valid
+     */
+    private static int getMpegAudioFrameLength(int header) {
+        int version = (header >> 19) & 0x3;
+        int layer = 4 - ((header >> 17) & 0x3);
+        int bitrateIndex = (header >> 12) & 0xf;
+        int sampleRateIndex = (header >> 10) & 0x3;
+        if ((header & 0xffe00000) != 0xffe00000 || version == 1 || layer == 4
+                || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3) {
+            return 0;
+        }
+        boolean isMpeg1 = version == 3;
+        int bitrate = kMpegAudioBitrates[isMpeg1 ? layer - 1 : Math.min(layer, 2) + 2]
+                [bitrateIndex - 1] * 1000;
+        int sampleRate = getMpegAudioSampleRate(header);
+        int padding = (header >> 9) & 0x1;
+        if (layer == 1) {
+            return (12 * bitrate / sampleRate + padding) * 4;
+        }
+        return (layer == 3 && !isMpeg1 ? 72 : 144) * bitrate / sampleRate + padding;
+    }
+
+    private static int getMpegAudioSampleRate(int header) {
+        int version = (header >> 19) & 0x3;
+        return kMpegAudioSampleRates[(header >> 10) & 0x3] >> (version == 3 ? 0 : version == 2
+                ? 1 : 2);
+    }
+
+    private static int getMpegAudioSamplesPerFrame(int header) {
+        int layer = 4 - ((header >> 17) & 0x3);
+        if (layer == 1) {
+            return 384;
+        }
+        return layer == 3 && ((header >> 19) & 0x3) != 3 ? 576 : 1152;
+    }
+
+    /**
+     * Returns true if the frame at position carries a Xing, Info or VBRI header instead of audio
+     */
+    private boolean isVbrHeaderFrame(int position, int header) {
+        boolean isMpeg1 = ((header >> 19) & 0x3) == 3;
+        boolean isMono = ((header >> 6) & 0x3) == 3;
+        int xingOffset = position + 4 + (isMpeg1 ? (isMono ? 17 : 32) : (isMono ? 9 : 17));
+        int vbriOffset = position + 36;
+        return matchTag(xingOffset, "Xing") || matchTag(xingOffset, "Info")
+                || matchTag(vbriOffset, "VBRI");
+    }
+
+    private boolean matchTag(int position, String tag) {
+        if (position + tag.length() > mData.limit()) {
+            return false;
+        }
+        for (int i = 0; i < tag.length(); i++) {
+            if (mData.get(position + i) != tag.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void parseMpegAudio(int position) throws IOException {
+        int limit = mData.limit();
+        // The first header has to be followed by a frame with matching fixed bits
+        int fixedHeader = 0;
+        while (position + 4 <= limit) {
+            int header = mData.getInt(position);
+            int length = getMpegAudioFrameLength(header);
+            if (length > 0 && position + length + 4 <= limit
+                    && (mData.getInt(position + length) & kMpegAudioFixedMask)
+                    == (header & kMpegAudioFixedMask)) {
+                fixedHeader = header;
+                break;
+            }
+            position++;
+        }
+        if (fixedHeader == 0) {
+            throw new IOException("No MPEG audio frame header");
+        }
+        if (isVbrHeaderFrame(position, fixedHeader)) {
+            position += getMpegAudioFrameLength(fixedHeader);
+        }
+        int layer = 4 - ((fixedHeader >> 17) & 0x3);
+        mMime = layer == 1 ? kMimeMpegLayer1 : layer == 2 ? kMimeMpegLayer2 : kMimeMpegLayer3;
+        mSampleRate = getMpegAudioSampleRate(fixedHeader);
+        int samplesPerFrame = getMpegAudioSamplesPerFrame(fixedHeader);
+        long samplesRead = 0;
+        while (position + 4 <= limit) {
+            int header = mData.getInt(position);
+            int length = (header & kMpegAudioFixedMask) == (fixedHeader & kMpegAudioFixedMask)
+                    ? getMpegAudioFrameLength(header) : 0;
+            if (length == 0 || position + length > limit) {
+                position++;
+                mNumResyncs++;
+                continue;
+            }
+            addSample(position, length, samplesRead * 1000000 / mSampleRate);
+            samplesRead += samplesPerFrame;
+            position += length;
+        }
+        mDurationUs = samplesRead * 1000000 / mSampleRate;
+    }
+
+    /**
+     * Returns the number of bytes skipped while searching for frame headers, after the first
+     */
+    public int getNumResyncs() { return mNumResyncs; }
+
+    public int getSampleRate() { return mSampleRate; }
+
+    @Override
+    public int getTrackCount() { return 1; }
+
+    @Override
+    public String getTrackMime(int trackIndex) { return mMime; }
+
+    @Override
+    public long getTrackDurationUs(int trackIndex) { return mDurationUs; }
+
+    @Override
+    public void selectTrack(int trackIndex) { mSelected = true; }
+
+    @Override
+    public void unselectTrack(int trackIndex) { mSelected = false; }
+
+    private boolean hasSample() { return mSelected && mIndex < mNumSamples; }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        if (!hasSample()) {
+            return -1;
+        }
+        int size = mSizes[mIndex];
+        mView.limit(mOffsets[mIndex] + size);
+        mView.position(mOffsets[mIndex]);
+        buffer.limit(offset + size);
+        buffer.position(offset);
+        buffer.put(mView);
+        buffer.position(offset);
+        return size;
+    }
+
+    @Override
+    public long getSampleSize() { return hasSample() ? mSizes[mIndex] : -1; }
+
+    @Override
+    public long getSampleTime() { return hasSample() ? mTimesUs[mIndex] : -1; }
+
+    @Override
+    public int getSampleFlags() { return hasSample() ? SAMPLE_FLAG_SYNC : 0; }
+
+    @Override
+    public int getSampleTrackIndex() { return hasSample() ? 0 : -1; }
+
+    @Override
+    public boolean advance() {
+        if (!hasSample()) {
+            return false;
+        }
+        mIndex++;
+        return hasSample();
+    }
+
+    @Override
+    public void seekTo(long timeUs) {
+        // Every frame is a sync sample
+        int index = Arrays.binarySearch(mTimesUs, 0, mNumSamples, timeUs);
+        mIndex = index >= 0 ? index : Math.max(0, -index - 2);
+    }
+
+    @Override
+    public void release() {
+        mNumSamples = 0;
+        mIndex = 0;
+    }
+}
@@ -17,7 +17,6 @@
 package com.android.media.benchmark.library;
 
 import android.media.MediaCodec;
-import android.media.MediaCodec.CodecException;
 import android.media.MediaFormat;
 import android.util.Log;
 
@@ -35,11 +34,16 @@ public class Encoder {
     private static final String TAG = "Encoder";
     private static final boolean DEBUG = false;
     private static final int kQueueDequeueTimeoutUs = 1000;
+    /** Returned by the streaming calls when the codec has no buffer available yet */
+    public static final int TRY_AGAIN = 1;
 
     private final Object mLock = new Object();
-    private MediaCodec mCodec;
+    private final BenchmarkCodec.Factory mCodecFactory;
+    private BenchmarkCodec mCodec;
     private String mMime;
     private Stats mStats;
+    // Receives the buffers dequeued by dequeueOutputSample
+    private final MediaCodec.BufferInfo mDequeueInfo = new MediaCodec.BufferInfo();
 
     private int mOffset;
     private int mFrameSize;
@@ -56,7 +60,14 @@ public class Encoder {
     private FileInputStream mInputStream;
     private FileOutputStream mOutputStream;
 
-    public Encoder() {
+    public Encoder() { this(PlatformCodec.FACTORY); }
+
+    /**
+     * @param codecFactory Creates the codecs, such as a {@link SimulatedCodec.Factory} to run
+     *                     on a host JVM
+     */
+    public Encoder(BenchmarkCodec.Factory codecFactory) {
+        mCodecFactory = codecFactory;
         mStats = new Stats();
         mNumInputFrame = 0;
         mSawInputEOS = false;
@@ -76,13 +87,13 @@ public class Encoder {
         this.mOutputStream = encoderOutputStream;
     }
 
-    private MediaCodec createCodec(String codecName, String mime) throws IOException {
+    private BenchmarkCodec createCodec(String codecName, String mime) throws IOException {
         try {
-            MediaCodec codec;
+            BenchmarkCodec codec;
             if (codecName.isEmpty()) {
                 Log.i(TAG, "Mime type: " + mime);
                 if (mime != null) {
-                    codec = MediaCodec.createEncoderByType(mime);
+                    codec = mCodecFactory.createEncoderByType(mime);
                     Log.i(TAG, "Encoder created for mime type " + mime);
                     return codec;
                 } else {
@@ -90,7 +101,7 @@ public class Encoder {
                     return null;
                 }
             } else {
-                codec = MediaCodec.createByCodecName(codecName);
+                codec = mCodecFactory.createByCodecName(codecName);
                 Log.i(TAG, "Encoder created with codec name: " + codecName + " and mime: " + mime);
                 return codec;
             }
@@ -127,7 +138,7 @@ public class Encoder {
         }
         /*Configure Codec*/
         try {
-            mCodec.configure(encodeFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mCodec.configure(encodeFormat, MediaCodec.CONFIGURE_FLAG_ENCODE);
         } catch (IllegalArgumentException | IllegalStateException | MediaCodec.CryptoException e) {
             Log.e(TAG, "Failed to configure " + mCodec.getName() + " encoder.");
             e.printStackTrace();
@@ -148,9 +159,9 @@ public class Encoder {
         }
         mNumFrames = (int) ((mInputBufferSize + mFrameSize - 1) / mFrameSize);
         if (asyncMode) {
-            mCodec.setCallback(new MediaCodec.Callback() {
+            mCodec.setCallback(new BenchmarkCodec.Callback() {
                 @Override
-                public void onInputBufferAvailable(@NonNull MediaCodec mediaCodec,
+                public void onInputBufferAvailable(@NonNull BenchmarkCodec mediaCodec,
                                                    int inputBufferId) {
                     try {
                         mStats.addInputTime();
@@ -162,7 +173,7 @@ public class Encoder {
                 }
 
                 @Override
-                public void onOutputBufferAvailable(@NonNull MediaCodec mediaCodec,
+                public void onOutputBufferAvailable(@NonNull BenchmarkCodec mediaCodec,
                                                     int outputBufferId,
                                                     @NonNull MediaCodec.BufferInfo bufferInfo) {
                     mStats.addOutputTime();
@@ -174,15 +185,16 @@ public class Encoder {
                 }
 
                 @Override
-                public void onError(@NonNull MediaCodec mediaCodec, @NonNull CodecException e) {
-                    mediaCodec.stop();
-                    mediaCodec.release();
+                public void onError(@NonNull BenchmarkCodec mediaCodec,
+                                    @NonNull IllegalStateException e) {
+                    // The codec is released by deInitEncoder once encode returns
                     Log.e(TAG, "CodecError: " + e.toString());
                     e.printStackTrace();
+                    signalError();
                 }
 
                 @Override
-                public void onOutputFormatChanged(@NonNull MediaCodec mediaCodec,
+                public void onOutputFormatChanged(@NonNull BenchmarkCodec mediaCodec,
                                                   @NonNull MediaFormat format) {
                     Log.i(TAG, "Output format changed. Format: " + format.toString());
                 }
@@ -194,7 +206,12 @@ public class Encoder {
         mStats.setStartTime();
         if (asyncMode) {
             try {
-                synchronized (mLock) { mLock.wait(); }
+                // The codec may be done before the wait on a fast device or a simulated codec
+                synchronized (mLock) {
+                    while (!mSawOutputEOS && !mSignalledError) {
+                        mLock.wait();
+                    }
+                }
                 if (mSignalledError) {
                     return -1;
                 }
@@ -202,44 +219,180 @@ public class Encoder {
                 e.printStackTrace();
             }
         } else {
-            while (!mSawOutputEOS && !mSignalledError) {
-                /* Queue input data */
-                if (!mSawInputEOS) {
-                    int inputBufferId = mCodec.dequeueInputBuffer(kQueueDequeueTimeoutUs);
-                    if (inputBufferId < 0 && inputBufferId != MediaCodec.INFO_TRY_AGAIN_LATER) {
-                        Log.e(TAG, "MediaCodec.dequeueInputBuffer " + "returned invalid index : " +
-                                inputBufferId);
-                        return -1;
+            try {
+                while (!mSawOutputEOS && !mSignalledError) {
+                    /* Queue input data */
+                    if (!mSawInputEOS) {
+                        int inputBufferId = mCodec.dequeueInputBuffer(kQueueDequeueTimeoutUs);
+                        if (inputBufferId < 0 && inputBufferId != MediaCodec.INFO_TRY_AGAIN_LATER) {
+                            Log.e(TAG, "MediaCodec.dequeueInputBuffer returned invalid index : "
+                                    + inputBufferId);
+                            return -1;
+                        }
+                        mStats.addInputTime();
+                        onInputAvailable(mCodec, inputBufferId);
                     }
-                    mStats.addInputTime();
-                    onInputAvailable(mCodec, inputBufferId);
-                }
-                /* Dequeue output data */
-                MediaCodec.BufferInfo outputBufferInfo = new MediaCodec.BufferInfo();
-                int outputBufferId =
-                        mCodec.dequeueOutputBuffer(outputBufferInfo, kQueueDequeueTimeoutUs);
-                if (outputBufferId < 0) {
-                    if (outputBufferId == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                        MediaFormat outFormat = mCodec.getOutputFormat();
-                        Log.i(TAG, "Output format changed. Format: " + outFormat.toString());
-                    } else if (outputBufferId != MediaCodec.INFO_TRY_AGAIN_LATER) {
-                        Log.e(TAG, "MediaCodec.dequeueOutputBuffer" + " returned invalid index " +
-                                outputBufferId);
-                        return -1;
+                    /* Dequeue output data */
+                    MediaCodec.BufferInfo outputBufferInfo = new MediaCodec.BufferInfo();
+                    int outputBufferId =
+                            mCodec.dequeueOutputBuffer(outputBufferInfo, kQueueDequeueTimeoutUs);
+                    if (outputBufferId < 0) {
+                        if (outputBufferId == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                            MediaFormat outFormat = mCodec.getOutputFormat();
+                            Log.i(TAG, "Output format changed. Format: " + outFormat.toString());
+                        } else if (outputBufferId != MediaCodec.INFO_TRY_AGAIN_LATER) {
+                            Log.e(TAG, "MediaCodec.dequeueOutputBuffer" + " returned invalid index "
+                                    + outputBufferId);
+                            return -1;
+                        }
+                    } else {
+                        mStats.addOutputTime();
+                        if (DEBUG) {
+                            Log.d(TAG, "Dequeue O/P buffer with BufferID " + outputBufferId);
+                        }
+                        onOutputAvailable(mCodec, outputBufferId, outputBufferInfo);
                     }
-                } else {
-                    mStats.addOutputTime();
-                    if (DEBUG) {
-                        Log.d(TAG, "Dequeue O/P buffer with BufferID " + outputBufferId);
-                    }
-                    onOutputAvailable(mCodec, outputBufferId, outputBufferInfo);
                 }
+            } catch (IllegalStateException e) {
+                // Thrown by the calls of a codec in the error state
+                Log.e(TAG, "Codec Error: " + e.toString());
+                return -1;
             }
         }
         return 0;
     }
 
-    private void onOutputAvailable(MediaCodec mediaCodec, int outputBufferId,
+    /**
+     * Creates, configures and starts the encoder for frame by frame encoding in sync mode.
+     * Frames are then fed with {@link #queueInputFrame} and samples drained with
+     * {@link #dequeueOutputSample}, which lets the encoder run as a stage of a pipeline.
+     *
+     * @param codecName    Will create the encoder with codecName
+     * @param encodeFormat Format of the output data
+     * @param mime         For creating the encoder if codec name is empty
+     * @return 0 if the encoder was started, -2 for encoder not created
+     * @throws IOException If the codec cannot be created.
+     */
+    public int setupStreamingEncoder(String codecName, MediaFormat encodeFormat, String mime)
+            throws IOException {
+        mMime = mime;
+        mSawInputEOS = false;
+        mSawOutputEOS = false;
+        long sTime = mStats.getCurTime();
+        mCodec = createCodec(codecName, mime);
+        if (mCodec == null) {
+            return -2;
+        }
+        try {
+            mCodec.configure(encodeFormat, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mCodec.start();
+        } catch (IllegalArgumentException | IllegalStateException | MediaCodec.CryptoException e) {
+            Log.e(TAG, "Failed to configure " + mCodec.getName() + " encoder.");
+            e.printStackTrace();
+            // The codec instance is released at once, the next setup may need it
+            mCodec.release();
+            mCodec = null;
+            return -2;
+        }
+        long eTime = mStats.getCurTime();
+        mStats.setInitTime(mStats.getTimeDiff(sTime, eTime));
+        mStats.setStartTime();
+        return 0;
+    }
+
+    /**
+     * Queues one raw frame to an encoder started by {@link #setupStreamingEncoder}.
+     * A frame larger than the codec input buffer is not queued and fails.
+     *
+     * @param frame Buffer holding the frame at [info.offset, info.offset + info.size)
+     * @param info  Size, timestamp and flags of the frame
+     * @return 0 if the frame was queued, {@link #TRY_AGAIN} if no input buffer became available,
+     * -1 for fail
+     */
+    public int queueInputFrame(@NonNull ByteBuffer frame, @NonNull MediaCodec.BufferInfo info) {
+        int inputBufferId = mCodec.dequeueInputBuffer(kQueueDequeueTimeoutUs);
+        if (inputBufferId == MediaCodec.INFO_TRY_AGAIN_LATER) {
+            return TRY_AGAIN;
+        } else if (inputBufferId < 0) {
+            Log.e(TAG, "MediaCodec.dequeueInputBuffer returned invalid index : " + inputBufferId);
+            return -1;
+        }
+        mStats.addInputTime();
+        ByteBuffer inputBuffer = mCodec.getInputBuffer(inputBufferId);
+        if (inputBuffer == null || inputBuffer.remaining() < info.size) {
+            Log.e(TAG, "Frame of " + info.size + " bytes does not fit in input buffer of "
+                    + (inputBuffer == null ? 0 : inputBuffer.remaining()) + " bytes");
+            // Hand the buffer back to the codec empty
+            mCodec.queueInputBuffer(inputBufferId, 0, 0, info.presentationTimeUs, 0);
+            return -1;
+        }
+        if (info.size > 0) {
+            ByteBuffer data = frame.duplicate();
+            data.limit(info.offset + info.size);
+            data.position(info.offset);
+            inputBuffer.put(data);
+        }
+        mSawInputEOS = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+        mCodec.queueInputBuffer(inputBufferId, 0, info.size, info.presentationTimeUs,
+                info.flags);
+        mNumInputFrame++;
+        return 0;
+    }
+
+    /**
+     * Dequeues one encoded sample from an encoder started by {@link #setupStreamingEncoder}
+     *
+     * @param outputInfo   Receives size, timestamp and flags of the sample. Offset is always 0.
+     * @param outputSample Receives the sample data if not null
+     * @return 0 if a sample was dequeued, {@link #TRY_AGAIN} if no sample is available yet,
+     * -1 for fail
+     */
+    public int dequeueOutputSample(@NonNull MediaCodec.BufferInfo outputInfo, Frame outputSample) {
+        while (true) {
+            MediaCodec.BufferInfo info = mDequeueInfo;
+            int outputBufferId = mCodec.dequeueOutputBuffer(info, kQueueDequeueTimeoutUs);
+            if (outputBufferId == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                Log.i(TAG, "Output format changed. Format: " + mCodec.getOutputFormat());
+                continue;
+            } else if (outputBufferId == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                return TRY_AGAIN;
+            } else if (outputBufferId < 0) {
+                Log.e(TAG, "MediaCodec.dequeueOutputBuffer returned invalid index "
+                        + outputBufferId);
+                return -1;
+            }
+            mStats.addOutputTime();
+            mStats.addFrameSize(info.size);
+            if (outputSample != null && info.size > 0) {
+                ByteBuffer outputBuffer = mCodec.getOutputBuffer(outputBufferId);
+                outputBuffer.limit(info.offset + info.size);
+                outputBuffer.position(info.offset);
+                ByteBuffer sampleBuffer = outputSample.ensureCapacity(info.size);
+                sampleBuffer.clear();
+                sampleBuffer.put(outputBuffer);
+            }
+            mCodec.releaseOutputBuffer(outputBufferId, false);
+            outputInfo.offset = 0;
+            outputInfo.size = info.size;
+            outputInfo.presentationTimeUs = info.presentationTimeUs;
+            outputInfo.flags = info.flags;
+            mSawOutputEOS = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the output format of the encoder, holding the codec specific data once the first
+     * sample was dequeued
+     */
+    public MediaFormat getOutputFormat() { return mCodec.getOutputFormat(); }
+
+    /**
+     * Returns true once the end of stream was dequeued in streaming mode
+     */
+    public boolean sawOutputEOS() { return mSawOutputEOS; }
+
+    private void onOutputAvailable(BenchmarkCodec mediaCodec, int outputBufferId,
                                    MediaCodec.BufferInfo outputBufferInfo) {
         if (mSawOutputEOS || outputBufferId < 0) {
             if (mSawOutputEOS) {
@@ -265,7 +418,18 @@ public class Encoder {
         mSawOutputEOS = (outputBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
     }
 
-    private void onInputAvailable(MediaCodec mediaCodec, int inputBufferId) throws IOException {
+    /**
+     * Ends the encode operation with an error, waking the thread waiting for it in async mode
+     */
+    private void signalError() {
+        synchronized (mLock) {
+            mSignalledError = true;
+            mLock.notify();
+        }
+    }
+
+    private void onInputAvailable(BenchmarkCodec mediaCodec, int inputBufferId)
+            throws IOException {
         if (mSawInputEOS || inputBufferId < 0) {
             if (mSawInputEOS) {
                 Log.i(TAG, "Saw input EOS");
@@ -274,12 +438,12 @@ public class Encoder {
         }
         if (mInputBufferSize < mOffset) {
             Log.e(TAG, "Out of bound access of input buffer");
-            mSignalledError = true;
+            signalError();
             return;
         }
         ByteBuffer inputBuffer = mCodec.getInputBuffer(inputBufferId);
         if (inputBuffer == null) {
-            mSignalledError = true;
+            signalError();
             return;
         }
         int bufSize = inputBuffer.capacity();
@@ -294,7 +458,7 @@ public class Encoder {
                 bytesToRead = bufSize;
                 mNumFrames = (int) ((mInputBufferSize + mFrameSize - 1) / mFrameSize);
             } else {
-                mSignalledError = true;
+                signalError();
                 return;
             }
         }
@@ -333,6 +497,12 @@ public class Encoder {
         mStats.setDeInitTime(mStats.getTimeDiff(sTime, eTime));
     }
 
+    /**
+     * Returns the stats of the last operation, summarised with {@link Stats#getMetrics} in the
+     * same way as the results of the native benchmarks
+     */
+    public Stats getStats() { return mStats; }
+
     /**
      * Prints out the statistics in the information log
      *
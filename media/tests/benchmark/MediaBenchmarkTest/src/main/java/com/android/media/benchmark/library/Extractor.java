@@ -17,25 +17,35 @@
 package com.android.media.benchmark.library;
 
 import android.media.MediaCodec;
+import android.media.MediaDataSource;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.util.Log;
 
 import java.io.FileDescriptor;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 
 public class Extractor {
     private static final String TAG = "Extractor";
-    private static final int kMaxBufSize = 1024 * 1024 * 16;
-    private MediaExtractor mExtractor;
+    private static final int kDefaultBufSize = 1024 * 1024;
+    private final BufferPool mBufferPool;
+    private BenchmarkExtractor mExtractor;
+    private BufferPool.Lease mFrameLease;
     private ByteBuffer mFrameBuffer;
     private MediaCodec.BufferInfo mBufferInfo;
     private Stats mStats;
     private long mDurationUs;
+    private int mSampleTrackIndex;
 
-    public Extractor() {
-        mFrameBuffer = ByteBuffer.allocate(kMaxBufSize);
+    public Extractor() { this(BufferPool.getShared()); }
+
+    /**
+     * @param bufferPool Pool the sample buffer is leased from
+     */
+    public Extractor(BufferPool bufferPool) {
+        mBufferPool = bufferPool;
         mBufferInfo = new MediaCodec.BufferInfo();
         mStats = new Stats();
     }
@@ -49,8 +59,52 @@ public class Extractor {
      */
     public int setUpExtractor(FileDescriptor fileDescriptor) throws IOException {
         long sTime = mStats.getCurTime();
-        mExtractor = new MediaExtractor();
-        mExtractor.setDataSource(fileDescriptor);
+        MediaExtractor extractor = new MediaExtractor();
+        extractor.setDataSource(fileDescriptor);
+        return setUpExtractor(new PlatformExtractor(extractor), sTime);
+    }
+
+    /**
+     * Creates a Media Extractor and sets data source(MediaDataSource)to use
+     *
+     * @param dataSource MediaDataSource the file is read from, such as a
+     *                   {@link BenchmarkDataSource} which records the reads of the extractor
+     * @return TrackCount of the sample
+     * @throws IOException If the data source cannot be read
+     */
+    public int setUpExtractor(MediaDataSource dataSource) throws IOException {
+        long sTime = mStats.getCurTime();
+        MediaExtractor extractor = new MediaExtractor();
+        extractor.setDataSource(dataSource);
+        return setUpExtractor(new PlatformExtractor(extractor), sTime);
+    }
+
+    /**
+     * Creates a Media Extractor and sets data source(path or URL)to use
+     *
+     * @param path Path of the file or http URL of the stream which is to be extracted
+     * @return TrackCount of the sample
+     * @throws IOException If the data source cannot be opened
+     */
+    public int setUpExtractor(String path) throws IOException {
+        long sTime = mStats.getCurTime();
+        MediaExtractor extractor = new MediaExtractor();
+        extractor.setDataSource(path);
+        return setUpExtractor(new PlatformExtractor(extractor), sTime);
+    }
+
+    /**
+     * Sets an extractor which already has a data source, such as a {@link SimulatedExtractor}
+     *
+     * @param extractor Extractor the samples are read from, released by {@link #deinitExtractor}
+     * @return TrackCount of the sample
+     */
+    public int setUpExtractor(BenchmarkExtractor extractor) {
+        return setUpExtractor(extractor, mStats.getCurTime());
+    }
+
+    private int setUpExtractor(BenchmarkExtractor extractor, long sTime) {
+        mExtractor = extractor;
         long eTime = mStats.getCurTime();
         long timeTaken = mStats.getTimeDiff(sTime, eTime);
         mStats.setInitTime(timeTaken);
@@ -66,7 +120,8 @@ public class Extractor {
     public MediaFormat getFormat(int trackID) { return mExtractor.getTrackFormat(trackID); }
 
     /**
-     * Returns the extracted buffer for the input clip
+     * Returns the sample read by the last call to {@link #getFrameSample()}, from position 0 to
+     * its size. The buffer is direct, leased from the buffer pool and reused for the next sample.
      */
     public ByteBuffer getFrameBuffer() { return this.mFrameBuffer; }
 
@@ -80,6 +135,17 @@ public class Extractor {
      */
     public long getClipDuration() { return this.mDurationUs; }
 
+    /**
+     * Returns the track index of the sample read by the last call to {@link #getFrameSample()},
+     * -1 once all selected tracks are read
+     */
+    public int getSampleTrackIndex() { return this.mSampleTrackIndex; }
+
+    /**
+     * Returns the time taken by the last call to setUpExtractor, in nanoseconds
+     */
+    public long getInitTime() { return mStats.getInitTime(); }
+
     /**
      * Retrieve the current sample and store it in the byte buffer
      * Also, sets the information related to extracted sample and store it in buffer info
@@ -87,11 +153,28 @@ public class Extractor {
      * @return Sample size of the extracted sample
      */
     public int getFrameSample() {
-        int sampleSize = mExtractor.readSampleData(mFrameBuffer, 0);
+        if (mFrameBuffer == null) {
+            ensureFrameBuffer(kDefaultBufSize);
+        }
+        mFrameBuffer.clear();
+        int sampleSize;
+        try {
+            sampleSize = mExtractor.readSampleData(mFrameBuffer, 0);
+        } catch (IllegalArgumentException | BufferOverflowException e) {
+            // The buffer sized at track selection is too small for this sample, which is rare
+            ensureFrameBuffer((int) Math.max(mExtractor.getSampleSize(),
+                    2L * mFrameBuffer.capacity()));
+            mFrameBuffer.clear();
+            sampleSize = mExtractor.readSampleData(mFrameBuffer, 0);
+        }
+        mSampleTrackIndex = mExtractor.getSampleTrackIndex();
         if (sampleSize < 0) {
+            mFrameBuffer.limit(0);
             mBufferInfo.flags = MediaCodec.BUFFER_FLAG_END_OF_STREAM;
             mBufferInfo.size = 0;
         } else {
+            mFrameBuffer.limit(sampleSize);
+            mFrameBuffer.position(0);
             mBufferInfo.size = sampleSize;
             mBufferInfo.offset = 0;
             mBufferInfo.flags = mExtractor.getSampleFlags();
@@ -116,9 +199,26 @@ public class Extractor {
             return -1;
         }
         mExtractor.selectTrack(trackId);
+        // Sized once here, getFrameSample only grows it when a sample does not fit
+        ensureFrameBuffer(trackFormat.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE) ?
+                trackFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE) : kDefaultBufSize);
         return 0;
     }
 
+    /**
+     * Leases a sample buffer of at least the given size, unless the current one is large enough
+     */
+    private void ensureFrameBuffer(int size) {
+        if (mFrameBuffer != null && mFrameBuffer.capacity() >= size) {
+            return;
+        }
+        if (mFrameLease != null) {
+            mFrameLease.release();
+        }
+        mFrameLease = mBufferPool.acquire(size);
+        mFrameBuffer = mFrameLease.getBuffer();
+    }
+
     /**
      * Unselect the track
      *
@@ -126,12 +226,38 @@ public class Extractor {
      */
     public void unselectExtractorTrack(int trackId) { mExtractor.unselectTrack(trackId); }
 
+    /**
+     * Moves the selected tracks to a sync sample near the given time
+     *
+     * @param timeUs Time to seek to, in microseconds
+     * @param mode   One of the MediaExtractor.SEEK_TO_* modes
+     */
+    public void seekTo(long timeUs, int mode) { mExtractor.seekTo(timeUs, mode); }
+
+    /**
+     * Reads only the sync sample at or before the given time, for keyframe only decoding.
+     * Seeking to a time taken from the sync samples of a {@link SampleIndex} reads exactly that
+     * sample.
+     *
+     * @param timeUs Time of the sync sample, in microseconds
+     * @return Sample size of the extracted sample, -1 if there is no sample
+     */
+    public int getSyncFrameSample(long timeUs) {
+        mExtractor.seekTo(timeUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        return getFrameSample();
+    }
+
     /**
      * Free up the resources
      */
     public void deinitExtractor() {
         long sTime = mStats.getCurTime();
         mExtractor.release();
+        if (mFrameLease != null) {
+            mFrameLease.release();
+            mFrameLease = null;
+            mFrameBuffer = null;
+        }
         long eTime = mStats.getCurTime();
         long timeTaken = mStats.getTimeDiff(sTime, eTime);
         mStats.setDeInitTime(timeTaken);
@@ -163,6 +289,12 @@ public class Extractor {
         return 0;
     }
 
+    /**
+     * Returns the stats of the last operation, summarised with {@link Stats#getMetrics} in the
+     * same way as the results of the native benchmarks
+     */
+    public Stats getStats() { return mStats; }
+
     /**
      * Write the benchmark logs for the given input file
      *
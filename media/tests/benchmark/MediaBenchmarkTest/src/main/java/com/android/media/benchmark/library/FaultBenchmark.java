@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Decodes a stream under the faults and the load of a {@link FaultProfile} and reports how
+ * long the decoder takes to recover from each fault and how much of its throughput is lost.
+ * <p>
+ * When the codec ends in the error state, the stream is decoded again from its start by a new
+ * codec, as a player does, and the recovery latency of the error is the time from the error to
+ * the first frame of the new codec. The throughput of a run is the number of frames output over
+ * the wall time of the run, the failed attempt included, relative to the throughput of the last
+ * run of a baseline profile.
+ */
+public class FaultBenchmark {
+    private static final String TAG = "FaultBenchmark";
+
+    private final BenchmarkCodec.Factory mCodecFactory;
+    private final ArrayList<ByteBuffer> mInputBuffer;
+    private final ArrayList<MediaCodec.BufferInfo> mFrameInfo;
+    private final MediaFormat mFormat;
+    private final String mCodecName;
+    private final boolean mAsyncMode;
+    private double mBaselineFps = -1;
+
+    /**
+     * @param codecFactory Creates the codecs the faults are injected in
+     * @param inputBuffer  Samples of the stream, the last one with the end of stream
+     * @param frameInfo    Buffer info of the samples
+     * @param format       Format of the stream
+     * @param codecName    Name of the decoder, empty to select it by mime
+     * @param asyncMode    Will run on async implementation if true
+     */
+    public FaultBenchmark(BenchmarkCodec.Factory codecFactory, ArrayList<ByteBuffer> inputBuffer,
+            ArrayList<MediaCodec.BufferInfo> frameInfo, MediaFormat format, String codecName,
+            boolean asyncMode) {
+        mCodecFactory = codecFactory;
+        mInputBuffer = inputBuffer;
+        mFrameInfo = frameInfo;
+        mFormat = format;
+        mCodecName = codecName;
+        mAsyncMode = asyncMode;
+    }
+
+    private int decode(BenchmarkCodec.Factory codecFactory) throws IOException {
+        Decoder decoder = new Decoder(codecFactory);
+        decoder.setupDecoder(null);
+        int status = decoder.decode(mInputBuffer, mFrameInfo, mAsyncMode, mFormat, mCodecName);
+        decoder.deInitCodec();
+        return status;
+    }
+
+    /**
+     * Decodes the stream under the given profile
+     *
+     * @param profile        Faults and load of the run
+     * @param inputReference Name of the stream
+     * @return Metrics of the run, its status is 0 if all frames were decoded, the codec
+     * possibly recovered, -1 for fail, -2 for decoder not created
+     */
+    public Metrics run(FaultProfile profile, String inputReference) throws IOException {
+        Metrics metrics = new Metrics(inputReference, "fault", mCodecName);
+        metrics.add("mode", mAsyncMode ? "async" : "sync");
+        metrics.add("profile", profile.getName());
+        StressLoad load = new StressLoad(profile.getStressCpuThreads(),
+                profile.getStressMemoryBytes());
+        load.start();
+        try {
+            FaultInjectingCodec.Factory factory =
+                    new FaultInjectingCodec.Factory(profile, mCodecFactory);
+            long sTime = System.nanoTime();
+            int status = decode(factory);
+            FaultInjectingCodec codec = factory.getLastCodec();
+            if (codec == null) {
+                metrics.add("status", status);
+                return metrics;
+            }
+            int numOutputs = codec.getNumOutputs();
+            long errorRecoveryNs = -1;
+            if (status == -1 && codec.getErrorTimeNs() >= 0) {
+                Log.i(TAG, "Decoding " + inputReference + " again after the codec error");
+                FaultInjectingCodec.Factory recovery =
+                        new FaultInjectingCodec.Factory(new FaultProfile("recovery"),
+                                mCodecFactory);
+                status = decode(recovery);
+                FaultInjectingCodec recoveryCodec = recovery.getLastCodec();
+                if (recoveryCodec != null && recoveryCodec.getFirstOutputTimeNs() >= 0) {
+                    errorRecoveryNs = recoveryCodec.getFirstOutputTimeNs() - codec.getErrorTimeNs();
+                    numOutputs = recoveryCodec.getNumOutputs();
+                }
+            }
+            long timeNs = System.nanoTime() - sTime;
+            double fps = timeNs > 0 ? numOutputs * 1e9 / timeNs : 0;
+            if (profile.isBaseline() && status == 0) {
+                mBaselineFps = fps;
+            }
+            metrics.add("status", status);
+            metrics.add("faults", codec.getNumFaults());
+            metrics.add("recoveryLatencyNs", codec.getRecoveryLatencies());
+            if (errorRecoveryNs >= 0) {
+                metrics.add("errorRecoveryNs", errorRecoveryNs);
+            }
+            metrics.add("outputs", numOutputs);
+            metrics.add("timeNs", timeNs);
+            metrics.add("framesPerSec", fps);
+            if (mBaselineFps > 0) {
+                metrics.add("throughputRatio", fps / mBaselineFps);
+            }
+            metrics.add("stressCpuThreads", profile.getStressCpuThreads());
+            metrics.add("stressMemoryBytes", profile.getStressMemoryBytes());
+            if (profile.getStressMemoryBytes() > 0) {
+                metrics.add("stressMemoryPasses", load.getMemoryPasses());
+            }
+            return metrics;
+        } finally {
+            load.stop();
+        }
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link BenchmarkCodec} injecting the faults of a {@link FaultProfile} in the calls to
+ * another codec, platform or simulated, and recording how long the codec takes to recover.
+ * <p>
+ * The recovery latency of a fault is the time from the fault to the next output buffer, faults
+ * injected before that output counting from the first of them. The injected error puts the
+ * codec in the error state: no callback is made afterwards and the calls throw, as for a
+ * MediaCodec. The errors of the codec itself, such as those caused by truncated samples, are
+ * recorded in the same way.
+ */
+public class FaultInjectingCodec implements BenchmarkCodec {
+    private static final String TAG = "FaultInjectingCodec";
+
+    /**
+     * Wraps the codecs of another factory in fault injecting codecs
+     */
+    public static class Factory implements BenchmarkCodec.Factory {
+        private final FaultProfile mProfile;
+        private final BenchmarkCodec.Factory mFactory;
+        private FaultInjectingCodec mLastCodec;
+
+        public Factory(FaultProfile profile, BenchmarkCodec.Factory factory) {
+            mProfile = profile;
+            mFactory = factory;
+        }
+
+        @Override
+        public BenchmarkCodec createByCodecName(String name) throws IOException {
+            return wrap(mFactory.createByCodecName(name));
+        }
+
+        @Override
+        public BenchmarkCodec createDecoderByType(String mime) throws IOException {
+            return wrap(mFactory.createDecoderByType(mime));
+        }
+
+        @Override
+        public BenchmarkCodec createEncoderByType(String mime) throws IOException {
+            return wrap(mFactory.createEncoderByType(mime));
+        }
+
+        private synchronized BenchmarkCodec wrap(BenchmarkCodec codec) {
+            mLastCodec = new FaultInjectingCodec(codec, mProfile);
+            return mLastCodec;
+        }
+
+        /**
+         * Returns the codec created last, null if none was
+         */
+        public synchronized FaultInjectingCodec getLastCodec() { return mLastCodec; }
+    }
+
+    private final BenchmarkCodec mCodec;
+    private final FaultProfile mProfile;
+    private final Object mLock = new Object();
+    private final Distribution mRecoveryLatencies = new Distribution();
+    private Callback mCallback;
+    private volatile IllegalStateException mError;
+    private int mNumCallBacks;
+    private int mNumDequeues;
+    private int mNumQueued;
+    private int mNumOutputs;
+    private int mNumFaults;
+    private boolean mFormatChangeSent;
+    private long mPendingFaultNs = -1;
+    private long mFirstOutputNs = -1;
+    private long mErrorNs = -1;
+
+    public FaultInjectingCodec(BenchmarkCodec codec, FaultProfile profile) {
+        mCodec = codec;
+        mProfile = profile;
+    }
+
+    /**
+     * Returns the faults injected so far
+     */
+    public int getNumFaults() {
+        synchronized (mLock) { return mNumFaults; }
+    }
+
+    /**
+     * Returns the output buffers so far, the end of stream included
+     */
+    public int getNumOutputs() {
+        synchronized (mLock) { return mNumOutputs; }
+    }
+
+    /**
+     * Returns the time from each fault the codec recovered from to the next output buffer
+     */
+    public Distribution getRecoveryLatencies() { return mRecoveryLatencies; }
+
+    /**
+     * Returns the System.nanoTime() of the first output buffer, -1 if there was none
+     */
+    public long getFirstOutputTimeNs() {
+        synchronized (mLock) { return mFirstOutputNs; }
+    }
+
+    /**
+     * Returns the System.nanoTime() at which the codec entered the error state, -1 if it did not
+     */
+    public long getErrorTimeNs() {
+        synchronized (mLock) { return mErrorNs; }
+    }
+
+    private void recordFault() {
+        synchronized (mLock) {
+            mNumFaults++;
+            if (mPendingFaultNs < 0) {
+                mPendingFaultNs = System.nanoTime();
+            }
+        }
+    }
+
+    private void recordOutput() {
+        synchronized (mLock) {
+            long now = System.nanoTime();
+            mNumOutputs++;
+            if (mFirstOutputNs < 0) {
+                mFirstOutputNs = now;
+            }
+            if (mPendingFaultNs >= 0) {
+                mRecoveryLatencies.add(now - mPendingFaultNs);
+                mPendingFaultNs = -1;
+            }
+        }
+    }
+
+    private void recordError(IllegalStateException e) {
+        synchronized (mLock) {
+            if (mErrorNs < 0) {
+                mErrorNs = System.nanoTime();
+            }
+        }
+        mError = e;
+    }
+
+    /**
+     * Returns true if the next output is to be preceded by a spurious format change
+     */
+    private boolean isFormatChangeDue() {
+        int interval = mProfile.getFormatChangeInterval();
+        synchronized (mLock) {
+            if (interval <= 0 || mFormatChangeSent || (mNumOutputs + 1) % interval != 0) {
+                return false;
+            }
+            mFormatChangeSent = true;
+        }
+        recordFault();
+        return true;
+    }
+
+    /**
+     * Delays every n-th callback or output of the profile
+     */
+    private void delayCallBack() {
+        int interval = mProfile.getCallBackDelayInterval();
+        synchronized (mLock) {
+            if (interval <= 0 || ++mNumCallBacks % interval != 0) {
+                return;
+            }
+        }
+        recordFault();
+        long delayNs = mProfile.getCallBackDelayNs();
+        try {
+            Thread.sleep(delayNs / 1000000, (int) (delayNs % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns true if the dequeue call is to fail
+     */
+    private boolean isDequeueFailureDue() {
+        int interval = mProfile.getDequeueFailureInterval();
+        synchronized (mLock) {
+            if (interval <= 0 || ++mNumDequeues % interval != 0) {
+                return false;
+            }
+        }
+        recordFault();
+        return true;
+    }
+
+    private void checkError() {
+        IllegalStateException error = mError;
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    @Override
+    public String getName() { return mCodec.getName(); }
+
+    @Override
+    public void setCallback(final Callback callback) {
+        mCodec.setCallback(new Callback() {
+            @Override
+            public void onInputBufferAvailable(BenchmarkCodec codec, int index) {
+                if (mError == null) {
+                    delayCallBack();
+                    callback.onInputBufferAvailable(FaultInjectingCodec.this, index);
+                }
+            }
+
+            @Override
+            public void onOutputBufferAvailable(BenchmarkCodec codec, int index, BufferInfo info) {
+                if (mError != null) {
+                    return;
+                }
+                delayCallBack();
+                if (isFormatChangeDue()) {
+                    callback.onOutputFormatChanged(FaultInjectingCodec.this,
+                            mCodec.getOutputFormat());
+                }
+                synchronized (mLock) { mFormatChangeSent = false; }
+                recordOutput();
+                callback.onOutputBufferAvailable(FaultInjectingCodec.this, index, info);
+            }
+
+            @Override
+            public void onOutputFormatChanged(BenchmarkCodec codec, MediaFormat format) {
+                if (mError == null) {
+                    callback.onOutputFormatChanged(FaultInjectingCodec.this, format);
+                }
+            }
+
+            @Override
+            public void onError(BenchmarkCodec codec, IllegalStateException e) {
+                if (mError == null) {
+                    recordError(e);
+                    callback.onError(FaultInjectingCodec.this, e);
+                }
+            }
+        });
+        mCallback = callback;
+    }
+
+    @Override
+    public void configure(MediaFormat format, int flags) { mCodec.configure(format, flags); }
+
+    @Override
+    public MediaFormat getInputFormat() { return mCodec.getInputFormat(); }
+
+    @Override
+    public MediaFormat getOutputFormat() { return mCodec.getOutputFormat(); }
+
+    @Override
+    public void start() { mCodec.start(); }
+
+    @Override
+    public void flush() { mCodec.flush(); }
+
+    @Override
+    public void stop() { mCodec.stop(); }
+
+    @Override
+    public void release() { mCodec.release(); }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        checkError();
+        if (isDequeueFailureDue()) {
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+        try {
+            return mCodec.dequeueInputBuffer(timeoutUs);
+        } catch (IllegalStateException e) {
+            recordError(e);
+            throw e;
+        }
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) { return mCodec.getInputBuffer(index); }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs,
+            int flags) {
+        checkError();
+        int numQueued;
+        synchronized (mLock) { numQueued = ++mNumQueued; }
+        if (numQueued == mProfile.getErrorAfterFrames()) {
+            IllegalStateException error = new IllegalStateException(
+                    "Error injected after " + numQueued + " samples");
+            Log.w(TAG, error.getMessage());
+            recordFault();
+            recordError(error);
+            if (mCallback != null) {
+                mCallback.onError(this, error);
+            }
+            return;
+        }
+        int interval = mProfile.getTruncateInterval();
+        if (interval > 0 && numQueued % interval == 0 && size > 1) {
+            recordFault();
+            size /= 2;
+        }
+        try {
+            mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+        } catch (IllegalStateException e) {
+            recordError(e);
+            throw e;
+        }
+    }
+
+    @Override
+    public int dequeueOutputBuffer(BufferInfo info, long timeoutUs) {
+        checkError();
+        if (isDequeueFailureDue()) {
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+        if (isFormatChangeDue()) {
+            return MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+        }
+        int index;
+        try {
+            index = mCodec.dequeueOutputBuffer(info, timeoutUs);
+        } catch (IllegalStateException e) {
+            recordError(e);
+            throw e;
+        }
+        if (index >= 0) {
+            delayCallBack();
+            synchronized (mLock) { mFormatChangeSent = false; }
+            recordOutput();
+        }
+        return index;
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) { return mCodec.getOutputBuffer(index); }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        mCodec.releaseOutputBuffer(index, render);
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import java.util.ArrayList;
+
+/**
+ * The faults injected in a codec by {@link FaultInjectingCodec} and the load run alongside it
+ * by {@link StressLoad}. A fault applied every n calls is disabled with an interval of 0.
+ */
+public class FaultProfile {
+    private final String mName;
+    private long mCallBackDelayNs;
+    private int mCallBackDelayInterval;
+    private int mDequeueFailureInterval;
+    private int mFormatChangeInterval;
+    private int mTruncateInterval;
+    private int mErrorAfterFrames = -1;
+    private int mStressCpuThreads;
+    private int mStressMemoryBytes;
+
+    public FaultProfile(String name) { mName = name; }
+
+    /**
+     * Returns the profiles benchmarked by default, the first one without faults gives the
+     * throughput the others are compared to
+     */
+    public static ArrayList<FaultProfile> getDefaultProfiles() {
+        ArrayList<FaultProfile> profiles = new ArrayList<>();
+        profiles.add(new FaultProfile("baseline"));
+        profiles.add(new FaultProfile("delayedCallBacks").setCallBackDelay(5000000, 10));
+        profiles.add(new FaultProfile("failingDequeue").setDequeueFailureInterval(5));
+        profiles.add(new FaultProfile("spuriousFormatChange").setFormatChangeInterval(30));
+        profiles.add(new FaultProfile("truncatedSamples").setTruncateInterval(50));
+        profiles.add(new FaultProfile("codecError").setErrorAfterFrames(30));
+        profiles.add(new FaultProfile("cpuStress")
+                .setStress(Runtime.getRuntime().availableProcessors(), 0));
+        profiles.add(new FaultProfile("memoryStress").setStress(0, 64 * 1024 * 1024));
+        return profiles;
+    }
+
+    public String getName() { return mName; }
+
+    /**
+     * Delays every n-th callback in async mode, or the return of every n-th output buffer in
+     * sync mode, for the given time
+     */
+    public FaultProfile setCallBackDelay(long delayNs, int interval) {
+        mCallBackDelayNs = delayNs;
+        mCallBackDelayInterval = interval;
+        return this;
+    }
+
+    /**
+     * Makes every n-th dequeueInputBuffer or dequeueOutputBuffer call return
+     * INFO_TRY_AGAIN_LATER without calling the codec, in sync mode only
+     */
+    public FaultProfile setDequeueFailureInterval(int interval) {
+        mDequeueFailureInterval = interval;
+        return this;
+    }
+
+    /**
+     * Reports an output format change which did not happen before every n-th output buffer
+     */
+    public FaultProfile setFormatChangeInterval(int interval) {
+        mFormatChangeInterval = interval;
+        return this;
+    }
+
+    /**
+     * Queues only the first half of every n-th sample
+     */
+    public FaultProfile setTruncateInterval(int interval) {
+        mTruncateInterval = interval;
+        return this;
+    }
+
+    /**
+     * Puts the codec in the error state once the given number of samples were queued, -1 to
+     * never do so
+     */
+    public FaultProfile setErrorAfterFrames(int numFrames) {
+        mErrorAfterFrames = numFrames;
+        return this;
+    }
+
+    /**
+     * @param cpuThreads  Threads keeping a CPU busy while the codec runs
+     * @param memoryBytes Memory a thread keeps allocating and writing while the codec runs
+     */
+    public FaultProfile setStress(int cpuThreads, int memoryBytes) {
+        mStressCpuThreads = cpuThreads;
+        mStressMemoryBytes = memoryBytes;
+        return this;
+    }
+
+    public long getCallBackDelayNs() { return mCallBackDelayNs; }
+
+    public int getCallBackDelayInterval() { return mCallBackDelayInterval; }
+
+    public int getDequeueFailureInterval() { return mDequeueFailureInterval; }
+
+    public int getFormatChangeInterval() { return mFormatChangeInterval; }
+
+    public int getTruncateInterval() { return mTruncateInterval; }
+
+    public int getErrorAfterFrames() { return mErrorAfterFrames; }
+
+    public int getStressCpuThreads() { return mStressCpuThreads; }
+
+    public int getStressMemoryBytes() { return mStressMemoryBytes; }
+
+    /**
+     * Returns true if the profile injects no fault in the codec and runs no load
+     */
+    public boolean isBaseline() {
+        return mCallBackDelayInterval == 0 && mDequeueFailureInterval == 0
+                && mFormatChangeInterval == 0 && mTruncateInterval == 0 && mErrorAfterFrames < 0
+                && mStressCpuThreads == 0 && mStressMemoryBytes == 0;
+    }
+}
@@ -0,0 +1,576 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Writes a fragmented MP4 file: an init segment with the ftyp and moov boxes, followed by a
+ * moof and mdat pair for every fragment of the configured duration.
+ * <p>
+ * Samples are not copied. A fragment keeps slices of the buffers of its samples and is written
+ * with gathering writes of the box headers and the slices, so the buffers of a sample must not be
+ * modified until the fragment holding it is written, i.e. until the next fragment starts or
+ * {@link #finish()} returns. AVC samples with start codes are written with length prefixes, which
+ * are added as separate buffers of the gathering write.
+ * <p>
+ * A fragment starts at the first sync sample of the first video track, or of the first track if
+ * there is no video track, once the fragment reached its duration. Decoding times are taken from
+ * the sorted presentation times of the samples of a fragment, and all tracks use a timescale of
+ * one microsecond so that timestamps are written exactly.
+ */
+public class FragmentedMp4Writer {
+    private static final int kMovieTimescale = 1000;
+    private static final int kTrackTimescale = 1000000;
+    private static final int kSampleFlagsSync = 0x02000000;
+    private static final int kSampleFlagsNonSync = 0x01010000;
+    // Data offset, then duration, size, flags and composition offset of every sample
+    private static final int kTrunFlags = 0x000f01;
+    private static final int kTfhdDefaultBaseIsMoof = 0x020000;
+
+    private final FileChannel mChannel;
+    private final long mFragmentDurationUs;
+    private final ArrayList<Track> mTracks = new ArrayList<>();
+    private final Distribution mFragmentWriteTimes = new Distribution();
+    private int mReferenceTrack = -1;
+    private boolean mStarted;
+    private int mSequenceNumber;
+    private long mFragmentStartUs = -1;
+    private long mPendingBytes;
+    private long mPeakPendingBytes;
+    private int mPeakPendingSamples;
+    private long mInitSegmentSize;
+    private long mBytesWritten;
+    private long mWriteCalls;
+
+    /**
+     * Samples of one track waiting for the current fragment to be written
+     */
+    private static class Track {
+        final String mMime;
+        final boolean mVideo;
+        final byte[] mSampleEntry;
+        int mWidth;
+        int mHeight;
+        int mNumPending;
+        ByteBuffer[][] mData = new ByteBuffer[64][];
+        int[] mSizes = new int[64];
+        long[] mTimesUs = new long[64];
+        boolean[] mSync = new boolean[64];
+        int mLastDuration;
+
+        Track(String mime, boolean video, byte[] sampleEntry) {
+            mMime = mime;
+            mVideo = video;
+            mSampleEntry = sampleEntry;
+        }
+
+        void add(ByteBuffer[] data, int size, long timeUs, boolean sync) {
+            if (mNumPending == mSizes.length) {
+                int capacity = mNumPending * 2;
+                mData = Arrays.copyOf(mData, capacity);
+                mSizes = Arrays.copyOf(mSizes, capacity);
+                mTimesUs = Arrays.copyOf(mTimesUs, capacity);
+                mSync = Arrays.copyOf(mSync, capacity);
+            }
+            mData[mNumPending] = data;
+            mSizes[mNumPending] = size;
+            mTimesUs[mNumPending] = timeUs;
+            mSync[mNumPending] = sync;
+            mNumPending++;
+        }
+
+        void clear() {
+            Arrays.fill(mData, 0, mNumPending, null);
+            mNumPending = 0;
+        }
+    }
+
+    /**
+     * @param channel            Channel the file is written to, from its current position
+     * @param fragmentDurationUs Minimum duration of a fragment
+     */
+    public FragmentedMp4Writer(FileChannel channel, long fragmentDurationUs) {
+        mChannel = channel;
+        mFragmentDurationUs = fragmentDurationUs;
+    }
+
+    /**
+     * Adds a video track before the writer is started
+     *
+     * @param mime   Mime type of the track, video/avc, video/mp4v-es or video/3gpp
+     * @param width  Width of the video
+     * @param height Height of the video
+     * @param csd    Codec specific data, the SPS and PPS with start codes for AVC and the
+     *               decoder specific info for MPEG-4
+     * @return Returns the index of the track, -1 if the mime type is not supported
+     */
+    public int addVideoTrack(String mime, int width, int height, ByteBuffer... csd) {
+        byte[] config;
+        String format;
+        if (mime.equals("video/avc")) {
+            format = "avc1";
+            config = avcConfiguration(csd);
+        } else if (mime.equals("video/mp4v-es")) {
+            format = "mp4v";
+            config = esds(0x20, 4, csd.length > 0 ? toArray(csd[0]) : new byte[0]);
+        } else if (mime.equals("video/3gpp")) {
+            format = "s263";
+            // Vendor, decoder version, level 10 and profile 0
+            config = box("d263", ints(0), new byte[]{0, 10, 0});
+        } else {
+            return -1;
+        }
+        if (config == null) {
+            return -1;
+        }
+        ByteArrayOutputStream entry = new ByteArrayOutputStream();
+        write(entry, new byte[6], shorts(1), new byte[16], shorts(width, height),
+                ints(0x00480000, 0x00480000, 0), shorts(1), new byte[32], shorts(0x18, -1),
+                config);
+        Track track = new Track(mime, true, box(format, entry.toByteArray()));
+        track.mWidth = width;
+        track.mHeight = height;
+        return addTrack(track);
+    }
+
+    /**
+     * Adds an audio track before the writer is started
+     *
+     * @param mime         Mime type of the track, only audio/mp4a-latm is supported
+     * @param sampleRate   Sample rate of the audio
+     * @param channelCount Number of channels
+     * @param csd          Codec specific data, the AudioSpecificConfig
+     * @return Returns the index of the track, -1 if the mime type is not supported
+     */
+    public int addAudioTrack(String mime, int sampleRate, int channelCount, ByteBuffer... csd) {
+        if (!mime.equals("audio/mp4a-latm")) {
+            return -1;
+        }
+        ByteArrayOutputStream entry = new ByteArrayOutputStream();
+        write(entry, new byte[6], shorts(1), new byte[8], shorts(channelCount, 16, 0, 0),
+                ints(sampleRate << 16),
+                esds(0x40, 5, csd.length > 0 ? toArray(csd[0]) : new byte[0]));
+        return addTrack(new Track(mime, false, box("mp4a", entry.toByteArray())));
+    }
+
+    private int addTrack(Track track) {
+        if (mStarted) {
+            throw new IllegalStateException("Tracks must be added before the writer is started");
+        }
+        if (mReferenceTrack < 0 || (track.mVideo && !mTracks.get(mReferenceTrack).mVideo)) {
+            mReferenceTrack = mTracks.size();
+        }
+        mTracks.add(track);
+        return mTracks.size() - 1;
+    }
+
+    /**
+     * Writes the init segment
+     */
+    public void start() throws IOException {
+        if (mStarted || mTracks.isEmpty()) {
+            throw new IllegalStateException("Writer already started or without tracks");
+        }
+        mStarted = true;
+        byte[] ftyp = box("ftyp", fourcc("iso6"), ints(0), fourcc("iso6"), fourcc("isom"),
+                fourcc("mp41"));
+        ByteArrayOutputStream moov = new ByteArrayOutputStream();
+        int[] unityMatrix = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+        write(moov, fullBox("mvhd", 0, 0, ints(0, 0, kMovieTimescale, 0, 0x00010000),
+                shorts(0x0100), new byte[10], ints(unityMatrix), new byte[24],
+                ints(mTracks.size() + 1)));
+        ByteArrayOutputStream mvex = new ByteArrayOutputStream();
+        for (int i = 0; i < mTracks.size(); i++) {
+            Track track = mTracks.get(i);
+            int trackId = i + 1;
+            byte[] tkhd = fullBox("tkhd", 0, 3, ints(0, 0, trackId, 0, 0), new byte[8],
+                    shorts(0, 0, track.mVideo ? 0 : 0x0100, 0), ints(unityMatrix),
+                    ints(track.mWidth << 16, track.mHeight << 16));
+            // Language "und"
+            byte[] mdhd = fullBox("mdhd", 0, 0, ints(0, 0, kTrackTimescale, 0),
+                    shorts(0x55c4, 0));
+            String handlerName = track.mVideo ? "VideoHandle\0" : "SoundHandle\0";
+            byte[] hdlr = fullBox("hdlr", 0, 0, ints(0), fourcc(track.mVideo ? "vide" : "soun"),
+                    ints(0, 0, 0), handlerName.getBytes());
+            byte[] mediaHeader = track.mVideo ? fullBox("vmhd", 0, 1, shorts(0, 0, 0, 0))
+                    : fullBox("smhd", 0, 0, shorts(0, 0));
+            byte[] dinf = box("dinf", fullBox("dref", 0, 0, ints(1), fullBox("url ", 0, 1)));
+            byte[] stbl = box("stbl", fullBox("stsd", 0, 0, ints(1), track.mSampleEntry),
+                    fullBox("stts", 0, 0, ints(0)), fullBox("stsc", 0, 0, ints(0)),
+                    fullBox("stsz", 0, 0, ints(0, 0)), fullBox("stco", 0, 0, ints(0)));
+            write(moov, box("trak", tkhd,
+                    box("mdia", mdhd, hdlr, box("minf", mediaHeader, dinf, stbl))));
+            write(mvex, fullBox("trex", 0, 0, ints(trackId, 1, 0, 0, 0)));
+        }
+        write(moov, box("mvex", mvex.toByteArray()));
+        ByteBuffer[] initSegment = {ByteBuffer.wrap(ftyp),
+                ByteBuffer.wrap(box("moov", moov.toByteArray()))};
+        mInitSegmentSize = initSegment[0].remaining() + initSegment[1].remaining();
+        writeFully(initSegment);
+    }
+
+    /**
+     * Adds a sample to the current fragment. The fragment is written first if the sample starts
+     * a new one.
+     *
+     * @param trackIndex         Index of the track returned when it was added
+     * @param buffer             Buffer holding the sample, which must not be modified until the
+     *                           fragment is written
+     * @param offset             Offset of the sample in the buffer
+     * @param size               Size of the sample
+     * @param presentationTimeUs Presentation time of the sample
+     * @param sync               True if the sample is a sync sample
+     */
+    public void writeSample(int trackIndex, ByteBuffer buffer, int offset, int size,
+            long presentationTimeUs, boolean sync) throws IOException {
+        if (!mStarted) {
+            throw new IllegalStateException("Writer not started");
+        }
+        Track track = mTracks.get(trackIndex);
+        if (trackIndex == mReferenceTrack && sync && mFragmentStartUs >= 0
+                && presentationTimeUs - mFragmentStartUs >= mFragmentDurationUs) {
+            writeFragment();
+        }
+        if (mFragmentStartUs < 0) {
+            mFragmentStartUs = presentationTimeUs;
+        }
+        ByteBuffer sample = buffer.duplicate();
+        sample.limit(offset + size).position(offset);
+        ByteBuffer[] data = track.mMime.equals("video/avc") ? toLengthPrefixed(sample)
+                : new ByteBuffer[]{sample.slice()};
+        int dataSize = 0;
+        for (ByteBuffer part : data) {
+            dataSize += part.remaining();
+        }
+        track.add(data, dataSize, presentationTimeUs, sync);
+        mPendingBytes += dataSize;
+        mPeakPendingBytes = Math.max(mPeakPendingBytes, mPendingBytes);
+        int pendingSamples = 0;
+        for (Track pending : mTracks) {
+            pendingSamples += pending.mNumPending;
+        }
+        mPeakPendingSamples = Math.max(mPeakPendingSamples, pendingSamples);
+    }
+
+    /**
+     * Writes the last fragment. The channel is not closed.
+     */
+    public void finish() throws IOException {
+        if (!mStarted) {
+            throw new IllegalStateException("Writer not started");
+        }
+        writeFragment();
+    }
+
+    private void writeFragment() throws IOException {
+        long sTime = System.nanoTime();
+        ByteArrayOutputStream moof = new ByteArrayOutputStream();
+        ArrayList<int[]> dataOffsetPositions = new ArrayList<>();
+        int numSamples = 0;
+        write(moof, fullBox("mfhd", 0, 0, ints(++mSequenceNumber)));
+        for (int i = 0; i < mTracks.size(); i++) {
+            Track track = mTracks.get(i);
+            int count = track.mNumPending;
+            if (count == 0) {
+                continue;
+            }
+            long[] decodeTimesUs = Arrays.copyOf(track.mTimesUs, count);
+            Arrays.sort(decodeTimesUs);
+            ByteBuffer trun = ByteBuffer.allocate(12 + 16 * count);
+            trun.putInt((1 << 24) | kTrunFlags).putInt(count).putInt(0);
+            for (int j = 0; j < count; j++) {
+                // The duration of the last sample is not known yet, the previous one is repeated
+                int duration = j + 1 < count ? (int) (decodeTimesUs[j + 1] - decodeTimesUs[j])
+                        : track.mLastDuration;
+                track.mLastDuration = duration;
+                trun.putInt(duration).putInt(track.mSizes[j]);
+                trun.putInt(track.mSync[j] ? kSampleFlagsSync : kSampleFlagsNonSync);
+                trun.putInt((int) (track.mTimesUs[j] - decodeTimesUs[j]));
+            }
+            byte[] traf = box("traf", fullBox("tfhd", 0, kTfhdDefaultBaseIsMoof, ints(i + 1)),
+                    fullBox("tfdt", 1, 0, longs(decodeTimesUs[0])),
+                    box("trun", trun.array()));
+            // Data offset field of the trun, relative to the start of the traf
+            dataOffsetPositions.add(new int[]{moof.size() + traf.length - trun.capacity() + 8, i});
+            write(moof, traf);
+            numSamples += count;
+        }
+        if (numSamples == 0) {
+            return;
+        }
+        ByteBuffer moofBox = ByteBuffer.wrap(box("moof", moof.toByteArray()));
+        long mdatSize = 8 + mPendingBytes;
+        if (mdatSize > 0xffffffffL) {
+            throw new IOException("Fragment of " + mdatSize + " bytes is too large");
+        }
+        long dataOffset = moofBox.capacity() + 8;
+        for (int[] position : dataOffsetPositions) {
+            // The position is relative to the moof payload, which follows its 8 byte header
+            moofBox.putInt(position[0] + 8, (int) dataOffset);
+            Track track = mTracks.get(position[1]);
+            for (int j = 0; j < track.mNumPending; j++) {
+                dataOffset += track.mSizes[j];
+            }
+        }
+        ByteBuffer mdatHeader = ByteBuffer.allocate(8).putInt((int) mdatSize).put(fourcc("mdat"));
+        mdatHeader.flip();
+
+        int numBuffers = 2;
+        for (Track track : mTracks) {
+            for (int j = 0; j < track.mNumPending; j++) {
+                numBuffers += track.mData[j].length;
+            }
+        }
+        ByteBuffer[] buffers = new ByteBuffer[numBuffers];
+        int index = 0;
+        buffers[index++] = moofBox;
+        buffers[index++] = mdatHeader;
+        for (Track track : mTracks) {
+            for (int j = 0; j < track.mNumPending; j++) {
+                for (ByteBuffer part : track.mData[j]) {
+                    buffers[index++] = part;
+                }
+            }
+            track.clear();
+        }
+        writeFully(buffers);
+        mPendingBytes = 0;
+        mFragmentStartUs = -1;
+        mFragmentWriteTimes.add(System.nanoTime() - sTime);
+    }
+
+    private void writeFully(ByteBuffer[] buffers) throws IOException {
+        int index = 0;
+        while (index < buffers.length) {
+            long written = mChannel.write(buffers, index, buffers.length - index);
+            mWriteCalls++;
+            mBytesWritten += written;
+            while (index < buffers.length && !buffers[index].hasRemaining()) {
+                index++;
+            }
+        }
+    }
+
+    /**
+     * Splits an AVC sample at its start codes and returns the NAL units, each preceded by a
+     * buffer with its length. A sample without a start code is returned as is.
+     */
+    private static ByteBuffer[] toLengthPrefixed(ByteBuffer sample) {
+        ArrayList<ByteBuffer> nalUnits = splitNalUnits(sample);
+        if (nalUnits == null) {
+            return new ByteBuffer[]{sample.slice()};
+        }
+        ByteBuffer[] parts = new ByteBuffer[2 * nalUnits.size()];
+        ByteBuffer lengths = ByteBuffer.allocate(4 * nalUnits.size());
+        for (int i = 0; i < nalUnits.size(); i++) {
+            lengths.limit(4 * i + 4).position(4 * i);
+            parts[2 * i] = lengths.slice().putInt(0, nalUnits.get(i).remaining());
+            parts[2 * i + 1] = nalUnits.get(i);
+        }
+        return parts;
+    }
+
+    /**
+     * Returns the NAL units of an Annex B byte stream, null if it does not start with a start code
+     */
+    private static ArrayList<ByteBuffer> splitNalUnits(ByteBuffer stream) {
+        int start = stream.position();
+        int end = stream.limit();
+        if (startCodeLength(stream, start, end) == 0) {
+            return null;
+        }
+        ArrayList<ByteBuffer> nalUnits = new ArrayList<>();
+        int nalStart = -1;
+        int position = start;
+        while (position < end) {
+            int startCode = startCodeLength(stream, position, end);
+            if (startCode == 0) {
+                position++;
+                continue;
+            }
+            if (nalStart >= 0) {
+                nalUnits.add(slice(stream, nalStart, position));
+            }
+            position += startCode;
+            nalStart = position;
+        }
+        if (nalStart >= 0 && nalStart < end) {
+            nalUnits.add(slice(stream, nalStart, end));
+        }
+        return nalUnits;
+    }
+
+    private static int startCodeLength(ByteBuffer stream, int position, int end) {
+        if (position + 3 <= end && stream.get(position) == 0 && stream.get(position + 1) == 0) {
+            if (stream.get(position + 2) == 1) {
+                return 3;
+            }
+            if (position + 4 <= end && stream.get(position + 2) == 0
+                    && stream.get(position + 3) == 1) {
+                return 4;
+            }
+        }
+        return 0;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int start, int end) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(end).position(start);
+        return slice.slice();
+    }
+
+    private static byte[] avcConfiguration(ByteBuffer... csd) {
+        ArrayList<byte[]> sps = new ArrayList<>();
+        ArrayList<byte[]> pps = new ArrayList<>();
+        for (ByteBuffer data : csd) {
+            ArrayList<ByteBuffer> nalUnits = splitNalUnits(data.duplicate());
+            if (nalUnits == null) {
+                return null;
+            }
+            for (ByteBuffer nalUnit : nalUnits) {
+                int type = nalUnit.get(0) & 0x1f;
+                if (type == 7 && nalUnit.remaining() >= 4) {
+                    sps.add(toArray(nalUnit));
+                } else if (type == 8) {
+                    pps.add(toArray(nalUnit));
+                }
+            }
+        }
+        if (sps.isEmpty() || pps.isEmpty()) {
+            return null;
+        }
+        ByteArrayOutputStream config = new ByteArrayOutputStream();
+        byte[] firstSps = sps.get(0);
+        // Version, profile, compatibility, level and 4 byte NAL unit lengths
+        write(config, new byte[]{1, firstSps[1], firstSps[2], firstSps[3], (byte) 0xff,
+                (byte) (0xe0 | sps.size())});
+        for (byte[] nalUnit : sps) {
+            write(config, shorts(nalUnit.length), nalUnit);
+        }
+        write(config, new byte[]{(byte) pps.size()});
+        for (byte[] nalUnit : pps) {
+            write(config, shorts(nalUnit.length), nalUnit);
+        }
+        return box("avcC", config.toByteArray());
+    }
+
+    /**
+     * Returns an esds box with the ES, decoder config and SL config descriptors
+     */
+    private static byte[] esds(int objectType, int streamType, byte[] decoderSpecificInfo) {
+        byte[] decoderConfig = concat(new byte[]{(byte) objectType, (byte) (streamType << 2 | 1),
+                0, 0, 0}, ints(0, 0), descriptor(5, decoderSpecificInfo));
+        byte[] esDescriptor = concat(shorts(0), new byte[]{0}, descriptor(4, decoderConfig),
+                descriptor(6, new byte[]{2}));
+        return fullBox("esds", 0, 0, descriptor(3, esDescriptor));
+    }
+
+    private static byte[] descriptor(int tag, byte[] payload) {
+        int size = payload.length;
+        // Sizes are written on 4 bytes
+        return concat(new byte[]{(byte) tag, (byte) (0x80 | (size >> 21 & 0x7f)),
+                (byte) (0x80 | (size >> 14 & 0x7f)), (byte) (0x80 | (size >> 7 & 0x7f)),
+                (byte) (size & 0x7f)}, payload);
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] array = new byte[buffer.remaining()];
+        buffer.duplicate().get(array);
+        return array;
+    }
+
+    private static void write(ByteArrayOutputStream out, byte[]... parts) {
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out, parts);
+        return out.toByteArray();
+    }
+
+    private static byte[] fourcc(String type) {
+        return type.getBytes();
+    }
+
+    private static byte[] shorts(int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(2 * values.length);
+        for (int value : values) {
+            buffer.putShort((short) value);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] ints(int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * values.length);
+        for (int value : values) {
+            buffer.putInt(value);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] longs(long... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 * values.length);
+        for (long value : values) {
+            buffer.putLong(value);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] box(String type, byte[]... payload) {
+        byte[] content = concat(payload);
+        return concat(ints(8 + content.length), fourcc(type), content);
+    }
+
+    private static byte[] fullBox(String type, int version, int flags, byte[]... payload) {
+        return box(type, concat(ints((version << 24) | flags), concat(payload)));
+    }
+
+    /**
+     * Returns the number of fragments written
+     */
+    public int getNumFragments() { return mSequenceNumber; }
+
+    public long getInitSegmentSize() { return mInitSegmentSize; }
+
+    public long getBytesWritten() { return mBytesWritten; }
+
+    /**
+     * Returns the number of gathering write calls
+     */
+    public long getWriteCalls() { return mWriteCalls; }
+
+    /**
+     * Returns the largest size of the samples held by a fragment before it was written
+     */
+    public long getPeakPendingBytes() { return mPeakPendingBytes; }
+
+    public int getPeakPendingSamples() { return mPeakPendingSamples; }
+
+    /**
+     * Returns the time taken to build and write each fragment
+     */
+    public Distribution getFragmentWriteTimes() { return mFragmentWriteTimes; }
+}
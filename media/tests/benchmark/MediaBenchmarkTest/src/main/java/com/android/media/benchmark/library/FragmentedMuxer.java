@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Muxes samples to a fragmented MP4 file with {@link FragmentedMp4Writer}, with the same
+ * samples and the same metrics as {@link Muxer} so that both can be compared.
+ */
+public class FragmentedMuxer {
+    private static final String TAG = "FragmentedMuxer";
+
+    private final Distribution mWriteTimes = new Distribution();
+    private FragmentedMp4Writer mWriter;
+    private FileOutputStream mOutput;
+    private File mOutputFile;
+    private int mNumTracks;
+    private int mNumSamples;
+    private long mSetupTimeNs;
+    private long mFinishTimeNs;
+    private long mCloseTimeNs;
+    private long mOutputSize;
+
+    private static ByteBuffer[] getCsd(MediaFormat format) {
+        ArrayList<ByteBuffer> csd = new ArrayList<>();
+        for (int i = 0; format.containsKey("csd-" + i); i++) {
+            csd.add(format.getByteBuffer("csd-" + i));
+        }
+        return csd.toArray(new ByteBuffer[0]);
+    }
+
+    /**
+     * Creates a writer on a new file of the app, adds all the given tracks and writes the init
+     * segment. The track index of a track is its position in the list.
+     *
+     * @param context            App context to specify the output file path
+     * @param trackFormats       Formats of the tracks
+     * @param fragmentDurationUs Minimum duration of a fragment
+     * @return Returns the number of tracks added, -1 otherwise
+     */
+    public int setUpMuxer(Context context, ArrayList<MediaFormat> trackFormats,
+            long fragmentDurationUs) {
+        mWriteTimes.reset();
+        mNumSamples = 0;
+        try {
+            long sTime = System.nanoTime();
+            mOutputFile = File.createTempFile("fmp4.", ".out", context.getFilesDir());
+            mOutput = new FileOutputStream(mOutputFile);
+            mWriter = new FragmentedMp4Writer(mOutput.getChannel(), fragmentDurationUs);
+            for (MediaFormat format : trackFormats) {
+                String mime = format.getString(MediaFormat.KEY_MIME);
+                int trackIndex = mime.startsWith("video/")
+                        ? mWriter.addVideoTrack(mime, format.getInteger(MediaFormat.KEY_WIDTH),
+                                format.getInteger(MediaFormat.KEY_HEIGHT), getCsd(format))
+                        : mWriter.addAudioTrack(mime,
+                                format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                                format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), getCsd(format));
+                if (trackIndex < 0) {
+                    Log.e(TAG, "Unsupported track " + mime);
+                    closeOutput();
+                    return -1;
+                }
+            }
+            mWriter.start();
+            mSetupTimeNs = System.nanoTime() - sTime;
+            mNumTracks = trackFormats.size();
+            return mNumTracks;
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeOutput();
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the file the writer writes to, deleted by {@link #deInitMuxer()}
+     */
+    public File getOutputFile() { return mOutputFile; }
+
+    /**
+     * Performs the Mux operation
+     *
+     * @param trackIndex           Track index of the sample
+     * @param inputExtractedBuffer Buffer containing encoded samples
+     * @param inputBufferInfo      Buffer information related to these samples
+     * @return Returns Status as 0 if write operation is successful, -1 otherwise
+     */
+    public int mux(int trackIndex, ArrayList<ByteBuffer> inputExtractedBuffer,
+                   ArrayList<MediaCodec.BufferInfo> inputBufferInfo) {
+        for (int sampleCount = 0; sampleCount < inputExtractedBuffer.size(); sampleCount++) {
+            if (writeSample(trackIndex, inputExtractedBuffer.get(sampleCount),
+                    inputBufferInfo.get(sampleCount)) != 0) {
+                return -1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Writes a single sample. The buffer must not be modified until the fragment holding the
+     * sample is written. End of stream samples without data are not written.
+     *
+     * @param trackIndex Track index of the sample
+     * @param buffer     Buffer containing the encoded sample
+     * @param info       Buffer information related to the sample
+     * @return Returns Status as 0 if write operation is successful, -1 otherwise
+     */
+    public int writeSample(int trackIndex, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        if (info.size <= 0) {
+            return 0;
+        }
+        try {
+            long sTime = System.nanoTime();
+            mWriter.writeSample(trackIndex, buffer, info.offset, info.size,
+                    info.presentationTimeUs, (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+            mWriteTimes.add(System.nanoTime() - sTime);
+            mNumSamples++;
+        } catch (IOException | IllegalStateException e) {
+            e.printStackTrace();
+            return -1;
+        }
+        return 0;
+    }
+
+    /**
+     * Writes the last fragment and closes the file, which is deleted once its size is recorded
+     */
+    public void deInitMuxer() {
+        long sTime = System.nanoTime();
+        try {
+            mWriter.finish();
+        } catch (IOException | IllegalStateException e) {
+            Log.e(TAG, "Unable to write the last fragment: " + e);
+        }
+        long finishTime = System.nanoTime();
+        mOutputSize = mOutputFile.length();
+        closeOutput();
+        mFinishTimeNs = finishTime - sTime;
+        mCloseTimeNs = System.nanoTime() - finishTime;
+    }
+
+    private void closeOutput() {
+        if (mOutput != null) {
+            try {
+                mOutput.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close output: " + e);
+            }
+            mOutput = null;
+        }
+        if (mOutputFile != null && !mOutputFile.delete()) {
+            Log.w(TAG, "Unable to delete " + mOutputFile);
+        }
+    }
+
+    /**
+     * Returns the write call latencies and the cost of finishing the file, with the fragments,
+     * the samples held before a fragment is written and the gathering writes of the last mux
+     * operation. The names of the metrics shared with {@link Muxer#getMetrics} are the same,
+     * finishing the file being reported as stopTimeNs.
+     *
+     * @param inputReference Name of the input
+     * @param operation      Mux operation
+     */
+    public Metrics getMetrics(String inputReference, String operation) {
+        Metrics metrics = new Metrics(inputReference, operation, "fmp4");
+        metrics.add("tracks", mNumTracks);
+        metrics.add("samples", mNumSamples);
+        metrics.add("setupTimeNs", mSetupTimeNs);
+        metrics.add("writeCallTimeNs", mWriteTimes);
+        metrics.add("writeTimeNs", mWriteTimes.getSum());
+        metrics.add("stopTimeNs", mFinishTimeNs);
+        metrics.add("releaseTimeNs", mCloseTimeNs);
+        metrics.add("outputSize", mOutputSize);
+        metrics.add("initSegmentSize", mWriter.getInitSegmentSize());
+        metrics.add("fragments", mWriter.getNumFragments());
+        metrics.add("fragmentWriteTimeNs", mWriter.getFragmentWriteTimes());
+        metrics.add("gatheringWrites", mWriter.getWriteCalls());
+        metrics.add("peakPendingBytes", mWriter.getPeakPendingBytes());
+        metrics.add("peakPendingSamples", mWriter.getPeakPendingSamples());
+        return metrics;
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A media buffer travelling between the stages of a {@link Pipeline}.
+ * <p>
+ * A frame is owned by exactly one stage at a time. Ownership is handed over by sending the frame
+ * downstream, or given up by calling {@link #release()} which returns the frame to its pool.
+ * A frame fanned out to several consumers is shared instead of copied: every additional owner is
+ * accounted for with {@link #retain(int)} and the frame returns to its pool when the last owner
+ * releases it. Shared frames must not be modified.
+ * Flags use the values of MediaCodec.BUFFER_FLAG_* so that they can be passed through unchanged.
+ */
+public class Frame {
+    public static final int FLAG_SYNC_FRAME = 1;
+    public static final int FLAG_CODEC_CONFIG = 2;
+    public static final int FLAG_END_OF_STREAM = 4;
+
+    private final Pool mPool;
+    private ByteBuffer mBuffer;
+    private int mOffset;
+    private int mSize;
+    private long mPresentationTimeUs;
+    private int mFlags;
+    private long mOriginTimeNs;
+    private int mRefCount;
+
+    private Frame(Pool pool, int capacity) {
+        mPool = pool;
+        mBuffer = ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Creates a frame which does not belong to any pool, release is then a no-op
+     *
+     * @param capacity Capacity of the frame buffer in bytes
+     */
+    public static Frame createUnpooled(int capacity) { return new Frame(null, capacity); }
+
+    /**
+     * Returns the buffer backing the frame. The valid data is [offset, offset + size).
+     */
+    public ByteBuffer getBuffer() { return mBuffer; }
+
+    /**
+     * Makes sure the frame can hold at least the given number of bytes. Contents are not kept if
+     * the buffer has to be reallocated. Pooled frames keep the larger buffer once it is returned,
+     * so the reallocation cost is paid once per frame and not once per sample.
+     *
+     * @param capacity Required capacity in bytes
+     * @return Buffer backing the frame
+     */
+    public ByteBuffer ensureCapacity(int capacity) {
+        if (mBuffer.capacity() < capacity) {
+            mBuffer = ByteBuffer.allocate(capacity);
+        }
+        return mBuffer;
+    }
+
+    public void set(int offset, int size, long presentationTimeUs, int flags) {
+        mOffset = offset;
+        mSize = size;
+        mPresentationTimeUs = presentationTimeUs;
+        mFlags = flags;
+    }
+
+    public int getOffset() { return mOffset; }
+
+    public int getSize() { return mSize; }
+
+    public long getPresentationTimeUs() { return mPresentationTimeUs; }
+
+    public int getFlags() { return mFlags; }
+
+    public boolean isEndOfStream() { return (mFlags & FLAG_END_OF_STREAM) != 0; }
+
+    /**
+     * Time at which the source stage produced the data this frame was derived from.
+     * Used to measure end to end latency of a pipeline.
+     */
+    public long getOriginTimeNs() { return mOriginTimeNs; }
+
+    public void setOriginTimeNs(long originTimeNs) { mOriginTimeNs = originTimeNs; }
+
+    /**
+     * Adds owners to the frame, each of which has to call {@link #release()}
+     *
+     * @param count Number of owners to add
+     */
+    public void retain(int count) {
+        synchronized (this) {
+            if (mPool != null && mRefCount <= 0) {
+                throw new IllegalStateException("Frame retained after it was released");
+            }
+            mRefCount += count;
+        }
+    }
+
+    /**
+     * Gives up ownership of the frame. The frame returns to its pool once all owners released it.
+     */
+    public void release() {
+        if (mPool == null) {
+            return;
+        }
+        synchronized (this) {
+            if (mRefCount <= 0) {
+                throw new IllegalStateException("Frame released more than once");
+            }
+            if (--mRefCount > 0) {
+                return;
+            }
+        }
+        mPool.recycle(this);
+    }
+
+    private void clear() {
+        synchronized (this) {
+            mRefCount = 1;
+        }
+        mBuffer.clear();
+        mOffset = 0;
+        mSize = 0;
+        mPresentationTimeUs = 0;
+        mFlags = 0;
+        mOriginTimeNs = 0;
+    }
+
+    /**
+     * Fixed size set of frames. The number of frames bounds the data in flight between two stages,
+     * a stage asking for a frame blocks until one is released downstream.
+     */
+    public static class Pool {
+        private final ArrayBlockingQueue<Frame> mFreeFrames;
+        private final int mNumFrames;
+        private volatile int mPeakFramesInUse;
+
+        /**
+         * @param numFrames Number of frames in the pool
+         * @param capacity  Initial capacity of every frame in bytes
+         */
+        public Pool(int numFrames, int capacity) {
+            mNumFrames = numFrames;
+            mFreeFrames = new ArrayBlockingQueue<>(numFrames);
+            for (int i = 0; i < numFrames; i++) {
+                mFreeFrames.add(new Frame(this, capacity));
+            }
+        }
+
+        /**
+         * Waits for a free frame
+         *
+         * @return Cleared frame owned by the caller
+         */
+        public Frame obtain() throws InterruptedException {
+            Frame frame = mFreeFrames.take();
+            frame.clear();
+            updatePeakFramesInUse();
+            return frame;
+        }
+
+        /**
+         * Returns a free frame if one becomes available within the timeout, null otherwise
+         */
+        public Frame poll(long timeoutUs) throws InterruptedException {
+            Frame frame = mFreeFrames.poll(timeoutUs, TimeUnit.MICROSECONDS);
+            if (frame != null) {
+                frame.clear();
+                updatePeakFramesInUse();
+            }
+            return frame;
+        }
+
+        public int getNumFrames() { return mNumFrames; }
+
+        public int getNumFreeFrames() { return mFreeFrames.size(); }
+
+        /**
+         * Returns the highest number of frames which were out of the pool at the same time
+         */
+        public int getPeakFramesInUse() { return mPeakFramesInUse; }
+
+        private synchronized void updatePeakFramesInUse() {
+            int framesInUse = mNumFrames - mFreeFrames.size();
+            if (framesInUse > mPeakFramesInUse) {
+                mPeakFramesInUse = framesInUse;
+            }
+        }
+
+        private void recycle(Frame frame) { mFreeFrames.add(frame); }
+    }
+}
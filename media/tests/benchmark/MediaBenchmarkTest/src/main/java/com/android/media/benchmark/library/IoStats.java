@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+/**
+ * I/O counters of the process from /proc/self/io.
+ * <p>
+ * wchar counts the bytes passed to write calls, including writes which only reach the page
+ * cache, while writeBytes counts the bytes the process caused to be sent to storage. Dirty pages
+ * are only counted once they are written back, for example by fsync().
+ */
+public class IoStats {
+    private static final String kProcFile = "/proc/self/io";
+
+    private long mReadChars;
+    private long mWriteChars;
+    private long mReadCalls;
+    private long mWriteCalls;
+    private long mReadBytes;
+    private long mWriteBytes;
+    private long mCancelledWriteBytes;
+
+    /**
+     * Returns the current counters of the process, null if they cannot be read
+     */
+    public static IoStats read() {
+        try (FileReader reader = new FileReader(kProcFile)) {
+            return parse(reader);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parses counters in the format of /proc/[pid]/io. Unknown lines are ignored.
+     */
+    public static IoStats parse(String text) throws IOException {
+        return parse(new StringReader(text));
+    }
+
+    private static IoStats parse(Reader reader) throws IOException {
+        IoStats stats = new IoStats();
+        BufferedReader lines = new BufferedReader(reader);
+        for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            long value;
+            try {
+                value = Long.parseLong(line.substring(colon + 1).trim());
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            switch (line.substring(0, colon).trim()) {
+                case "rchar":
+                    stats.mReadChars = value;
+                    break;
+                case "wchar":
+                    stats.mWriteChars = value;
+                    break;
+                case "syscr":
+                    stats.mReadCalls = value;
+                    break;
+                case "syscw":
+                    stats.mWriteCalls = value;
+                    break;
+                case "read_bytes":
+                    stats.mReadBytes = value;
+                    break;
+                case "write_bytes":
+                    stats.mWriteBytes = value;
+                    break;
+                case "cancelled_write_bytes":
+                    stats.mCancelledWriteBytes = value;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the counters of this snapshot minus the counters of an earlier one
+     */
+    public IoStats since(IoStats earlier) {
+        IoStats delta = new IoStats();
+        delta.mReadChars = mReadChars - earlier.mReadChars;
+        delta.mWriteChars = mWriteChars - earlier.mWriteChars;
+        delta.mReadCalls = mReadCalls - earlier.mReadCalls;
+        delta.mWriteCalls = mWriteCalls - earlier.mWriteCalls;
+        delta.mReadBytes = mReadBytes - earlier.mReadBytes;
+        delta.mWriteBytes = mWriteBytes - earlier.mWriteBytes;
+        delta.mCancelledWriteBytes = mCancelledWriteBytes - earlier.mCancelledWriteBytes;
+        return delta;
+    }
+
+    public long getReadChars() { return mReadChars; }
+
+    public long getWriteChars() { return mWriteChars; }
+
+    public long getReadCalls() { return mReadCalls; }
+
+    public long getWriteCalls() { return mWriteCalls; }
+
+    public long getReadBytes() { return mReadBytes; }
+
+    public long getWriteBytes() { return mWriteBytes; }
+
+    public long getCancelledWriteBytes() { return mCancelledWriteBytes; }
+
+    /**
+     * Adds the write counters to the metrics, with the amplification against a size of reference
+     *
+     * @param metrics       Metrics to add the counters to
+     * @param referenceSize Size the written bytes are compared with, such as the output file
+     */
+    public void addTo(Metrics metrics, long referenceSize) {
+        metrics.add("writeCalls", mWriteCalls);
+        metrics.add("wcharBytes", mWriteChars);
+        metrics.add("storageWriteBytes", mWriteBytes);
+        metrics.add("cancelledWriteBytes", mCancelledWriteBytes);
+        metrics.add("writeCallAmplification",
+                (double) mWriteChars / Math.max(1, referenceSize));
+        metrics.add("storageWriteAmplification",
+                (double) (mWriteBytes - mCancelledWriteBytes) / Math.max(1, referenceSize));
+    }
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * HTTP/1.1 server on the loopback interface serving the files of a directory, to benchmark
+ * streaming without an external network.
+ * <p>
+ * GET and HEAD requests are answered with the whole file or the byte range asked for, on
+ * persistent connections. The link is simulated by a round trip time, with a random jitter, to
+ * open a connection and before each response, and by a bandwidth shared by all connections.
+ */
+public class LoopbackHttpServer implements Closeable {
+    private static final int kChunkSize = 16 * 1024;
+    private static final int kMaxLineLength = 8 * 1024;
+
+    private final File mRootDir;
+    private final Random mRandom = new Random(0);
+    private final Object mLinkLock = new Object();
+    private final ArrayList<Socket> mSockets = new ArrayList<>();
+    private final AtomicLong mBytesSent = new AtomicLong();
+    private final AtomicLong mNumRequests = new AtomicLong();
+    private final AtomicLong mNumConnections = new AtomicLong();
+    private volatile long mBytesPerSecond;
+    private volatile long mRoundTripTimeUs;
+    private volatile long mJitterUs;
+    private long mLinkFreeTimeNs;
+    private ServerSocket mServerSocket;
+    private Thread mAcceptThread;
+
+    /**
+     * @param rootDir Directory the files are served from
+     */
+    public LoopbackHttpServer(File rootDir) { mRootDir = rootDir; }
+
+    /**
+     * Sets the bandwidth of the link shared by all connections, 0 for unlimited
+     */
+    public void setBandwidth(long bytesPerSecond) { mBytesPerSecond = bytesPerSecond; }
+
+    /**
+     * Sets the delay to open a connection and to send the first byte of a response
+     */
+    public void setRoundTripTime(long roundTripTimeUs) { mRoundTripTimeUs = roundTripTimeUs; }
+
+    /**
+     * Sets the maximum random variation of each round trip time, in both directions
+     */
+    public void setJitter(long jitterUs) { mJitterUs = jitterUs; }
+
+    /**
+     * Listens on an ephemeral port of the loopback interface
+     */
+    public void start() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        mAcceptThread = new Thread(this::acceptConnections, "LoopbackHttpServer");
+        mAcceptThread.setDaemon(true);
+        mAcceptThread.start();
+    }
+
+    /**
+     * Returns the port the server listens on
+     */
+    public int getPort() { return mServerSocket.getLocalPort(); }
+
+    /**
+     * Returns the URL of a file of the served directory
+     */
+    public String getUrl(String fileName) {
+        return "http://127.0.0.1:" + getPort() + "/" + fileName;
+    }
+
+    /**
+     * Returns the number of body bytes sent since the start or the last reset
+     */
+    public long getBytesSent() { return mBytesSent.get(); }
+
+    public long getNumRequests() { return mNumRequests.get(); }
+
+    public long getNumConnections() { return mNumConnections.get(); }
+
+    public void resetCounters() {
+        mBytesSent.set(0);
+        mNumRequests.set(0);
+        mNumConnections.set(0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mServerSocket == null) {
+            return;
+        }
+        mServerSocket.close();
+        synchronized (mSockets) {
+            for (Socket socket : mSockets) {
+                closeQuietly(socket);
+            }
+            mSockets.clear();
+        }
+        try {
+            mAcceptThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mServerSocket = null;
+    }
+
+    private void acceptConnections() {
+        while (!mServerSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                break;
+            }
+            synchronized (mSockets) {
+                mSockets.add(socket);
+            }
+            mNumConnections.incrementAndGet();
+            Thread thread = new Thread(() -> serveConnection(socket), "LoopbackHttpConnection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void serveConnection(Socket socket) {
+        try (FileChannelCache files = new FileChannelCache()) {
+            socket.setTcpNoDelay(true);
+            InputStream input = new BufferedInputStream(socket.getInputStream());
+            OutputStream output = new BufferedOutputStream(socket.getOutputStream(), kChunkSize);
+            // Connection handshake
+            waitRoundTrip();
+            boolean keepAlive = true;
+            while (keepAlive) {
+                String requestLine = readLine(input);
+                if (requestLine == null) {
+                    break;
+                }
+                String range = null;
+                keepAlive = !requestLine.endsWith("HTTP/1.0");
+                for (String line = readLine(input); line != null && !line.isEmpty();
+                        line = readLine(input)) {
+                    int colon = line.indexOf(':');
+                    if (colon < 0) {
+                        continue;
+                    }
+                    String name = line.substring(0, colon).trim().toLowerCase(Locale.US);
+                    String value = line.substring(colon + 1).trim();
+                    if (name.equals("range")) {
+                        range = value;
+                    } else if (name.equals("connection")) {
+                        keepAlive = !value.equalsIgnoreCase("close");
+                    }
+                }
+                mNumRequests.incrementAndGet();
+                waitRoundTrip();
+                serveRequest(requestLine, range, keepAlive, files, output);
+                output.flush();
+            }
+        } catch (IOException e) {
+            // The client closed the connection, usually to request another range
+        } finally {
+            closeQuietly(socket);
+            synchronized (mSockets) {
+                mSockets.remove(socket);
+            }
+        }
+    }
+
+    private void serveRequest(String requestLine, String range, boolean keepAlive,
+            FileChannelCache files, OutputStream output) throws IOException {
+        String[] parts = requestLine.split(" ");
+        if (parts.length != 3 || !(parts[0].equals("GET") || parts[0].equals("HEAD"))) {
+            writeHeaders(output, "405 Method Not Allowed", 0, null, keepAlive);
+            return;
+        }
+        String name = parts[1].startsWith("/") ? parts[1].substring(1) : parts[1];
+        int query = name.indexOf('?');
+        if (query >= 0) {
+            name = name.substring(0, query);
+        }
+        File file = new File(mRootDir, name);
+        if (name.isEmpty() || name.contains("..") || !file.isFile()) {
+            writeHeaders(output, "404 Not Found", 0, null, keepAlive);
+            return;
+        }
+        FileChannel channel = files.open(file);
+        long size = channel.size();
+        long start = 0;
+        long end = size - 1;
+        String status = "200 OK";
+        String contentRange = null;
+        // Multiple ranges and malformed ranges are ignored, and the whole file is sent
+        String spec = range != null && range.startsWith("bytes=") && range.indexOf(',') < 0
+                ? range.substring("bytes=".length()).trim() : "";
+        int dash = spec.indexOf('-');
+        if (dash >= 0) {
+            try {
+                if (dash == 0) {
+                    start = Math.max(0, size - Long.parseLong(spec.substring(1)));
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    if (dash < spec.length() - 1) {
+                        end = Math.min(end, Long.parseLong(spec.substring(dash + 1)));
+                    }
+                }
+            } catch (NumberFormatException e) {
+                dash = -1;
+                start = 0;
+                end = size - 1;
+            }
+        }
+        if (dash >= 0) {
+            if (start >= size || start > end) {
+                writeHeaders(output, "416 Range Not Satisfiable", 0, "bytes */" + size,
+                        keepAlive);
+                return;
+            }
+            status = "206 Partial Content";
+            contentRange = "bytes " + start + "-" + end + "/" + size;
+        }
+        long length = end - start + 1;
+        writeHeaders(output, status, length, contentRange, keepAlive);
+        if (parts[0].equals("HEAD")) {
+            return;
+        }
+        ByteBuffer chunk = ByteBuffer.allocate(kChunkSize);
+        for (long position = start; position <= end; ) {
+            chunk.clear();
+            chunk.limit((int) Math.min(kChunkSize, end + 1 - position));
+            while (chunk.hasRemaining()) {
+                if (channel.read(chunk, position + chunk.position()) < 0) {
+                    throw new IOException("File truncated while sending");
+                }
+            }
+            waitTransfer(chunk.limit());
+            output.write(chunk.array(), 0, chunk.limit());
+            output.flush();
+            position += chunk.limit();
+            mBytesSent.addAndGet(chunk.limit());
+        }
+    }
+
+    private static void writeHeaders(OutputStream output, String status, long length,
+            String contentRange, boolean keepAlive) throws IOException {
+        StringBuilder headers = new StringBuilder();
+        headers.append("HTTP/1.1 ").append(status).append("\r\n");
+        headers.append("Content-Type: application/octet-stream\r\n");
+        headers.append("Accept-Ranges: bytes\r\n");
+        headers.append("Content-Length: ").append(length).append("\r\n");
+        if (contentRange != null) {
+            headers.append("Content-Range: ").append(contentRange).append("\r\n");
+        }
+        headers.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+        headers.append("\r\n");
+        output.write(headers.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Returns a line without its terminator, or null at the end of the stream
+     */
+    private static String readLine(InputStream input) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = input.read()) >= 0) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            if (line.length() >= kMaxLineLength) {
+                throw new IOException("Request line too long");
+            }
+            line.append((char) c);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+
+    private void waitRoundTrip() {
+        long delayUs = mRoundTripTimeUs;
+        long jitterUs = mJitterUs;
+        if (jitterUs > 0) {
+            synchronized (mRandom) {
+                delayUs += (long) ((mRandom.nextDouble() * 2 - 1) * jitterUs);
+            }
+        }
+        sleepUntil(System.nanoTime() + Math.max(0, delayUs) * 1000);
+    }
+
+    /**
+     * Reserves the time to send the given number of bytes on the shared link and waits for it
+     */
+    private void waitTransfer(int size) {
+        long bytesPerSecond = mBytesPerSecond;
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        long doneTimeNs;
+        synchronized (mLinkLock) {
+            doneTimeNs = Math.max(System.nanoTime(), mLinkFreeTimeNs)
+                    + size * 1000000000L / bytesPerSecond;
+            mLinkFreeTimeNs = doneTimeNs;
+        }
+        sleepUntil(doneTimeNs);
+    }
+
+    private static void sleepUntil(long deadlineNs) {
+        for (long now = System.nanoTime(); now < deadlineNs; now = System.nanoTime()) {
+            LockSupport.parkNanos(deadlineNs - now);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing left to release
+        }
+    }
+
+    /**
+     * Keeps the file of the last request of a connection open for the next range request
+     */
+    private static class FileChannelCache implements Closeable {
+        private File mFile;
+        private FileInputStream mInput;
+
+        FileChannel open(File file) throws IOException {
+            if (!file.equals(mFile)) {
+                close();
+                mInput = new FileInputStream(file);
+                mFile = file;
+            }
+            return mInput.getChannel();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mInput != null) {
+                mInput.close();
+                mInput = null;
+                mFile = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the independent cases of a benchmark matrix concurrently, admitting a case only when the
+ * resources it measures are free.
+ * <p>
+ * A hardware codec family, the codecs of a vendor of the same kind which usually share one
+ * block, runs a single case at a time. Software cases share a budget of CPUs. An exclusive case
+ * runs alone, for the latency-sensitive measurements. Cases are admitted in the order they were
+ * added, a later case overtaking an earlier one waiting for its resources, except for an
+ * exclusive case, which holds back the cases after it until it has run.
+ * <p>
+ * The metrics of every case are tagged with whether another case ran alongside it and the
+ * highest number of cases running at once while it ran, so that concurrent measurements can be
+ * told apart. {@link #getMetrics(String)} reports the wall time of the suite against the sum of
+ * the times of its cases. The cases were timed while running alongside each other, so the sum
+ * includes their contention and is not the time of a serial run, which has to be measured by
+ * running the matrix again with a concurrency of 1.
+ */
+public class MatrixScheduler {
+    /**
+     * Resources a case holds while it runs
+     */
+    public static class Resources {
+        private final String mHardwareFamily;
+        private final int mCpus;
+        private final boolean mExclusive;
+
+        /**
+         * @param hardwareFamily Hardware codec family of the case, null if none
+         * @param cpus           CPUs the case keeps busy
+         * @param exclusive      If true, the case runs alone
+         */
+        public Resources(String hardwareFamily, int cpus, boolean exclusive) {
+            mHardwareFamily = hardwareFamily;
+            mCpus = cpus;
+            mExclusive = exclusive;
+        }
+
+        /**
+         * Returns the resources of a case running a codec, a CPU for a software codec and the
+         * family of a hardware one: its vendor prefix and whether it is an encoder, as in
+         * "c2.vendor.encoder"
+         */
+        public static Resources forCodec(String codecName, boolean isEncoder,
+                boolean isHardware) {
+            if (!isHardware) {
+                return new Resources(null, 1, false);
+            }
+            String[] parts = codecName.split("\\.");
+            String vendor = parts.length > 1 ? parts[0] + "." + parts[1] : codecName;
+            return new Resources(vendor + (isEncoder ? ".encoder" : ".decoder"), 0, false);
+        }
+
+        /**
+         * Returns the resources of a case which must run alone
+         */
+        public static Resources exclusive() { return new Resources(null, 0, true); }
+
+        public String getHardwareFamily() { return mHardwareFamily; }
+
+        public int getCpus() { return mCpus; }
+
+        public boolean isExclusive() { return mExclusive; }
+    }
+
+    private static class Case {
+        final String mName;
+        final Resources mResources;
+        final Callable<Metrics> mJob;
+        long mStartTimeNs;
+        long mEndTimeNs;
+        boolean mConcurrent;
+        int mPeakConcurrency;
+        Metrics mMetrics;
+        Throwable mError;
+
+        Case(String name, Resources resources, Callable<Metrics> job) {
+            mName = name;
+            mResources = resources;
+            mJob = job;
+        }
+    }
+
+    private final int mMaxConcurrency;
+    private final int mCpuBudget;
+    private final ArrayList<Case> mCases = new ArrayList<>();
+    private final ArrayList<Case> mPending = new ArrayList<>();
+    private final ArrayList<Case> mRunning = new ArrayList<>();
+    private final HashSet<String> mBusyFamilies = new HashSet<>();
+    private int mBusyCpus;
+    private int mPeakConcurrency;
+    private long mSuiteTimeNs;
+
+    /**
+     * @param maxConcurrency Highest number of cases running at once, 1 for a serial run
+     * @param cpuBudget      CPUs the software cases may keep busy at once
+     */
+    public MatrixScheduler(int maxConcurrency, int cpuBudget) {
+        mMaxConcurrency = Math.max(1, maxConcurrency);
+        mCpuBudget = Math.max(1, cpuBudget);
+    }
+
+    /**
+     * Adds a case to the matrix
+     *
+     * @param name      Name of the case, unique in the matrix
+     * @param resources Resources the case holds while it runs
+     * @param job       Runs the case, returning its metrics or null
+     */
+    public void add(String name, Resources resources, Callable<Metrics> job) {
+        Case testCase = new Case(name, resources, job);
+        mCases.add(testCase);
+        mPending.add(testCase);
+    }
+
+    private boolean canAdmit(Case testCase) {
+        if (mRunning.size() >= mMaxConcurrency) {
+            return false;
+        }
+        for (Case running : mRunning) {
+            if (running.mResources.isExclusive()) {
+                return false;
+            }
+        }
+        Resources resources = testCase.mResources;
+        if (resources.isExclusive()) {
+            return mRunning.isEmpty();
+        }
+        if (resources.getHardwareFamily() != null
+                && mBusyFamilies.contains(resources.getHardwareFamily())) {
+            return false;
+        }
+        // A case needing more than the budget runs once no other one keeps the CPUs busy
+        return resources.getCpus() == 0 || mBusyCpus == 0
+                || mBusyCpus + resources.getCpus() <= mCpuBudget;
+    }
+
+    /**
+     * Returns the next case which can start, null if none can for now
+     */
+    private Case nextCase() {
+        for (Case testCase : mPending) {
+            if (canAdmit(testCase)) {
+                return testCase;
+            }
+            if (testCase.mResources.isExclusive()) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    private void start(Case testCase) {
+        mPending.remove(testCase);
+        mRunning.add(testCase);
+        Resources resources = testCase.mResources;
+        if (resources.getHardwareFamily() != null) {
+            mBusyFamilies.add(resources.getHardwareFamily());
+        }
+        mBusyCpus += resources.getCpus();
+        mPeakConcurrency = Math.max(mPeakConcurrency, mRunning.size());
+        for (Case running : mRunning) {
+            running.mPeakConcurrency = Math.max(running.mPeakConcurrency, mRunning.size());
+            if (mRunning.size() > 1) {
+                running.mConcurrent = true;
+            }
+        }
+        testCase.mStartTimeNs = System.nanoTime();
+    }
+
+    private synchronized void finish(Case testCase) {
+        testCase.mEndTimeNs = System.nanoTime();
+        mRunning.remove(testCase);
+        Resources resources = testCase.mResources;
+        if (resources.getHardwareFamily() != null) {
+            mBusyFamilies.remove(resources.getHardwareFamily());
+        }
+        mBusyCpus -= resources.getCpus();
+        notifyAll();
+    }
+
+    private void runCase(Case testCase) {
+        try {
+            testCase.mMetrics = testCase.mJob.call();
+        } catch (Throwable e) {
+            // An assertion failing in a case fails the case, not the scheduler
+            testCase.mError = e;
+        } finally {
+            finish(testCase);
+        }
+    }
+
+    /**
+     * Runs the cases of the matrix and waits for all of them to finish, a matrix is run once
+     *
+     * @return Number of cases which threw an exception or an error
+     */
+    public int run() throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(mMaxConcurrency);
+        long sTime = System.nanoTime();
+        try {
+            synchronized (this) {
+                while (!mPending.isEmpty() || !mRunning.isEmpty()) {
+                    Case testCase = nextCase();
+                    if (testCase == null) {
+                        wait();
+                        continue;
+                    }
+                    start(testCase);
+                    executor.execute(() -> runCase(testCase));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        mSuiteTimeNs += System.nanoTime() - sTime;
+        int failures = 0;
+        for (Case testCase : mCases) {
+            if (testCase.mError != null) {
+                failures++;
+            } else if (testCase.mMetrics != null) {
+                testCase.mMetrics.add("concurrent", testCase.mConcurrent ? 1 : 0);
+                testCase.mMetrics.add("peakConcurrency", testCase.mPeakConcurrency);
+            }
+        }
+        return failures;
+    }
+
+    public int getNumCases() { return mCases.size(); }
+
+    /**
+     * Returns the tagged metrics of the cases which returned some, in the order they were added
+     */
+    public List<Metrics> getResults() {
+        ArrayList<Metrics> results = new ArrayList<>();
+        for (Case testCase : mCases) {
+            if (testCase.mMetrics != null) {
+                results.add(testCase.mMetrics);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Returns the exception or error thrown by a case, null if it did not throw
+     */
+    public Throwable getError(String name) {
+        for (Case testCase : mCases) {
+            if (testCase.mName.equals(name)) {
+                return testCase.mError;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if another case ran alongside the named one
+     */
+    public boolean wasConcurrent(String name) {
+        for (Case testCase : mCases) {
+            if (testCase.mName.equals(name)) {
+                return testCase.mConcurrent;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the time of the suite and the sum of the times of its cases, measured under the
+     * contention of the concurrent cases. Their ratio is the mean number of cases running at once.
+     *
+     * @param suiteName Name of the matrix
+     */
+    public Metrics getMetrics(String suiteName) {
+        long caseTimeSumNs = 0;
+        int concurrent = 0;
+        int failures = 0;
+        for (Case testCase : mCases) {
+            caseTimeSumNs += testCase.mEndTimeNs - testCase.mStartTimeNs;
+            concurrent += testCase.mConcurrent ? 1 : 0;
+            failures += testCase.mError != null ? 1 : 0;
+        }
+        Metrics metrics = new Metrics(suiteName, "schedule", "");
+        metrics.add("maxConcurrency", mMaxConcurrency);
+        metrics.add("cpuBudget", mCpuBudget);
+        metrics.add("cases", mCases.size());
+        metrics.add("failures", failures);
+        metrics.add("concurrentCases", concurrent);
+        metrics.add("peakConcurrency", mPeakConcurrency);
+        metrics.add("suiteTimeNs", mSuiteTimeNs);
+        metrics.add("contendedCaseTimeSumNs", caseTimeSumNs);
+        metrics.add("meanConcurrency",
+                mSuiteTimeNs > 0 ? (double) caseTimeSumNs / mSuiteTimeNs : 0.0);
+        return metrics;
+    }
+}
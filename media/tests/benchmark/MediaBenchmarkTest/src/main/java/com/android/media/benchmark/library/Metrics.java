@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Named metrics of a benchmark run which do not fit in the fixed columns of {@link Stats}.
+ * <p>
+ * Metrics are written as one row per metric, so that new benchmarks can report what they measure
+ * without changing the layout of the stats file.
+ */
+public class Metrics {
+    private final String mInputReference;
+    private final String mOperation;
+    private final String mComponentName;
+    private final ArrayList<String> mNames;
+    private final ArrayList<String> mValues;
+
+    /**
+     * @param inputReference Name of the input media
+     * @param operation      Operation performed on the input media
+     * @param componentName  Name of the codec/muxFormat/mime or stage the metrics describe
+     */
+    public Metrics(String inputReference, String operation, String componentName) {
+        mInputReference = inputReference;
+        mOperation = operation;
+        mComponentName = componentName;
+        mNames = new ArrayList<>();
+        mValues = new ArrayList<>();
+    }
+
+    public void add(String name, long value) { add(name, Long.toString(value)); }
+
+    public void add(String name, double value) { add(name, String.format("%.3f", value)); }
+
+    public void add(String name, String value) {
+        mNames.add(name);
+        mValues.add(value);
+    }
+
+    /**
+     * Adds count, min, mean, p50, p90, p99 and max of the distribution as separate metrics
+     *
+     * @param name         Prefix of the metric names
+     * @param distribution Recorded samples
+     */
+    public void add(String name, Distribution distribution) {
+        add(name + "Count", distribution.getCount());
+        add(name + "Min", distribution.getMin());
+        add(name + "Mean", distribution.getMean());
+        add(name + "P50", distribution.getPercentile(50));
+        add(name + "P90", distribution.getPercentile(90));
+        add(name + "P99", distribution.getPercentile(99));
+        add(name + "Max", distribution.getMax());
+    }
+
+    public int size() { return mNames.size(); }
+
+    public String getName(int index) { return mNames.get(index); }
+
+    public String getValue(int index) { return mValues.get(index); }
+
+    /**
+     * Returns the value of the first metric with the given name, null if there is none
+     */
+    public String getValue(String name) {
+        int index = mNames.indexOf(name);
+        return index < 0 ? null : mValues.get(index);
+    }
+
+    /**
+     * Writes the metrics header to a file
+     *
+     * @param metricsFile File where the metrics are to be written
+     * @return true if the header was written
+     */
+    public static boolean writeMetricsHeader(String metricsFile) throws IOException {
+        File outputFile = new File(metricsFile);
+        FileOutputStream out = new FileOutputStream(outputFile, true);
+        if (!outputFile.exists()) {
+            out.close();
+            return false;
+        }
+        String header = "currentTime, fileName, operation, componentName, metric, value\n";
+        out.write(header.getBytes());
+        out.close();
+        return true;
+    }
+
+    /**
+     * Appends one row per metric to the given file
+     *
+     * @param metricsFile File where the metrics are to be written
+     */
+    public void dumpMetrics(String metricsFile) throws IOException {
+        long currentTime = System.nanoTime();
+        StringBuilder rowData = new StringBuilder();
+        for (int i = 0; i < mNames.size(); i++) {
+            rowData.append(currentTime).append(", ");
+            rowData.append(mInputReference).append(", ");
+            rowData.append(mOperation).append(", ");
+            rowData.append(mComponentName).append(", ");
+            rowData.append(mNames.get(i)).append(", ");
+            rowData.append(mValues.get(i)).append("\n");
+        }
+        FileOutputStream out = new FileOutputStream(new File(metricsFile), true);
+        out.write(rowData.toString().getBytes());
+        out.close();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(mOperation).append(" ").append(mInputReference).append(" ")
+                .append(mComponentName).append(":");
+        for (int i = 0; i < mNames.size(); i++) {
+            builder.append(" ").append(mNames.get(i)).append("=").append(mValues.get(i));
+        }
+        return builder.toString();
+    }
+}
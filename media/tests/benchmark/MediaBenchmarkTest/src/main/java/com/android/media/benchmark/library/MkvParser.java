@@ -0,0 +1,820 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Parser for Matroska and WebM files over a memory mapping.
+ * <p>
+ * Only the elements needed to start are parsed at construction: the top level elements of the
+ * segment are walked up to the first Cluster, and the SeekHead is followed to Info, Tracks and
+ * Cues wherever they are. Clusters are parsed lazily, one at a time as samples are read, into a
+ * table of the frames of the selected tracks; SimpleBlocks and Blocks of BlockGroups are
+ * supported with all lacing modes and header stripping. Seeking goes through the Cues when the
+ * file has them and walks the Cluster headers otherwise.
+ * <p>
+ * Samples are returned in the order of the file, which muxers interleave by timestamp, with the
+ * timestamps and sync flags MediaExtractor reports. MediaExtractor appends four bytes to Vorbis
+ * samples, so their sizes differ by that much.
+ */
+public class MkvParser implements ContainerParser {
+    private static final int kEbml = 0x1a45dfa3;
+    private static final int kSegment = 0x18538067;
+    private static final int kSeekHead = 0x114d9b74;
+    private static final int kSeek = 0x4dbb;
+    private static final int kSeekId = 0x53ab;
+    private static final int kSeekPosition = 0x53ac;
+    private static final int kInfo = 0x1549a966;
+    private static final int kTimecodeScale = 0x2ad7b1;
+    private static final int kDuration = 0x4489;
+    private static final int kTracks = 0x1654ae6b;
+    private static final int kTrackEntry = 0xae;
+    private static final int kTrackNumber = 0xd7;
+    private static final int kCodecId = 0x86;
+    private static final int kContentEncodings = 0x6d80;
+    private static final int kContentEncoding = 0x6240;
+    private static final int kContentCompression = 0x5034;
+    private static final int kContentCompAlgo = 0x4254;
+    private static final int kContentCompSettings = 0x4255;
+    private static final int kCues = 0x1c53bb6b;
+    private static final int kCuePoint = 0xbb;
+    private static final int kCueTime = 0xb3;
+    private static final int kCueTrackPositions = 0xb7;
+    private static final int kCueTrack = 0xf7;
+    private static final int kCueClusterPosition = 0xf1;
+    private static final int kCluster = 0x1f43b675;
+    private static final int kTimecode = 0xe7;
+    private static final int kSimpleBlock = 0xa3;
+    private static final int kBlockGroup = 0xa0;
+    private static final int kBlock = 0xa1;
+    private static final int kReferenceBlock = 0xfb;
+    private static final int kHeaderStripping = 3;
+    private static final int kMaxLacedFrames = 256;
+
+    private final ByteBuffer mData;
+    private final ByteBuffer mView;
+    private final BufferPool mBufferPool;
+    private final ArrayList<Track> mTracks = new ArrayList<>();
+    private int mSegmentStart;
+    private int mSegmentEnd;
+    private int mFirstCluster = -1;
+    private long mTimecodeScale = 1000000;
+    private long mDurationUs = -1;
+    // Position and size of an element header, set by readElementHeader
+    private int mElementId;
+    private long mElementSize;
+    private int mElementData;
+    // Cues
+    private int mNumCues;
+    private long[] mCueTimesUs = new long[256];
+    private int[] mCueTracks = new int[256];
+    private int[] mCueClusters = new int[256];
+    // Frames of the selected tracks in the current cluster
+    private int mCluster = -1;
+    private int mNextElement;
+    private long mClusterTimecode;
+    private int mNumClustersParsed;
+    private int mNumFrames;
+    private int mFrameIndex;
+    private int[] mFrameOffsets = new int[256];
+    private int[] mFrameSizes = new int[256];
+    private long[] mFrameTimesUs = new long[256];
+    private int[] mFrameFlags = new int[256];
+    private Track[] mFrameTracks = new Track[256];
+    private final int[] mLaceSizes = new int[kMaxLacedFrames];
+
+    private static class Track {
+        int mIndex;
+        long mNumber;
+        String mMime;
+        boolean mSelected;
+        // Bytes removed from every frame by header stripping, at this position of the file
+        int mHeaderOffset;
+        int mHeaderSize;
+    }
+
+    /**
+     * @param channel File to be parsed, mapped for the lifetime of the parser
+     */
+    public MkvParser(FileChannel channel) throws IOException {
+        this(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), BufferPool.getShared());
+    }
+
+    /**
+     * @param data       Complete file from position 0 to limit
+     * @param bufferPool Pool the buffers returned by {@link #readSample()} are leased from
+     */
+    public MkvParser(ByteBuffer data, BufferPool bufferPool) throws IOException {
+        mData = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+        mView = mData.duplicate();
+        mBufferPool = bufferPool;
+        try {
+            parseSegment();
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Malformed element: " + e.getMessage());
+        }
+        if (mTracks.isEmpty()) {
+            throw new IOException("No tracks");
+        }
+    }
+
+    /**
+     * Reads the id and size of the element at position. The size is -1 if unknown.
+     *
+     * @return Position after the element header
+     */
+    private int readElementHeader(int position) throws IOException {
+        int idLength = Integer.numberOfLeadingZeros(mData.get(position) & 0xff) - 23;
+        if (idLength > 4) {
+            throw new IOException("Invalid element id at " + position);
+        }
+        int id = 0;
+        for (int i = 0; i < idLength; i++) {
+            id = (id << 8) | (mData.get(position + i) & 0xff);
+        }
+        position += idLength;
+        int first = mData.get(position) & 0xff;
+        int sizeLength = Integer.numberOfLeadingZeros(first) - 23;
+        if (sizeLength > 8) {
+            throw new IOException("Invalid element size at " + position);
+        }
+        long size = first & (0xff >> sizeLength);
+        boolean unknown = size == (0xff >> sizeLength);
+        for (int i = 1; i < sizeLength; i++) {
+            int b = mData.get(position + i) & 0xff;
+            unknown &= b == 0xff;
+            size = (size << 8) | b;
+        }
+        mElementId = id;
+        mElementSize = unknown ? -1 : size;
+        mElementData = position + sizeLength;
+        return mElementData;
+    }
+
+    /**
+     * Returns the end of the element read last, bounded by parentEnd
+     */
+    private int getElementEnd(int parentEnd) throws IOException {
+        if (mElementSize < 0) {
+            return parentEnd;
+        }
+        if (mElementData + mElementSize > parentEnd) {
+            throw new IOException("Element " + Integer.toHexString(mElementId) + " at "
+                    + mElementData + " exceeds its parent");
+        }
+        return (int) (mElementData + mElementSize);
+    }
+
+    private long readUnsigned(int position, int end) {
+        long value = 0;
+        for (; position < end; position++) {
+            value = (value << 8) | (mData.get(position) & 0xff);
+        }
+        return value;
+    }
+
+    private void parseSegment() throws IOException {
+        int limit = mData.limit();
+        readElementHeader(0);
+        if (mElementId != kEbml) {
+            throw new IOException("Not an EBML file");
+        }
+        int position = getElementEnd(limit);
+        while (true) {
+            readElementHeader(position);
+            if (mElementId == kSegment) {
+                break;
+            }
+            position = getElementEnd(limit);
+        }
+        mSegmentStart = mElementData;
+        mSegmentEnd = mElementSize < 0 ? limit : (int) Math.min(limit,
+                mElementData + mElementSize);
+
+        // Top level elements up to the first cluster, remembering what the SeekHead points to
+        int infoPosition = -1;
+        int tracksPosition = -1;
+        int cuesPosition = -1;
+        position = mSegmentStart;
+        while (position < mSegmentEnd && mFirstCluster < 0) {
+            int data = readElementHeader(position);
+            int id = mElementId;
+            int end = getElementEnd(mSegmentEnd);
+            if (id == kSeekHead) {
+                for (int seek = data; seek < end; ) {
+                    int seekData = readElementHeader(seek);
+                    int seekEnd = getElementEnd(end);
+                    if (mElementId == kSeek) {
+                        int seekId = 0;
+                        long seekPosition = -1;
+                        for (int child = seekData; child < seekEnd; ) {
+                            int childData = readElementHeader(child);
+                            int childEnd = getElementEnd(seekEnd);
+                            if (mElementId == kSeekId) {
+                                seekId = (int) readUnsigned(childData, childEnd);
+                            } else if (mElementId == kSeekPosition) {
+                                seekPosition = mSegmentStart + readUnsigned(childData, childEnd);
+                            }
+                            child = childEnd;
+                        }
+                        if (seekPosition >= mSegmentStart && seekPosition < mSegmentEnd) {
+                            if (seekId == kInfo) {
+                                infoPosition = (int) seekPosition;
+                            } else if (seekId == kTracks) {
+                                tracksPosition = (int) seekPosition;
+                            } else if (seekId == kCues) {
+                                cuesPosition = (int) seekPosition;
+                            }
+                        }
+                    }
+                    seek = seekEnd;
+                }
+            } else if (id == kInfo) {
+                infoPosition = position;
+            } else if (id == kTracks) {
+                tracksPosition = position;
+            } else if (id == kCues) {
+                cuesPosition = position;
+            } else if (id == kCluster) {
+                mFirstCluster = position;
+            }
+            position = end;
+        }
+        if (infoPosition >= 0) {
+            parseInfo(infoPosition);
+        }
+        if (tracksPosition < 0) {
+            throw new IOException("No Tracks element");
+        }
+        parseTracks(tracksPosition);
+        if (cuesPosition >= 0) {
+            parseCues(cuesPosition);
+        }
+    }
+
+    private void parseInfo(int position) throws IOException {
+        int data = readElementHeader(position);
+        int end = getElementEnd(mSegmentEnd);
+        double duration = -1;
+        for (int child = data; child < end; ) {
+            int childData = readElementHeader(child);
+            int childEnd = getElementEnd(end);
+            if (mElementId == kTimecodeScale) {
+                mTimecodeScale = readUnsigned(childData, childEnd);
+            } else if (mElementId == kDuration) {
+                duration = mElementSize == 4 ? mData.getFloat(childData)
+                        : mData.getDouble(childData);
+            }
+            child = childEnd;
+        }
+        if (duration >= 0) {
+            mDurationUs = (long) (duration * mTimecodeScale / 1000);
+        }
+    }
+
+    private static String getMime(String codecId) {
+        switch (codecId) {
+            case "V_VP8":
+                return "video/x-vnd.on2.vp8";
+            case "V_VP9":
+                return "video/x-vnd.on2.vp9";
+            case "V_AV1":
+                return "video/av01";
+            case "V_MPEG4/ISO/AVC":
+                return "video/avc";
+            case "V_MPEGH/ISO/HEVC":
+                return "video/hevc";
+            case "V_MPEG4/ISO/ASP":
+            case "V_MPEG4/ISO/SP":
+                return "video/mp4v-es";
+            case "A_OPUS":
+                return "audio/opus";
+            case "A_VORBIS":
+                return "audio/vorbis";
+            case "A_AAC":
+                return "audio/mp4a-latm";
+            case "A_FLAC":
+                return "audio/flac";
+            case "A_MPEG/L3":
+                return "audio/mpeg";
+            default:
+                return null;
+        }
+    }
+
+    private void parseTracks(int position) throws IOException {
+        int data = readElementHeader(position);
+        int end = getElementEnd(mSegmentEnd);
+        for (int entry = data; entry < end; ) {
+            int entryData = readElementHeader(entry);
+            int entryEnd = getElementEnd(end);
+            if (mElementId == kTrackEntry) {
+                Track track = new Track();
+                for (int child = entryData; child < entryEnd; ) {
+                    int childData = readElementHeader(child);
+                    int childEnd = getElementEnd(entryEnd);
+                    if (mElementId == kTrackNumber) {
+                        track.mNumber = readUnsigned(childData, childEnd);
+                    } else if (mElementId == kCodecId) {
+                        StringBuilder codecId = new StringBuilder();
+                        for (int i = childData; i < childEnd && mData.get(i) != 0; i++) {
+                            codecId.append((char) mData.get(i));
+                        }
+                        track.mMime = getMime(codecId.toString());
+                    } else if (mElementId == kContentEncodings) {
+                        parseContentEncodings(track, childData, childEnd);
+                    }
+                    child = childEnd;
+                }
+                if (track.mMime != null) {
+                    track.mIndex = mTracks.size();
+                    mTracks.add(track);
+                }
+            }
+            entry = entryEnd;
+        }
+    }
+
+    private void parseContentEncodings(Track track, int position, int end) throws IOException {
+        // Only header stripping is supported, which is a compression of the first encoding
+        while (position < end) {
+            int data = readElementHeader(position);
+            int elementEnd = getElementEnd(end);
+            if (mElementId == kContentEncoding || mElementId == kContentCompression) {
+                parseContentEncodings(track, data, elementEnd);
+                if (mElementId == kContentCompression) {
+                    return;
+                }
+            } else if (mElementId == kContentCompAlgo) {
+                if (readUnsigned(data, elementEnd) != kHeaderStripping) {
+                    throw new IOException("Unsupported content compression");
+                }
+            } else if (mElementId == kContentCompSettings) {
+                track.mHeaderOffset = data;
+                track.mHeaderSize = elementEnd - data;
+            }
+            position = elementEnd;
+        }
+    }
+
+    private void parseCues(int position) throws IOException {
+        int data = readElementHeader(position);
+        if (mElementId != kCues) {
+            return;
+        }
+        int end = getElementEnd(mSegmentEnd);
+        for (int point = data; point < end; ) {
+            int pointData = readElementHeader(point);
+            int pointEnd = getElementEnd(end);
+            if (mElementId == kCuePoint) {
+                long time = -1;
+                for (int child = pointData; child < pointEnd; ) {
+                    int childData = readElementHeader(child);
+                    int childEnd = getElementEnd(pointEnd);
+                    if (mElementId == kCueTime) {
+                        time = readUnsigned(childData, childEnd);
+                    } else if (mElementId == kCueTrackPositions && time >= 0) {
+                        long trackNumber = -1;
+                        long cluster = -1;
+                        for (int pos = childData; pos < childEnd; ) {
+                            int posData = readElementHeader(pos);
+                            int posEnd = getElementEnd(childEnd);
+                            if (mElementId == kCueTrack) {
+                                trackNumber = readUnsigned(posData, posEnd);
+                            } else if (mElementId == kCueClusterPosition) {
+                                cluster = mSegmentStart + readUnsigned(posData, posEnd);
+                            }
+                            pos = posEnd;
+                        }
+                        if (cluster >= mSegmentStart && cluster < mSegmentEnd) {
+                            addCue(time * mTimecodeScale / 1000, findTrack(trackNumber),
+                                    (int) cluster);
+                        }
+                    }
+                    child = childEnd;
+                }
+            }
+            point = pointEnd;
+        }
+    }
+
+    private void addCue(long timeUs, Track track, int cluster) {
+        if (mNumCues == mCueTimesUs.length) {
+            mCueTimesUs = Arrays.copyOf(mCueTimesUs, mNumCues * 2);
+            mCueTracks = Arrays.copyOf(mCueTracks, mNumCues * 2);
+            mCueClusters = Arrays.copyOf(mCueClusters, mNumCues * 2);
+        }
+        mCueTimesUs[mNumCues] = timeUs;
+        mCueTracks[mNumCues] = track == null ? -1 : track.mIndex;
+        mCueClusters[mNumCues] = cluster;
+        mNumCues++;
+    }
+
+    private Track findTrack(long number) {
+        for (int i = 0; i < mTracks.size(); i++) {
+            if (mTracks.get(i).mNumber == number) {
+                return mTracks.get(i);
+            }
+        }
+        return null;
+    }
+
+    private boolean isTopLevel(int id) {
+        return id == kCluster || id == kCues || id == kSeekHead || id == kInfo || id == kTracks
+                || id == 0x1254c367 /* Tags */ || id == 0x1941a469 /* Attachments */
+                || id == 0x1043a770 /* Chapters */;
+    }
+
+    /**
+     * Parses the frames of the selected tracks in the cluster at position
+     */
+    private void loadCluster(int position) throws IOException {
+        mCluster = position;
+        mNumFrames = 0;
+        mFrameIndex = 0;
+        mClusterTimecode = 0;
+        mNumClustersParsed++;
+        int data = readElementHeader(position);
+        boolean unknownSize = mElementSize < 0;
+        int end = getElementEnd(mSegmentEnd);
+        int child = data;
+        while (child < end) {
+            int childData = readElementHeader(child);
+            if (unknownSize && isTopLevel(mElementId)) {
+                break;
+            }
+            int id = mElementId;
+            int childEnd = getElementEnd(end);
+            if (id == kTimecode) {
+                mClusterTimecode = readUnsigned(childData, childEnd);
+            } else if (id == kSimpleBlock) {
+                addBlock(childData, childEnd, true, false);
+            } else if (id == kBlockGroup) {
+                int block = -1;
+                int blockEnd = -1;
+                boolean hasReference = false;
+                for (int groupChild = childData; groupChild < childEnd; ) {
+                    int groupData = readElementHeader(groupChild);
+                    int groupEnd = getElementEnd(childEnd);
+                    if (mElementId == kBlock) {
+                        block = groupData;
+                        blockEnd = groupEnd;
+                    } else if (mElementId == kReferenceBlock) {
+                        hasReference = true;
+                    }
+                    groupChild = groupEnd;
+                }
+                if (block >= 0) {
+                    addBlock(block, blockEnd, false, hasReference);
+                }
+            }
+            child = childEnd;
+        }
+        mNextElement = child;
+    }
+
+    /**
+     * Adds the frames of a SimpleBlock or Block to the frame table, if its track is selected.
+     * A SimpleBlock carries its key flag, a Block is a key frame if it references no other.
+     */
+    private void addBlock(int position, int end, boolean simpleBlock, boolean hasReference)
+            throws IOException {
+        int first = mData.get(position) & 0xff;
+        int numberLength = Integer.numberOfLeadingZeros(first) - 23;
+        Track track = findTrack(readUnsigned(position + 1, position + numberLength)
+                | ((long) (first & (0xff >> numberLength)) << (8 * (numberLength - 1))));
+        if (track == null || !track.mSelected) {
+            return;
+        }
+        position += numberLength;
+        long timeUs = (mClusterTimecode + mData.getShort(position)) * mTimecodeScale / 1000;
+        int blockFlags = mData.get(position + 2) & 0xff;
+        int lacing = (blockFlags >> 1) & 0x3;
+        position += 3;
+        boolean isKey = simpleBlock ? (blockFlags & 0x80) != 0 : !hasReference;
+        int flags = isKey ? SAMPLE_FLAG_SYNC : 0;
+        if (lacing == 0) {
+            addFrame(track, position, end - position, timeUs, flags);
+            return;
+        }
+        int numFrames = (mData.get(position++) & 0xff) + 1;
+        int total = 0;
+        if (lacing == 1) {
+            // Xiph lacing: sizes as runs of 255 ended by a smaller byte
+            for (int i = 0; i < numFrames - 1; i++) {
+                int size = 0;
+                int b;
+                do {
+                    b = mData.get(position++) & 0xff;
+                    size += b;
+                } while (b == 255);
+                mLaceSizes[i] = size;
+                total += size;
+            }
+        } else if (lacing == 3) {
+            // EBML lacing: first size, then signed differences to the previous size
+            for (int i = 0; i < numFrames - 1; i++) {
+                int b = mData.get(position) & 0xff;
+                int length = Integer.numberOfLeadingZeros(b) - 23;
+                long value = readUnsigned(position + 1, position + length)
+                        | ((long) (b & (0xff >> length)) << (8 * (length - 1)));
+                position += length;
+                if (i == 0) {
+                    mLaceSizes[0] = (int) value;
+                } else {
+                    mLaceSizes[i] = (int) (mLaceSizes[i - 1] + value
+                            - ((1L << (7 * length - 1)) - 1));
+                }
+                total += mLaceSizes[i];
+            }
+        } else {
+            int size = (end - position) / numFrames;
+            for (int i = 0; i < numFrames - 1; i++) {
+                mLaceSizes[i] = size;
+                total += size;
+            }
+        }
+        mLaceSizes[numFrames - 1] = end - position - total;
+        if (mLaceSizes[numFrames - 1] < 0) {
+            throw new IOException("Laced frames exceed their block");
+        }
+        for (int i = 0; i < numFrames; i++) {
+            addFrame(track, position, mLaceSizes[i], timeUs, flags);
+            position += mLaceSizes[i];
+        }
+    }
+
+    private void addFrame(Track track, int offset, int size, long timeUs, int flags) {
+        if (mNumFrames == mFrameOffsets.length) {
+            mFrameOffsets = Arrays.copyOf(mFrameOffsets, mNumFrames * 2);
+            mFrameSizes = Arrays.copyOf(mFrameSizes, mNumFrames * 2);
+            mFrameTimesUs = Arrays.copyOf(mFrameTimesUs, mNumFrames * 2);
+            mFrameFlags = Arrays.copyOf(mFrameFlags, mNumFrames * 2);
+            mFrameTracks = Arrays.copyOf(mFrameTracks, mNumFrames * 2);
+        }
+        mFrameOffsets[mNumFrames] = offset;
+        mFrameSizes[mNumFrames] = size;
+        mFrameTimesUs[mNumFrames] = timeUs;
+        mFrameFlags[mNumFrames] = flags;
+        mFrameTracks[mNumFrames] = track;
+        mNumFrames++;
+    }
+
+    /**
+     * Loads clusters from mNextElement until one has frames of the selected tracks
+     */
+    private void loadNextFrames() {
+        try {
+            while (mFrameIndex >= mNumFrames && mNextElement < mSegmentEnd) {
+                int position = mNextElement;
+                readElementHeader(position);
+                if (mElementId == kCluster) {
+                    loadCluster(position);
+                } else {
+                    mNextElement = getElementEnd(mSegmentEnd);
+                }
+            }
+        } catch (IOException | IndexOutOfBoundsException e) {
+            // Samples end at the first malformed element, like a truncated file
+            mNumFrames = 0;
+            mFrameIndex = 0;
+            mNextElement = mSegmentEnd;
+        }
+    }
+
+    /**
+     * Restarts reading at the cluster at position, from its first frame at or after offset
+     */
+    private void restartAt(int position, int offset) {
+        mCluster = -1;
+        mNumFrames = 0;
+        mFrameIndex = 0;
+        mNextElement = position;
+        if (position < 0) {
+            return;
+        }
+        loadNextFrames();
+        while (mFrameIndex < mNumFrames && mFrameOffsets[mFrameIndex] < offset) {
+            mFrameIndex++;
+        }
+        loadNextFrames();
+    }
+
+    private void reloadCurrentCluster() {
+        if (mCluster < 0) {
+            restartAt(mFirstCluster, 0);
+        } else if (hasFrame()) {
+            restartAt(mCluster, mFrameOffsets[mFrameIndex]);
+        } else {
+            restartAt(mNextElement, 0);
+        }
+    }
+
+    private boolean hasFrame() { return mFrameIndex < mNumFrames; }
+
+    private boolean hasSelectedTrack() {
+        for (int i = 0; i < mTracks.size(); i++) {
+            if (mTracks.get(i).mSelected) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of clusters parsed so far
+     */
+    public int getNumClustersParsed() { return mNumClustersParsed; }
+
+    /**
+     * Returns the number of cue points of the selected and unselected tracks
+     */
+    public int getNumCues() { return mNumCues; }
+
+    @Override
+    public int getTrackCount() { return mTracks.size(); }
+
+    @Override
+    public String getTrackMime(int trackIndex) { return mTracks.get(trackIndex).mMime; }
+
+    @Override
+    public long getTrackDurationUs(int trackIndex) { return mDurationUs; }
+
+    @Override
+    public void selectTrack(int trackIndex) {
+        // The first selected track is read from the start, others join at the current cluster
+        boolean restart = !hasSelectedTrack();
+        mTracks.get(trackIndex).mSelected = true;
+        if (restart) {
+            restartAt(mFirstCluster, 0);
+        } else {
+            reloadCurrentCluster();
+        }
+    }
+
+    @Override
+    public void unselectTrack(int trackIndex) {
+        mTracks.get(trackIndex).mSelected = false;
+        if (hasSelectedTrack()) {
+            reloadCurrentCluster();
+        } else {
+            restartAt(-1, 0);
+        }
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        if (!hasFrame()) {
+            return -1;
+        }
+        Track track = mFrameTracks[mFrameIndex];
+        int size = track.mHeaderSize + mFrameSizes[mFrameIndex];
+        buffer.limit(offset + size);
+        buffer.position(offset);
+        if (track.mHeaderSize > 0) {
+            mView.limit(track.mHeaderOffset + track.mHeaderSize);
+            mView.position(track.mHeaderOffset);
+            buffer.put(mView);
+        }
+        mView.limit(mFrameOffsets[mFrameIndex] + mFrameSizes[mFrameIndex]);
+        mView.position(mFrameOffsets[mFrameIndex]);
+        buffer.put(mView);
+        buffer.position(offset);
+        return size;
+    }
+
+    /**
+     * Copies the current sample into a buffer leased from the pool of the parser
+     *
+     * @return Lease whose buffer holds the sample from position 0 to limit, null if no more
+     * samples are available. The caller releases it.
+     */
+    public BufferPool.Lease readSample() {
+        if (!hasFrame()) {
+            return null;
+        }
+        BufferPool.Lease lease = mBufferPool.acquire((int) getSampleSize());
+        readSampleData(lease.getBuffer(), 0);
+        return lease;
+    }
+
+    @Override
+    public long getSampleSize() {
+        return hasFrame() ? mFrameTracks[mFrameIndex].mHeaderSize + mFrameSizes[mFrameIndex] : -1;
+    }
+
+    @Override
+    public long getSampleTime() { return hasFrame() ? mFrameTimesUs[mFrameIndex] : -1; }
+
+    @Override
+    public int getSampleFlags() { return hasFrame() ? mFrameFlags[mFrameIndex] : 0; }
+
+    @Override
+    public int getSampleTrackIndex() { return hasFrame() ? mFrameTracks[mFrameIndex].mIndex : -1; }
+
+    @Override
+    public boolean advance() {
+        if (!hasFrame()) {
+            return false;
+        }
+        mFrameIndex++;
+        loadNextFrames();
+        return hasFrame();
+    }
+
+    /**
+     * Returns the cluster to start from when seeking to timeUs
+     */
+    private int findSeekCluster(long timeUs) {
+        int cluster = mFirstCluster;
+        if (mNumCues > 0) {
+            boolean anySelectedCues = false;
+            for (int i = 0; i < mNumCues; i++) {
+                anySelectedCues |= mCueTracks[i] >= 0 && mTracks.get(mCueTracks[i]).mSelected;
+            }
+            for (int i = 0; i < mNumCues; i++) {
+                if (anySelectedCues && (mCueTracks[i] < 0
+                        || !mTracks.get(mCueTracks[i]).mSelected)) {
+                    continue;
+                }
+                if (mCueTimesUs[i] > timeUs) {
+                    break;
+                }
+                cluster = mCueClusters[i];
+            }
+            return cluster;
+        }
+        // Without cues, the timecodes of the clusters are read one by one
+        try {
+            for (int position = mFirstCluster; position >= 0 && position < mSegmentEnd; ) {
+                int data = readElementHeader(position);
+                if (mElementId != kCluster) {
+                    break;
+                }
+                // A cluster of unknown size cannot be skipped, so it is the last one looked at
+                boolean unknownSize = mElementSize < 0;
+                int end = getElementEnd(mSegmentEnd);
+                long clusterTimeUs = -1;
+                for (int child = data; child < end && clusterTimeUs < 0; ) {
+                    int childData = readElementHeader(child);
+                    child = getElementEnd(end);
+                    if (mElementId == kTimecode) {
+                        clusterTimeUs = readUnsigned(childData, child) * mTimecodeScale / 1000;
+                    }
+                }
+                if (clusterTimeUs > timeUs) {
+                    break;
+                }
+                cluster = position;
+                if (unknownSize) {
+                    break;
+                }
+                position = end;
+            }
+        } catch (IOException | IndexOutOfBoundsException e) {
+            // Seek to the last cluster found
+        }
+        return cluster;
+    }
+
+    @Override
+    public void seekTo(long timeUs) {
+        restartAt(findSeekCluster(timeUs), 0);
+        // Last sync frame at or before timeUs in the cluster, or the first frame after it
+        int start = mFrameIndex;
+        for (int i = mFrameIndex; i < mNumFrames && mFrameTimesUs[i] <= timeUs; i++) {
+            if ((mFrameFlags[i] & SAMPLE_FLAG_SYNC) != 0) {
+                start = i;
+            }
+        }
+        mFrameIndex = start;
+    }
+
+    @Override
+    public void release() {
+        mTracks.clear();
+        mNumFrames = 0;
+        mFrameIndex = 0;
+        Arrays.fill(mFrameTracks, null);
+    }
+}
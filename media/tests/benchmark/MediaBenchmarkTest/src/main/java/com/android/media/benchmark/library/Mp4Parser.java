@@ -0,0 +1,647 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Parser for ISO base media files (MP4, 3GP) over a memory mapping.
+ * <p>
+ * The sample tables of every track (stsz/stz2, stco/co64, stsc, stts, ctts, stss) and the track
+ * runs of movie fragments (moof/traf) are expanded once, at construction, into primitive arrays
+ * of offsets, sizes, timestamps and flags. Reading a sample afterwards only copies its bytes
+ * from the mapping. The first edit list entry is applied to the timestamps, like MediaExtractor
+ * does. Files larger than 2 GB are not supported.
+ */
+public class Mp4Parser implements ContainerParser {
+    private static final int kMoov = fourcc("moov");
+    private static final int kMvhd = fourcc("mvhd");
+    private static final int kTrak = fourcc("trak");
+    private static final int kTkhd = fourcc("tkhd");
+    private static final int kEdts = fourcc("edts");
+    private static final int kElst = fourcc("elst");
+    private static final int kMdia = fourcc("mdia");
+    private static final int kMdhd = fourcc("mdhd");
+    private static final int kMinf = fourcc("minf");
+    private static final int kStbl = fourcc("stbl");
+    private static final int kStsd = fourcc("stsd");
+    private static final int kStts = fourcc("stts");
+    private static final int kCtts = fourcc("ctts");
+    private static final int kStss = fourcc("stss");
+    private static final int kStsz = fourcc("stsz");
+    private static final int kStz2 = fourcc("stz2");
+    private static final int kStsc = fourcc("stsc");
+    private static final int kStco = fourcc("stco");
+    private static final int kCo64 = fourcc("co64");
+    private static final int kMvex = fourcc("mvex");
+    private static final int kTrex = fourcc("trex");
+    private static final int kMoof = fourcc("moof");
+    private static final int kTraf = fourcc("traf");
+    private static final int kTfhd = fourcc("tfhd");
+    private static final int kTfdt = fourcc("tfdt");
+    private static final int kTrun = fourcc("trun");
+    private static final int kSampleIsNonSync = 0x10000;
+
+    private final ByteBuffer mData;
+    private final ByteBuffer mView;
+    private final ArrayList<Track> mTracks = new ArrayList<>();
+    private long mMovieTimescale = 1000;
+    private Track mCurrentTrack;
+
+    /**
+     * Sample table of one track and the state needed while it is parsed
+     */
+    private static class Track {
+        int mTrackId;
+        String mMime;
+        long mTimescale = 1000;
+        long mDurationTicks = -1;
+        long mEditShiftTicks;
+        long mEmptyEditMovieTicks;
+        int mDefaultDuration;
+        int mDefaultSize;
+        int mDefaultFlags;
+        long mNextDecodeTicks;
+        int mStts = -1;
+        int mCtts = -1;
+        int mStss = -1;
+        int mStsz = -1;
+        int mStz2 = -1;
+        int mStsc = -1;
+        int mStco = -1;
+        int mCo64 = -1;
+        boolean mSelected;
+        int mIndex;
+        int mNumSamples;
+        long[] mOffsets = new long[256];
+        int[] mSizes = new int[256];
+        long[] mTimesUs = new long[256];
+        int[] mFlags = new int[256];
+
+        void ensureCapacity(int numSamples) {
+            if (numSamples <= mOffsets.length) {
+                return;
+            }
+            int capacity = Math.max(numSamples, mOffsets.length * 2);
+            long[] offsets = new long[capacity];
+            int[] sizes = new int[capacity];
+            long[] timesUs = new long[capacity];
+            int[] flags = new int[capacity];
+            System.arraycopy(mOffsets, 0, offsets, 0, mNumSamples);
+            System.arraycopy(mSizes, 0, sizes, 0, mNumSamples);
+            System.arraycopy(mTimesUs, 0, timesUs, 0, mNumSamples);
+            System.arraycopy(mFlags, 0, flags, 0, mNumSamples);
+            mOffsets = offsets;
+            mSizes = sizes;
+            mTimesUs = timesUs;
+            mFlags = flags;
+        }
+
+        long toUs(long ticks) { return ticks * 1000000 / mTimescale; }
+
+        long getPresentationTicks(long decodeTicks, long compositionOffset) {
+            return decodeTicks + compositionOffset - mEditShiftTicks;
+        }
+    }
+
+    /**
+     * @param channel File to be parsed, mapped for the lifetime of the parser
+     */
+    public Mp4Parser(FileChannel channel) throws IOException {
+        this(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+
+    /**
+     * @param data Complete file from position 0 to limit
+     */
+    public Mp4Parser(ByteBuffer data) throws IOException {
+        mData = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+        mView = mData.duplicate();
+        try {
+            parseBoxes(0, mData.limit(), null);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Malformed box: " + e.getMessage());
+        }
+        if (mTracks.isEmpty()) {
+            throw new IOException("No tracks");
+        }
+    }
+
+    private static int fourcc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8)
+                | type.charAt(3);
+    }
+
+    private long getUnsignedInt(int position) { return mData.getInt(position) & 0xffffffffL; }
+
+    private int toInt(long value) throws IOException {
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new IOException("Offset " + value + " out of range");
+        }
+        return (int) value;
+    }
+
+    private void parseBoxes(int start, int end, Track track) throws IOException {
+        int position = start;
+        while (position + 8 <= end) {
+            long size = getUnsignedInt(position);
+            int type = mData.getInt(position + 4);
+            int headerSize = 8;
+            if (size == 1) {
+                size = mData.getLong(position + 8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = end - position;
+            }
+            if (size < headerSize) {
+                throw new IOException("Invalid box size " + size);
+            }
+            if (position + size > end && start != 0) {
+                throw new IOException("Truncated box " + Integer.toHexString(type));
+            }
+            // A truncated top level box, usually mdat, is parsed up to the end of the file.
+            int boxEnd = (int) Math.min(end, position + size);
+            parseBox(type, position + headerSize, boxEnd, track, position);
+            position = boxEnd;
+        }
+    }
+
+    private void parseBox(int type, int start, int end, Track track, int boxStart)
+            throws IOException {
+        if (type == kMoov || type == kMdia || type == kMinf || type == kStbl || type == kEdts
+                || type == kMvex) {
+            parseBoxes(start, end, track);
+        } else if (type == kMvhd) {
+            mMovieTimescale = getUnsignedInt(start + (mData.get(start) == 1 ? 20 : 12));
+        } else if (type == kTrak) {
+            Track newTrack = new Track();
+            parseBoxes(start, end, newTrack);
+            buildSampleTable(newTrack);
+            mTracks.add(newTrack);
+        } else if (type == kTkhd) {
+            track.mTrackId = mData.getInt(start + (mData.get(start) == 1 ? 20 : 12));
+        } else if (type == kMdhd) {
+            if (mData.get(start) == 1) {
+                track.mTimescale = getUnsignedInt(start + 20);
+                track.mDurationTicks = mData.getLong(start + 24);
+            } else {
+                track.mTimescale = getUnsignedInt(start + 12);
+                track.mDurationTicks = getUnsignedInt(start + 16);
+            }
+        } else if (type == kElst) {
+            parseEditList(start, track);
+        } else if (type == kStsd) {
+            track.mMime = getMime(mData.getInt(start + 12));
+        } else if (type == kStts) {
+            track.mStts = start;
+        } else if (type == kCtts) {
+            track.mCtts = start;
+        } else if (type == kStss) {
+            track.mStss = start;
+        } else if (type == kStsz) {
+            track.mStsz = start;
+        } else if (type == kStz2) {
+            track.mStz2 = start;
+        } else if (type == kStsc) {
+            track.mStsc = start;
+        } else if (type == kStco) {
+            track.mStco = start;
+        } else if (type == kCo64) {
+            track.mCo64 = start;
+        } else if (type == kTrex) {
+            Track trexTrack = findTrack(mData.getInt(start + 4));
+            if (trexTrack != null) {
+                trexTrack.mDefaultDuration = mData.getInt(start + 12);
+                trexTrack.mDefaultSize = mData.getInt(start + 16);
+                trexTrack.mDefaultFlags = mData.getInt(start + 20);
+            }
+        } else if (type == kMoof) {
+            parseMovieFragment(start, end, boxStart);
+        }
+    }
+
+    private void parseEditList(int start, Track track) {
+        boolean version1 = mData.get(start) == 1;
+        int numEntries = mData.getInt(start + 4);
+        int position = start + 8;
+        for (int i = 0; i < numEntries; i++) {
+            long segmentDuration = version1 ? mData.getLong(position)
+                    : getUnsignedInt(position);
+            long mediaTime = version1 ? mData.getLong(position + 8) : mData.getInt(position + 4);
+            position += version1 ? 20 : 12;
+            if (mediaTime == -1) {
+                track.mEmptyEditMovieTicks += segmentDuration;
+            } else {
+                track.mEditShiftTicks = mediaTime;
+                break;
+            }
+        }
+    }
+
+    private static String getMime(int format) {
+        if (format == fourcc("avc1") || format == fourcc("avc3")) {
+            return "video/avc";
+        } else if (format == fourcc("hvc1") || format == fourcc("hev1")) {
+            return "video/hevc";
+        } else if (format == fourcc("mp4v")) {
+            return "video/mp4v-es";
+        } else if (format == fourcc("s263") || format == fourcc("h263")) {
+            return "video/3gpp";
+        } else if (format == fourcc("vp09")) {
+            return "video/x-vnd.on2.vp9";
+        } else if (format == fourcc("av01")) {
+            return "video/av01";
+        } else if (format == fourcc("mp4a")) {
+            return "audio/mp4a-latm";
+        } else if (format == fourcc("samr")) {
+            return "audio/3gpp";
+        } else if (format == fourcc("sawb")) {
+            return "audio/amr-wb";
+        } else if (format == fourcc("fLaC")) {
+            return "audio/flac";
+        } else if (format == fourcc("Opus")) {
+            return "audio/opus";
+        }
+        return null;
+    }
+
+    private Track findTrack(int trackId) {
+        for (Track track : mTracks) {
+            if (track.mTrackId == trackId) {
+                return track;
+            }
+        }
+        return null;
+    }
+
+    private void buildSampleTable(Track track) throws IOException {
+        long emptyEditTicks = track.mEmptyEditMovieTicks * track.mTimescale / mMovieTimescale;
+        track.mEditShiftTicks -= emptyEditTicks;
+        if (track.mStsc < 0 || (track.mStsz < 0 && track.mStz2 < 0)
+                || (track.mStco < 0 && track.mCo64 < 0) || track.mStts < 0) {
+            // Fragmented files have empty sample tables, the samples come with the fragments.
+            return;
+        }
+        int numSamples = mData.getInt((track.mStsz >= 0 ? track.mStsz : track.mStz2) + 8);
+        track.ensureCapacity(numSamples);
+        track.mNumSamples = numSamples;
+
+        // Sizes
+        if (track.mStsz >= 0) {
+            int sampleSize = mData.getInt(track.mStsz + 4);
+            for (int i = 0; i < numSamples; i++) {
+                track.mSizes[i] = sampleSize != 0 ? sampleSize
+                        : mData.getInt(track.mStsz + 12 + 4 * i);
+            }
+        } else {
+            int fieldSize = mData.get(track.mStz2 + 7);
+            for (int i = 0; i < numSamples; i++) {
+                int position = track.mStz2 + 12;
+                if (fieldSize == 4) {
+                    int packed = mData.get(position + i / 2) & 0xff;
+                    track.mSizes[i] = (i % 2 == 0) ? packed >> 4 : packed & 0xf;
+                } else if (fieldSize == 8) {
+                    track.mSizes[i] = mData.get(position + i) & 0xff;
+                } else {
+                    track.mSizes[i] = mData.getShort(position + 2 * i) & 0xffff;
+                }
+            }
+        }
+
+        // Offsets, walking the chunks with the sample to chunk table
+        boolean largeOffsets = track.mCo64 >= 0;
+        int chunkTable = largeOffsets ? track.mCo64 : track.mStco;
+        int numChunks = mData.getInt(chunkTable + 4);
+        int numStscEntries = mData.getInt(track.mStsc + 4);
+        int sample = 0;
+        for (int entry = 0; entry < numStscEntries && sample < numSamples; entry++) {
+            int position = track.mStsc + 8 + 12 * entry;
+            int firstChunk = mData.getInt(position);
+            int samplesPerChunk = mData.getInt(position + 4);
+            int lastChunk = entry + 1 < numStscEntries ? mData.getInt(position + 12) - 1
+                    : numChunks;
+            for (int chunk = firstChunk; chunk <= lastChunk && sample < numSamples; chunk++) {
+                long offset = largeOffsets ? mData.getLong(chunkTable + 8 + 8 * (chunk - 1))
+                        : getUnsignedInt(chunkTable + 8 + 4 * (chunk - 1));
+                for (int i = 0; i < samplesPerChunk && sample < numSamples; i++) {
+                    track.mOffsets[sample] = offset;
+                    offset += track.mSizes[sample];
+                    sample++;
+                }
+            }
+        }
+        if (sample != numSamples) {
+            throw new IOException("Sample to chunk table covers " + sample + " of "
+                    + numSamples + " samples");
+        }
+
+        // Timestamps from the decoding time and composition offset tables
+        int numSttsEntries = mData.getInt(track.mStts + 4);
+        int numCttsEntries = track.mCtts >= 0 ? mData.getInt(track.mCtts + 4) : 0;
+        int sttsEntry = 0;
+        int sttsRemaining = 0;
+        int sampleDelta = 0;
+        int cttsEntry = 0;
+        int cttsRemaining = 0;
+        int compositionOffset = 0;
+        long decodeTicks = 0;
+        for (int i = 0; i < numSamples; i++) {
+            while (sttsRemaining == 0 && sttsEntry < numSttsEntries) {
+                sttsRemaining = mData.getInt(track.mStts + 8 + 8 * sttsEntry);
+                sampleDelta = mData.getInt(track.mStts + 12 + 8 * sttsEntry);
+                sttsEntry++;
+            }
+            while (cttsRemaining == 0 && cttsEntry < numCttsEntries) {
+                cttsRemaining = mData.getInt(track.mCtts + 8 + 8 * cttsEntry);
+                compositionOffset = mData.getInt(track.mCtts + 12 + 8 * cttsEntry);
+                cttsEntry++;
+            }
+            track.mTimesUs[i] = track.toUs(track.getPresentationTicks(decodeTicks,
+                    cttsRemaining > 0 ? compositionOffset : 0));
+            decodeTicks += sampleDelta;
+            sttsRemaining = Math.max(0, sttsRemaining - 1);
+            cttsRemaining = Math.max(0, cttsRemaining - 1);
+        }
+        track.mNextDecodeTicks = decodeTicks;
+
+        // Sync samples, all samples are sync samples without a sync sample table
+        if (track.mStss < 0) {
+            for (int i = 0; i < numSamples; i++) {
+                track.mFlags[i] = SAMPLE_FLAG_SYNC;
+            }
+        } else {
+            int numSyncSamples = mData.getInt(track.mStss + 4);
+            for (int i = 0; i < numSyncSamples; i++) {
+                int syncSample = mData.getInt(track.mStss + 8 + 4 * i) - 1;
+                if (syncSample >= 0 && syncSample < numSamples) {
+                    track.mFlags[syncSample] = SAMPLE_FLAG_SYNC;
+                }
+            }
+        }
+    }
+
+    private void parseMovieFragment(int start, int end, int moofStart) throws IOException {
+        int position = start;
+        while (position + 8 <= end) {
+            int size = toInt(getUnsignedInt(position));
+            if (size < 8) {
+                throw new IOException("Invalid box size " + size);
+            }
+            if (mData.getInt(position + 4) == kTraf) {
+                parseTrackFragment(position + 8, Math.min(end, position + size), moofStart);
+            }
+            position += size;
+        }
+    }
+
+    private void parseTrackFragment(int start, int end, int moofStart) throws IOException {
+        Track track = null;
+        long baseOffset = moofStart;
+        long nextOffset = -1;
+        int defaultDuration = 0;
+        int defaultSize = 0;
+        int defaultFlags = 0;
+        int position = start;
+        while (position + 8 <= end) {
+            int size = toInt(getUnsignedInt(position));
+            if (size < 8) {
+                throw new IOException("Invalid box size " + size);
+            }
+            int type = mData.getInt(position + 4);
+            int box = position + 8;
+            if (type == kTfhd) {
+                int flags = mData.getInt(box) & 0xffffff;
+                track = findTrack(mData.getInt(box + 4));
+                if (track == null) {
+                    return;
+                }
+                defaultDuration = track.mDefaultDuration;
+                defaultSize = track.mDefaultSize;
+                defaultFlags = track.mDefaultFlags;
+                int field = box + 8;
+                if ((flags & 0x1) != 0) {
+                    baseOffset = mData.getLong(field);
+                    field += 8;
+                }
+                if ((flags & 0x2) != 0) {
+                    field += 4;
+                }
+                if ((flags & 0x8) != 0) {
+                    defaultDuration = mData.getInt(field);
+                    field += 4;
+                }
+                if ((flags & 0x10) != 0) {
+                    defaultSize = mData.getInt(field);
+                    field += 4;
+                }
+                if ((flags & 0x20) != 0) {
+                    defaultFlags = mData.getInt(field);
+                }
+            } else if (type == kTfdt && track != null) {
+                track.mNextDecodeTicks = mData.get(box) == 1 ? mData.getLong(box + 4)
+                        : getUnsignedInt(box + 4);
+            } else if (type == kTrun && track != null) {
+                nextOffset = parseTrackRun(box, track, baseOffset,
+                        nextOffset < 0 ? baseOffset : nextOffset, defaultDuration, defaultSize,
+                        defaultFlags);
+            }
+            position += size;
+        }
+    }
+
+    /**
+     * Appends the samples of a track run
+     *
+     * @param baseOffset Offset the data offset of the run is relative to
+     * @param nextOffset Offset of the run if it has no data offset, i.e. the end of the previous
+     *                   run of the track fragment
+     * @return Offset following the last sample of the run
+     */
+    private long parseTrackRun(int start, Track track, long baseOffset, long nextOffset,
+            int defaultDuration, int defaultSize, int defaultFlags) throws IOException {
+        int flags = mData.getInt(start) & 0xffffff;
+        int numSamples = mData.getInt(start + 4);
+        int field = start + 8;
+        long dataOffset = nextOffset;
+        if ((flags & 0x1) != 0) {
+            dataOffset = baseOffset + mData.getInt(field);
+            field += 4;
+        }
+        int firstSampleFlags = defaultFlags;
+        boolean hasFirstSampleFlags = (flags & 0x4) != 0;
+        if (hasFirstSampleFlags) {
+            firstSampleFlags = mData.getInt(field);
+            field += 4;
+        }
+        track.ensureCapacity(track.mNumSamples + numSamples);
+        long decodeTicks = track.mNextDecodeTicks;
+        for (int i = 0; i < numSamples; i++) {
+            int duration = defaultDuration;
+            int size = defaultSize;
+            int sampleFlags = (i == 0 && hasFirstSampleFlags) ? firstSampleFlags : defaultFlags;
+            int compositionOffset = 0;
+            if ((flags & 0x100) != 0) {
+                duration = mData.getInt(field);
+                field += 4;
+            }
+            if ((flags & 0x200) != 0) {
+                size = mData.getInt(field);
+                field += 4;
+            }
+            if ((flags & 0x400) != 0) {
+                sampleFlags = mData.getInt(field);
+                field += 4;
+                if (i == 0 && hasFirstSampleFlags) {
+                    sampleFlags = firstSampleFlags;
+                }
+            }
+            if ((flags & 0x800) != 0) {
+                compositionOffset = mData.getInt(field);
+                field += 4;
+            }
+            int sample = track.mNumSamples++;
+            track.mOffsets[sample] = dataOffset;
+            track.mSizes[sample] = size;
+            track.mTimesUs[sample] = track.toUs(track.getPresentationTicks(decodeTicks,
+                    compositionOffset));
+            track.mFlags[sample] = (sampleFlags & kSampleIsNonSync) != 0 ? 0 : SAMPLE_FLAG_SYNC;
+            dataOffset += size;
+            decodeTicks += duration;
+        }
+        track.mNextDecodeTicks = decodeTicks;
+        if (dataOffset > mData.limit()) {
+            throw new IOException("Track run extends past the end of the file");
+        }
+        return dataOffset;
+    }
+
+    @Override
+    public int getTrackCount() { return mTracks.size(); }
+
+    @Override
+    public String getTrackMime(int trackIndex) { return mTracks.get(trackIndex).mMime; }
+
+    @Override
+    public long getTrackDurationUs(int trackIndex) {
+        Track track = mTracks.get(trackIndex);
+        return track.mDurationTicks < 0 ? -1 : track.toUs(track.mDurationTicks);
+    }
+
+    /**
+     * Returns the number of samples of the track
+     */
+    public int getTrackSampleCount(int trackIndex) { return mTracks.get(trackIndex).mNumSamples; }
+
+    @Override
+    public void selectTrack(int trackIndex) {
+        mTracks.get(trackIndex).mSelected = true;
+        updateCurrentTrack();
+    }
+
+    @Override
+    public void unselectTrack(int trackIndex) {
+        mTracks.get(trackIndex).mSelected = false;
+        updateCurrentTrack();
+    }
+
+    private void updateCurrentTrack() {
+        mCurrentTrack = null;
+        for (Track track : mTracks) {
+            if (track.mSelected && track.mIndex < track.mNumSamples && (mCurrentTrack == null
+                    || track.mTimesUs[track.mIndex]
+                    < mCurrentTrack.mTimesUs[mCurrentTrack.mIndex])) {
+                mCurrentTrack = track;
+            }
+        }
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        if (mCurrentTrack == null) {
+            return -1;
+        }
+        int sampleOffset = (int) mCurrentTrack.mOffsets[mCurrentTrack.mIndex];
+        int size = mCurrentTrack.mSizes[mCurrentTrack.mIndex];
+        mView.limit(sampleOffset + size);
+        mView.position(sampleOffset);
+        buffer.limit(offset + size);
+        buffer.position(offset);
+        buffer.put(mView);
+        buffer.position(offset);
+        return size;
+    }
+
+    @Override
+    public long getSampleSize() {
+        return mCurrentTrack == null ? -1 : mCurrentTrack.mSizes[mCurrentTrack.mIndex];
+    }
+
+    @Override
+    public long getSampleTime() {
+        return mCurrentTrack == null ? -1 : mCurrentTrack.mTimesUs[mCurrentTrack.mIndex];
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return mCurrentTrack == null ? 0 : mCurrentTrack.mFlags[mCurrentTrack.mIndex];
+    }
+
+    @Override
+    public int getSampleTrackIndex() {
+        return mCurrentTrack == null ? -1 : mTracks.indexOf(mCurrentTrack);
+    }
+
+    @Override
+    public boolean advance() {
+        if (mCurrentTrack == null) {
+            return false;
+        }
+        mCurrentTrack.mIndex++;
+        updateCurrentTrack();
+        return mCurrentTrack != null;
+    }
+
+    @Override
+    public void seekTo(long timeUs) {
+        for (Track track : mTracks) {
+            if (!track.mSelected) {
+                continue;
+            }
+            int index = 0;
+            for (int i = 0; i < track.mNumSamples; i++) {
+                if ((track.mFlags[i] & SAMPLE_FLAG_SYNC) != 0) {
+                    if (track.mTimesUs[i] > timeUs) {
+                        break;
+                    }
+                    index = i;
+                }
+            }
+            track.mIndex = index;
+        }
+        updateCurrentTrack();
+    }
+
+    @Override
+    public void release() {
+        mTracks.clear();
+        mCurrentTrack = null;
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Decodes all tracks of a clip at the same time, as a player does.
+ * <p>
+ * All tracks are selected on one extractor and read interleaved on the calling thread. Every
+ * sample is dispatched by its track index to the decoder of that track, each decoder running on
+ * its own thread behind a bounded queue. A slow decoder therefore stalls the reads of the other
+ * tracks, as it would in playback. The presentation time reached by each decoder is sampled on
+ * every output to measure how far the tracks drift apart.
+ */
+public class MultiTrackDecoder {
+    private static final String TAG = "MultiTrackDecoder";
+    private static final int kExtraFrames = 2;
+
+    private final int mQueueCapacity;
+    private final Distribution mDrift;
+    private Track[] mTracks;
+    private Thread mReadThread;
+    private volatile boolean mAborted;
+    private long mWallTimeNs;
+    private long mReadTimeNs;
+    private long mReadBlockedTimeNs;
+    private long mNumSamples;
+    private long mNumBytes;
+    private long mDurationUs;
+
+    /**
+     * Decoder of one track, fed through a bounded queue
+     */
+    private class Track implements Runnable {
+        private final int mTrackId;
+        private final MediaFormat mFormat;
+        private final String mCodecName;
+        private final Frame.Pool mFramePool;
+        private final ArrayBlockingQueue<Frame> mQueue;
+        private final Decoder mDecoder = new Decoder();
+        private final MediaCodec.BufferInfo mInputInfo = new MediaCodec.BufferInfo();
+        private final MediaCodec.BufferInfo mOutputInfo = new MediaCodec.BufferInfo();
+        private Thread mThread;
+        private int mStatus;
+        private long mNumFrames;
+        private long mProgressUs = -1;
+        private boolean mDone;
+        private long mDecodeTimeNs;
+
+        Track(int trackId, MediaFormat format, String codecName) {
+            mTrackId = trackId;
+            mFormat = format;
+            mCodecName = codecName;
+            int capacity = format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)
+                    ? format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE) : 0;
+            mFramePool = new Frame.Pool(mQueueCapacity + kExtraFrames, capacity);
+            mQueue = new ArrayBlockingQueue<>(mQueueCapacity + kExtraFrames);
+        }
+
+        String getName() { return mTrackId + "." + mFormat.getString(MediaFormat.KEY_MIME); }
+
+        @Override
+        public void run() {
+            long startTimeNs = System.nanoTime();
+            try {
+                mDecoder.setupDecoder(null);
+                mStatus = mDecoder.setupStreamingDecoder(mFormat, mCodecName);
+                if (mStatus != 0) {
+                    Log.e(TAG, "Decoder for track " + getName() + " not created");
+                    return;
+                }
+                while (mStatus == 0 && !mDecoder.sawOutputEOS()) {
+                    Frame frame = mQueue.take();
+                    mStatus = decode(frame);
+                    frame.release();
+                }
+            } catch (IOException | InterruptedException e) {
+                if (!mAborted) {
+                    Log.e(TAG, "Decode of track " + getName() + " failed: " + e);
+                }
+                mStatus = -1;
+            } finally {
+                mDecoder.deInitCodec();
+                mDecodeTimeNs = System.nanoTime() - startTimeNs;
+                onTrackDone(this);
+                if (mStatus != 0) {
+                    abort();
+                }
+            }
+        }
+
+        private int decode(Frame frame) {
+            boolean endOfStream = frame.isEndOfStream();
+            mInputInfo.offset = frame.getOffset();
+            mInputInfo.size = frame.getSize();
+            mInputInfo.presentationTimeUs = frame.getPresentationTimeUs();
+            mInputInfo.flags = frame.getFlags();
+            while (true) {
+                int status = mDecoder.queueInputSample(frame.getBuffer(), mInputInfo);
+                if (status == 0) {
+                    break;
+                } else if (status < 0 || drain(false) < 0) {
+                    return -1;
+                }
+            }
+            return drain(endOfStream);
+        }
+
+        private int drain(boolean untilEndOfStream) {
+            while (!mDecoder.sawOutputEOS()) {
+                int status = mDecoder.dequeueOutputFrame(mOutputInfo, null);
+                if (status == Decoder.TRY_AGAIN) {
+                    if (untilEndOfStream && !mAborted) {
+                        continue;
+                    }
+                    return mAborted ? -1 : 0;
+                } else if (status < 0) {
+                    return -1;
+                }
+                if (mOutputInfo.size > 0) {
+                    mNumFrames++;
+                    onProgress(this, mOutputInfo.presentationTimeUs);
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * @param queueCapacity Number of samples buffered ahead of each decoder
+     */
+    public MultiTrackDecoder(int queueCapacity) {
+        mQueueCapacity = queueCapacity;
+        mDrift = new Distribution();
+    }
+
+    private synchronized void onProgress(Track track, long presentationTimeUs) {
+        track.mProgressUs = Math.max(track.mProgressUs, presentationTimeUs);
+        long minProgressUs = Long.MAX_VALUE;
+        long maxProgressUs = Long.MIN_VALUE;
+        int numActiveTracks = 0;
+        for (Track other : mTracks) {
+            if (other == null || other.mDone || other.mProgressUs < 0) {
+                continue;
+            }
+            minProgressUs = Math.min(minProgressUs, other.mProgressUs);
+            maxProgressUs = Math.max(maxProgressUs, other.mProgressUs);
+            numActiveTracks++;
+        }
+        if (numActiveTracks > 1) {
+            mDrift.add(maxProgressUs - minProgressUs);
+        }
+    }
+
+    private synchronized void onTrackDone(Track track) { track.mDone = true; }
+
+    private void abort() {
+        mAborted = true;
+        mReadThread.interrupt();
+        for (Track track : mTracks) {
+            if (track != null && track.mThread != null) {
+                track.mThread.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Decodes all audio and video tracks of the input. Samples of other tracks are read and
+     * dropped.
+     *
+     * @param extractor  Extractor already set up with the input, no track selected
+     * @param trackCount Number of tracks of the input
+     * @param codecName  Will create the decoders with codecName, empty to select them by mime
+     * @return 0 if all tracks were decoded, -1 for fail, -2 for decoder not created
+     */
+    public int decode(Extractor extractor, int trackCount, String codecName)
+            throws InterruptedException {
+        mTracks = new Track[trackCount];
+        mDrift.reset();
+        mAborted = false;
+        mNumSamples = 0;
+        mNumBytes = 0;
+        mReadTimeNs = 0;
+        mReadBlockedTimeNs = 0;
+        mDurationUs = 0;
+        for (int trackId = 0; trackId < trackCount; trackId++) {
+            MediaFormat format = extractor.getFormat(trackId);
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            if (extractor.selectExtractorTrack(trackId) != 0) {
+                return -1;
+            }
+            mDurationUs = Math.max(mDurationUs, extractor.getClipDuration());
+            if (mime.startsWith("audio/") || mime.startsWith("video/")) {
+                mTracks[trackId] = new Track(trackId, format, codecName);
+            }
+        }
+        mReadThread = Thread.currentThread();
+        long startTimeNs = System.nanoTime();
+        for (Track track : mTracks) {
+            if (track != null) {
+                track.mThread = new Thread(track, "MultiTrackDecoder-" + track.getName());
+                track.mThread.start();
+            }
+        }
+        int status = 0;
+        try {
+            readAndDispatch(extractor);
+            for (Track track : mTracks) {
+                if (track != null) {
+                    Frame eos = obtainFrame(track);
+                    eos.set(0, 0, 0, Frame.FLAG_END_OF_STREAM);
+                    track.mQueue.put(eos);
+                }
+            }
+        } catch (InterruptedException e) {
+            if (!mAborted) {
+                throw e;
+            }
+            status = -1;
+        }
+        for (Track track : mTracks) {
+            if (track != null) {
+                joinUninterruptibly(track.mThread);
+                if (track.mStatus != 0 && status == 0) {
+                    status = track.mStatus;
+                }
+            }
+        }
+        // Clears an interrupt raised by a failing decoder.
+        Thread.interrupted();
+        mWallTimeNs = System.nanoTime() - startTimeNs;
+        for (int trackId = 0; trackId < trackCount; trackId++) {
+            extractor.unselectExtractorTrack(trackId);
+        }
+        return status;
+    }
+
+    private void readAndDispatch(Extractor extractor) throws InterruptedException {
+        while (!mAborted) {
+            long sTime = System.nanoTime();
+            int sampleSize = extractor.getFrameSample();
+            mReadTimeNs += System.nanoTime() - sTime;
+            if (sampleSize < 0) {
+                return;
+            }
+            mNumSamples++;
+            mNumBytes += sampleSize;
+            Track track = mTracks[extractor.getSampleTrackIndex()];
+            if (track == null) {
+                continue;
+            }
+            MediaCodec.BufferInfo info = extractor.getBufferInfo();
+            Frame frame = obtainFrame(track);
+            ByteBuffer buffer = frame.ensureCapacity(sampleSize);
+            buffer.clear();
+            buffer.put(extractor.getFrameBuffer());
+            frame.set(0, sampleSize, info.presentationTimeUs, info.flags);
+            track.mQueue.put(frame);
+        }
+    }
+
+    private Frame obtainFrame(Track track) throws InterruptedException {
+        long sTime = System.nanoTime();
+        Frame frame = track.mFramePool.obtain();
+        mReadBlockedTimeNs += System.nanoTime() - sTime;
+        return frame;
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        while (true) {
+            try {
+                thread.join();
+                return;
+            } catch (InterruptedException e) {
+                // A failing decoder interrupts the read thread, keep waiting for the others.
+            }
+        }
+    }
+
+    /**
+     * Reads all samples of all tracks without decoding them
+     *
+     * @param fileDescriptor Input to be read
+     * @param interleaved    If true, all tracks are selected and read together, else each track
+     *                       is selected and read on its own, one after another
+     * @return Time taken to read all samples in nanoseconds, -1 on failure
+     */
+    public static long timeReads(FileDescriptor fileDescriptor, boolean interleaved)
+            throws IOException {
+        Extractor extractor = new Extractor();
+        int trackCount = extractor.setUpExtractor(fileDescriptor);
+        long sTime = System.nanoTime();
+        for (int pass = 0; pass < (interleaved ? 1 : trackCount); pass++) {
+            for (int trackId = 0; trackId < trackCount; trackId++) {
+                if ((interleaved || trackId == pass)
+                        && extractor.selectExtractorTrack(trackId) != 0) {
+                    extractor.deinitExtractor();
+                    return -1;
+                }
+            }
+            while (extractor.getFrameSample() >= 0) {
+                // Only the read itself is measured.
+            }
+            for (int trackId = 0; trackId < trackCount; trackId++) {
+                if (interleaved || trackId == pass) {
+                    extractor.unselectExtractorTrack(trackId);
+                }
+            }
+        }
+        long timeTaken = System.nanoTime() - sTime;
+        extractor.deinitExtractor();
+        return timeTaken;
+    }
+
+    /**
+     * Returns how far apart the presentation times reached by the tracks were, sampled on every
+     * decoded frame while more than one track was decoding
+     */
+    public Distribution getDrift() { return mDrift; }
+
+    /**
+     * Collects the measurements of the last decode
+     *
+     * @param inputReference    Name of the input media
+     * @param interleavedReadNs Time to read all tracks interleaved, see {@link #timeReads}
+     * @param sequentialReadNs  Time to read the tracks one after another
+     * @return Metrics of the decode
+     */
+    public Metrics getMetrics(String inputReference, long interleavedReadNs,
+            long sequentialReadNs) {
+        Metrics metrics = new Metrics(inputReference, "multiTrackDecode", "");
+        double wallTimeSec = Math.max(1, mWallTimeNs) / 1e9;
+        metrics.add("wallTimeNs", mWallTimeNs);
+        metrics.add("samples", mNumSamples);
+        metrics.add("samplesPerSec", mNumSamples / wallTimeSec);
+        metrics.add("bytesPerSec", mNumBytes / wallTimeSec);
+        metrics.add("speed", mDurationUs / 1e6 / wallTimeSec);
+        metrics.add("readTimeNs", mReadTimeNs);
+        metrics.add("readBlockedTimeNs", mReadBlockedTimeNs);
+        metrics.add("driftUs", mDrift);
+        for (Track track : mTracks) {
+            if (track == null) {
+                continue;
+            }
+            String prefix = "track" + track.getName() + ".";
+            metrics.add(prefix + "frames", track.mNumFrames);
+            metrics.add(prefix + "decodeTimeNs", track.mDecodeTimeNs);
+            metrics.add(prefix + "fps", track.mNumFrames * 1e9 / Math.max(1,
+                    track.mDecodeTimeNs));
+        }
+        metrics.add("interleavedReadTimeNs", interleavedReadNs);
+        metrics.add("sequentialReadTimeNs", sequentialReadNs);
+        metrics.add("interleavedReadCostPercent",
+                100.0 * (interleavedReadNs - sequentialReadNs) / Math.max(1, sequentialReadNs));
+        return metrics;
+    }
+}
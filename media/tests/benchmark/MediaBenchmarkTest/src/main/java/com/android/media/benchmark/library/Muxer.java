@@ -13,20 +13,147 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
+
 package com.android.media.benchmark.library;
 
 import android.content.Context;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 public class Muxer {
+    private static final String TAG = "Muxer";
+    /** Path based output in the files directory of the app, on the data partition */
+    public static final String OUTPUT_DATA = "data";
+    /** File descriptor output on a file of the data partition allocated before muxing */
+    public static final String OUTPUT_PREALLOCATED = "preallocated";
+    /** Path based output on a tmpfs, or a file descriptor on /dev/null if none is writable */
+    public static final String OUTPUT_TMPFS = "tmpfs";
+    private static final String kNullDevice = "/dev/null";
     private Stats mStats;
-    private MediaMuxer mMuxer;
+    private BenchmarkMuxer mMuxer;
+    private File mOutputFile;
+    private String mOutputMode = OUTPUT_DATA;
+    private String mOutputType;
+    private long mPreallocateSize;
+    private long mSyncIntervalNs = -1;
+    private RandomAccessFile mOutputFd;
+    private final Distribution mSyncTimes = new Distribution();
+    private long mLastSyncTimeNs;
+    private long mFinalSyncTimeNs;
+    private IoStats mIoStart;
+    private IoStats mIoDelta;
+    private int mNumTracks;
+    private int mNumSamples;
+    private final Distribution mWriteTimes = new Distribution();
+    private long mInterleaveTimeNs;
+    private long mStopTimeNs;
+    private long mReleaseTimeNs;
+    private long mOutputSize;
+
+    /**
+     * Selects where the next muxers write, by default {@link #OUTPUT_DATA}
+     *
+     * @param outputMode      One of the OUTPUT_* modes
+     * @param preallocateSize Bytes allocated for {@link #OUTPUT_PREALLOCATED}
+     */
+    public void setOutputMode(String outputMode, long preallocateSize) {
+        mOutputMode = outputMode;
+        mPreallocateSize = preallocateSize;
+    }
+
+    /**
+     * Makes the output durable with fsync() while and after muxing
+     *
+     * @param syncIntervalMs Minimum time between two fsync() calls after writes, 0 to only call
+     *                       it once the muxer is stopped, -1 to never call it
+     */
+    public void setSyncInterval(long syncIntervalMs) {
+        mSyncIntervalNs = syncIntervalMs < 0 ? -1 : syncIntervalMs * 1000000;
+    }
+
+    /**
+     * Returns a writable tmpfs mount point, null if there is none
+     */
+    private static File findTmpfsDir() {
+        try (BufferedReader mounts = new BufferedReader(new FileReader("/proc/mounts"))) {
+            for (String line = mounts.readLine(); line != null; line = mounts.readLine()) {
+                String[] fields = line.split(" ");
+                if (fields.length > 2 && fields[2].equals("tmpfs")) {
+                    File dir = new File(fields[1]);
+                    if (dir.isDirectory() && dir.canWrite()) {
+                        return dir;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read mounts: " + e);
+        }
+        return null;
+    }
+
+    private BenchmarkMuxer createMuxer(Context context, int outputFormat)
+            throws IOException, ErrnoException {
+        File outputDir = context.getFilesDir();
+        boolean needFd = mSyncIntervalNs >= 0;
+        mOutputType = mOutputMode;
+        if (mOutputMode.equals(OUTPUT_TMPFS)) {
+            outputDir = findTmpfsDir();
+            if (outputDir == null) {
+                // Apps usually have no writable tmpfs, a null device gives the same baseline
+                mOutputType = "devnull";
+                mOutputFile = null;
+                mOutputFd = new RandomAccessFile(kNullDevice, "rw");
+                return new PlatformMuxer(new MediaMuxer(mOutputFd.getFD(), outputFormat));
+            }
+        }
+        mOutputFile = File.createTempFile("mux.", ".out", outputDir);
+        if (mOutputMode.equals(OUTPUT_PREALLOCATED)) {
+            mOutputFd = new RandomAccessFile(mOutputFile, "rw");
+            if (mPreallocateSize > 0) {
+                Os.posix_fallocate(mOutputFd.getFD(), 0, mPreallocateSize);
+            }
+            return new PlatformMuxer(new MediaMuxer(mOutputFd.getFD(), outputFormat));
+        }
+        if (needFd) {
+            // fsync() on any descriptor of the file flushes the writes of the muxer
+            mOutputFd = new RandomAccessFile(mOutputFile, "rw");
+        }
+        return new PlatformMuxer(new MediaMuxer(mOutputFile.getPath(), outputFormat));
+    }
+
+    private void sync() {
+        try {
+            Os.fsync(mOutputFd.getFD());
+        } catch (ErrnoException | IOException e) {
+            Log.w(TAG, "fsync failed: " + e);
+        }
+    }
+
+    private void closeOutput() {
+        if (mOutputFd != null) {
+            try {
+                mOutputFd.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close output: " + e);
+            }
+            mOutputFd = null;
+        }
+        if (mOutputFile != null && !mOutputFile.delete()) {
+            Log.w(TAG, "Unable to delete " + mOutputFile);
+        }
+    }
 
     /**
      * Creates a Media Muxer for the specified path
@@ -37,22 +164,87 @@ public class Muxer {
      * @return Returns the track index of the newly added track, -1 otherwise
      */
     public int setUpMuxer(Context context, int outputFormat, MediaFormat trackFormat) {
+        ArrayList<MediaFormat> trackFormats = new ArrayList<>();
+        trackFormats.add(trackFormat);
+        return setUpMuxer(context, outputFormat, trackFormats) == 1 ? 0 : -1;
+    }
+
+    /**
+     * Creates a Media Muxer writing to a new file of the app, so that muxers of tests running in
+     * parallel never share an output, and adds all the given tracks. The track index of a track
+     * is its position in the list.
+     *
+     * @param context      App context to specify the output file path
+     * @param outputFormat Format of the output media file
+     * @param trackFormats Formats of the tracks
+     * @return Returns the number of tracks added, -1 otherwise
+     */
+    public int setUpMuxer(Context context, int outputFormat, ArrayList<MediaFormat> trackFormats) {
+        resetCounters();
         try {
-            mStats = new Stats();
             long sTime = mStats.getCurTime();
-            mMuxer = new MediaMuxer(context.getFilesDir().getPath() + "/mux.out.", outputFormat);
-            int trackIndex = mMuxer.addTrack(trackFormat);
-            mMuxer.start();
-            long eTime = mStats.getCurTime();
-            long timeTaken = mStats.getTimeDiff(sTime, eTime);
-            mStats.setInitTime(timeTaken);
-            return trackIndex;
-        } catch (IllegalArgumentException | IOException e) {
+            mMuxer = createMuxer(context, outputFormat);
+            return startMuxer(trackFormats, sTime);
+        } catch (IllegalArgumentException | IllegalStateException | IOException
+                | ErrnoException e) {
             e.printStackTrace();
+            closeOutput();
             return -1;
         }
     }
 
+    /**
+     * Uses a muxer which already has an output, such as a {@link SimulatedMuxer}, and adds all
+     * the given tracks. The output mode and the sync interval do not apply to it.
+     *
+     * @param muxer        Muxer the samples are written to, released by {@link #deInitMuxer()}
+     * @param trackFormats Formats of the tracks
+     * @return Returns the number of tracks added, -1 otherwise
+     */
+    public int setUpMuxer(BenchmarkMuxer muxer, ArrayList<MediaFormat> trackFormats) {
+        resetCounters();
+        mOutputType = "custom";
+        mOutputFile = null;
+        mOutputFd = null;
+        try {
+            long sTime = mStats.getCurTime();
+            mMuxer = muxer;
+            return startMuxer(trackFormats, sTime);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    private void resetCounters() {
+        mStats = new Stats();
+        mWriteTimes.reset();
+        mInterleaveTimeNs = 0;
+        mNumSamples = 0;
+        mSyncTimes.reset();
+        mFinalSyncTimeNs = 0;
+        mIoStart = IoStats.read();
+    }
+
+    private int startMuxer(ArrayList<MediaFormat> trackFormats, long sTime) {
+        for (MediaFormat trackFormat : trackFormats) {
+            mMuxer.addTrack(trackFormat);
+        }
+        mMuxer.start();
+        long eTime = mStats.getCurTime();
+        long timeTaken = mStats.getTimeDiff(sTime, eTime);
+        mStats.setInitTime(timeTaken);
+        mNumTracks = trackFormats.size();
+        mLastSyncTimeNs = System.nanoTime();
+        return mNumTracks;
+    }
+
+    /**
+     * Returns the file the muxer writes to, deleted by {@link #deInitMuxer()}. Null if the
+     * muxer writes to the null device.
+     */
+    public File getOutputFile() { return mOutputFile; }
+
     /**
      * Performs the Mux operation
      *
@@ -65,13 +257,8 @@ public class Muxer {
                    ArrayList<MediaCodec.BufferInfo> inputBufferInfo) {
         mStats.setStartTime();
         for (int sampleCount = 0; sampleCount < inputExtractedBuffer.size(); sampleCount++) {
-            try {
-                mMuxer.writeSampleData(trackIndex, inputExtractedBuffer.get(sampleCount),
-                        inputBufferInfo.get(sampleCount));
-                mStats.addOutputTime();
-                mStats.addFrameSize(inputBufferInfo.get(sampleCount).size);
-            } catch (IllegalArgumentException | IllegalStateException e) {
-                e.printStackTrace();
+            if (writeSample(trackIndex, inputExtractedBuffer.get(sampleCount),
+                    inputBufferInfo.get(sampleCount)) != 0) {
                 return -1;
             }
         }
@@ -79,15 +266,122 @@ public class Muxer {
     }
 
     /**
-     * Stops the muxer and free up the resources
+     * Performs the Mux operation for all tracks added by setUpMuxer. Like a remux, samples are
+     * written in timestamp order across the tracks; otherwise every track is written after the
+     * previous one, which gives the cost of interleaving by comparison. End of stream samples
+     * without data are not written.
+     *
+     * @param inputBuffers    Samples of each track, in decoding order
+     * @param inputBufferInfo Buffer information related to these samples
+     * @param interleave      If true, samples of the tracks are interleaved by timestamp
+     * @return Returns Status as 0 if write operation is successful, -1 otherwise
+     */
+    public int mux(ArrayList<ArrayList<ByteBuffer>> inputBuffers,
+                   ArrayList<ArrayList<MediaCodec.BufferInfo>> inputBufferInfo,
+                   boolean interleave) {
+        int numTracks = inputBuffers.size();
+        int[] nextSample = new int[numTracks];
+        mStats.setStartTime();
+        if (!interleave) {
+            for (int track = 0; track < numTracks; track++) {
+                for (int i = 0; i < inputBuffers.get(track).size(); i++) {
+                    MediaCodec.BufferInfo info = inputBufferInfo.get(track).get(i);
+                    if (info.size > 0
+                            && writeSample(track, inputBuffers.get(track).get(i), info) != 0) {
+                        return -1;
+                    }
+                }
+            }
+            return 0;
+        }
+        while (true) {
+            long sTime = System.nanoTime();
+            int next = -1;
+            long nextTimeUs = Long.MAX_VALUE;
+            for (int track = 0; track < numTracks; track++) {
+                ArrayList<MediaCodec.BufferInfo> infos = inputBufferInfo.get(track);
+                while (nextSample[track] < infos.size()
+                        && infos.get(nextSample[track]).size <= 0) {
+                    nextSample[track]++;
+                }
+                if (nextSample[track] < infos.size()
+                        && infos.get(nextSample[track]).presentationTimeUs < nextTimeUs) {
+                    next = track;
+                    nextTimeUs = infos.get(nextSample[track]).presentationTimeUs;
+                }
+            }
+            mInterleaveTimeNs += System.nanoTime() - sTime;
+            if (next < 0) {
+                return 0;
+            }
+            int sample = nextSample[next]++;
+            if (writeSample(next, inputBuffers.get(next).get(sample),
+                    inputBufferInfo.get(next).get(sample)) != 0) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Writes a single sample, for muxing samples as they are produced
+     *
+     * @param trackIndex Track index of the sample
+     * @param buffer     Buffer containing the encoded sample
+     * @param info       Buffer information related to the sample
+     * @return Returns Status as 0 if write operation is successful, -1 otherwise
+     */
+    public int writeSample(int trackIndex, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        try {
+            long sTime = System.nanoTime();
+            mMuxer.writeSampleData(trackIndex, buffer, info);
+            mWriteTimes.add(System.nanoTime() - sTime);
+            mStats.addOutputTime();
+            mStats.addFrameSize(info.size);
+            mNumSamples++;
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            e.printStackTrace();
+            return -1;
+        }
+        if (mSyncIntervalNs > 0 && mOutputFd != null) {
+            long sTime = System.nanoTime();
+            if (sTime - mLastSyncTimeNs >= mSyncIntervalNs) {
+                sync();
+                mLastSyncTimeNs = System.nanoTime();
+                mSyncTimes.add(mLastSyncTimeNs - sTime);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Marks the start of the measured write operations when samples are written one by one
+     */
+    public void setStartTime() { mStats.setStartTime(); }
+
+    /**
+     * Stops the muxer, which writes the index of the file, and free up the resources. The output
+     * is then synced if a sync interval was set, and the file is deleted once its size and the
+     * I/O of the process are recorded.
      */
     public void deInitMuxer() {
         long sTime = mStats.getCurTime();
         mMuxer.stop();
+        long stopTime = mStats.getCurTime();
         mMuxer.release();
         long eTime = mStats.getCurTime();
+        mStopTimeNs = mStats.getTimeDiff(sTime, stopTime);
+        mReleaseTimeNs = mStats.getTimeDiff(stopTime, eTime);
         long timeTaken = mStats.getTimeDiff(sTime, eTime);
         mStats.setDeInitTime(timeTaken);
+        if (mSyncIntervalNs >= 0 && mOutputFd != null) {
+            sTime = System.nanoTime();
+            sync();
+            mFinalSyncTimeNs = System.nanoTime() - sTime;
+        }
+        IoStats ioEnd = IoStats.read();
+        mIoDelta = mIoStart != null && ioEnd != null ? ioEnd.since(mIoStart) : null;
+        mOutputSize = mOutputFile != null ? mOutputFile.length() : 0;
+        closeOutput();
     }
 
     /**
@@ -97,6 +391,12 @@ public class Muxer {
         mStats.reset();
     }
 
+    /**
+     * Returns the stats of the last operation, summarised with {@link Stats#getMetrics} in the
+     * same way as the results of the native benchmarks
+     */
+    public Stats getStats() { return mStats; }
+
     /**
      * Write the benchmark logs for the given input file
      *
@@ -110,4 +410,33 @@ public class Muxer {
         String operation = "mux";
         mStats.dumpStatistics(inputReference, operation, muxFormat, "", clipDuration, statsFile);
     }
+
+    /**
+     * Returns the write call latencies, the time spent choosing the next sample to interleave
+     * and the cost of stop(), which writes the index of the file, of the last mux operation
+     *
+     * @param inputReference Name of the input
+     * @param operation      Mux operation, such as interleaved or sequential
+     * @param muxFormat      Format of the muxed output
+     */
+    public Metrics getMetrics(String inputReference, String operation, String muxFormat) {
+        Metrics metrics = new Metrics(inputReference, operation, muxFormat);
+        metrics.add("tracks", mNumTracks);
+        metrics.add("samples", mNumSamples);
+        metrics.add("setupTimeNs", mStats.getInitTime());
+        metrics.add("writeCallTimeNs", mWriteTimes);
+        metrics.add("writeTimeNs", mWriteTimes.getSum());
+        metrics.add("interleaveTimeNs", mInterleaveTimeNs);
+        metrics.add("stopTimeNs", mStopTimeNs);
+        metrics.add("releaseTimeNs", mReleaseTimeNs);
+        metrics.add("outputType", mOutputType);
+        metrics.add("outputSize", mOutputSize);
+        metrics.add("syncIntervalNs", mSyncIntervalNs);
+        metrics.add("syncTimeNs", mSyncTimes);
+        metrics.add("finalSyncTimeNs", mFinalSyncTimeNs);
+        if (mIoDelta != null) {
+            mIoDelta.addTo(metrics, mOutputSize);
+        }
+        return metrics;
+    }
 }
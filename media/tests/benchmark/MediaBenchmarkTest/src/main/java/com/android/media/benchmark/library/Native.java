@@ -16,17 +16,36 @@
 
 package com.android.media.benchmark.library;
 
+import java.nio.ByteBuffer;
+
+/**
+ * Runs the native benchmarks. Every run writes its stats to the stats file and, if results is
+ * the buffer of a {@link NativeResults}, its per-frame results to the buffer. results may be
+ * null.
+ */
 public class Native {
+    /** The async callbacks of the codecs reach their IO thread through a locked queue */
+    public static final int CALLBACK_QUEUE_LOCKED = 0;
+    /** The async callbacks of the codecs reach their IO thread through a lock-free ring */
+    public static final int CALLBACK_QUEUE_SPSC = 1;
+
     static { System.loadLibrary("mediabenchmark_jni"); }
 
-    public native int Extract(String inputFilePath, String inputFileName, String statsFile);
+    /**
+     * Selects the queue of the codecs created by the following Decode and Encode calls,
+     * CALLBACK_QUEUE_LOCKED by default
+     */
+    public native void SetCallBackQueue(int queueType);
+
+    public native int Extract(String inputFilePath, String inputFileName, String statsFile,
+            ByteBuffer results);
 
     public native int Mux(String inputFilePath, String inputFileName, String outputFilePath,
-            String statsFile, String format);
+            String statsFile, String format, ByteBuffer results);
 
     public native int Decode(String inputFilePath, String inputFileName, String statsFile,
-            String codecName, boolean asyncMode);
+            String codecName, boolean asyncMode, ByteBuffer results);
 
     public native int Encode(String inputFilePath, String inputFileName, String outputFilePath,
-            String statsFile, String codecName);
+            String statsFile, String codecName, ByteBuffer results);
 }
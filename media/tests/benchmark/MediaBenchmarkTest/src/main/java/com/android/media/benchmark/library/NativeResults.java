@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Results of the native benchmarks, written by the native code into a direct buffer passed to
+ * the methods of {@link Native} without any copy.
+ * <p>
+ * Every run of a native benchmark, one per track and mode, fills a slot with the per-frame
+ * input and output times and frame sizes recorded by its stats, its init and deinit times and
+ * the time of its phases. {@link #getStats(int)} turns a run into the same {@link Stats} as an
+ * SDK run, so that both are summarised from identical data. The layout must match
+ * BenchmarkResults.h of the native code.
+ */
+public class NativeResults {
+    /** Operating mode of a run */
+    public static final int MODE_NONE = 0;
+    public static final int MODE_SYNC = 1;
+    public static final int MODE_ASYNC = 2;
+
+    /** Reading the input samples into memory before they are processed */
+    public static final int PHASE_READ_INPUT = 0;
+    /** Extracting, muxing, decoding or encoding the samples */
+    public static final int PHASE_PROCESS = 1;
+    /** The whole run, from opening the input to releasing the components */
+    public static final int PHASE_TOTAL = 2;
+    /** Frames of a run held by default, enough for the clips of the benchmark */
+    public static final int DEFAULT_MAX_FRAMES = 1 << 16;
+
+    static final int kVersion = 2;
+    static final int kHeaderSize = 16;
+    static final int kRunHeaderSize = 192;
+    // Offsets in the header of the buffer
+    static final int kVersionOffset = 0;
+    static final int kMaxRunsOffset = 4;
+    static final int kMaxFramesOffset = 8;
+    static final int kNumRunsOffset = 12;
+    // Offsets in the header of a run
+    static final int kTrackIdOffset = 0;
+    static final int kModeOffset = 4;
+    static final int kNumInputTimesOffset = 8;
+    static final int kNumOutputTimesOffset = 12;
+    static final int kNumFrameSizesOffset = 16;
+    static final int kTruncatedOffset = 20;
+    static final int kInitTimeOffset = 24;
+    static final int kDeInitTimeOffset = 32;
+    static final int kStartTimeOffset = 40;
+    static final int kDurationOffset = 48;
+    static final int kPhaseTimesOffset = 56;
+    static final int kCreateTimeOffset = 88;
+    static final int kConfigureTimeOffset = 96;
+    static final int kCodecStartTimeOffset = 104;
+    static final int kCallBackQueueOffset = 112;
+    static final int kNumCallBacksOffset = 116;
+    static final int kNumCallBackBatchesOffset = 120;
+    // Mean, p50, p90, p99 and max
+    static final int kCallBackLatencyOffset = 128;
+
+    private final ByteBuffer mBuffer;
+    private final int mMaxRuns;
+    private final int mMaxFrames;
+
+    /**
+     * @param maxRuns   Number of runs the buffer can hold, further runs are dropped
+     * @param maxFrames Number of frames of a run the buffer can hold, further frames are dropped
+     *                  and the run is marked as truncated
+     */
+    public NativeResults(int maxRuns, int maxFrames) {
+        mMaxRuns = maxRuns;
+        mMaxFrames = maxFrames;
+        mBuffer = ByteBuffer.allocateDirect(kHeaderSize + maxRuns * getRunSize(maxFrames))
+                .order(ByteOrder.nativeOrder());
+        mBuffer.putInt(kVersionOffset, kVersion);
+        mBuffer.putInt(kMaxRunsOffset, maxRuns);
+        mBuffer.putInt(kMaxFramesOffset, maxFrames);
+        reset();
+    }
+
+    /**
+     * @param maxRuns Number of runs the buffer can hold, of up to DEFAULT_MAX_FRAMES frames
+     */
+    public NativeResults(int maxRuns) { this(maxRuns, DEFAULT_MAX_FRAMES); }
+
+    static int getRunSize(int maxFrames) {
+        // Input and output times, then frame sizes, padded to keep the next run aligned
+        int size = kRunHeaderSize + maxFrames * (8 + 8 + 4);
+        return (size + 7) & ~7;
+    }
+
+    /**
+     * Returns the buffer to pass to the methods of {@link Native}
+     */
+    public ByteBuffer getBuffer() { return mBuffer; }
+
+    /**
+     * Drops the runs written so far
+     */
+    public void reset() { mBuffer.putInt(kNumRunsOffset, 0); }
+
+    public int getNumRuns() { return Math.min(mBuffer.getInt(kNumRunsOffset), mMaxRuns); }
+
+    private int getRunOffset(int run) {
+        if (run < 0 || run >= getNumRuns()) {
+            throw new IndexOutOfBoundsException("Run " + run + " of " + getNumRuns());
+        }
+        return kHeaderSize + run * getRunSize(mMaxFrames);
+    }
+
+    public int getTrackId(int run) { return mBuffer.getInt(getRunOffset(run) + kTrackIdOffset); }
+
+    /**
+     * Returns the operating mode of a run as written in the stats: sync, async or empty
+     */
+    public String getMode(int run) {
+        switch (mBuffer.getInt(getRunOffset(run) + kModeOffset)) {
+            case MODE_SYNC:
+                return "sync";
+            case MODE_ASYNC:
+                return "async";
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * Returns true if the run had more frames than the buffer can hold
+     */
+    public boolean isTruncated(int run) {
+        return mBuffer.getInt(getRunOffset(run) + kTruncatedOffset) != 0;
+    }
+
+    public long getDurationUs(int run) {
+        return mBuffer.getLong(getRunOffset(run) + kDurationOffset);
+    }
+
+    public long getPhaseTimeNs(int run, int phase) {
+        return mBuffer.getLong(getRunOffset(run) + kPhaseTimesOffset + 8 * phase);
+    }
+
+    /**
+     * Returns the {@link Native} callback queue of a run
+     */
+    public int getCallBackQueue(int run) {
+        return mBuffer.getInt(getRunOffset(run) + kCallBackQueueOffset);
+    }
+
+    /**
+     * Returns the number of async callbacks of a run, 0 in sync mode
+     */
+    public int getNumCallBacks(int run) {
+        return mBuffer.getInt(getRunOffset(run) + kNumCallBacksOffset);
+    }
+
+    /**
+     * Returns the number of times the IO thread of a run woke up to handle callbacks
+     */
+    public long getNumCallBackBatches(int run) {
+        return mBuffer.getLong(getRunOffset(run) + kNumCallBackBatchesOffset);
+    }
+
+    /**
+     * Returns a percentile of the time from the callbacks of a run to their handling
+     *
+     * @param percentile 50, 90, 99 or 100, any other value returns the mean
+     */
+    public long getCallBackLatencyNs(int run, int percentile) {
+        int index;
+        switch (percentile) {
+            case 50:
+                index = 1;
+                break;
+            case 90:
+                index = 2;
+                break;
+            case 99:
+                index = 3;
+                break;
+            case 100:
+                index = 4;
+                break;
+            default:
+                index = 0;
+        }
+        return mBuffer.getLong(getRunOffset(run) + kCallBackLatencyOffset + 8 * index);
+    }
+
+    /**
+     * Returns the stats of a run, built from the times and sizes recorded by the native code
+     */
+    public Stats getStats(int run) {
+        int offset = getRunOffset(run);
+        int inputTimes = offset + kRunHeaderSize;
+        int outputTimes = inputTimes + 8 * mMaxFrames;
+        int frameSizes = outputTimes + 8 * mMaxFrames;
+        Stats stats = new Stats();
+        stats.setLayer("NDK");
+        stats.setInitTime(mBuffer.getLong(offset + kInitTimeOffset));
+        stats.setDeInitTime(mBuffer.getLong(offset + kDeInitTimeOffset));
+        stats.setStartTime(mBuffer.getLong(offset + kStartTimeOffset));
+        stats.setCodecSetupTimes(mBuffer.getLong(offset + kCreateTimeOffset),
+                mBuffer.getLong(offset + kConfigureTimeOffset),
+                mBuffer.getLong(offset + kCodecStartTimeOffset));
+        int count = Math.min(mBuffer.getInt(offset + kNumInputTimesOffset), mMaxFrames);
+        for (int i = 0; i < count; i++) {
+            stats.addInputTime(mBuffer.getLong(inputTimes + 8 * i));
+        }
+        count = Math.min(mBuffer.getInt(offset + kNumOutputTimesOffset), mMaxFrames);
+        for (int i = 0; i < count; i++) {
+            stats.addOutputTime(mBuffer.getLong(outputTimes + 8 * i));
+        }
+        count = Math.min(mBuffer.getInt(offset + kNumFrameSizesOffset), mMaxFrames);
+        for (int i = 0; i < count; i++) {
+            stats.addFrameSize(mBuffer.getInt(frameSizes + 4 * i));
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the summary of a run, the same as {@link Stats#getMetrics} of an SDK run, with the
+     * time of its phases
+     *
+     * @param run            Index of the run
+     * @param inputReference Input media
+     * @param operation      Operation performed on the input media
+     * @param componentName  Name of the codec/muxFormat/mime
+     */
+    public Metrics getMetrics(int run, String inputReference, String operation,
+            String componentName) {
+        Metrics metrics = getStats(run).getMetrics(inputReference, operation, componentName,
+                getMode(run), getDurationUs(run));
+        metrics.add("trackId", getTrackId(run));
+        metrics.add("truncated", isTruncated(run) ? 1 : 0);
+        metrics.add("readInputTimeNs", getPhaseTimeNs(run, PHASE_READ_INPUT));
+        metrics.add("processTimeNs", getPhaseTimeNs(run, PHASE_PROCESS));
+        metrics.add("runTimeNs", getPhaseTimeNs(run, PHASE_TOTAL));
+        if (getNumCallBacks(run) > 0) {
+            metrics.add("callBackQueue",
+                    getCallBackQueue(run) == Native.CALLBACK_QUEUE_SPSC ? "spsc" : "locked");
+            metrics.add("callBacks", getNumCallBacks(run));
+            metrics.add("callBackBatches", getNumCallBackBatches(run));
+            metrics.add("callBackLatencyNsMean", getCallBackLatencyNs(run, 0));
+            metrics.add("callBackLatencyNsP50", getCallBackLatencyNs(run, 50));
+            metrics.add("callBackLatencyNsP90", getCallBackLatencyNs(run, 90));
+            metrics.add("callBackLatencyNsP99", getCallBackLatencyNs(run, 99));
+            metrics.add("callBackLatencyNsMax", getCallBackLatencyNs(run, 100));
+        }
+        return metrics;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+/**
+ * Pairs the runs of the same operation through the SDK and through the NDK and attributes the
+ * difference between them to the phases of a codec run.
+ * <p>
+ * The runs of a pair are made back to back, the layer going first alternating from one pair to
+ * the next, so that drifts such as thermal throttling weigh the same on both layers. The delta
+ * of a phase is the SDK time minus the NDK time of the same pair.
+ */
+public class PairedRuns {
+    public static final int PHASE_CREATE = 0;
+    public static final int PHASE_CONFIGURE = 1;
+    public static final int PHASE_START = 2;
+    public static final int PHASE_FIRST_FRAME = 3;
+    public static final int PHASE_STEADY_FRAME = 4;
+    public static final int PHASE_RELEASE = 5;
+    private static final String[] kPhaseNames = {
+            "create", "configure", "start", "firstFrame", "steadyStateFrame", "release"};
+
+    private final Distribution[] mSdkTimes = new Distribution[kPhaseNames.length];
+    private final Distribution[] mNdkTimes = new Distribution[kPhaseNames.length];
+    private final Distribution[] mDeltas = new Distribution[kPhaseNames.length];
+    private final Distribution mCallOverheads = new Distribution();
+    private int mNumPairs;
+
+    public PairedRuns() {
+        for (int phase = 0; phase < kPhaseNames.length; phase++) {
+            mSdkTimes[phase] = new Distribution();
+            mNdkTimes[phase] = new Distribution();
+            mDeltas[phase] = new Distribution();
+        }
+    }
+
+    /**
+     * Returns true if the SDK run of the given pair is to be made before the NDK run
+     */
+    public static boolean isSdkFirst(int pair) { return pair % 2 == 0; }
+
+    /**
+     * Returns the time of a phase of a run, -1 if the run did not record it
+     */
+    public static long getPhaseTime(Stats stats, int phase) {
+        switch (phase) {
+            case PHASE_CREATE:
+                return stats.getCreateTime();
+            case PHASE_CONFIGURE:
+                return stats.getConfigureTime();
+            case PHASE_START:
+                return stats.getCodecStartTime();
+            case PHASE_FIRST_FRAME:
+                return stats.getTimeToFirstFrame();
+            case PHASE_STEADY_FRAME:
+                return stats.getSteadyStateFrameTime();
+            case PHASE_RELEASE:
+                return stats.getDeInitTime();
+            default:
+                return -1;
+        }
+    }
+
+    public static String getPhaseName(int phase) { return kPhaseNames[phase]; }
+
+    /**
+     * Adds a pair of runs of the same input, codec and mode
+     *
+     * @param sdkStats       Stats of the SDK run
+     * @param ndkStats       Stats of the NDK run
+     * @param callOverheadNs Time of the native call not spent in the native run, -1 if unknown
+     */
+    public void add(Stats sdkStats, Stats ndkStats, long callOverheadNs) {
+        for (int phase = 0; phase < kPhaseNames.length; phase++) {
+            long sdkTime = getPhaseTime(sdkStats, phase);
+            long ndkTime = getPhaseTime(ndkStats, phase);
+            if (sdkTime < 0 || ndkTime < 0) {
+                continue;
+            }
+            mSdkTimes[phase].add(sdkTime);
+            mNdkTimes[phase].add(ndkTime);
+            mDeltas[phase].add(sdkTime - ndkTime);
+        }
+        if (callOverheadNs >= 0) {
+            mCallOverheads.add(callOverheadNs);
+        }
+        mNumPairs++;
+    }
+
+    public int getNumPairs() { return mNumPairs; }
+
+    /**
+     * Returns the median delta of a phase over the pairs, 0 without pairs
+     */
+    public long getMedianDelta(int phase) { return mDeltas[phase].getPercentile(50); }
+
+    /**
+     * Returns the median SDK and NDK times of every phase with the distribution of their delta,
+     * and the share of the summed median deltas each phase accounts for
+     *
+     * @param inputReference Input media
+     * @param operation      Operation performed on the input media
+     * @param componentName  Name of the codec
+     * @param mode           The operating mode: sync/async
+     */
+    public Metrics getMetrics(String inputReference, String operation, String componentName,
+            String mode) {
+        Metrics metrics = new Metrics(inputReference, operation, componentName);
+        metrics.add("mode", mode);
+        metrics.add("pairs", mNumPairs);
+        long totalDelta = 0;
+        for (int phase = 0; phase < kPhaseNames.length; phase++) {
+            // The steady state delta is per frame, it is not comparable to the other phases
+            if (phase != PHASE_STEADY_FRAME) {
+                totalDelta += Math.abs(getMedianDelta(phase));
+            }
+        }
+        for (int phase = 0; phase < kPhaseNames.length; phase++) {
+            String name = kPhaseNames[phase];
+            metrics.add(name + "SdkNs", mSdkTimes[phase].getPercentile(50));
+            metrics.add(name + "NdkNs", mNdkTimes[phase].getPercentile(50));
+            metrics.add(name + "DeltaNs", mDeltas[phase]);
+            if (phase != PHASE_STEADY_FRAME) {
+                metrics.add(name + "DeltaShare", totalDelta > 0
+                        ? (double) Math.abs(getMedianDelta(phase)) / totalDelta : 0.0);
+            }
+        }
+        if (mCallOverheads.getCount() > 0) {
+            metrics.add("nativeCallOverheadNs", mCallOverheads);
+        }
+        return metrics;
+    }
+}
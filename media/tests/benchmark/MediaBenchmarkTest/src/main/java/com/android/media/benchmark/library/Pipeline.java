@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Runs a chain of stages concurrently, one thread per stage, connected by bounded queues.
+ * <p>
+ * The first stage is the source and produces frames on its own, every other stage consumes the
+ * frames of the previous stage. A stage blocks when the queue to the next stage is full or when
+ * all the frames of its pool are in flight, which throttles the faster stages to the speed of the
+ * slowest one (backpressure). End of stream is propagated by the pipeline: once a stage returns
+ * {@link #END} an end of stream frame is sent to the next stage.
+ * <p>
+ * The pipeline measures end to end latency of the frames reaching the last stage, the utilization
+ * of every stage and the occupancy of every queue. The stage with the highest utilization is
+ * reported as the bottleneck.
+ * <p>
+ * The pipeline does not depend on the Android media classes, so stages can be replaced by fake
+ * implementations and the scheduling exercised on a JVM.
+ */
+public class Pipeline {
+    /** Returned by {@link Stage#process} when the stage can take more input */
+    public static final int CONTINUE = 0;
+    /** Returned by {@link Stage#process} when the stage has produced all its output */
+    public static final int END = 1;
+
+    private static final int kExtraFramesPerStage = 4;
+    private static final int kDefaultFrameCapacity = 4096;
+
+    private final int mQueueCapacity;
+    private final ArrayList<StageRunner> mRunners;
+    private final Distribution mEndToEndLatency;
+    private volatile boolean mAborted;
+    private long mWallTimeNs;
+
+    /**
+     * A step of the pipeline
+     */
+    public interface Stage {
+        /**
+         * Returns the name used to report the stage
+         */
+        String getName();
+
+        /**
+         * Prepares the stage. Called on the stage thread before any other call.
+         *
+         * @return 0 on success, -1 otherwise
+         */
+        int start();
+
+        /**
+         * Processes one unit of work.
+         * <p>
+         * The source stage is called with a null input until it returns {@link #END}. Every other
+         * stage is called once per frame of the previous stage, the last one being an end of
+         * stream frame after which the stage is expected to flush its output and return
+         * {@link #END}. The stage owns the input frame, including the end of stream frame, and
+         * must either release it or send it.
+         *
+         * @param input  Frame from the previous stage, null for the source stage
+         * @param output Used to obtain and send frames to the next stage
+         * @return {@link #CONTINUE}, {@link #END} or a negative value on error
+         */
+        int process(Frame input, Output output) throws InterruptedException;
+
+        /**
+         * Releases the resources of the stage. Called on the stage thread, also after errors.
+         */
+        void stop();
+    }
+
+    /**
+     * Connection of a stage to the next one
+     */
+    public interface Output {
+        /**
+         * Waits for a free frame of the stage pool
+         */
+        Frame obtainFrame() throws InterruptedException;
+
+        /**
+         * Hands over the frame to the next stage, waiting while its queue is full
+         */
+        void send(Frame frame) throws InterruptedException;
+    }
+
+    /**
+     * @param queueCapacity Maximum number of frames waiting between two stages
+     */
+    public Pipeline(int queueCapacity) {
+        mQueueCapacity = queueCapacity;
+        mRunners = new ArrayList<>();
+        mEndToEndLatency = new Distribution();
+    }
+
+    /**
+     * Appends a stage whose frames start with a default capacity
+     */
+    public void addStage(Stage stage) { addStage(stage, kDefaultFrameCapacity); }
+
+    /**
+     * Appends a stage to the pipeline
+     *
+     * @param stage         Stage to be appended
+     * @param frameCapacity Initial capacity of the frames the stage sends to the next stage
+     */
+    public void addStage(Stage stage, int frameCapacity) {
+        StageRunner runner = new StageRunner(stage, mRunners.size(),
+                new Frame.Pool(mQueueCapacity + kExtraFramesPerStage, frameCapacity));
+        if (!mRunners.isEmpty()) {
+            StageRunner previous = mRunners.get(mRunners.size() - 1);
+            previous.mNext = runner;
+        }
+        mRunners.add(runner);
+    }
+
+    /**
+     * Runs all stages until the end of stream reached the last stage or a stage failed
+     *
+     * @return 0 if all stages completed, -1 otherwise
+     */
+    public int run() throws InterruptedException {
+        if (mRunners.size() < 2) {
+            return -1;
+        }
+        mAborted = false;
+        mEndToEndLatency.reset();
+        long startTimeNs = System.nanoTime();
+        for (StageRunner runner : mRunners) {
+            runner.mQueueOccupancy.reset();
+            runner.mInputQueue.clear();
+            runner.mThread = new Thread(runner, "Pipeline-" + runner.mIndex + "-"
+                    + runner.mStage.getName());
+        }
+        for (StageRunner runner : mRunners) {
+            runner.mThread.start();
+        }
+        try {
+            for (StageRunner runner : mRunners) {
+                runner.mThread.join();
+            }
+        } catch (InterruptedException e) {
+            abort();
+            throw e;
+        }
+        mWallTimeNs = System.nanoTime() - startTimeNs;
+        for (StageRunner runner : mRunners) {
+            if (runner.mStatus < 0) {
+                return -1;
+            }
+        }
+        return 0;
+    }
+
+    private void abort() {
+        mAborted = true;
+        for (StageRunner runner : mRunners) {
+            runner.mThread.interrupt();
+        }
+    }
+
+    /**
+     * Returns the end to end latency of the frames which reached the last stage
+     */
+    public Distribution getEndToEndLatency() { return mEndToEndLatency; }
+
+    public long getWallTime() { return mWallTimeNs; }
+
+    /**
+     * Returns the fraction of the run time the stage spent processing, excluding the time it
+     * waited for input, for a free frame or for space in the next queue
+     */
+    public double getUtilization(int stageIndex) {
+        if (mWallTimeNs <= 0) {
+            return 0;
+        }
+        return (double) mRunners.get(stageIndex).mBusyTimeNs / mWallTimeNs;
+    }
+
+    /**
+     * Returns the name of the stage with the highest utilization
+     */
+    public String getBottleneckStage() {
+        int bottleneck = 0;
+        for (int i = 1; i < mRunners.size(); i++) {
+            if (mRunners.get(i).mBusyTimeNs > mRunners.get(bottleneck).mBusyTimeNs) {
+                bottleneck = i;
+            }
+        }
+        return mRunners.get(bottleneck).mStage.getName();
+    }
+
+    /**
+     * Returns the occupancy of the queue feeding the given stage, sampled on every send
+     */
+    public Distribution getQueueOccupancy(int stageIndex) {
+        return mRunners.get(stageIndex).mQueueOccupancy;
+    }
+
+    public int getNumStages() { return mRunners.size(); }
+
+    public String getStageName(int stageIndex) {
+        return mRunners.get(stageIndex).mStage.getName();
+    }
+
+    public int getNumFramesProcessed(int stageIndex) {
+        return mRunners.get(stageIndex).mNumFrames;
+    }
+
+    /**
+     * Collects the measurements of the last run
+     *
+     * @param inputReference Name of the input media
+     * @return Metrics of the pipeline and of every stage
+     */
+    public Metrics getMetrics(String inputReference) {
+        StringBuilder name = new StringBuilder();
+        for (StageRunner runner : mRunners) {
+            name.append(name.length() == 0 ? "" : "-").append(runner.mStage.getName());
+        }
+        Metrics metrics = new Metrics(inputReference, "pipeline", name.toString());
+        metrics.add("wallTimeNs", mWallTimeNs);
+        metrics.add("endToEndLatencyNs", mEndToEndLatency);
+        metrics.add("bottleneckStage", getBottleneckStage());
+        for (int i = 0; i < mRunners.size(); i++) {
+            StageRunner runner = mRunners.get(i);
+            String prefix = runner.mStage.getName() + ".";
+            metrics.add(prefix + "frames", runner.mNumFrames);
+            metrics.add(prefix + "busyTimeNs", runner.mBusyTimeNs);
+            metrics.add(prefix + "inputWaitTimeNs", runner.mInputWaitTimeNs);
+            metrics.add(prefix + "outputWaitTimeNs", runner.mOutputWaitTimeNs);
+            metrics.add(prefix + "utilization", getUtilization(i));
+            if (i > 0) {
+                metrics.add(prefix + "queueOccupancyMean", runner.mQueueOccupancy.getMean());
+                metrics.add(prefix + "queueOccupancyMax", runner.mQueueOccupancy.getMax());
+            }
+        }
+        return metrics;
+    }
+
+    private class StageRunner implements Output, Runnable {
+        private final Stage mStage;
+        private final int mIndex;
+        private final Frame.Pool mPool;
+        private final ArrayBlockingQueue<Frame> mInputQueue;
+        private final Distribution mQueueOccupancy;
+        private Thread mThread;
+        private StageRunner mNext;
+
+        private int mStatus;
+        private int mNumFrames;
+        private long mBusyTimeNs;
+        private long mInputWaitTimeNs;
+        private long mOutputWaitTimeNs;
+
+        StageRunner(Stage stage, int index, Frame.Pool pool) {
+            mStage = stage;
+            mIndex = index;
+            mPool = pool;
+            mInputQueue = new ArrayBlockingQueue<>(mQueueCapacity);
+            mQueueOccupancy = new Distribution();
+        }
+
+        @Override
+        public Frame obtainFrame() throws InterruptedException {
+            if (mNext == null) {
+                throw new IllegalStateException(mStage.getName() + " is the last stage");
+            }
+            long sTime = System.nanoTime();
+            Frame frame = mPool.obtain();
+            mOutputWaitTimeNs += System.nanoTime() - sTime;
+            return frame;
+        }
+
+        @Override
+        public void send(Frame frame) throws InterruptedException {
+            if (mNext == null) {
+                throw new IllegalStateException(mStage.getName() + " is the last stage");
+            }
+            long sTime = System.nanoTime();
+            mNext.mInputQueue.put(frame);
+            mOutputWaitTimeNs += System.nanoTime() - sTime;
+            mNext.mQueueOccupancy.add(mNext.mInputQueue.size());
+        }
+
+        @Override
+        public void run() {
+            mStatus = CONTINUE;
+            mNumFrames = 0;
+            mBusyTimeNs = 0;
+            mInputWaitTimeNs = 0;
+            mOutputWaitTimeNs = 0;
+            try {
+                if (mStage.start() != 0) {
+                    mStatus = -1;
+                } else if (mIndex == 0) {
+                    runSource();
+                } else {
+                    runConsumer();
+                }
+            } catch (InterruptedException e) {
+                if (!mAborted) {
+                    mStatus = -1;
+                }
+            } finally {
+                mStage.stop();
+            }
+            if (mStatus < 0 && !mAborted) {
+                abort();
+            }
+        }
+
+        private void runSource() throws InterruptedException {
+            while (!mAborted && mStatus == CONTINUE) {
+                long outputWaitTimeNs = mOutputWaitTimeNs;
+                long sTime = System.nanoTime();
+                mStatus = mStage.process(null, this);
+                mBusyTimeNs += System.nanoTime() - sTime - (mOutputWaitTimeNs - outputWaitTimeNs);
+                mNumFrames++;
+            }
+            if (mStatus == END) {
+                sendEndOfStream();
+            }
+        }
+
+        private void runConsumer() throws InterruptedException {
+            boolean sawInputEOS = false;
+            while (!mAborted && !sawInputEOS && mStatus >= 0) {
+                long sTime = System.nanoTime();
+                Frame input = mInputQueue.take();
+                long eTime = System.nanoTime();
+                mInputWaitTimeNs += eTime - sTime;
+                sawInputEOS = input.isEndOfStream();
+                if (mStatus == END) {
+                    // Stage has finished early, keep draining so that upstream is not blocked.
+                    input.release();
+                    continue;
+                }
+                long originTimeNs = input.getOriginTimeNs();
+                long outputWaitTimeNs = mOutputWaitTimeNs;
+                mStatus = mStage.process(input, this);
+                long doneTime = System.nanoTime();
+                mBusyTimeNs += doneTime - eTime - (mOutputWaitTimeNs - outputWaitTimeNs);
+                if (!sawInputEOS) {
+                    mNumFrames++;
+                    if (mNext == null && originTimeNs > 0) {
+                        mEndToEndLatency.add(doneTime - originTimeNs);
+                    }
+                }
+            }
+            if (mStatus >= 0 && !sawInputEOS) {
+                mStatus = -1;
+            } else if (mStatus >= 0 && mNext != null) {
+                sendEndOfStream();
+            }
+        }
+
+        private void sendEndOfStream() throws InterruptedException {
+            if (mNext == null) {
+                return;
+            }
+            Frame eos = obtainFrame();
+            eos.set(0, 0, 0, Frame.FLAG_END_OF_STREAM);
+            send(eos);
+        }
+    }
+}
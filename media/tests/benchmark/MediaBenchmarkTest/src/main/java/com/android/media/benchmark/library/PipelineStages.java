@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * {@link Pipeline} stages backed by {@link Extractor}, {@link Decoder}, {@link Encoder} and
+ * {@link Muxer}.
+ */
+public class PipelineStages {
+    private static final String TAG = "PipelineStages";
+
+    private PipelineStages() {}
+
+    /**
+     * Implemented by stages whose output format is needed downstream, e.g. to add a muxer track
+     */
+    public interface FormatSource {
+        /**
+         * Returns the format of the frames sent by the stage. Only valid once a frame was sent.
+         */
+        MediaFormat getOutputFormat();
+    }
+
+    /**
+     * Processes a frame in place before it is forwarded
+     */
+    public interface FrameProcessor {
+        /**
+         * @return 0 on success, -1 otherwise
+         */
+        int process(Frame frame);
+    }
+
+    /**
+     * Source stage reading the samples of one track
+     */
+    public static class ExtractorStage implements Pipeline.Stage, FormatSource {
+        private final Extractor mExtractor;
+        private final int mTrackId;
+        private final boolean mRealTime;
+        private long mStartTimeNs;
+
+        /**
+         * @param extractor Extractor already set up with the input
+         * @param trackId   Track to be read
+         * @param realTime  If true, samples are sent no earlier than their timestamp, as they
+         *                  would be by a live source
+         */
+        public ExtractorStage(Extractor extractor, int trackId, boolean realTime) {
+            mExtractor = extractor;
+            mTrackId = trackId;
+            mRealTime = realTime;
+        }
+
+        @Override
+        public String getName() { return "extract"; }
+
+        @Override
+        public MediaFormat getOutputFormat() { return mExtractor.getFormat(mTrackId); }
+
+        @Override
+        public int start() {
+            mStartTimeNs = System.nanoTime();
+            return mExtractor.selectExtractorTrack(mTrackId);
+        }
+
+        @Override
+        public int process(Frame input, Pipeline.Output output) throws InterruptedException {
+            Frame frame = output.obtainFrame();
+            int sampleSize = mExtractor.getFrameSample();
+            if (sampleSize <= 0) {
+                frame.release();
+                return Pipeline.END;
+            }
+            MediaCodec.BufferInfo info = mExtractor.getBufferInfo();
+            ByteBuffer buffer = frame.ensureCapacity(sampleSize);
+            buffer.clear();
+            buffer.put(mExtractor.getFrameBuffer());
+            frame.set(0, sampleSize, info.presentationTimeUs, info.flags);
+            if (mRealTime) {
+                long delayNs = info.presentationTimeUs * 1000 - (System.nanoTime() - mStartTimeNs);
+                if (delayNs > 0) {
+                    Thread.sleep(delayNs / 1000000, (int) (delayNs % 1000000));
+                }
+            }
+            frame.setOriginTimeNs(System.nanoTime());
+            output.send(frame);
+            return Pipeline.CONTINUE;
+        }
+
+        @Override
+        public void stop() { mExtractor.unselectExtractorTrack(mTrackId); }
+    }
+
+    /**
+     * Forwards frames, optionally processing them in place. The frames are handed over without a
+     * copy.
+     */
+    public static class ProcessStage implements Pipeline.Stage {
+        private final FrameProcessor mProcessor;
+
+        /**
+         * @param processor Applied to every frame before it is forwarded, may be null
+         */
+        public ProcessStage(FrameProcessor processor) { mProcessor = processor; }
+
+        @Override
+        public String getName() { return "process"; }
+
+        @Override
+        public int start() { return 0; }
+
+        @Override
+        public int process(Frame input, Pipeline.Output output) throws InterruptedException {
+            if (input.isEndOfStream()) {
+                input.release();
+                return Pipeline.END;
+            }
+            if (mProcessor != null && mProcessor.process(input) != 0) {
+                input.release();
+                return -1;
+            }
+            output.send(input);
+            return Pipeline.CONTINUE;
+        }
+
+        @Override
+        public void stop() {}
+    }
+
+    /**
+     * Common part of the decoder and encoder stages: feeds input frames, drains the output and
+     * carries the origin time of every frame across the codec using its timestamp.
+     */
+    private abstract static class CodecStage implements Pipeline.Stage, FormatSource {
+        private final HashMap<Long, Long> mOriginTimes = new HashMap<>();
+        private final MediaCodec.BufferInfo mInputInfo = new MediaCodec.BufferInfo();
+        private final MediaCodec.BufferInfo mOutputInfo = new MediaCodec.BufferInfo();
+        private long mLastOriginTimeNs;
+        private Frame mPendingFrame;
+
+        abstract int queue(ByteBuffer buffer, MediaCodec.BufferInfo info);
+
+        abstract int dequeue(MediaCodec.BufferInfo info, Frame frame);
+
+        abstract boolean sendOutput(MediaCodec.BufferInfo info);
+
+        @Override
+        public int process(Frame input, Pipeline.Output output) throws InterruptedException {
+            boolean endOfStream = input.isEndOfStream();
+            mInputInfo.offset = input.getOffset();
+            mInputInfo.size = input.getSize();
+            mInputInfo.presentationTimeUs = input.getPresentationTimeUs();
+            mInputInfo.flags = input.getFlags();
+            if (!endOfStream) {
+                mOriginTimes.put(input.getPresentationTimeUs(), input.getOriginTimeNs());
+            }
+            while (true) {
+                int status = queue(input.getBuffer(), mInputInfo);
+                if (status == 0) {
+                    break;
+                } else if (status < 0 || drain(output, false) < 0) {
+                    input.release();
+                    return -1;
+                }
+            }
+            input.release();
+            int status = drain(output, endOfStream);
+            if (status < 0) {
+                return -1;
+            }
+            return endOfStream ? Pipeline.END : Pipeline.CONTINUE;
+        }
+
+        /**
+         * Sends the available output downstream
+         *
+         * @param untilEndOfStream Waits for the end of stream if true
+         * @return 0 on success, -1 otherwise
+         */
+        private int drain(Pipeline.Output output, boolean untilEndOfStream)
+                throws InterruptedException {
+            while (true) {
+                if (mPendingFrame == null) {
+                    mPendingFrame = output.obtainFrame();
+                }
+                int status = dequeue(mOutputInfo, mPendingFrame);
+                if (status == Decoder.TRY_AGAIN) {
+                    if (untilEndOfStream) {
+                        continue;
+                    }
+                    return 0;
+                } else if (status < 0) {
+                    return -1;
+                }
+                boolean endOfStream =
+                        (mOutputInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                if (mOutputInfo.size > 0 && sendOutput(mOutputInfo)) {
+                    Long originTimeNs = mOriginTimes.remove(mOutputInfo.presentationTimeUs);
+                    if (originTimeNs != null) {
+                        mLastOriginTimeNs = originTimeNs;
+                    }
+                    mPendingFrame.set(0, mOutputInfo.size, mOutputInfo.presentationTimeUs,
+                            mOutputInfo.flags & ~MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    mPendingFrame.setOriginTimeNs(mLastOriginTimeNs);
+                    output.send(mPendingFrame);
+                    mPendingFrame = null;
+                }
+                if (endOfStream) {
+                    return 0;
+                }
+            }
+        }
+
+        void releasePendingFrame() {
+            if (mPendingFrame != null) {
+                mPendingFrame.release();
+                mPendingFrame = null;
+            }
+        }
+    }
+
+    /**
+     * Decodes the samples of the previous stage
+     */
+    public static class DecoderStage extends CodecStage {
+        private final Decoder mDecoder;
+        private final MediaFormat mFormat;
+        private final String mCodecName;
+
+        /**
+         * @param decoder   Decoder used by the stage
+         * @param format    Format of the samples to be decoded
+         * @param codecName Name of the codec, empty to select one by mime
+         */
+        public DecoderStage(Decoder decoder, MediaFormat format, String codecName) {
+            mDecoder = decoder;
+            mFormat = format;
+            mCodecName = codecName;
+        }
+
+        @Override
+        public String getName() { return "decode"; }
+
+        @Override
+        public MediaFormat getOutputFormat() { return mDecoder.getFormat(); }
+
+        @Override
+        public int start() {
+            mDecoder.setupDecoder(null);
+            try {
+                return mDecoder.setupStreamingDecoder(mFormat, mCodecName) == 0 ? 0 : -1;
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to create decoder " + mCodecName + ": " + e.toString());
+                return -1;
+            }
+        }
+
+        @Override
+        int queue(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+            return mDecoder.queueInputSample(buffer, info);
+        }
+
+        @Override
+        int dequeue(MediaCodec.BufferInfo info, Frame frame) {
+            return mDecoder.dequeueOutputFrame(info, frame);
+        }
+
+        @Override
+        boolean sendOutput(MediaCodec.BufferInfo info) { return true; }
+
+        @Override
+        public void stop() {
+            releasePendingFrame();
+            mDecoder.deInitCodec();
+        }
+    }
+
+    /**
+     * Encodes the frames of the previous stage. Codec config buffers are not sent downstream,
+     * they are part of the output format.
+     */
+    public static class EncoderStage extends CodecStage {
+        private final Encoder mEncoder;
+        private final MediaFormat mEncodeFormat;
+        private final String mCodecName;
+        private MediaFormat mOutputFormat;
+
+        /**
+         * @param encoder      Encoder used by the stage
+         * @param encodeFormat Format of the encoded output
+         * @param codecName    Name of the codec, empty to select one by mime
+         */
+        public EncoderStage(Encoder encoder, MediaFormat encodeFormat, String codecName) {
+            mEncoder = encoder;
+            mEncodeFormat = encodeFormat;
+            mCodecName = codecName;
+        }
+
+        @Override
+        public String getName() { return "encode"; }
+
+        @Override
+        public MediaFormat getOutputFormat() { return mOutputFormat; }
+
+        @Override
+        public int start() {
+            try {
+                String mime = mEncodeFormat.getString(MediaFormat.KEY_MIME);
+                return mEncoder.setupStreamingEncoder(mCodecName, mEncodeFormat, mime) == 0 ? 0
+                        : -1;
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to create encoder " + mCodecName + ": " + e.toString());
+                return -1;
+            }
+        }
+
+        @Override
+        int queue(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+            return mEncoder.queueInputFrame(buffer, info);
+        }
+
+        @Override
+        int dequeue(MediaCodec.BufferInfo info, Frame frame) {
+            return mEncoder.dequeueOutputSample(info, frame);
+        }
+
+        @Override
+        boolean sendOutput(MediaCodec.BufferInfo info) {
+            if (mOutputFormat == null) {
+                mOutputFormat = mEncoder.getOutputFormat();
+            }
+            return (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0;
+        }
+
+        @Override
+        public void stop() {
+            releasePendingFrame();
+            mEncoder.deInitEncoder();
+        }
+    }
+
+    /**
+     * Last stage writing the frames of the previous stage to a file. The muxer track is added
+     * with the output format of the previous stage once the first frame arrived.
+     */
+    public static class MuxerStage implements Pipeline.Stage {
+        private final Muxer mMuxer;
+        private final Context mContext;
+        private final int mOutputFormat;
+        private final FormatSource mFormatSource;
+        private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+        private int mTrackIndex;
+
+        /**
+         * @param muxer        Muxer used by the stage
+         * @param context      App context to specify the output file path
+         * @param outputFormat Format of the output media file
+         * @param formatSource Stage whose frames are muxed
+         */
+        public MuxerStage(Muxer muxer, Context context, int outputFormat,
+                FormatSource formatSource) {
+            mMuxer = muxer;
+            mContext = context;
+            mOutputFormat = outputFormat;
+            mFormatSource = formatSource;
+        }
+
+        @Override
+        public String getName() { return "mux"; }
+
+        @Override
+        public int start() {
+            mTrackIndex = -1;
+            return 0;
+        }
+
+        @Override
+        public int process(Frame input, Pipeline.Output output) {
+            if (input.isEndOfStream()) {
+                input.release();
+                return Pipeline.END;
+            }
+            if (mTrackIndex < 0) {
+                mTrackIndex = mMuxer.setUpMuxer(mContext, mOutputFormat,
+                        mFormatSource.getOutputFormat());
+                if (mTrackIndex < 0) {
+                    input.release();
+                    return -1;
+                }
+                mMuxer.setStartTime();
+            }
+            mInfo.offset = input.getOffset();
+            mInfo.size = input.getSize();
+            mInfo.presentationTimeUs = input.getPresentationTimeUs();
+            mInfo.flags = input.getFlags();
+            int status = mMuxer.writeSample(mTrackIndex, input.getBuffer(), mInfo);
+            input.release();
+            return status == 0 ? Pipeline.CONTINUE : -1;
+        }
+
+        @Override
+        public void stop() {
+            if (mTrackIndex >= 0) {
+                mMuxer.deInitMuxer();
+                mTrackIndex = -1;
+            }
+        }
+    }
+}
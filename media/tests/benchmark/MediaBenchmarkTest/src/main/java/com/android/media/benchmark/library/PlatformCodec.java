@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import android.media.MediaFormat;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link BenchmarkCodec} which forwards every call to a {@link MediaCodec}
+ */
+public class PlatformCodec implements BenchmarkCodec {
+    /** Creates the codecs of the platform, the default of the decoder and the encoder */
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public BenchmarkCodec createByCodecName(String name) throws IOException {
+            return new PlatformCodec(MediaCodec.createByCodecName(name));
+        }
+
+        @Override
+        public BenchmarkCodec createDecoderByType(String mime) throws IOException {
+            return new PlatformCodec(MediaCodec.createDecoderByType(mime));
+        }
+
+        @Override
+        public BenchmarkCodec createEncoderByType(String mime) throws IOException {
+            return new PlatformCodec(MediaCodec.createEncoderByType(mime));
+        }
+    };
+
+    private final MediaCodec mCodec;
+
+    public PlatformCodec(MediaCodec codec) { mCodec = codec; }
+
+    /**
+     * Returns the wrapped codec
+     */
+    public MediaCodec getMediaCodec() { return mCodec; }
+
+    @Override
+    public String getName() { return mCodec.getName(); }
+
+    @Override
+    public void setCallback(final Callback callback) {
+        mCodec.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+                callback.onInputBufferAvailable(PlatformCodec.this, index);
+            }
+
+            @Override
+            public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index,
+                    @NonNull BufferInfo info) {
+                callback.onOutputBufferAvailable(PlatformCodec.this, index, info);
+            }
+
+            @Override
+            public void onOutputFormatChanged(@NonNull MediaCodec codec,
+                    @NonNull MediaFormat format) {
+                callback.onOutputFormatChanged(PlatformCodec.this, format);
+            }
+
+            @Override
+            public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+                callback.onError(PlatformCodec.this, e);
+            }
+        });
+    }
+
+    @Override
+    public void configure(MediaFormat format, int flags) {
+        mCodec.configure(format, null, null, flags);
+    }
+
+    @Override
+    public MediaFormat getInputFormat() { return mCodec.getInputFormat(); }
+
+    @Override
+    public MediaFormat getOutputFormat() { return mCodec.getOutputFormat(); }
+
+    @Override
+    public void start() { mCodec.start(); }
+
+    @Override
+    public void flush() { mCodec.flush(); }
+
+    @Override
+    public void stop() { mCodec.stop(); }
+
+    @Override
+    public void release() { mCodec.release(); }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) { return mCodec.dequeueInputBuffer(timeoutUs); }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) { return mCodec.getInputBuffer(index); }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs,
+            int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(BufferInfo info, long timeoutUs) {
+        return mCodec.dequeueOutputBuffer(info, timeoutUs);
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) { return mCodec.getOutputBuffer(index); }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        mCodec.releaseOutputBuffer(index, render);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link BenchmarkExtractor} which forwards every call to a {@link MediaExtractor}
+ */
+public class PlatformExtractor implements BenchmarkExtractor {
+    private final MediaExtractor mExtractor;
+
+    /**
+     * @param extractor Extractor of which the data source is set
+     */
+    public PlatformExtractor(MediaExtractor extractor) { mExtractor = extractor; }
+
+    @Override
+    public int getTrackCount() { return mExtractor.getTrackCount(); }
+
+    @Override
+    public MediaFormat getTrackFormat(int index) { return mExtractor.getTrackFormat(index); }
+
+    @Override
+    public void selectTrack(int index) { mExtractor.selectTrack(index); }
+
+    @Override
+    public void unselectTrack(int index) { mExtractor.unselectTrack(index); }
+
+    @Override
+    public long getSampleSize() { return mExtractor.getSampleSize(); }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        return mExtractor.readSampleData(buffer, offset);
+    }
+
+    @Override
+    public int getSampleTrackIndex() { return mExtractor.getSampleTrackIndex(); }
+
+    @Override
+    public int getSampleFlags() { return mExtractor.getSampleFlags(); }
+
+    @Override
+    public long getSampleTime() { return mExtractor.getSampleTime(); }
+
+    @Override
+    public boolean advance() { return mExtractor.advance(); }
+
+    @Override
+    public void seekTo(long timeUs, int mode) { mExtractor.seekTo(timeUs, mode); }
+
+    @Override
+    public void release() { mExtractor.release(); }
+}
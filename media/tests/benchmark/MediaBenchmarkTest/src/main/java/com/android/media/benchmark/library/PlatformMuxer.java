@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link BenchmarkMuxer} which forwards every call to a {@link MediaMuxer}
+ */
+public class PlatformMuxer implements BenchmarkMuxer {
+    private final MediaMuxer mMuxer;
+
+    public PlatformMuxer(MediaMuxer muxer) { mMuxer = muxer; }
+
+    @Override
+    public int addTrack(MediaFormat format) { return mMuxer.addTrack(format); }
+
+    @Override
+    public void start() { mMuxer.start(); }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        mMuxer.writeSampleData(trackIndex, buffer, info);
+    }
+
+    @Override
+    public void stop() { mMuxer.stop(); }
+
+    @Override
+    public void release() { mMuxer.release(); }
+}
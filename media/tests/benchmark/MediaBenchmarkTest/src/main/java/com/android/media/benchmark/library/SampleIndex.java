@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Binary index of the samples of one track, read through a memory mapping.
+ * <p>
+ * The file holds a header identifying the source (size, modification time, track), the raw
+ * sample bytes if they were stored, and a table of fixed size entries: offset of the sample in
+ * the data section, size, presentation time and flags. The header is written last, so a file
+ * left behind by an interrupted build is never taken as valid.
+ */
+public class SampleIndex {
+    private static final int kMagic = 0x53494458; /* "SIDX" */
+    private static final int kVersion = 1;
+    private static final int kHeaderSize = 64;
+    private static final int kEntrySize = 24;
+    // The whole file is read through one mapping, which int offsets address
+    private static final long kMaxFileSize = Integer.MAX_VALUE;
+
+    private final MappedByteBuffer mMapping;
+    private final long mSourceSize;
+    private final long mSourceModifiedTime;
+    private final int mTrackId;
+    private final int mNumSamples;
+    private final boolean mHasSampleData;
+    private final long mBuildTimeNs;
+    private final int mTableOffset;
+
+    /**
+     * Writes an index in a single pass over the samples
+     */
+    public static class Writer {
+        private final RandomAccessFile mFile;
+        private final FileChannel mChannel;
+        private final long mSourceSize;
+        private final long mSourceModifiedTime;
+        private final int mTrackId;
+        private final boolean mStoreSampleData;
+        private final long mStartTimeNs;
+        private ByteBuffer mTable;
+        private long mDataSize;
+        private int mNumSamples;
+
+        /**
+         * @param indexFile          File to be written, replaced if it exists
+         * @param sourceSize         Size of the indexed media file
+         * @param sourceModifiedTime Last modification time of the indexed media file
+         * @param trackId            Indexed track
+         * @param storeSampleData    If true, the sample bytes are stored with the index
+         */
+        public Writer(File indexFile, long sourceSize, long sourceModifiedTime, int trackId,
+                boolean storeSampleData) throws IOException {
+            mFile = new RandomAccessFile(indexFile, "rw");
+            mFile.setLength(0);
+            mChannel = mFile.getChannel();
+            mChannel.position(kHeaderSize);
+            mSourceSize = sourceSize;
+            mSourceModifiedTime = sourceModifiedTime;
+            mTrackId = trackId;
+            mStoreSampleData = storeSampleData;
+            mTable = ByteBuffer.allocate(1024 * kEntrySize).order(ByteOrder.LITTLE_ENDIAN);
+            mStartTimeNs = System.nanoTime();
+        }
+
+        /**
+         * Appends a sample
+         *
+         * @param data               Sample bytes from position to limit, only read if the data
+         *                           is stored
+         * @param presentationTimeUs Presentation time of the sample
+         * @param flags              Sample flags
+         */
+        public void addSample(ByteBuffer data, long presentationTimeUs, int flags)
+                throws IOException {
+            int size = data.remaining();
+            if (mStoreSampleData && kHeaderSize + mDataSize + size > kMaxFileSize) {
+                throw new IOException("Sample data of an index cannot exceed " + kMaxFileSize
+                        + " bytes");
+            }
+            if (mTable.remaining() < kEntrySize) {
+                ByteBuffer table = ByteBuffer.allocate(mTable.capacity() * 2)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                mTable.flip();
+                table.put(mTable);
+                mTable = table;
+            }
+            mTable.putLong(mStoreSampleData ? mDataSize : -1);
+            mTable.putInt(size);
+            mTable.putLong(presentationTimeUs);
+            mTable.putInt(flags);
+            if (mStoreSampleData) {
+                while (data.hasRemaining()) {
+                    mChannel.write(data);
+                }
+                mDataSize += size;
+            }
+            mNumSamples++;
+        }
+
+        /**
+         * Writes the sample table and the header and closes the file
+         */
+        public void finish() throws IOException {
+            long tableOffset = kHeaderSize + mDataSize;
+            if (tableOffset + mTable.position() > kMaxFileSize) {
+                throw new IOException("Index of " + mNumSamples + " samples cannot exceed "
+                        + kMaxFileSize + " bytes");
+            }
+            mTable.flip();
+            while (mTable.hasRemaining()) {
+                mChannel.write(mTable);
+            }
+            ByteBuffer header = ByteBuffer.allocate(kHeaderSize).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(kMagic);
+            header.putInt(kVersion);
+            header.putLong(mSourceSize);
+            header.putLong(mSourceModifiedTime);
+            header.putInt(mTrackId);
+            header.putInt(mNumSamples);
+            header.putInt(mStoreSampleData ? 1 : 0);
+            header.putInt((int) tableOffset);
+            header.putLong(System.nanoTime() - mStartTimeNs);
+            header.rewind();
+            mChannel.force(false);
+            while (header.hasRemaining()) {
+                mChannel.write(header, header.position());
+            }
+            mFile.close();
+        }
+
+        /**
+         * Closes the file without writing the header, leaving an index that will not load
+         */
+        public void abandon() throws IOException { mFile.close(); }
+    }
+
+    private SampleIndex(MappedByteBuffer mapping) throws IOException {
+        mMapping = mapping;
+        mapping.order(ByteOrder.LITTLE_ENDIAN);
+        if (mapping.capacity() < kHeaderSize || mapping.getInt(0) != kMagic
+                || mapping.getInt(4) != kVersion) {
+            throw new IOException("Not a sample index");
+        }
+        mSourceSize = mapping.getLong(8);
+        mSourceModifiedTime = mapping.getLong(16);
+        mTrackId = mapping.getInt(24);
+        mNumSamples = mapping.getInt(28);
+        mHasSampleData = mapping.getInt(32) != 0;
+        mTableOffset = mapping.getInt(36);
+        mBuildTimeNs = mapping.getLong(40);
+        if (mTableOffset < kHeaderSize || mNumSamples < 0) {
+            throw new IOException("Corrupt sample index");
+        }
+        if ((long) mTableOffset + (long) mNumSamples * kEntrySize > mapping.capacity()) {
+            throw new IOException("Truncated sample index");
+        }
+    }
+
+    /**
+     * Maps an index file
+     *
+     * @param indexFile File written by {@link Writer}
+     * @return The index
+     * @throws IOException If the file cannot be read or is not a complete index
+     */
+    public static SampleIndex open(File indexFile) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(indexFile, "r")) {
+            FileChannel channel = file.getChannel();
+            return new SampleIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Returns true if the index was built from the given version of the source
+     */
+    public boolean isValidFor(long sourceSize, long sourceModifiedTime, int trackId) {
+        return mSourceSize == sourceSize && mSourceModifiedTime == sourceModifiedTime
+                && mTrackId == trackId;
+    }
+
+    public int getNumSamples() { return mNumSamples; }
+
+    public boolean hasSampleData() { return mHasSampleData; }
+
+    /**
+     * Returns the time it took to build the index, i.e. the extraction work a load saves
+     */
+    public long getBuildTime() { return mBuildTimeNs; }
+
+    private int getEntry(int index) {
+        if (index < 0 || index >= mNumSamples) {
+            throw new IndexOutOfBoundsException("Sample " + index + " of " + mNumSamples);
+        }
+        return mTableOffset + index * kEntrySize;
+    }
+
+    /**
+     * Returns the offset of the sample in the data section, -1 if the data is not stored
+     */
+    public long getOffset(int index) { return mMapping.getLong(getEntry(index)); }
+
+    public int getSize(int index) { return mMapping.getInt(getEntry(index) + 8); }
+
+    public long getPresentationTimeUs(int index) { return mMapping.getLong(getEntry(index) + 12); }
+
+    public int getFlags(int index) { return mMapping.getInt(getEntry(index) + 20); }
+
+    /**
+     * Returns a read only view of the sample bytes, without copying them
+     *
+     * @param index Index of the sample
+     * @return The sample from position to limit, null if the data is not stored
+     */
+    public ByteBuffer getSampleData(int index) {
+        long offset = getOffset(index);
+        if (offset < 0) {
+            return null;
+        }
+        ByteBuffer data = mMapping.duplicate();
+        data.position(kHeaderSize + (int) offset);
+        data.limit(kHeaderSize + (int) offset + getSize(index));
+        return data.slice().asReadOnlyBuffer();
+    }
+}
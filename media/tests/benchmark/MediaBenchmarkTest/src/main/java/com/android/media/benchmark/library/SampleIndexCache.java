@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Keeps a {@link SampleIndex} per (file, modification time, track) on storage, so that a clip is
+ * extracted once and later tests, or later runs, load its samples from the index instead.
+ * <p>
+ * An index is rebuilt when the size or modification time of the source no longer matches, or
+ * when the sample data is needed but was not stored.
+ */
+public class SampleIndexCache {
+    private static final String TAG = "SampleIndexCache";
+    private static SampleIndexCache sSharedCache;
+
+    private final File mCacheDir;
+    private int mNumHits;
+    private int mNumMisses;
+    private long mBuildTimeNs;
+    private long mLoadTimeNs;
+    private long mTimeSavedNs;
+
+    /**
+     * @param cacheDir Directory the indexes are kept in, created if needed
+     */
+    public SampleIndexCache(File cacheDir) {
+        mCacheDir = cacheDir;
+    }
+
+    /**
+     * Returns a cache shared by all tests of the process, kept in cacheDir
+     */
+    public static synchronized SampleIndexCache getShared(File cacheDir) {
+        if (sSharedCache == null || !sSharedCache.mCacheDir.equals(cacheDir)) {
+            sSharedCache = new SampleIndexCache(cacheDir);
+        }
+        return sSharedCache;
+    }
+
+    private File getIndexFile(File source, int trackId) {
+        return new File(mCacheDir, source.getName() + "." + trackId + ".sidx");
+    }
+
+    /**
+     * Returns the index of a track, building it if there is no valid one
+     *
+     * @param source     Media file
+     * @param trackId    Track to be indexed
+     * @param sampleData If true, the index must hold the sample bytes
+     * @return The index
+     */
+    public synchronized SampleIndex getIndex(File source, int trackId, boolean sampleData)
+            throws IOException {
+        File indexFile = getIndexFile(source, trackId);
+        long sTime = System.nanoTime();
+        if (indexFile.exists()) {
+            try {
+                SampleIndex index = SampleIndex.open(indexFile);
+                if (index.isValidFor(source.length(), source.lastModified(), trackId)
+                        && (index.hasSampleData() || !sampleData)) {
+                    long loadTimeNs = System.nanoTime() - sTime;
+                    mNumHits++;
+                    mLoadTimeNs += loadTimeNs;
+                    mTimeSavedNs += index.getBuildTime() - loadTimeNs;
+                    return index;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Rebuilding unreadable index " + indexFile + ": " + e);
+            }
+        }
+        mNumMisses++;
+        build(source, trackId, sampleData, indexFile);
+        mBuildTimeNs += System.nanoTime() - sTime;
+        return SampleIndex.open(indexFile);
+    }
+
+    private void build(File source, int trackId, boolean sampleData, File indexFile)
+            throws IOException {
+        if (!mCacheDir.exists() && !mCacheDir.mkdirs()) {
+            throw new IOException("Unable to create " + mCacheDir);
+        }
+        FileInputStream fileInput = new FileInputStream(source);
+        Extractor extractor = new Extractor();
+        SampleIndex.Writer writer = null;
+        try {
+            extractor.setUpExtractor(fileInput.getFD());
+            if (extractor.selectExtractorTrack(trackId) != 0) {
+                throw new IOException("Unable to select track " + trackId + " of " + source);
+            }
+            writer = new SampleIndex.Writer(indexFile, source.length(), source.lastModified(),
+                    trackId, sampleData);
+            while (extractor.getFrameSample() >= 0) {
+                MediaCodec.BufferInfo info = extractor.getBufferInfo();
+                writer.addSample(extractor.getFrameBuffer(), info.presentationTimeUs, info.flags);
+            }
+            writer.finish();
+            writer = null;
+        } finally {
+            if (writer != null) {
+                writer.abandon();
+            }
+            extractor.deinitExtractor();
+            fileInput.close();
+        }
+    }
+
+    /**
+     * Appends the samples of a track to the given lists, in the form the decoder and muxer
+     * tests expect: one heap buffer per sample followed by an empty end of stream sample.
+     *
+     * @param source     Media file
+     * @param trackId    Track to be read
+     * @param buffers    Receives the sample bytes
+     * @param bufferInfo Receives the sample information
+     */
+    public void readSamples(File source, int trackId, ArrayList<ByteBuffer> buffers,
+            ArrayList<MediaCodec.BufferInfo> bufferInfo) throws IOException {
+        SampleIndex index = getIndex(source, trackId, true);
+        long presentationTimeUs = 0;
+        for (int i = 0; i < index.getNumSamples(); i++) {
+            ByteBuffer buffer = ByteBuffer.allocate(index.getSize(i));
+            buffer.put(index.getSampleData(i));
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            presentationTimeUs = index.getPresentationTimeUs(i);
+            info.offset = 0;
+            info.size = index.getSize(i);
+            info.presentationTimeUs = presentationTimeUs;
+            info.flags = index.getFlags(i);
+            buffers.add(buffer);
+            bufferInfo.add(info);
+        }
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.offset = 0;
+        info.size = 0;
+        info.presentationTimeUs = presentationTimeUs;
+        info.flags = MediaCodec.BUFFER_FLAG_END_OF_STREAM;
+        buffers.add(ByteBuffer.allocate(0));
+        bufferInfo.add(info);
+    }
+
+    /**
+     * Collects the hits, misses and time saved since the cache was created
+     *
+     * @param inputReference Name of the run the summary is for
+     */
+    public synchronized Metrics getMetrics(String inputReference) {
+        Metrics metrics = new Metrics(inputReference, "sampleIndexCache", "");
+        metrics.add("hits", mNumHits);
+        metrics.add("misses", mNumMisses);
+        metrics.add("buildTimeNs", mBuildTimeNs);
+        metrics.add("loadTimeNs", mLoadTimeNs);
+        metrics.add("timeSavedNs", mTimeSavedNs);
+        return metrics;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Resizes YUV 4:2:0 frames by point sampling.
+ * <p>
+ * The source may be planar (I420) or semi-planar (NV12) with a stride and slice height larger
+ * than the picture, as produced by decoders. The output has the same layout, tightly packed.
+ * Sampling positions are computed once per instance so that scaling a frame does not allocate.
+ */
+public class Scaler {
+    private final int mSrcStride;
+    private final int mSrcSliceHeight;
+    private final boolean mSemiPlanar;
+    private final int mDstWidth;
+    private final int mDstHeight;
+    private final int[] mLumaColumns;
+    private final int[] mLumaRows;
+    private final int[] mChromaColumns;
+    private final int[] mChromaRows;
+
+    /**
+     * @param srcWidth       Width of the source picture
+     * @param srcHeight      Height of the source picture
+     * @param srcStride      Distance in bytes between two luma rows of the source
+     * @param srcSliceHeight Number of luma rows of the source before the chroma plane starts
+     * @param semiPlanar     True for interleaved chroma (NV12), false for planar chroma (I420)
+     * @param dstWidth       Width of the output picture
+     * @param dstHeight      Height of the output picture
+     */
+    public Scaler(int srcWidth, int srcHeight, int srcStride, int srcSliceHeight,
+            boolean semiPlanar, int dstWidth, int dstHeight) {
+        mSrcStride = srcStride;
+        mSrcSliceHeight = srcSliceHeight;
+        mSemiPlanar = semiPlanar;
+        mDstWidth = dstWidth;
+        mDstHeight = dstHeight;
+        mLumaColumns = samplePositions(srcWidth, dstWidth);
+        mLumaRows = samplePositions(srcHeight, dstHeight);
+        mChromaColumns = samplePositions(srcWidth / 2, dstWidth / 2);
+        mChromaRows = samplePositions(srcHeight / 2, dstHeight / 2);
+    }
+
+    private static int[] samplePositions(int srcSize, int dstSize) {
+        int[] positions = new int[dstSize];
+        for (int i = 0; i < dstSize; i++) {
+            positions[i] = (int) (((long) i * srcSize + srcSize / 2) / dstSize);
+        }
+        return positions;
+    }
+
+    /**
+     * Returns the size in bytes of an output frame
+     */
+    public int getOutputSize() { return mDstWidth * mDstHeight * 3 / 2; }
+
+    /**
+     * Scales one frame
+     *
+     * @param src       Source frame, not modified
+     * @param srcOffset Offset of the source frame in src
+     * @param dst       Receives the output frame from position 0, must hold
+     *                  {@link #getOutputSize()} bytes
+     * @return Size of the output frame
+     */
+    public int scale(ByteBuffer src, int srcOffset, ByteBuffer dst) {
+        int dstOffset = 0;
+        for (int row : mLumaRows) {
+            int srcRow = srcOffset + row * mSrcStride;
+            for (int column : mLumaColumns) {
+                dst.put(dstOffset++, src.get(srcRow + column));
+            }
+        }
+        int chromaOffset = srcOffset + mSrcStride * mSrcSliceHeight;
+        if (mSemiPlanar) {
+            for (int row : mChromaRows) {
+                int srcRow = chromaOffset + row * mSrcStride;
+                for (int column : mChromaColumns) {
+                    dst.put(dstOffset++, src.get(srcRow + 2 * column));
+                    dst.put(dstOffset++, src.get(srcRow + 2 * column + 1));
+                }
+            }
+        } else {
+            int chromaStride = mSrcStride / 2;
+            int chromaPlaneSize = chromaStride * (mSrcSliceHeight / 2);
+            for (int plane = 0; plane < 2; plane++) {
+                int planeOffset = chromaOffset + plane * chromaPlaneSize;
+                for (int row : mChromaRows) {
+                    int srcRow = planeOffset + row * chromaStride;
+                    for (int column : mChromaColumns) {
+                        dst.put(dstOffset++, src.get(srcRow + column));
+                    }
+                }
+            }
+        }
+        return dstOffset;
+    }
+}
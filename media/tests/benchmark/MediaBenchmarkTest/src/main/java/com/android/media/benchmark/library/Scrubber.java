@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Seeks a track to a sequence of positions, as a user scrubbing a seek bar, and decodes up to
+ * the frame of each position.
+ * <p>
+ * Every seek moves the extractor to a sync sample near the target, flushes the decoder and
+ * decodes until the first frame at or after the target is output. The three phases are timed
+ * separately.
+ */
+public class Scrubber {
+    public static final String PATTERN_RANDOM = "random";
+    public static final String PATTERN_FORWARD = "forward";
+    public static final String PATTERN_BACKWARD = "backward";
+
+    private final Distribution mSeekTimes = new Distribution();
+    private final Distribution mFlushTimes = new Distribution();
+    private final Distribution mDecodeTimes = new Distribution();
+    private final Distribution mTotalTimes = new Distribution();
+    private final Distribution mFramesToTarget = new Distribution();
+    private final MediaCodec.BufferInfo mOutputInfo = new MediaCodec.BufferInfo();
+    private int mNumMissed;
+
+    private long mTargetUs;
+    private boolean mReachedTarget;
+    private int mNumFrames;
+
+    /**
+     * Returns the positions of a scrubbing pattern
+     *
+     * @param pattern    One of the PATTERN_* values: random positions, or evenly spaced
+     *                   positions skipping forward from the start or backward from the end
+     * @param durationUs Duration of the track
+     * @param count      Number of positions
+     * @param seed       Seed of the random positions
+     */
+    public static long[] createTargets(String pattern, long durationUs, int count, long seed) {
+        long[] targetsUs = new long[count];
+        Random random = new Random(seed);
+        for (int i = 0; i < count; i++) {
+            switch (pattern) {
+                case PATTERN_RANDOM:
+                    targetsUs[i] = (long) (random.nextDouble() * durationUs);
+                    break;
+                case PATTERN_FORWARD:
+                    targetsUs[i] = (i + 1) * durationUs / (count + 1);
+                    break;
+                case PATTERN_BACKWARD:
+                    targetsUs[i] = (count - i) * durationUs / (count + 1);
+                    break;
+                default:
+                    return null;
+            }
+        }
+        return targetsUs;
+    }
+
+    /**
+     * Seeks to every position and decodes up to its frame
+     *
+     * @param extractor Extractor set up with the track to decode selected
+     * @param decoder   Decoder started by {@link Decoder#setupStreamingDecoder} for the track
+     * @param targetsUs Positions to seek to
+     * @param seekMode  One of the MediaExtractor.SEEK_TO_* modes
+     * @return 0 if all positions were decoded, -1 for fail
+     */
+    public int scrub(Extractor extractor, Decoder decoder, long[] targetsUs, int seekMode) {
+        for (long targetUs : targetsUs) {
+            long sTime = System.nanoTime();
+            extractor.seekTo(targetUs, seekMode);
+            long seekTime = System.nanoTime();
+            decoder.flushStreamingDecoder();
+            long flushTime = System.nanoTime();
+            if (decodeToTarget(extractor, decoder, targetUs) != 0) {
+                return -1;
+            }
+            long eTime = System.nanoTime();
+            mSeekTimes.add(seekTime - sTime);
+            mFlushTimes.add(flushTime - seekTime);
+            mDecodeTimes.add(eTime - flushTime);
+            mTotalTimes.add(eTime - sTime);
+            if (mReachedTarget) {
+                mFramesToTarget.add(mNumFrames);
+            } else {
+                mNumMissed++;
+            }
+        }
+        return 0;
+    }
+
+    private int decodeToTarget(Extractor extractor, Decoder decoder, long targetUs) {
+        mTargetUs = targetUs;
+        mReachedTarget = false;
+        mNumFrames = 0;
+        boolean sawInputEOS = false;
+        while (!mReachedTarget && !decoder.sawOutputEOS()) {
+            if (!sawInputEOS) {
+                extractor.getFrameSample();
+                MediaCodec.BufferInfo inputInfo = extractor.getBufferInfo();
+                sawInputEOS = (inputInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                if (queue(decoder, extractor.getFrameBuffer(), inputInfo) != 0) {
+                    return -1;
+                }
+            }
+            if (!mReachedTarget && drain(decoder, sawInputEOS) != 0) {
+                return -1;
+            }
+        }
+        return 0;
+    }
+
+    private int queue(Decoder decoder, ByteBuffer sample, MediaCodec.BufferInfo inputInfo) {
+        while (true) {
+            int status = decoder.queueInputSample(sample, inputInfo);
+            if (status == 0) {
+                return 0;
+            } else if (status < 0 || drain(decoder, false) != 0) {
+                return -1;
+            }
+        }
+    }
+
+    private int drain(Decoder decoder, boolean untilEndOfStream) {
+        while (!mReachedTarget && !decoder.sawOutputEOS()) {
+            int status = decoder.dequeueOutputFrame(mOutputInfo, null);
+            if (status == Decoder.TRY_AGAIN) {
+                if (untilEndOfStream) {
+                    continue;
+                }
+                return 0;
+            } else if (status < 0) {
+                return -1;
+            }
+            if (mOutputInfo.size > 0) {
+                mNumFrames++;
+                mReachedTarget = mOutputInfo.presentationTimeUs >= mTargetUs;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the time distributions of the seeks made so far
+     *
+     * @param inputReference Name of the file
+     * @param operation      Pattern and seek mode of the seeks
+     * @param componentName  Codec of the track
+     */
+    public Metrics getMetrics(String inputReference, String operation, String componentName) {
+        Metrics metrics = new Metrics(inputReference, operation, componentName);
+        metrics.add("extractorSeekTimeNs", mSeekTimes);
+        metrics.add("flushTimeNs", mFlushTimes);
+        metrics.add("decodeToTargetTimeNs", mDecodeTimes);
+        metrics.add("totalSeekTimeNs", mTotalTimes);
+        metrics.add("framesDecodedToTarget", mFramesToTarget);
+        metrics.add("targetsMissed", mNumMissed);
+        return metrics;
+    }
+
+    public void reset() {
+        mSeekTimes.reset();
+        mFlushTimes.reset();
+        mDecodeTimes.reset();
+        mTotalTimes.reset();
+        mFramesToTarget.reset();
+        mNumMissed = 0;
+    }
+}
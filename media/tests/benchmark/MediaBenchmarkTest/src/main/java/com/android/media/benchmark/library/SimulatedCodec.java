@@ -0,0 +1,597 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * A {@link BenchmarkCodec} which runs on a host JVM, for testing the decode and encode loops and
+ * the tools around them without a device.
+ * <p>
+ * A queued input is accepted by the codec, which frees its input buffer, once fewer frames than
+ * the pipeline depth are in flight. It completes a latency drawn from the configured
+ * distribution after it was accepted, frames completing in the order they were accepted. The
+ * completed frames are held until more than the reorder depth of them are waiting, and are then
+ * output in presentation order, as a decoder reorders the frames of a stream with B-frames. The
+ * end of stream flushes the held frames. The output format change is reported before the first
+ * output, as MediaCodec does.
+ * <p>
+ * An output frame has the size of its input, or the configured output size, and its content is
+ * undefined. The codec only waits for the latency, it does not load the CPU. In async mode the
+ * callbacks are made from a thread of the codec, outside of its lock.
+ * <p>
+ * A failure can be injected after a number of accepted frames: the codec then stops processing,
+ * its calls throw an IllegalStateException as those of a MediaCodec in the error state do, and
+ * {@link Callback#onError} is called in async mode.
+ */
+public class SimulatedCodec implements BenchmarkCodec {
+    private static final String TAG = "SimulatedCodec";
+
+    /**
+     * Creates simulated codecs sharing the same behaviour. Every codec draws its latencies from
+     * its own random generator, seeded with the seed of the factory and the number of codecs
+     * created before it, so that a sequence of runs is repeatable.
+     */
+    public static class Factory implements BenchmarkCodec.Factory {
+        private long[] mLatencyTableNs = {0};
+        private int mPipelineDepth = 4;
+        private int mNumInputBuffers = 4;
+        private int mNumOutputBuffers = 4;
+        private int mInputBufferSize = 1024 * 1024;
+        private int mOutputSize = -1;
+        private int mReorderDepth;
+        private int mFailAfterFrames = -1;
+        private long mSeed;
+        private int mNumCreated;
+
+        /**
+         * Draws the latency of every frame uniformly from [minNs, maxNs]. The default is 0.
+         */
+        public Factory setLatency(long minNs, long maxNs) {
+            mLatencyTableNs = new long[]{minNs, maxNs};
+            return this;
+        }
+
+        /**
+         * Draws the latency of every frame from the given distribution, such as the frame times
+         * recorded on a device, interpolating between its percentiles
+         */
+        public Factory setLatency(Distribution latenciesNs) {
+            mLatencyTableNs = new long[101];
+            for (int i = 0; i <= 100; i++) {
+                mLatencyTableNs[i] = latenciesNs.getPercentile(i);
+            }
+            return this;
+        }
+
+        /**
+         * @param pipelineDepth Frames processed at the same time, including the held ones
+         */
+        public Factory setPipelineDepth(int pipelineDepth) {
+            mPipelineDepth = Math.max(1, pipelineDepth);
+            return this;
+        }
+
+        public Factory setBufferCounts(int numInputBuffers, int numOutputBuffers) {
+            mNumInputBuffers = Math.max(1, numInputBuffers);
+            mNumOutputBuffers = Math.max(1, numOutputBuffers);
+            return this;
+        }
+
+        /**
+         * @param inputBufferSize Capacity of the input buffers
+         * @param outputSize      Size of the output frames, -1 for the size of their input
+         */
+        public Factory setBufferSizes(int inputBufferSize, int outputSize) {
+            mInputBufferSize = inputBufferSize;
+            mOutputSize = outputSize;
+            return this;
+        }
+
+        /**
+         * @param reorderDepth Completed frames held for reordering, below the pipeline depth
+         */
+        public Factory setReorderDepth(int reorderDepth) {
+            mReorderDepth = Math.max(0, reorderDepth);
+            return this;
+        }
+
+        /**
+         * @param numFrames Accepted frames after which the codecs fail, -1 to never fail
+         */
+        public Factory setFailAfterFrames(int numFrames) {
+            mFailAfterFrames = numFrames;
+            return this;
+        }
+
+        public Factory setSeed(long seed) {
+            mSeed = seed;
+            return this;
+        }
+
+        @Override
+        public BenchmarkCodec createByCodecName(String name) { return create(name); }
+
+        @Override
+        public BenchmarkCodec createDecoderByType(String mime) {
+            return create("simulated.decoder." + mime);
+        }
+
+        @Override
+        public BenchmarkCodec createEncoderByType(String mime) {
+            return create("simulated.encoder." + mime);
+        }
+
+        private synchronized SimulatedCodec create(String name) {
+            return new SimulatedCodec(name, this, mSeed + mNumCreated++);
+        }
+    }
+
+    private static class Sample {
+        int mInputIndex;
+        int mSize;
+        long mPresentationTimeUs;
+        int mFlags;
+        long mReadyTimeNs;
+    }
+
+    private final String mName;
+    private final long[] mLatencyTableNs;
+    private final int mPipelineDepth;
+    private final int mReorderDepth;
+    private final int mInputBufferSize;
+    private final int mOutputSize;
+    private final int mFailAfterFrames;
+    private final Random mRandom;
+    private final Object mLock = new Object();
+    private final ByteBuffer[] mInputBuffers;
+    private final ByteBuffer[] mOutputBuffers;
+    private final BufferInfo[] mOutputInfos;
+    private final ArrayDeque<Integer> mFreeInputs = new ArrayDeque<>();
+    private final ArrayDeque<Integer> mFreeOutputs = new ArrayDeque<>();
+    private final ArrayDeque<Sample> mQueued = new ArrayDeque<>();
+    private final ArrayDeque<Sample> mInFlight = new ArrayDeque<>();
+    private final ArrayList<Sample> mHeld = new ArrayList<>();
+    private final ArrayDeque<Integer> mOutputs = new ArrayDeque<>();
+    private Callback mCallback;
+    private MediaFormat mFormat;
+    private Thread mThread;
+    private boolean mConfigured;
+    private boolean mRunning;
+    private boolean mPaused;
+    private boolean mFormatSent;
+    private boolean mFormatChangePending;
+    private boolean mEosCompleted;
+    private IllegalStateException mError;
+    // Incremented by flush and stop, callbacks of an earlier generation are dropped
+    private volatile int mGeneration;
+    private int mNumAccepted;
+    private int mNumOutputs;
+    private int mPeakInFlight;
+
+    private SimulatedCodec(String name, Factory factory, long seed) {
+        mName = name;
+        mLatencyTableNs = factory.mLatencyTableNs;
+        mPipelineDepth = factory.mPipelineDepth;
+        mReorderDepth = Math.min(factory.mReorderDepth, factory.mPipelineDepth - 1);
+        mInputBufferSize = factory.mInputBufferSize;
+        mOutputSize = factory.mOutputSize;
+        mFailAfterFrames = factory.mFailAfterFrames;
+        mRandom = new Random(seed);
+        mInputBuffers = new ByteBuffer[factory.mNumInputBuffers];
+        mOutputBuffers = new ByteBuffer[factory.mNumOutputBuffers];
+        mOutputInfos = new BufferInfo[factory.mNumOutputBuffers];
+    }
+
+    @Override
+    public String getName() { return mName; }
+
+    @Override
+    public void setCallback(Callback callback) { mCallback = callback; }
+
+    @Override
+    public void configure(MediaFormat format, int flags) {
+        synchronized (mLock) {
+            if (mRunning) {
+                throw new IllegalStateException("configure() of a started codec");
+            }
+            mFormat = format;
+            mConfigured = true;
+            int outputCapacity = mOutputSize > 0 ? mOutputSize : mInputBufferSize;
+            for (int i = 0; i < mInputBuffers.length; i++) {
+                if (mInputBuffers[i] == null) {
+                    mInputBuffers[i] = ByteBuffer.allocate(mInputBufferSize);
+                }
+            }
+            for (int i = 0; i < mOutputBuffers.length; i++) {
+                if (mOutputBuffers[i] == null) {
+                    mOutputBuffers[i] = ByteBuffer.allocate(outputCapacity);
+                    mOutputInfos[i] = new BufferInfo();
+                }
+            }
+        }
+    }
+
+    @Override
+    public MediaFormat getInputFormat() { return mFormat; }
+
+    @Override
+    public MediaFormat getOutputFormat() { return mFormat; }
+
+    @Override
+    public void start() {
+        synchronized (mLock) {
+            if (!mConfigured) {
+                throw new IllegalStateException("start() of a codec which is not configured");
+            }
+            mPaused = false;
+            if (!mRunning) {
+                mRunning = true;
+                reset();
+                mThread = new Thread(this::process, TAG + "." + mName);
+                mThread.start();
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void flush() {
+        synchronized (mLock) {
+            reset();
+            // In async mode the codec resumes on the next call to start()
+            mPaused = mCallback != null;
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void stop() {
+        Thread thread;
+        synchronized (mLock) {
+            mRunning = false;
+            reset();
+            thread = mThread;
+            mThread = null;
+            mLock.notifyAll();
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void release() { stop(); }
+
+    /**
+     * Returns the frames accepted since the codec was created
+     */
+    public int getNumAcceptedFrames() {
+        synchronized (mLock) { return mNumAccepted; }
+    }
+
+    /**
+     * Returns the frames output since the codec was created
+     */
+    public int getNumOutputFrames() {
+        synchronized (mLock) { return mNumOutputs; }
+    }
+
+    /**
+     * Returns the highest number of frames processed or held at the same time
+     */
+    public int getPeakFramesInFlight() {
+        synchronized (mLock) { return mPeakInFlight; }
+    }
+
+    /**
+     * Drops the frames in the codec and frees all buffers, called with the lock held
+     */
+    private void reset() {
+        mGeneration++;
+        mQueued.clear();
+        mInFlight.clear();
+        mHeld.clear();
+        mOutputs.clear();
+        mFreeInputs.clear();
+        mFreeOutputs.clear();
+        for (int i = 0; i < mInputBuffers.length; i++) {
+            mFreeInputs.add(i);
+        }
+        for (int i = 0; i < mOutputBuffers.length; i++) {
+            mFreeOutputs.add(i);
+        }
+        mFormatChangePending = false;
+        mEosCompleted = false;
+    }
+
+    /**
+     * Throws if a call of the given mode is not allowed, called with the lock held
+     */
+    private void checkState(boolean async) {
+        if (mError != null) {
+            throw mError;
+        }
+        if (!mRunning) {
+            throw new IllegalStateException("Codec " + mName + " is not started");
+        }
+        if (async != (mCallback != null)) {
+            throw new IllegalStateException("Call not allowed in " + (async ? "sync" : "async")
+                    + " mode");
+        }
+    }
+
+    /**
+     * Waits on the lock until the deadline, forever if timeoutUs is negative. Returns false once
+     * the deadline has passed.
+     */
+    private boolean await(long deadlineNs, long timeoutUs) {
+        try {
+            if (timeoutUs < 0) {
+                mLock.wait();
+                return true;
+            }
+            long remainingNs = deadlineNs - System.nanoTime();
+            if (remainingNs <= 0) {
+                return false;
+            }
+            mLock.wait(remainingNs / 1000000, (int) (remainingNs % 1000000));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        synchronized (mLock) {
+            long deadlineNs = System.nanoTime() + timeoutUs * 1000;
+            while (true) {
+                checkState(false);
+                if (!mFreeInputs.isEmpty()) {
+                    return mFreeInputs.poll();
+                }
+                if (timeoutUs == 0 || !await(deadlineNs, timeoutUs)) {
+                    return MediaCodec.INFO_TRY_AGAIN_LATER;
+                }
+            }
+        }
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        ByteBuffer buffer = mInputBuffers[index];
+        buffer.clear();
+        return buffer;
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs,
+            int flags) {
+        synchronized (mLock) {
+            if (mError != null) {
+                throw mError;
+            }
+            if (index < 0 || index >= mInputBuffers.length || offset < 0 || size < 0
+                    || offset + size > mInputBufferSize) {
+                throw new IllegalArgumentException("Invalid input buffer " + index + " offset "
+                        + offset + " size " + size);
+            }
+            Sample sample = new Sample();
+            sample.mInputIndex = index;
+            sample.mSize = size;
+            sample.mPresentationTimeUs = presentationTimeUs;
+            sample.mFlags = flags;
+            mQueued.add(sample);
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public int dequeueOutputBuffer(BufferInfo info, long timeoutUs) {
+        synchronized (mLock) {
+            long deadlineNs = System.nanoTime() + timeoutUs * 1000;
+            while (true) {
+                checkState(false);
+                if (mFormatChangePending) {
+                    mFormatChangePending = false;
+                    return MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+                }
+                if (!mOutputs.isEmpty()) {
+                    int index = mOutputs.poll();
+                    BufferInfo outputInfo = mOutputInfos[index];
+                    info.offset = outputInfo.offset;
+                    info.size = outputInfo.size;
+                    info.presentationTimeUs = outputInfo.presentationTimeUs;
+                    info.flags = outputInfo.flags;
+                    return index;
+                }
+                if (timeoutUs == 0 || !await(deadlineNs, timeoutUs)) {
+                    return MediaCodec.INFO_TRY_AGAIN_LATER;
+                }
+            }
+        }
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        ByteBuffer buffer = mOutputBuffers[index];
+        buffer.clear();
+        buffer.limit(mOutputInfos[index].size);
+        return buffer;
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        synchronized (mLock) {
+            if (index < 0 || index >= mOutputBuffers.length || mFreeOutputs.contains(index)) {
+                throw new IllegalArgumentException("Invalid output buffer " + index);
+            }
+            mFreeOutputs.add(index);
+            mLock.notifyAll();
+        }
+    }
+
+    private long nextLatencyNs() {
+        if (mLatencyTableNs.length == 1) {
+            return mLatencyTableNs[0];
+        }
+        double position = mRandom.nextDouble() * (mLatencyTableNs.length - 1);
+        int i = (int) position;
+        long low = mLatencyTableNs[i];
+        long high = mLatencyTableNs[Math.min(i + 1, mLatencyTableNs.length - 1)];
+        return low + (long) ((high - low) * (position - i));
+    }
+
+    /**
+     * Returns the held frame to output next, the first in presentation order, the end of stream
+     * last
+     */
+    private Sample pollHeld() {
+        int next = 0;
+        for (int i = 1; i < mHeld.size(); i++) {
+            Sample sample = mHeld.get(i);
+            Sample nextSample = mHeld.get(next);
+            boolean eos = (sample.mFlags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+            boolean nextEos = (nextSample.mFlags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+            if (nextEos || (!eos && sample.mPresentationTimeUs < nextSample.mPresentationTimeUs)) {
+                next = i;
+            }
+        }
+        return mHeld.remove(next);
+    }
+
+    /**
+     * Moves the frames through the codec, adding the callbacks to make in async mode to events.
+     * Called with the lock held.
+     *
+     * @return Time until the next frame completes in nanoseconds, -1 if no frame is in flight
+     */
+    private long advance(ArrayList<Runnable> events) {
+        final Callback callback = mCallback;
+        if (mError != null || mPaused) {
+            return -1;
+        }
+        long now = System.nanoTime();
+        while (!mQueued.isEmpty() && mInFlight.size() + mHeld.size() < mPipelineDepth) {
+            Sample sample = mQueued.poll();
+            sample.mReadyTimeNs = now + nextLatencyNs();
+            mInFlight.add(sample);
+            mFreeInputs.add(sample.mInputIndex);
+            mNumAccepted++;
+            mPeakInFlight = Math.max(mPeakInFlight, mInFlight.size() + mHeld.size());
+            if (mNumAccepted == mFailAfterFrames) {
+                final IllegalStateException error = new IllegalStateException(
+                        "Simulated error of " + mName + " after " + mNumAccepted + " frames");
+                mError = error;
+                if (callback != null) {
+                    events.add(() -> callback.onError(this, error));
+                }
+                mLock.notifyAll();
+                return -1;
+            }
+        }
+        while (!mInFlight.isEmpty() && mInFlight.peek().mReadyTimeNs <= now) {
+            Sample sample = mInFlight.poll();
+            mEosCompleted |= (sample.mFlags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+            mHeld.add(sample);
+        }
+        while (!mHeld.isEmpty() && !mFreeOutputs.isEmpty()
+                && (mHeld.size() > mReorderDepth || mEosCompleted)) {
+            Sample sample = pollHeld();
+            final int index = mFreeOutputs.poll();
+            final BufferInfo info = mOutputInfos[index];
+            info.offset = 0;
+            info.size = sample.mSize == 0 ? 0 : Math.min(mOutputSize >= 0 ? mOutputSize
+                    : sample.mSize, mOutputBuffers[index].capacity());
+            info.presentationTimeUs = sample.mPresentationTimeUs;
+            info.flags = sample.mFlags;
+            mNumOutputs++;
+            if (!mFormatSent) {
+                mFormatSent = true;
+                if (callback != null) {
+                    final MediaFormat format = mFormat;
+                    events.add(() -> callback.onOutputFormatChanged(this, format));
+                } else {
+                    mFormatChangePending = true;
+                }
+            }
+            if (callback != null) {
+                events.add(() -> callback.onOutputBufferAvailable(this, index, info));
+            } else {
+                mOutputs.add(index);
+            }
+        }
+        if (callback != null) {
+            while (!mFreeInputs.isEmpty()) {
+                final int index = mFreeInputs.poll();
+                events.add(() -> callback.onInputBufferAvailable(this, index));
+            }
+        }
+        if (!events.isEmpty() || callback == null) {
+            mLock.notifyAll();
+        }
+        return mInFlight.isEmpty() ? -1 : Math.max(1, mInFlight.peek().mReadyTimeNs - now);
+    }
+
+    /**
+     * Runs the frames through the codec until it is stopped
+     */
+    private void process() {
+        ArrayList<Runnable> events = new ArrayList<>();
+        while (true) {
+            int generation;
+            synchronized (mLock) {
+                if (!mRunning) {
+                    return;
+                }
+                generation = mGeneration;
+                long waitNs = advance(events);
+                if (events.isEmpty()) {
+                    try {
+                        if (waitNs < 0) {
+                            mLock.wait();
+                        } else {
+                            mLock.wait(waitNs / 1000000, (int) (waitNs % 1000000));
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+            }
+            for (Runnable event : events) {
+                if (generation == mGeneration) {
+                    event.run();
+                }
+            }
+            events.clear();
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * A {@link BenchmarkExtractor} reading samples held in memory, for running the extractor and
+ * the tools around it on a host JVM. The samples of the selected tracks are read in timestamp
+ * order, as from an interleaved file.
+ */
+public class SimulatedExtractor implements BenchmarkExtractor {
+    private static class Track {
+        final MediaFormat mFormat;
+        final ArrayList<ByteBuffer> mSamples;
+        final ArrayList<MediaCodec.BufferInfo> mInfos;
+        boolean mSelected;
+        int mNext;
+
+        Track(MediaFormat format, ArrayList<ByteBuffer> samples,
+                ArrayList<MediaCodec.BufferInfo> infos) {
+            mFormat = format;
+            mSamples = samples;
+            mInfos = infos;
+        }
+
+        boolean isSync(int sample) {
+            return (mInfos.get(sample).flags & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+        }
+    }
+
+    private final ArrayList<Track> mTracks = new ArrayList<>();
+
+    /**
+     * Adds a track of the given samples
+     *
+     * @param format  Format of the track
+     * @param samples Buffers holding the samples at [info.offset, info.offset + info.size)
+     * @param infos   Size, timestamp and flags of the samples, in decoding order
+     * @return Index of the track
+     */
+    public int addTrack(MediaFormat format, ArrayList<ByteBuffer> samples,
+            ArrayList<MediaCodec.BufferInfo> infos) {
+        mTracks.add(new Track(format, samples, infos));
+        return mTracks.size() - 1;
+    }
+
+    /**
+     * Adds a track of samples of the same size and duration with undefined content
+     *
+     * @param format           Format of the track
+     * @param numSamples       Number of samples
+     * @param sampleSize       Size of a sample
+     * @param sampleDurationUs Time from a sample to the next
+     * @param syncInterval     Samples from a sync sample to the next, the first one is sync
+     * @return Index of the track
+     */
+    public int addTrack(MediaFormat format, int numSamples, int sampleSize,
+            long sampleDurationUs, int syncInterval) {
+        ByteBuffer data = ByteBuffer.allocate(sampleSize);
+        ArrayList<ByteBuffer> samples = new ArrayList<>(numSamples);
+        ArrayList<MediaCodec.BufferInfo> infos = new ArrayList<>(numSamples);
+        for (int i = 0; i < numSamples; i++) {
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            info.offset = 0;
+            info.size = sampleSize;
+            info.presentationTimeUs = i * sampleDurationUs;
+            info.flags = i % Math.max(1, syncInterval) == 0 ? MediaExtractor.SAMPLE_FLAG_SYNC : 0;
+            samples.add(data);
+            infos.add(info);
+        }
+        return addTrack(format, samples, infos);
+    }
+
+    @Override
+    public int getTrackCount() { return mTracks.size(); }
+
+    @Override
+    public MediaFormat getTrackFormat(int index) { return mTracks.get(index).mFormat; }
+
+    @Override
+    public void selectTrack(int index) { mTracks.get(index).mSelected = true; }
+
+    @Override
+    public void unselectTrack(int index) { mTracks.get(index).mSelected = false; }
+
+    /**
+     * Returns the selected track of the next sample, -1 once all are read
+     */
+    @Override
+    public int getSampleTrackIndex() {
+        int next = -1;
+        long nextTimeUs = Long.MAX_VALUE;
+        for (int i = 0; i < mTracks.size(); i++) {
+            Track track = mTracks.get(i);
+            if (track.mSelected && track.mNext < track.mInfos.size()
+                    && track.mInfos.get(track.mNext).presentationTimeUs < nextTimeUs) {
+                next = i;
+                nextTimeUs = track.mInfos.get(track.mNext).presentationTimeUs;
+            }
+        }
+        return next;
+    }
+
+    private MediaCodec.BufferInfo getSampleInfo() {
+        int index = getSampleTrackIndex();
+        if (index < 0) {
+            return null;
+        }
+        Track track = mTracks.get(index);
+        return track.mInfos.get(track.mNext);
+    }
+
+    @Override
+    public long getSampleSize() {
+        MediaCodec.BufferInfo info = getSampleInfo();
+        return info == null ? -1 : info.size;
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        int index = getSampleTrackIndex();
+        if (index < 0) {
+            return -1;
+        }
+        Track track = mTracks.get(index);
+        MediaCodec.BufferInfo info = track.mInfos.get(track.mNext);
+        ByteBuffer data = track.mSamples.get(track.mNext).duplicate();
+        data.limit(info.offset + info.size);
+        data.position(info.offset);
+        buffer.position(offset);
+        buffer.put(data);
+        buffer.limit(offset + info.size);
+        buffer.position(offset);
+        return info.size;
+    }
+
+    @Override
+    public int getSampleFlags() {
+        MediaCodec.BufferInfo info = getSampleInfo();
+        return info == null ? -1 : info.flags;
+    }
+
+    @Override
+    public long getSampleTime() {
+        MediaCodec.BufferInfo info = getSampleInfo();
+        return info == null ? -1 : info.presentationTimeUs;
+    }
+
+    @Override
+    public boolean advance() {
+        int index = getSampleTrackIndex();
+        if (index < 0) {
+            return false;
+        }
+        mTracks.get(index).mNext++;
+        return getSampleTrackIndex() >= 0;
+    }
+
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        for (Track track : mTracks) {
+            if (!track.mSelected) {
+                continue;
+            }
+            int previous = -1;
+            int next = -1;
+            for (int i = 0; i < track.mInfos.size(); i++) {
+                if (!track.isSync(i)) {
+                    continue;
+                }
+                if (track.mInfos.get(i).presentationTimeUs <= timeUs) {
+                    previous = i;
+                } else {
+                    next = i;
+                    break;
+                }
+            }
+            if (mode == MediaExtractor.SEEK_TO_NEXT_SYNC) {
+                if (previous >= 0 && track.mInfos.get(previous).presentationTimeUs == timeUs) {
+                    next = previous;
+                }
+                track.mNext = next >= 0 ? next : track.mInfos.size();
+            } else if (mode == MediaExtractor.SEEK_TO_CLOSEST_SYNC && next >= 0 && (previous < 0
+                    || track.mInfos.get(next).presentationTimeUs - timeUs
+                    < timeUs - track.mInfos.get(previous).presentationTimeUs)) {
+                track.mNext = next;
+            } else {
+                track.mNext = previous >= 0 ? previous : Math.max(next, 0);
+            }
+        }
+    }
+
+    @Override
+    public void release() { mTracks.clear(); }
+}
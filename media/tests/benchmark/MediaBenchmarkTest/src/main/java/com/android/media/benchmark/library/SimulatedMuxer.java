@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * A {@link BenchmarkMuxer} which counts the samples written to each track instead of writing a
+ * file, for running the muxer and the tools around it on a host JVM. It checks the calls are
+ * made in the order MediaMuxer requires and throws the same exceptions otherwise.
+ */
+public class SimulatedMuxer implements BenchmarkMuxer {
+    private static final int STATE_INITIALIZED = 0;
+    private static final int STATE_STARTED = 1;
+    private static final int STATE_STOPPED = 2;
+    private static final int STATE_RELEASED = 3;
+
+    private final ArrayList<MediaFormat> mFormats = new ArrayList<>();
+    private final ArrayList<Integer> mNumSamples = new ArrayList<>();
+    private long mNumBytes;
+    private int mState = STATE_INITIALIZED;
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        if (mState != STATE_INITIALIZED) {
+            throw new IllegalStateException("Muxer is not initialized");
+        }
+        mFormats.add(format);
+        mNumSamples.add(0);
+        return mFormats.size() - 1;
+    }
+
+    @Override
+    public void start() {
+        if (mState != STATE_INITIALIZED || mFormats.isEmpty()) {
+            throw new IllegalStateException("Muxer cannot be started");
+        }
+        mState = STATE_STARTED;
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        if (trackIndex < 0 || trackIndex >= mFormats.size()) {
+            throw new IllegalArgumentException("Track index is invalid");
+        }
+        if (info.size < 0 || info.offset < 0 || info.offset + info.size > buffer.capacity()
+                || info.presentationTimeUs < 0) {
+            throw new IllegalArgumentException("Sample info is invalid");
+        }
+        if (mState != STATE_STARTED) {
+            throw new IllegalStateException("Muxer is not started");
+        }
+        mNumSamples.set(trackIndex, mNumSamples.get(trackIndex) + 1);
+        mNumBytes += info.size;
+    }
+
+    @Override
+    public void stop() {
+        if (mState != STATE_STARTED) {
+            throw new IllegalStateException("Muxer is not started");
+        }
+        mState = STATE_STOPPED;
+    }
+
+    @Override
+    public void release() {
+        if (mState == STATE_STARTED) {
+            stop();
+        }
+        mState = STATE_RELEASED;
+    }
+
+    /**
+     * Returns the samples written to the given track
+     */
+    public int getNumSamples(int trackIndex) { return mNumSamples.get(trackIndex); }
+
+    /**
+     * Returns the bytes written to all tracks
+     */
+    public long getNumBytes() { return mNumBytes; }
+}
@@ -29,9 +29,13 @@ import java.util.ArrayList;
  */
 public class Stats {
     private static final String TAG = "Stats";
+    private String mLayer = "SDK";
     private long mInitTimeNs;
     private long mDeInitTimeNs;
     private long mStartTimeNs;
+    private long mCreateTimeNs;
+    private long mConfigureTimeNs;
+    private long mCodecStartTimeNs;
     private ArrayList<Integer> mFrameSizes;
     private ArrayList<Long> mInputTimer;
     private ArrayList<Long> mOutputTimer;
@@ -52,12 +56,32 @@ public class Stats {
 
     public void setStartTime() { mStartTimeNs = System.nanoTime(); }
 
+    /**
+     * Sets the split of the init time of a codec between its creation, configuration and start
+     */
+    public void setCodecSetupTimes(long createTimeNs, long configureTimeNs, long startTimeNs) {
+        mCreateTimeNs = createTimeNs;
+        mConfigureTimeNs = configureTimeNs;
+        mCodecStartTimeNs = startTimeNs;
+    }
+
     public void addFrameSize(int size) { mFrameSizes.add(size); }
 
     public void addInputTime() { mInputTimer.add(System.nanoTime()); }
 
     public void addOutputTime() { mOutputTimer.add(System.nanoTime()); }
 
+    /**
+     * Sets the layer the stats were measured in, SDK unless they come from native code
+     */
+    void setLayer(String layer) { mLayer = layer; }
+
+    void setStartTime(long startTimeNs) { mStartTimeNs = startTimeNs; }
+
+    void addInputTime(long timeNs) { mInputTimer.add(timeNs); }
+
+    void addOutputTime(long timeNs) { mOutputTimer.add(timeNs); }
+
     public void reset() {
         if (mFrameSizes.size() != 0) {
             mFrameSizes.clear();
@@ -76,6 +100,38 @@ public class Stats {
 
     public long getDeInitTime() { return mDeInitTimeNs; }
 
+    public long getCreateTime() { return mCreateTimeNs; }
+
+    public long getConfigureTime() { return mConfigureTimeNs; }
+
+    public long getCodecStartTime() { return mCodecStartTimeNs; }
+
+    /**
+     * Returns the time from the start of processing to the first output, -1 without output
+     */
+    public long getTimeToFirstFrame() {
+        return mOutputTimer.size() == 0 ? -1 : mOutputTimer.get(0) - mStartTimeNs;
+    }
+
+    /**
+     * Returns the mean interval between the outputs following the first one, -1 with less than
+     * two outputs
+     */
+    public long getSteadyStateFrameTime() {
+        int count = mOutputTimer.size();
+        if (count < 2) {
+            return -1;
+        }
+        return (mOutputTimer.get(count - 1) - mOutputTimer.get(0)) / (count - 1);
+    }
+
+    public int getNumOutputTimes() { return mOutputTimer.size(); }
+
+    /**
+     * Returns the time of the given output, the end of stream one included
+     */
+    public long getOutputTime(int index) { return mOutputTimer.get(index); }
+
     public long getTimeDiff(long sTime, long eTime) { return (eTime - sTime); }
 
     private long getTotalTime() {
@@ -156,7 +212,7 @@ public class Stats {
         rowData += inputReference + ", ";
         rowData += operation + ", ";
         rowData += componentName + ", ";
-        rowData += "SDK, ";
+        rowData += mLayer + ", ";
         rowData += mode + ", ";
         rowData += mInitTimeNs + ", ";
         rowData += mDeInitTimeNs + ", ";
@@ -175,4 +231,46 @@ public class Stats {
         out.write(rowData.getBytes());
         out.close();
     }
+
+    /**
+     * Returns the summary written by dumpStatistics, with the distribution of the intervals
+     * between outputs. SDK runs and NDK runs read back with {@link NativeResults} give the same
+     * metrics, so both can be analysed together.
+     *
+     * @param inputReference Input media
+     * @param operation      Operation performed on the input media
+     * @param componentName  Name of the codec/muxFormat/mime
+     * @param mode           The operating mode: sync/async
+     * @param durationUs     Duration of the input media in microseconds
+     */
+    public Metrics getMetrics(String inputReference, String operation, String componentName,
+            String mode, long durationUs) {
+        Metrics metrics = new Metrics(inputReference, operation, componentName);
+        metrics.add("layer", mLayer);
+        metrics.add("mode", mode);
+        metrics.add("setupTimeNs", mInitTimeNs);
+        metrics.add("destroyTimeNs", mDeInitTimeNs);
+        metrics.add("inputs", mInputTimer.size());
+        metrics.add("outputs", mOutputTimer.size());
+        if (mOutputTimer.size() == 0) {
+            return metrics;
+        }
+        Distribution intervals = new Distribution();
+        long prevTimeNs = mStartTimeNs;
+        for (long timeNs : mOutputTimer) {
+            intervals.add(timeNs - prevTimeNs);
+            prevTimeNs = timeNs;
+        }
+        long totalTimeTakenNs = getTotalTime();
+        long size = getTotalSize();
+        metrics.add("outputIntervalNs", intervals);
+        metrics.add("timeToFirstFrameNs", mOutputTimer.get(0) - mStartTimeNs);
+        metrics.add("timeToProcess1SecContentNs",
+                durationUs > 0 ? totalTimeTakenNs * 1000000 / durationUs : 0);
+        metrics.add("totalSizeInBytes", size);
+        metrics.add("totalBytesProcessedPerSec",
+                totalTimeTakenNs > 0 ? size * 1000000000 / totalTimeTakenNs : 0);
+        metrics.add("totalTimeNs", totalTimeTakenNs);
+        return metrics;
+    }
 }
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays one track of a stream served by a {@link LoopbackHttpServer} as a progressive download.
+ * <p>
+ * The extractor reads the stream over HTTP and its samples are decoded as fast as possible until
+ * the first frame, which starts the playback clock. Later frames are released when their
+ * presentation time is due. A frame decoded too late to be shown in time stalls the clock, which
+ * is counted as a rebuffer event.
+ */
+public class StreamingPlayback {
+    private static final String TAG = "StreamingPlayback";
+    // A frame later than this is a stall of the playback
+    private static final long kRebufferThresholdNs = 40000000L;
+
+    private final Distribution mRebufferTimes = new Distribution();
+    private long mSetupTimeNs;
+    private long mFirstSampleTimeNs;
+    private long mFirstFrameTimeNs;
+    private long mBytesBeforeFirstSample;
+    private long mBytesBeforeFirstFrame;
+    private long mBytesFetched;
+    private long mNumRequests;
+    private long mNumConnections;
+    private long mStallTimeNs;
+    private long mPlayedDurationUs;
+    private int mNumFrames;
+
+    private LoopbackHttpServer mServer;
+    private long mStartTimeNs;
+    private long mPlayStartTimeNs;
+    private long mFirstPresentationTimeUs;
+
+    /**
+     * Plays a track of the stream until its end or the given duration
+     *
+     * @param server        Server the stream is fetched from, whose counters are reset
+     * @param fileName      Name of the file in the directory of the server
+     * @param trackId       Track to play
+     * @param codecName     Will create the decoder with codecName, empty to select it by mime
+     * @param maxDurationUs Duration of the playback after the first frame
+     * @return 0 if the track was played, -1 for fail, -2 for decoder not created
+     */
+    public int play(LoopbackHttpServer server, String fileName, int trackId, String codecName,
+            long maxDurationUs) throws IOException {
+        mServer = server;
+        mRebufferTimes.reset();
+        mStallTimeNs = 0;
+        mPlayedDurationUs = 0;
+        mNumFrames = 0;
+        mFirstSampleTimeNs = -1;
+        mFirstFrameTimeNs = -1;
+        server.resetCounters();
+        mStartTimeNs = System.nanoTime();
+        Extractor extractor = new Extractor();
+        extractor.setUpExtractor(server.getUrl(fileName));
+        mSetupTimeNs = extractor.getInitTime();
+        MediaFormat format = extractor.getFormat(trackId);
+        if (extractor.selectExtractorTrack(trackId) != 0) {
+            extractor.deinitExtractor();
+            return -1;
+        }
+        Decoder decoder = new Decoder();
+        decoder.setupDecoder(null);
+        int status = decoder.setupStreamingDecoder(format, codecName);
+        if (status != 0) {
+            Log.e(TAG, "Decoder for " + format.getString(MediaFormat.KEY_MIME) + " not created");
+            extractor.deinitExtractor();
+            return status;
+        }
+        MediaCodec.BufferInfo outputInfo = new MediaCodec.BufferInfo();
+        boolean sawInputEOS = false;
+        while (status == 0 && !decoder.sawOutputEOS()
+                && (mNumFrames == 0 || mPlayedDurationUs < maxDurationUs)) {
+            if (!sawInputEOS) {
+                extractor.getFrameSample();
+                MediaCodec.BufferInfo inputInfo = extractor.getBufferInfo();
+                if (mFirstSampleTimeNs < 0) {
+                    mFirstSampleTimeNs = System.nanoTime() - mStartTimeNs;
+                    mBytesBeforeFirstSample = server.getBytesSent();
+                }
+                sawInputEOS = (inputInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                status = queue(decoder, extractor.getFrameBuffer(), inputInfo, outputInfo);
+            }
+            if (status == 0) {
+                status = drain(decoder, outputInfo, sawInputEOS);
+            }
+        }
+        decoder.deInitCodec();
+        extractor.deinitExtractor();
+        mBytesFetched = server.getBytesSent();
+        mNumRequests = server.getNumRequests();
+        mNumConnections = server.getNumConnections();
+        return status;
+    }
+
+    private int queue(Decoder decoder, ByteBuffer sample, MediaCodec.BufferInfo inputInfo,
+            MediaCodec.BufferInfo outputInfo) {
+        while (true) {
+            int status = decoder.queueInputSample(sample, inputInfo);
+            if (status == 0) {
+                return 0;
+            } else if (status < 0 || drain(decoder, outputInfo, false) < 0) {
+                return -1;
+            }
+        }
+    }
+
+    private int drain(Decoder decoder, MediaCodec.BufferInfo outputInfo,
+            boolean untilEndOfStream) {
+        while (!decoder.sawOutputEOS()) {
+            int status = decoder.dequeueOutputFrame(outputInfo, null);
+            if (status == Decoder.TRY_AGAIN) {
+                if (untilEndOfStream) {
+                    continue;
+                }
+                return 0;
+            } else if (status < 0) {
+                return -1;
+            }
+            if (outputInfo.size > 0) {
+                render(outputInfo.presentationTimeUs);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Waits until the frame is due, or records a stall if it is late
+     */
+    private void render(long presentationTimeUs) {
+        long now = System.nanoTime();
+        if (mNumFrames++ == 0) {
+            mFirstFrameTimeNs = now - mStartTimeNs;
+            mBytesBeforeFirstFrame = mServer.getBytesSent();
+            mPlayStartTimeNs = now;
+            mFirstPresentationTimeUs = presentationTimeUs;
+            return;
+        }
+        long dueTimeNs = mPlayStartTimeNs + mStallTimeNs
+                + (presentationTimeUs - mFirstPresentationTimeUs) * 1000;
+        if (now > dueTimeNs + kRebufferThresholdNs) {
+            mRebufferTimes.add(now - dueTimeNs);
+            mStallTimeNs += now - dueTimeNs;
+        }
+        for (; now < dueTimeNs; now = System.nanoTime()) {
+            LockSupport.parkNanos(dueTimeNs - now);
+        }
+        mPlayedDurationUs = Math.max(mPlayedDurationUs,
+                presentationTimeUs - mFirstPresentationTimeUs);
+    }
+
+    public long getTimeToFirstSample() { return mFirstSampleTimeNs; }
+
+    public long getTimeToFirstFrame() { return mFirstFrameTimeNs; }
+
+    public long getNumRebuffers() { return mRebufferTimes.getCount(); }
+
+    /**
+     * Returns the startup, rebuffering and network metrics of the last playback
+     *
+     * @param inputReference Name of the file played
+     * @param profile        Name of the network conditions of the server
+     */
+    public Metrics getMetrics(String inputReference, String profile) {
+        Metrics metrics = new Metrics(inputReference, "httpStreaming", profile);
+        metrics.add("setupTimeNs", mSetupTimeNs);
+        metrics.add("timeToFirstSampleNs", mFirstSampleTimeNs);
+        metrics.add("timeToFirstFrameNs", mFirstFrameTimeNs);
+        metrics.add("bytesBeforeFirstSample", mBytesBeforeFirstSample);
+        metrics.add("bytesBeforeFirstFrame", mBytesBeforeFirstFrame);
+        metrics.add("rebufferEvents", mRebufferTimes.getCount());
+        metrics.add("rebufferTimeNs", mRebufferTimes);
+        metrics.add("totalStallTimeNs", mStallTimeNs);
+        metrics.add("playedDurationUs", mPlayedDurationUs);
+        metrics.add("framesRendered", mNumFrames);
+        metrics.add("bytesFetched", mBytesFetched);
+        metrics.add("httpRequests", mNumRequests);
+        metrics.add("httpConnections", mNumConnections);
+        return metrics;
+    }
+}
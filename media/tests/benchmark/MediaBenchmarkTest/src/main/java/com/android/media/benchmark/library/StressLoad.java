@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import java.util.ArrayList;
+
+/**
+ * Threads loading the CPUs and the memory of the device while a benchmark runs, so that the
+ * codec competes for them as it does under load in an app.
+ * <p>
+ * A CPU thread spins on arithmetic. The memory thread keeps a working set of the given size in
+ * chunks, rewriting every chunk and replacing one of them on each pass, which loads the memory
+ * bandwidth and the garbage collector.
+ */
+public class StressLoad {
+    private static final int kChunkSize = 1024 * 1024;
+
+    private final int mCpuThreads;
+    private final int mMemoryBytes;
+    private final ArrayList<Thread> mThreads = new ArrayList<>();
+    private volatile boolean mRunning;
+    private volatile long mSink;
+    private volatile long mMemoryPasses;
+
+    public StressLoad(int cpuThreads, int memoryBytes) {
+        mCpuThreads = cpuThreads;
+        mMemoryBytes = memoryBytes;
+    }
+
+    public void start() {
+        mRunning = true;
+        mMemoryPasses = 0;
+        for (int i = 0; i < mCpuThreads; i++) {
+            mThreads.add(new Thread(this::spin, "StressLoad.cpu" + i));
+        }
+        if (mMemoryBytes > 0) {
+            mThreads.add(new Thread(this::churn, "StressLoad.memory"));
+        }
+        for (Thread thread : mThreads) {
+            thread.start();
+        }
+    }
+
+    public void stop() {
+        mRunning = false;
+        for (Thread thread : mThreads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        mThreads.clear();
+    }
+
+    /**
+     * Returns the passes the memory thread made over its working set since the load started
+     */
+    public long getMemoryPasses() { return mMemoryPasses; }
+
+    private void spin() {
+        long value = 1;
+        while (mRunning) {
+            for (int i = 0; i < 100000; i++) {
+                value = value * 6364136223846793005L + 1442695040888963407L;
+            }
+        }
+        mSink = value;
+    }
+
+    private void churn() {
+        int numChunks = Math.max(1, mMemoryBytes / kChunkSize);
+        byte[][] chunks = new byte[numChunks][];
+        int next = 0;
+        while (mRunning) {
+            chunks[next] = new byte[kChunkSize];
+            next = (next + 1) % numChunks;
+            for (byte[] chunk : chunks) {
+                if (chunk == null || !mRunning) {
+                    continue;
+                }
+                for (int i = 0; i < chunk.length; i += 64) {
+                    chunk[i]++;
+                }
+            }
+            mMemoryPasses++;
+        }
+    }
+}
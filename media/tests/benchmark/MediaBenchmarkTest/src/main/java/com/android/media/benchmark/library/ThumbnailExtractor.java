@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Decodes thumbnails of a video track from its sync samples only, as a gallery does.
+ * <p>
+ * The times of the sync samples are taken from a {@link SampleIndex}, and the sync sample before
+ * each of N evenly spaced positions is read and decoded on its own. The positions are spread over
+ * a pool of workers, each owning an extractor and a decoder which is created once and flushed
+ * between thumbnails, so that codec creation is not part of the thumbnail latency.
+ */
+public class ThumbnailExtractor {
+    private static final String TAG = "ThumbnailExtractor";
+
+    private final int mNumDecoders;
+    private final Distribution mLatencies = new Distribution();
+    private final Distribution mReadTimes = new Distribution();
+    private final Distribution mDecodeTimes = new Distribution();
+    private final Distribution mSetupTimes = new Distribution();
+    private long mWallTimeNs;
+    private int mNumThumbnails;
+
+    private class Worker implements Thread.UncaughtExceptionHandler, Runnable {
+        private final File mFile;
+        private final int mTrackId;
+        private final String mCodecName;
+        private final long[] mTimesUs;
+        private final Frame mFrame;
+        private int mStatus = -1;
+
+        Worker(File file, int trackId, String codecName, long[] timesUs, boolean keepFrames) {
+            mFile = file;
+            mTrackId = trackId;
+            mCodecName = codecName;
+            mTimesUs = timesUs;
+            mFrame = keepFrames ? Frame.createUnpooled(0) : null;
+        }
+
+        @Override
+        public void run() {
+            Extractor extractor = new Extractor();
+            Decoder decoder = new Decoder();
+            try (FileInputStream fileInput = new FileInputStream(mFile)) {
+                long sTime = System.nanoTime();
+                extractor.setUpExtractor(fileInput.getFD());
+                MediaFormat format = extractor.getFormat(mTrackId);
+                if (extractor.selectExtractorTrack(mTrackId) != 0) {
+                    return;
+                }
+                decoder.setupDecoder(null);
+                if (decoder.setupStreamingDecoder(format, mCodecName) != 0) {
+                    mStatus = -2;
+                    return;
+                }
+                onSetup(System.nanoTime() - sTime);
+                MediaCodec.BufferInfo outputInfo = new MediaCodec.BufferInfo();
+                for (long timeUs : mTimesUs) {
+                    sTime = System.nanoTime();
+                    if (extractor.getSyncFrameSample(timeUs) < 0) {
+                        Log.e(TAG, "No sync sample at " + timeUs + " in " + mFile);
+                        return;
+                    }
+                    long readTime = System.nanoTime();
+                    if (decoder.decodeSyncFrame(extractor.getFrameBuffer(),
+                            extractor.getBufferInfo(), outputInfo, mFrame) != 0) {
+                        return;
+                    }
+                    long eTime = System.nanoTime();
+                    onThumbnail(readTime - sTime, eTime - readTime);
+                }
+                mStatus = 0;
+            } catch (IOException e) {
+                Log.e(TAG, "Thumbnail extraction of " + mFile + " failed: " + e);
+            } finally {
+                decoder.deInitCodec();
+                extractor.deinitExtractor();
+            }
+        }
+
+        @Override
+        public void uncaughtException(Thread thread, Throwable e) {
+            Log.e(TAG, "Thumbnail worker failed: " + e);
+            mStatus = -1;
+        }
+    }
+
+    /**
+     * @param numDecoders Number of decoders working in parallel
+     */
+    public ThumbnailExtractor(int numDecoders) { mNumDecoders = numDecoders; }
+
+    private synchronized void onSetup(long setupTimeNs) { mSetupTimes.add(setupTimeNs); }
+
+    private synchronized void onThumbnail(long readTimeNs, long decodeTimeNs) {
+        mReadTimes.add(readTimeNs);
+        mDecodeTimes.add(decodeTimeNs);
+        mLatencies.add(readTimeNs + decodeTimeNs);
+        mNumThumbnails++;
+    }
+
+    /**
+     * Returns the times of the sync samples before evenly spaced positions of the track
+     *
+     * @param index         Index of the track
+     * @param numThumbnails Number of positions, spaced by the duration divided by this number
+     * @return Sync sample times, one per position, in increasing order
+     */
+    public static long[] getThumbnailTimes(SampleIndex index, int numThumbnails) {
+        long[] syncTimesUs = new long[index.getNumSamples()];
+        int numSyncSamples = 0;
+        long durationUs = 0;
+        for (int i = 0; i < index.getNumSamples(); i++) {
+            durationUs = Math.max(durationUs, index.getPresentationTimeUs(i));
+            if ((index.getFlags(i) & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                syncTimesUs[numSyncSamples++] = index.getPresentationTimeUs(i);
+            }
+        }
+        if (numSyncSamples == 0) {
+            return new long[0];
+        }
+        Arrays.sort(syncTimesUs, 0, numSyncSamples);
+        long[] timesUs = new long[numThumbnails];
+        for (int i = 0; i < numThumbnails; i++) {
+            long positionUs = i * durationUs / numThumbnails;
+            int found = Arrays.binarySearch(syncTimesUs, 0, numSyncSamples, positionUs);
+            int sync = found >= 0 ? found : Math.max(0, -found - 2);
+            timesUs[i] = syncTimesUs[sync];
+        }
+        return timesUs;
+    }
+
+    /**
+     * Decodes one thumbnail at each of the given times
+     *
+     * @param file       Media file
+     * @param trackId    Video track
+     * @param codecName  Will create the decoders with codecName, empty to select them by mime
+     * @param timesUs    Times of sync samples, such as returned by {@link #getThumbnailTimes}
+     * @param keepFrames If true, the decoded frames are copied out of the codec
+     * @return 0 if all thumbnails were decoded, -1 for fail, -2 for decoder not created
+     */
+    public int extract(File file, int trackId, String codecName, long[] timesUs,
+            boolean keepFrames) throws InterruptedException {
+        ArrayList<Worker> workers = new ArrayList<>();
+        ArrayList<Thread> threads = new ArrayList<>();
+        int numWorkers = Math.min(mNumDecoders, timesUs.length);
+        for (int i = 0; i < numWorkers; i++) {
+            // Interleaved positions give every worker the same spread of the file
+            long[] workerTimesUs = new long[(timesUs.length - i + numWorkers - 1) / numWorkers];
+            for (int j = 0; j < workerTimesUs.length; j++) {
+                workerTimesUs[j] = timesUs[i + j * numWorkers];
+            }
+            Worker worker = new Worker(file, trackId, codecName, workerTimesUs, keepFrames);
+            Thread thread = new Thread(worker, "ThumbnailExtractor-" + i);
+            thread.setUncaughtExceptionHandler(worker);
+            workers.add(worker);
+            threads.add(thread);
+        }
+        long startTimeNs = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        mWallTimeNs = System.nanoTime() - startTimeNs;
+        int status = 0;
+        for (Worker worker : workers) {
+            if (worker.mStatus != 0 && status == 0) {
+                status = worker.mStatus;
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Returns the throughput and latencies of the thumbnails decoded so far
+     *
+     * @param inputReference Name of the file
+     * @param componentName  Codec of the track
+     */
+    public synchronized Metrics getMetrics(String inputReference, String componentName) {
+        Metrics metrics = new Metrics(inputReference, "thumbnails", componentName);
+        metrics.add("numDecoders", mNumDecoders);
+        metrics.add("thumbnails", mNumThumbnails);
+        metrics.add("wallTimeNs", mWallTimeNs);
+        metrics.add("thumbnailsPerSec", mNumThumbnails * 1e9 / Math.max(1, mWallTimeNs));
+        metrics.add("thumbnailLatencyNs", mLatencies);
+        metrics.add("syncSampleReadTimeNs", mReadTimes);
+        metrics.add("syncFrameDecodeTimeNs", mDecodeTimes);
+        metrics.add("decoderSetupTimeNs", mSetupTimes);
+        return metrics;
+    }
+}
@@ -0,0 +1,590 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Parser for MPEG-2 transport streams over a memory mapping.
+ * <p>
+ * All packets are walked once, at construction. The first program of the PAT and its PMT give
+ * the elementary streams; the payload of every PES packet of a stream becomes one sample. The
+ * payload is not copied while parsing: each stream keeps the file ranges of its packet payloads
+ * and a sample is a range of that chain, gathered from the mapping when it is read. Timestamps
+ * are the PES PTS relative to the first PTS of the program, as MediaExtractor reports them, and
+ * H.264, HEVC and MPEG-2 video samples are flagged sync from the first picture they contain.
+ * <p>
+ * MediaExtractor splits and rebuilds access units, so its sample sizes can differ: H.264 start
+ * codes are rewritten to four bytes, and PES packets carrying several MPEG audio frames are
+ * returned frame by frame.
+ */
+public class TsParser implements ContainerParser {
+    private static final int kPacketSize = 188;
+    private static final int kSyncByte = 0x47;
+    private static final int kPatPid = 0;
+    private static final int kStreamTypeMpeg1Video = 0x01;
+    private static final int kStreamTypeMpeg2Video = 0x02;
+    private static final int kStreamTypeMpeg1Audio = 0x03;
+    private static final int kStreamTypeMpeg2Audio = 0x04;
+    private static final int kStreamTypeAdts = 0x0f;
+    private static final int kStreamTypeH264 = 0x1b;
+    private static final int kStreamTypeHevc = 0x24;
+    private static final int kStreamTypeAc3 = 0x81;
+    private static final long kPtsWrap = 1L << 33;
+
+    private final ByteBuffer mData;
+    private final ByteBuffer mView;
+    private final ArrayList<Track> mTracks = new ArrayList<>();
+    private int mPmtPid = -1;
+    private int mPcrPid = -1;
+    private long mFirstPts = -1;
+    private long mFirstPcr = -1;
+    private long mLastPcr = -1;
+    private int mNumPackets;
+    private int mNumPcrs;
+    private int mNumResyncs;
+    private int mNumContinuityErrors;
+    private Track mCurrentTrack;
+
+    /**
+     * Elementary stream of the program, with its payload chain and sample table
+     */
+    private static class Track {
+        final int mPid;
+        final int mStreamType;
+        final String mMime;
+        int mLastContinuity = -1;
+        long mLastPts = -1;
+        // Payload chain: file offset and length of every payload, and the stream position of
+        // its first byte
+        int mNumChunks;
+        int[] mChunkOffsets = new int[1024];
+        int[] mChunkSizes = new int[1024];
+        long[] mChunkPositions = new long[1024];
+        long mStreamSize;
+        // PES packet being assembled
+        boolean mInPes;
+        int mPesChunk;
+        long mPesPosition;
+        long mPesTimeUs;
+        // Samples
+        boolean mSelected;
+        int mIndex;
+        int mNumSamples;
+        int[] mFirstChunks = new int[256];
+        long[] mPositions = new long[256];
+        int[] mSizes = new int[256];
+        long[] mTimesUs = new long[256];
+        int[] mFlags = new int[256];
+
+        Track(int pid, int streamType, String mime) {
+            mPid = pid;
+            mStreamType = streamType;
+            mMime = mime;
+        }
+
+        void addChunk(int offset, int size) {
+            if (mNumChunks == mChunkOffsets.length) {
+                mChunkOffsets = Arrays.copyOf(mChunkOffsets, mNumChunks * 2);
+                mChunkSizes = Arrays.copyOf(mChunkSizes, mNumChunks * 2);
+                mChunkPositions = Arrays.copyOf(mChunkPositions, mNumChunks * 2);
+            }
+            mChunkOffsets[mNumChunks] = offset;
+            mChunkSizes[mNumChunks] = size;
+            mChunkPositions[mNumChunks] = mStreamSize;
+            mNumChunks++;
+            mStreamSize += size;
+        }
+
+        void addSample(int firstChunk, long position, int size, long timeUs, int flags) {
+            if (mNumSamples == mSizes.length) {
+                mFirstChunks = Arrays.copyOf(mFirstChunks, mNumSamples * 2);
+                mPositions = Arrays.copyOf(mPositions, mNumSamples * 2);
+                mSizes = Arrays.copyOf(mSizes, mNumSamples * 2);
+                mTimesUs = Arrays.copyOf(mTimesUs, mNumSamples * 2);
+                mFlags = Arrays.copyOf(mFlags, mNumSamples * 2);
+            }
+            mFirstChunks[mNumSamples] = firstChunk;
+            mPositions[mNumSamples] = position;
+            mSizes[mNumSamples] = size;
+            mTimesUs[mNumSamples] = timeUs;
+            mFlags[mNumSamples] = flags;
+            mNumSamples++;
+        }
+    }
+
+    /**
+     * @param channel File to be parsed, mapped for the lifetime of the parser
+     */
+    public TsParser(FileChannel channel) throws IOException {
+        this(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+
+    /**
+     * @param data Complete file from position 0 to limit
+     */
+    public TsParser(ByteBuffer data) throws IOException {
+        mData = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+        mView = mData.duplicate();
+        try {
+            parsePackets();
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Malformed section: " + e.getMessage());
+        }
+        if (mTracks.isEmpty()) {
+            throw new IOException("No supported elementary streams");
+        }
+    }
+
+    private static String getMime(int streamType) {
+        switch (streamType) {
+            case kStreamTypeMpeg1Video:
+            case kStreamTypeMpeg2Video:
+                return "video/mpeg2";
+            case kStreamTypeH264:
+                return "video/avc";
+            case kStreamTypeHevc:
+                return "video/hevc";
+            case kStreamTypeMpeg1Audio:
+            case kStreamTypeMpeg2Audio:
+                return "audio/mpeg";
+            case kStreamTypeAdts:
+                return "audio/mp4a-latm";
+            case kStreamTypeAc3:
+                return "audio/ac3";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns true if three packets in a row start with the sync byte at position
+     */
+    private boolean isPacketStart(int position) {
+        int limit = mData.limit();
+        for (int i = 0; i < 3 && position + i * kPacketSize < limit; i++) {
+            if ((mData.get(position + i * kPacketSize) & 0xff) != kSyncByte) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void parsePackets() throws IOException {
+        int limit = mData.limit();
+        int position = 0;
+        while (position + kPacketSize <= limit) {
+            if ((mData.get(position) & 0xff) != kSyncByte || (mNumPackets == 0
+                    && !isPacketStart(position))) {
+                position++;
+                mNumResyncs++;
+                continue;
+            }
+            parsePacket(position);
+            mNumPackets++;
+            position += kPacketSize;
+        }
+        for (Track track : mTracks) {
+            finishPes(track);
+        }
+        // Streams which were declared but never carried a sample are not reported
+        for (int i = mTracks.size() - 1; i >= 0; i--) {
+            if (mTracks.get(i).mNumSamples == 0) {
+                mTracks.remove(i);
+            }
+        }
+    }
+
+    private void parsePacket(int position) throws IOException {
+        int header = mData.getInt(position);
+        boolean payloadStart = (header & 0x400000) != 0;
+        int pid = (header >> 8) & 0x1fff;
+        int adaptationControl = (header >> 4) & 0x3;
+        int continuity = header & 0xf;
+        int payload = position + 4;
+        int end = position + kPacketSize;
+        if ((adaptationControl & 0x2) != 0) {
+            int adaptationLength = mData.get(payload) & 0xff;
+            if (adaptationLength > 0 && pid == mPcrPid
+                    && (mData.get(payload + 1) & 0x10) != 0 && adaptationLength >= 7) {
+                // 33 bit PCR base, the 27 MHz extension is not needed for timestamps
+                long pcr = (getUnsignedInt(payload + 2) << 1)
+                        | ((mData.get(payload + 6) & 0x80) >> 7);
+                if (mFirstPcr < 0) {
+                    mFirstPcr = pcr;
+                }
+                mLastPcr = pcr;
+                mNumPcrs++;
+            }
+            payload += 1 + adaptationLength;
+        }
+        if ((adaptationControl & 0x1) == 0 || payload >= end) {
+            return;
+        }
+        if (pid == kPatPid) {
+            if (payloadStart && mPmtPid < 0) {
+                parsePat(payload, end);
+            }
+            return;
+        }
+        if (pid == mPmtPid) {
+            if (payloadStart && mTracks.isEmpty()) {
+                parsePmt(payload, end);
+            }
+            return;
+        }
+        Track track = findTrack(pid);
+        if (track == null) {
+            return;
+        }
+        if (track.mLastContinuity >= 0 && continuity != ((track.mLastContinuity + 1) & 0xf)
+                && continuity != track.mLastContinuity) {
+            mNumContinuityErrors++;
+        }
+        track.mLastContinuity = continuity;
+        if (payloadStart) {
+            finishPes(track);
+            payload = startPes(track, payload, end);
+            if (payload < 0) {
+                return;
+            }
+        } else if (!track.mInPes) {
+            return;
+        }
+        if (payload < end) {
+            track.addChunk(payload, end - payload);
+        }
+    }
+
+    private long getUnsignedInt(int position) { return mData.getInt(position) & 0xffffffffL; }
+
+    private void parsePat(int payload, int end) {
+        int section = payload + 1 + (mData.get(payload) & 0xff);
+        if (section + 8 > end || mData.get(section) != 0) {
+            return;
+        }
+        int sectionLength = mData.getShort(section + 1) & 0xfff;
+        int entriesEnd = Math.min(section + 3 + sectionLength - 4, end);
+        for (int entry = section + 8; entry + 4 <= entriesEnd; entry += 4) {
+            int programNumber = mData.getShort(entry) & 0xffff;
+            if (programNumber != 0) {
+                mPmtPid = mData.getShort(entry + 2) & 0x1fff;
+                return;
+            }
+        }
+    }
+
+    private void parsePmt(int payload, int end) {
+        int section = payload + 1 + (mData.get(payload) & 0xff);
+        if (section + 12 > end || mData.get(section) != 2) {
+            return;
+        }
+        int sectionLength = mData.getShort(section + 1) & 0xfff;
+        int entriesEnd = Math.min(section + 3 + sectionLength - 4, end);
+        mPcrPid = mData.getShort(section + 8) & 0x1fff;
+        int programInfoLength = mData.getShort(section + 10) & 0xfff;
+        for (int entry = section + 12 + programInfoLength; entry + 5 <= entriesEnd; ) {
+            int streamType = mData.get(entry) & 0xff;
+            int pid = mData.getShort(entry + 1) & 0x1fff;
+            int infoLength = mData.getShort(entry + 3) & 0xfff;
+            String mime = getMime(streamType);
+            if (mime != null && findTrack(pid) == null) {
+                mTracks.add(new Track(pid, streamType, mime));
+            }
+            entry += 5 + infoLength;
+        }
+    }
+
+    private Track findTrack(int pid) {
+        for (int i = 0; i < mTracks.size(); i++) {
+            Track track = mTracks.get(i);
+            if (track.mPid == pid) {
+                return track;
+            }
+        }
+        return null;
+    }
+
+    private long getPts(int position) {
+        return ((long) (mData.get(position) & 0x0e) << 29)
+                | ((mData.getShort(position + 1) & 0xfffe) << 14)
+                | ((mData.getShort(position + 3) & 0xfffe) >> 1);
+    }
+
+    /**
+     * Parses the PES header at payload
+     *
+     * @return Start of the PES payload, -1 if the PES packet is dropped
+     */
+    private int startPes(Track track, int payload, int end) throws IOException {
+        if (payload + 9 > end || (mData.getInt(payload) >>> 8) != 1) {
+            track.mInPes = false;
+            return -1;
+        }
+        int headerDataLength = mData.get(payload + 8) & 0xff;
+        int ptsDtsFlags = (mData.get(payload + 7) & 0xc0) >> 6;
+        int payloadStart = payload + 9 + headerDataLength;
+        if (payloadStart > end) {
+            throw new IOException("PES header split across packets");
+        }
+        if ((ptsDtsFlags & 0x2) != 0) {
+            long pts = getPts(payload + 9);
+            if (track.mLastPts >= 0) {
+                // Unwrap the 33 bit counter towards the previous value of the stream
+                long periods = Math.floorDiv(track.mLastPts - pts + kPtsWrap / 2, kPtsWrap);
+                pts += periods * kPtsWrap;
+            }
+            track.mLastPts = pts;
+            if (mFirstPts < 0) {
+                mFirstPts = pts;
+            }
+            track.mPesTimeUs = Math.max(0, pts - mFirstPts) * 100 / 9;
+        } else if (track.mLastPts < 0) {
+            // Samples are not returned before the first timestamp of the stream
+            track.mInPes = false;
+            return -1;
+        }
+        track.mInPes = true;
+        track.mPesChunk = track.mNumChunks;
+        track.mPesPosition = track.mStreamSize;
+        return payloadStart;
+    }
+
+    private void finishPes(Track track) {
+        if (!track.mInPes) {
+            return;
+        }
+        track.mInPes = false;
+        int size = (int) (track.mStreamSize - track.mPesPosition);
+        if (size == 0) {
+            return;
+        }
+        int flags = isVideo(track) ? scanPictureType(track, track.mPesChunk, size)
+                : SAMPLE_FLAG_SYNC;
+        track.addSample(track.mPesChunk, track.mPesPosition, size, track.mPesTimeUs, flags);
+    }
+
+    private static boolean isVideo(Track track) { return track.mMime.startsWith("video/"); }
+
+    /**
+     * Scans the start codes of a sample up to its first picture or slice
+     *
+     * @return SAMPLE_FLAG_SYNC if the picture is an IDR, IRAP or I picture, 0 otherwise
+     */
+    private int scanPictureType(Track track, int chunk, int size) {
+        int zeros = 0;
+        // Number of bytes still to collect after a start code, and the bytes collected
+        int pending = 0;
+        int value = 0;
+        int needed = track.mStreamType == kStreamTypeH264 || track.mStreamType == kStreamTypeHevc
+                ? 1 : 3;
+        for (; size > 0; chunk++) {
+            int offset = track.mChunkOffsets[chunk];
+            int end = offset + Math.min(size, track.mChunkSizes[chunk]);
+            size -= end - offset;
+            for (; offset < end; offset++) {
+                int b = mData.get(offset) & 0xff;
+                if (pending > 0) {
+                    value = (value << 8) | b;
+                    if (--pending > 0) {
+                        continue;
+                    }
+                    if (track.mStreamType == kStreamTypeH264) {
+                        int nalType = value & 0x1f;
+                        if (nalType == 5) {
+                            return SAMPLE_FLAG_SYNC;
+                        } else if (nalType == 1) {
+                            return 0;
+                        }
+                    } else if (track.mStreamType == kStreamTypeHevc) {
+                        int nalType = (value >> 1) & 0x3f;
+                        if (nalType >= 16 && nalType <= 21) {
+                            return SAMPLE_FLAG_SYNC;
+                        } else if (nalType < 16) {
+                            return 0;
+                        }
+                    } else if ((value >> 16) == 0) {
+                        // Picture start code, followed by the picture coding type
+                        return ((value >> 3) & 0x7) == 1 ? SAMPLE_FLAG_SYNC : 0;
+                    }
+                    zeros = 0;
+                    continue;
+                }
+                if (b == 0) {
+                    zeros++;
+                } else {
+                    if (b == 1 && zeros >= 2) {
+                        pending = needed;
+                        value = 0;
+                    }
+                    zeros = 0;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the number of transport packets in the file
+     */
+    public int getNumPackets() { return mNumPackets; }
+
+    /**
+     * Returns the number of PCRs found on the PCR PID of the program
+     */
+    public int getNumPcrs() { return mNumPcrs; }
+
+    /**
+     * Returns the number of bytes skipped to find the sync byte of a packet
+     */
+    public int getNumResyncs() { return mNumResyncs; }
+
+    /**
+     * Returns the number of packets of the elementary streams with an unexpected continuity
+     * counter
+     */
+    public int getNumContinuityErrors() { return mNumContinuityErrors; }
+
+    /**
+     * Returns the time spanned by the PCRs of the program in microseconds, -1 if it has none
+     */
+    public long getPcrDurationUs() {
+        if (mNumPcrs < 2) {
+            return -1;
+        }
+        return ((mLastPcr - mFirstPcr + kPtsWrap) % kPtsWrap) * 100 / 9;
+    }
+
+    public int getTrackSampleCount(int trackIndex) { return mTracks.get(trackIndex).mNumSamples; }
+
+    @Override
+    public int getTrackCount() { return mTracks.size(); }
+
+    @Override
+    public String getTrackMime(int trackIndex) { return mTracks.get(trackIndex).mMime; }
+
+    @Override
+    public long getTrackDurationUs(int trackIndex) { return getPcrDurationUs(); }
+
+    @Override
+    public void selectTrack(int trackIndex) {
+        mTracks.get(trackIndex).mSelected = true;
+        updateCurrentTrack();
+    }
+
+    @Override
+    public void unselectTrack(int trackIndex) {
+        mTracks.get(trackIndex).mSelected = false;
+        updateCurrentTrack();
+    }
+
+    private void updateCurrentTrack() {
+        mCurrentTrack = null;
+        for (Track track : mTracks) {
+            if (track.mSelected && track.mIndex < track.mNumSamples && (mCurrentTrack == null
+                    || track.mTimesUs[track.mIndex]
+                    < mCurrentTrack.mTimesUs[mCurrentTrack.mIndex])) {
+                mCurrentTrack = track;
+            }
+        }
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        Track track = mCurrentTrack;
+        if (track == null) {
+            return -1;
+        }
+        int size = track.mSizes[track.mIndex];
+        int chunk = track.mFirstChunks[track.mIndex];
+        int skip = (int) (track.mPositions[track.mIndex] - track.mChunkPositions[chunk]);
+        buffer.limit(offset + size);
+        buffer.position(offset);
+        while (buffer.hasRemaining()) {
+            int start = track.mChunkOffsets[chunk] + skip;
+            int length = Math.min(track.mChunkSizes[chunk] - skip, buffer.remaining());
+            mView.limit(start + length);
+            mView.position(start);
+            buffer.put(mView);
+            skip = 0;
+            chunk++;
+        }
+        buffer.position(offset);
+        return size;
+    }
+
+    @Override
+    public long getSampleSize() {
+        return mCurrentTrack == null ? -1 : mCurrentTrack.mSizes[mCurrentTrack.mIndex];
+    }
+
+    @Override
+    public long getSampleTime() {
+        return mCurrentTrack == null ? -1 : mCurrentTrack.mTimesUs[mCurrentTrack.mIndex];
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return mCurrentTrack == null ? 0 : mCurrentTrack.mFlags[mCurrentTrack.mIndex];
+    }
+
+    @Override
+    public int getSampleTrackIndex() {
+        return mCurrentTrack == null ? -1 : mTracks.indexOf(mCurrentTrack);
+    }
+
+    @Override
+    public boolean advance() {
+        if (mCurrentTrack == null) {
+            return false;
+        }
+        mCurrentTrack.mIndex++;
+        updateCurrentTrack();
+        return mCurrentTrack != null;
+    }
+
+    @Override
+    public void seekTo(long timeUs) {
+        for (Track track : mTracks) {
+            if (!track.mSelected) {
+                continue;
+            }
+            int index = 0;
+            for (int i = 0; i < track.mNumSamples; i++) {
+                if ((track.mFlags[i] & SAMPLE_FLAG_SYNC) != 0) {
+                    if (track.mTimesUs[i] > timeUs) {
+                        break;
+                    }
+                    index = i;
+                }
+            }
+            track.mIndex = index;
+        }
+        updateCurrentTrack();
+    }
+
+    @Override
+    public void release() {
+        mTracks.clear();
+        mCurrentTrack = null;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.media.benchmark.library;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Splices synthetic clips into an {@link AdaptiveStream} and checks the switches reported by
+ * {@link AdaptivePlayback} on simulated codecs, runs on the host JVM.
+ */
+public class AdaptivePlaybackTest {
+    private static final long FRAME_DURATION_US = 40000;
+
+    /**
+     * Fills the samples of a clip of numFrames frames, one out of syncInterval a sync frame
+     */
+    private static MediaFormat newClip(int width, int height, int numFrames, int syncInterval,
+            ArrayList<ByteBuffer> buffers, ArrayList<MediaCodec.BufferInfo> infos) {
+        for (int i = 0; i < numFrames; i++) {
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            info.offset = 0;
+            info.size = width * height / 100;
+            info.presentationTimeUs = i * FRAME_DURATION_US;
+            info.flags = i % syncInterval == 0 ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+            buffers.add(ByteBuffer.allocate(info.size));
+            infos.add(info);
+        }
+        MediaFormat format = new MediaFormat();
+        format.setInteger(MediaFormat.KEY_WIDTH, width);
+        format.setInteger(MediaFormat.KEY_HEIGHT, height);
+        return format;
+    }
+
+    @Test
+    public void testSplice() {
+        ArrayList<ByteBuffer> smallBuffers = new ArrayList<>();
+        ArrayList<MediaCodec.BufferInfo> smallInfos = new ArrayList<>();
+        MediaFormat small = newClip(176, 144, 60, 5, smallBuffers, smallInfos);
+        ArrayList<ByteBuffer> largeBuffers = new ArrayList<>();
+        ArrayList<MediaCodec.BufferInfo> largeInfos = new ArrayList<>();
+        MediaFormat large = newClip(352, 288, 60, 5, largeBuffers, largeInfos);
+
+        AdaptiveStream stream = new AdaptiveStream();
+        assertEquals("First segment", 12, stream.addSegment(small, smallBuffers, smallInfos, 12));
+        // The source is at 480 ms, the next sync sample is at 600 ms
+        assertEquals("Second segment", 12, stream.addSegment(large, largeBuffers, largeInfos, 12));
+        // The source is at 1080 ms, the clip ends 30 samples after the sync sample at 1200 ms
+        assertEquals("Last segment", 30, stream.addSegment(small, smallBuffers, smallInfos, 100));
+        assertEquals("Segment after the end of the clips", -1,
+                stream.addSegment(large, largeBuffers, largeInfos, 10));
+        assertEquals("Segments", 3, stream.getNumSegments());
+        assertEquals("Start of the second segment", 12, stream.getSegmentStart(1));
+        assertEquals("Duration", 54 * FRAME_DURATION_US, stream.getDurationUs());
+
+        ArrayList<ByteBuffer> buffers = new ArrayList<>();
+        ArrayList<MediaCodec.BufferInfo> infos = new ArrayList<>();
+        stream.getStream(buffers, infos);
+        assertEquals("Samples", 55, infos.size());
+        assertSame("First sample of the second segment", largeBuffers.get(15), buffers.get(12));
+        assertSame("First sample of the last segment", smallBuffers.get(30), buffers.get(24));
+        for (int i = 0; i < infos.size(); i++) {
+            MediaCodec.BufferInfo info = infos.get(i);
+            assertEquals("Timestamp of sample " + i, i * FRAME_DURATION_US,
+                    info.presentationTimeUs);
+            assertEquals("End of stream at sample " + i, i == infos.size() - 1,
+                    (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0);
+        }
+        for (int segment = 0; segment < stream.getNumSegments(); segment++) {
+            assertTrue("Segment " + segment + " starts with a sync sample",
+                    (infos.get(stream.getSegmentStart(segment)).flags
+                            & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+        }
+    }
+
+    @Test
+    public void testSwitches() throws IOException {
+        ArrayList<ByteBuffer> smallBuffers = new ArrayList<>();
+        ArrayList<MediaCodec.BufferInfo> smallInfos = new ArrayList<>();
+        MediaFormat small = newClip(176, 144, 50, 1, smallBuffers, smallInfos);
+        ArrayList<ByteBuffer> largeBuffers = new ArrayList<>();
+        ArrayList<MediaCodec.BufferInfo> largeInfos = new ArrayList<>();
+        MediaFormat large = newClip(352, 288, 50, 1, largeBuffers, largeInfos);
+        // The simulated codec reports a format change before every tenth frame, which are the
+        // first frames of the segments after the first one
+        AdaptiveStream stream = new AdaptiveStream();
+        stream.addSegment(small, smallBuffers, smallInfos, 9);
+        stream.addSegment(large, largeBuffers, largeInfos, 10);
+        stream.addSegment(small, smallBuffers, smallInfos, 10);
+        stream.addSegment(large, largeBuffers, largeInfos, 10);
+        for (boolean asyncMode : new boolean[]{false, true}) {
+            BenchmarkCodec.Factory factory = new FaultInjectingCodec.Factory(
+                    new FaultProfile("switch").setFormatChangeInterval(10),
+                    new SimulatedCodec.Factory().setLatency(100000, 300000).setPipelineDepth(3)
+                            .setSeed(1));
+            AdaptivePlayback playback = new AdaptivePlayback(factory, stream, "sim", asyncMode);
+            for (boolean adaptive : new boolean[]{false, true}) {
+                String name = (adaptive ? "adaptive" : "fixed") + ", async " + asyncMode;
+                Metrics metrics = playback.run(adaptive, "clip");
+                assertEquals("Status of " + name, "0", metrics.getValue("status"));
+                assertEquals("Outputs of " + name, "39", metrics.getValue("outputs"));
+                assertEquals("Switches of " + name, "3", metrics.getValue("switches"));
+                assertEquals("Format changes of " + name, "3",
+                        metrics.getValue("formatChanges"));
+                assertEquals("Latencies of " + name, "3",
+                        metrics.getValue("formatChangeLatencyNsCount"));
+                assertEquals("Output gaps of " + name, "3", metrics.getValue("outputGapNsCount"));
+                if (adaptive) {
+                    assertNotNull("Reallocation cost of " + name,
+                            metrics.getValue("reallocationCostNs"));
+                } else {
+                    assertNull("No reallocation cost of " + name,
+                            metrics.getValue("reallocationCostNs"));
+                }
+            }
+        }
+    }
+}
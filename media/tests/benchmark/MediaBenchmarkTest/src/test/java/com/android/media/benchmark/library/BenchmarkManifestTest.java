@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the parsing, filtering and sharding of {@link BenchmarkManifest}, runs on the host JVM.
+ */
+public class BenchmarkManifestTest {
+    private static final String MANIFEST = "# Decoder and muxer cases\n"
+            + "test, clip, modes, codecs, excludeCodecs, repetitions, timeoutMs, tracks\n"
+            + "DecoderTest, crowd_vp9.webm, sync;async, ^c2\\., hw, 3, 120000,\n"
+            + "DecoderTest, bbb_aac.mp4, async, , , , , 0;1\n"
+            + "\n"
+            + "MuxerTest, bbb_aac.mp4, mp4;3gpp\n";
+
+    @Test
+    public void testParse() throws IOException {
+        BenchmarkManifest manifest = BenchmarkManifest.parse(new StringReader(MANIFEST));
+        assertEquals("Cases", 3, manifest.getCases().size());
+        List<BenchmarkManifest.Case> decoder = manifest.getCases("DecoderTest");
+        assertEquals("Decoder cases", 2, decoder.size());
+        BenchmarkManifest.Case vp9 = decoder.get(0);
+        assertArrayEquals("Modes", new String[]{"sync", "async"}, vp9.getModes());
+        assertEquals("Repetitions", 3, vp9.getRepetitions());
+        assertEquals("Timeout", 120000, vp9.getTimeoutMs());
+        assertTrue("All tracks", vp9.acceptsTrack(5));
+        assertTrue("Included codec", vp9.acceptsCodec("c2.android.vp9.decoder"));
+        assertFalse("Not included codec", vp9.acceptsCodec("OMX.google.vp9.decoder"));
+        assertFalse("Excluded codec", vp9.acceptsCodec("c2.vendor.vp9.hw.decoder"));
+        BenchmarkManifest.Case aac = decoder.get(1);
+        assertEquals("Default repetitions", 1, aac.getRepetitions());
+        assertTrue("Listed track", aac.acceptsTrack(1));
+        assertFalse("Unlisted track", aac.acceptsTrack(2));
+        assertTrue("Any codec", aac.acceptsCodec("OMX.google.aac.decoder"));
+
+        for (String bad : new String[]{"clip\nx\n", "test, clip, speed\n",
+                "test, clip, repetitions\nDecoderTest, a.mp4, many\n", "test, clip\n, a.mp4\n"}) {
+            try {
+                BenchmarkManifest.parse(new StringReader(bad));
+                fail("Malformed manifest parsed: " + bad);
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testFilter() throws IOException {
+        BenchmarkManifest manifest = BenchmarkManifest.parse(new StringReader(MANIFEST));
+        assertEquals("Clip filter", 2, manifest.filter("aac", null, null).getCases().size());
+        BenchmarkManifest sync = manifest.filter(null, null, "^sync$");
+        // The aac decoder case only runs async, the muxer modes do not match either
+        assertEquals("Mode filter", 1, sync.getCases().size());
+        assertArrayEquals("Modes left", new String[]{"sync"}, sync.getCases().get(0).getModes());
+        BenchmarkManifest.Case vp9 = manifest.filter(null, "android", null).getCases().get(0);
+        assertTrue("Both codec filters", vp9.acceptsCodec("c2.android.vp9.decoder"));
+        assertFalse("Codec filter of the run", vp9.acceptsCodec("c2.exynos.vp9.decoder"));
+    }
+
+    @Test
+    public void testShards() throws IOException {
+        BenchmarkManifest manifest = new BenchmarkManifest();
+        StringBuilder costLines = new StringBuilder();
+        // Ten clips costing 10 to 100 ms, each recorded twice by two test methods
+        for (int i = 1; i <= 10; i++) {
+            String clip = "clip" + i + ".mp4";
+            manifest.add(BenchmarkManifest.Case.of("DecoderTest", clip, "sync"));
+            costLines.append("DecoderTest,").append(clip).append(",sync,testDecoder,")
+                    .append(6 * i).append('\n');
+            costLines.append("DecoderTest,").append(clip).append(",sync,testDecoder,")
+                    .append(4 * i).append('\n');
+            costLines.append("DecoderTest,").append(clip).append(",sync,testNativeDecoder,")
+                    .append(5 * i).append('\n');
+        }
+        costLines.append("not,a,cost,line\n");
+        Map<String, Long> costs = BenchmarkManifest.loadCosts(new StringReader(
+                costLines.toString()));
+        assertEquals("Cost of a clip", 30, BenchmarkManifest.getExpectedCost(
+                manifest.getCases().get(2), costs, 1));
+        // A clip never run costs the median of the others
+        manifest.add(BenchmarkManifest.Case.of("DecoderTest", "new.mp4", "sync"));
+
+        int shardCount = 3;
+        long[] shardCosts = new long[shardCount];
+        List<BenchmarkManifest.Case> all = new ArrayList<>();
+        for (int shard = 0; shard < shardCount; shard++) {
+            List<BenchmarkManifest.Case> cases = manifest.getShard(shard, shardCount, costs);
+            assertEquals("Same shard on every call", cases.toString(),
+                    manifest.getShard(shard, shardCount, costs).toString());
+            for (BenchmarkManifest.Case testCase : cases) {
+                shardCosts[shard] += BenchmarkManifest.getExpectedCost(testCase, costs, 60);
+            }
+            all.addAll(cases);
+        }
+        assertEquals("Every case in one shard", manifest.getCases().size(), all.size());
+        long max = Math.max(shardCosts[0], Math.max(shardCosts[1], shardCosts[2]));
+        long min = Math.min(shardCosts[0], Math.min(shardCosts[1], shardCosts[2]));
+        // 610 ms over three shards, the largest case is 100 ms
+        assertTrue("Balanced shards " + max + " " + min, max - min <= 20);
+
+        Map<String, Long> noCosts = Collections.emptyMap();
+        assertEquals("Count balanced without costs", 4,
+                manifest.getShard(0, shardCount, noCosts).size());
+        try {
+            manifest.getShard(3, shardCount, new HashMap<>());
+            fail("Shard out of range");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
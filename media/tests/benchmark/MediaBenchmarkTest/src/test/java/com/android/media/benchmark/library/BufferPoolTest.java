@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks reuse and accounting of {@link BufferPool}, runs on the host JVM.
+ */
+public class BufferPoolTest {
+    @Test
+    public void testReleasedBufferIsReused() {
+        BufferPool pool = new BufferPool();
+        BufferPool.Lease first = pool.acquire(5000);
+        ByteBuffer buffer = first.getBuffer();
+        assertTrue("Leased buffer not direct", buffer.isDirect());
+        assertEquals("Slice capacity", 5000, buffer.capacity());
+        first.release();
+        BufferPool.Lease second = pool.acquire(6000);
+        assertEquals("Slice capacity", 6000, second.getBuffer().capacity());
+        BufferPool.Lease third = pool.acquire(100000);
+        assertEquals("Requests", 3, pool.getNumRequests());
+        assertEquals("Hits", 1, pool.getNumHits());
+        assertEquals("Peak pooled bytes", 8192 + 131072, pool.getPeakPooledBytes());
+        assertEquals("Peak leased bytes", 8192 + 131072, pool.getPeakLeasedBytes());
+        second.release();
+        third.release();
+    }
+
+    @Test
+    public void testDoubleReleaseDetected() {
+        BufferPool pool = new BufferPool();
+        BufferPool.Lease lease = pool.acquire(16);
+        lease.release();
+        boolean detected = false;
+        try {
+            lease.release();
+        } catch (IllegalStateException e) {
+            detected = true;
+        }
+        assertTrue("Double release not detected", detected);
+        pool.acquire(16);
+        pool.acquire(16);
+        assertEquals("Buffer pooled twice", 1, pool.getNumHits());
+        assertEquals("Peak pooled bytes", 2 * 4096, pool.getPeakPooledBytes());
+    }
+}
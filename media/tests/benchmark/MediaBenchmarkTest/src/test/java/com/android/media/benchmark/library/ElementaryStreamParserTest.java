@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Parses ADTS and MP3 streams built in memory, and the aac/mp3 resources of the benchmark if the
+ * MEDIA_BENCHMARK_RES environment variable points to them. Runs on the host JVM.
+ */
+public class ElementaryStreamParserTest {
+    private static final int NUM_FRAMES = 20;
+    // MPEG-1 layer III, 128 kbps, 44100 Hz, stereo, without padding
+    private static final int MP3_HEADER = 0xfffb9000;
+    private static final int MP3_FRAME_SIZE = 417;
+
+    private static void writeId3Tag(ByteArrayOutputStream out) {
+        byte[] tag = new byte[10 + 300];
+        tag[0] = 'I';
+        tag[1] = 'D';
+        tag[2] = '3';
+        tag[3] = 4;
+        // 300 as a synchsafe integer
+        tag[8] = 300 >> 7;
+        tag[9] = 300 & 0x7f;
+        out.write(tag, 0, tag.length);
+    }
+
+    private static byte[] adtsFrame(int frame) {
+        int length = 7 + 50 + frame;
+        byte[] data = new byte[length];
+        data[0] = (byte) 0xff;
+        data[1] = (byte) 0xf1;
+        // AAC LC, 44100 Hz, 2 channels
+        data[2] = (byte) 0x50;
+        data[3] = (byte) (0x80 | (length >> 11));
+        data[4] = (byte) (length >> 3);
+        data[5] = (byte) ((length << 5) | 0x1f);
+        data[6] = (byte) 0xfc;
+        for (int i = 7; i < length; i++) {
+            data[i] = (byte) (frame + i);
+        }
+        return data;
+    }
+
+    private static byte[] mp3Frame(int frame, String tag) {
+        byte[] data = new byte[MP3_FRAME_SIZE];
+        ByteBuffer.wrap(data).putInt(MP3_HEADER);
+        for (int i = 4; i < data.length; i++) {
+            data[i] = (byte) (frame + i);
+        }
+        if (tag != null) {
+            // Side information of a stereo MPEG-1 frame is 32 bytes
+            for (int i = 0; i < tag.length(); i++) {
+                data[36 + i] = (byte) tag.charAt(i);
+            }
+        }
+        return data;
+    }
+
+    @Test
+    public void testAdtsStream() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeId3Tag(out);
+        for (int frame = 0; frame < NUM_FRAMES; frame++) {
+            byte[] data = adtsFrame(frame);
+            out.write(data, 0, data.length);
+            if (frame == 5) {
+                // Junk which is skipped by resynchronizing on the next header
+                out.write(new byte[]{1, 2, 3}, 0, 3);
+            }
+        }
+        ElementaryStreamParser parser =
+                new ElementaryStreamParser(ByteBuffer.wrap(out.toByteArray()));
+        assertEquals("Mime", "audio/mp4a-latm", parser.getTrackMime(0));
+        assertEquals("Sample rate", 44100, parser.getSampleRate());
+        assertEquals("Resyncs", 3, parser.getNumResyncs());
+        long frameDurationUs = (1024 * 1000000L + 44099) / 44100;
+        assertEquals("Duration", NUM_FRAMES * frameDurationUs, parser.getTrackDurationUs(0));
+
+        parser.selectTrack(0);
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        for (int frame = 0; frame < NUM_FRAMES; frame++) {
+            byte[] expected = adtsFrame(frame);
+            int size = parser.readSampleData(buffer, 0);
+            assertEquals("Size of frame " + frame + " without header", expected.length - 7, size);
+            for (int i = 0; i < size; i++) {
+                assertEquals("Byte " + i + " of frame " + frame, expected[7 + i], buffer.get(i));
+            }
+            assertEquals("Time of frame " + frame, frame * frameDurationUs,
+                    parser.getSampleTime());
+            assertEquals("Flags of frame " + frame, 1, parser.getSampleFlags());
+            assertEquals("Advance after frame " + frame, frame < NUM_FRAMES - 1,
+                    parser.advance());
+        }
+        parser.seekTo(frameDurationUs * 7 + 1);
+        assertEquals("Time after seek", frameDurationUs * 7, parser.getSampleTime());
+        parser.release();
+    }
+
+    @Test
+    public void testMp3Stream() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeId3Tag(out);
+        byte[] xing = mp3Frame(0, "Xing");
+        out.write(xing, 0, xing.length);
+        for (int frame = 0; frame < NUM_FRAMES; frame++) {
+            byte[] data = mp3Frame(frame, null);
+            out.write(data, 0, data.length);
+        }
+        // ID3v1 tag at the end of the file
+        byte[] trailer = new byte[128];
+        trailer[0] = 'T';
+        trailer[1] = 'A';
+        trailer[2] = 'G';
+        out.write(trailer, 0, trailer.length);
+
+        ElementaryStreamParser parser =
+                new ElementaryStreamParser(ByteBuffer.wrap(out.toByteArray()));
+        assertEquals("Mime", "audio/mpeg", parser.getTrackMime(0));
+        assertEquals("Sample rate", 44100, parser.getSampleRate());
+        assertEquals("Duration", NUM_FRAMES * 1152 * 1000000L / 44100,
+                parser.getTrackDurationUs(0));
+        parser.selectTrack(0);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+        int frame = 0;
+        do {
+            byte[] expected = mp3Frame(frame, null);
+            assertEquals("Size of frame " + frame, MP3_FRAME_SIZE,
+                    parser.readSampleData(buffer, 1));
+            assertEquals("Header of frame " + frame, MP3_HEADER, buffer.getInt(1));
+            assertEquals("Last byte of frame " + frame, expected[MP3_FRAME_SIZE - 1],
+                    buffer.get(MP3_FRAME_SIZE));
+            assertEquals("Time of frame " + frame, frame * 1152 * 1000000L / 44100,
+                    parser.getSampleTime());
+            frame++;
+        } while (parser.advance());
+        assertEquals("Frames after the Xing frame", NUM_FRAMES, frame);
+        parser.release();
+    }
+
+    @Test
+    public void testBenchmarkResources() throws Exception {
+        String resourceDir = System.getenv("MEDIA_BENCHMARK_RES");
+        assumeTrue("MEDIA_BENCHMARK_RES not set", resourceDir != null);
+        File[] files = new File(resourceDir).listFiles(
+                (dir, name) -> name.endsWith(".mp3") || name.endsWith(".aac"));
+        assumeTrue("No mp3/aac resources in " + resourceDir, files != null && files.length > 0);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        for (File file : files) {
+            try (FileInputStream input = new FileInputStream(file)) {
+                ElementaryStreamParser parser = new ElementaryStreamParser(input.getChannel());
+                parser.selectTrack(0);
+                long totalSize = 0;
+                do {
+                    int size = parser.readSampleData(buffer, 0);
+                    assertTrue(file.getName() + " invalid sample size", size > 0);
+                    totalSize += size;
+                } while (parser.advance());
+                assertTrue(file.getName() + " frames and skipped bytes larger than the file",
+                        totalSize + parser.getNumResyncs() <= file.length());
+                parser.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the fault profiles of {@link FaultBenchmark} on simulated codecs and checks that the
+ * decoder and the encoder end on an error instead of waiting forever, runs on the host JVM.
+ */
+public class FaultBenchmarkTest {
+    private static final int NUM_FRAMES = 90;
+    private static final int FRAME_SIZE = 1000;
+
+    private static SimulatedCodec.Factory newFactory() {
+        return new SimulatedCodec.Factory().setLatency(100000, 300000).setPipelineDepth(3)
+                .setSeed(1);
+    }
+
+    @Test
+    public void testProfiles() throws IOException {
+        ArrayList<ByteBuffer> buffers = new ArrayList<>();
+        ArrayList<MediaCodec.BufferInfo> infos = new ArrayList<>();
+        for (int i = 0; i < NUM_FRAMES; i++) {
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            info.offset = 0;
+            info.size = FRAME_SIZE;
+            info.presentationTimeUs = i * 40000L;
+            info.flags = i == NUM_FRAMES - 1 ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0;
+            buffers.add(ByteBuffer.allocate(FRAME_SIZE));
+            infos.add(info);
+        }
+        for (boolean asyncMode : new boolean[]{false, true}) {
+            FaultBenchmark benchmark = new FaultBenchmark(newFactory(), buffers, infos,
+                    new MediaFormat(), "sim", asyncMode);
+            for (FaultProfile profile : FaultProfile.getDefaultProfiles()) {
+                String name = profile.getName() + ", async " + asyncMode;
+                Metrics metrics = benchmark.run(profile, "clip");
+                assertEquals("Status of " + name, "0", metrics.getValue("status"));
+                assertEquals("Outputs of " + name, String.valueOf(NUM_FRAMES),
+                        metrics.getValue("outputs"));
+                assertNotNull("Throughput of " + name, metrics.getValue("throughputRatio"));
+                // There are no dequeue calls in async mode
+                boolean injects = profile.getStressCpuThreads() == 0
+                        && profile.getStressMemoryBytes() == 0 && !profile.isBaseline()
+                        && !(asyncMode && profile.getDequeueFailureInterval() > 0);
+                assertEquals("Faults injected in " + name, injects,
+                        !metrics.getValue("faults").equals("0"));
+                if (profile.getErrorAfterFrames() >= 0) {
+                    assertNotNull("Error recovery of " + name,
+                            metrics.getValue("errorRecoveryNs"));
+                } else {
+                    assertNull("No error in " + name, metrics.getValue("errorRecoveryNs"));
+                    assertEquals("Recoveries of " + name, injects,
+                            !metrics.getValue("recoveryLatencyNsCount").equals("0"));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testEncoderError() throws IOException {
+        File input = File.createTempFile("raw.", ".yuv");
+        try {
+            try (FileOutputStream output = new FileOutputStream(input)) {
+                output.write(new byte[NUM_FRAMES * FRAME_SIZE]);
+            }
+            for (boolean asyncMode : new boolean[]{false, true}) {
+                // Errors of the codec itself and injected ones
+                BenchmarkCodec.Factory[] factories = {
+                        newFactory().setFailAfterFrames(10),
+                        new FaultInjectingCodec.Factory(
+                                new FaultProfile("codecError").setErrorAfterFrames(10),
+                                newFactory())};
+                for (BenchmarkCodec.Factory factory : factories) {
+                    Encoder encoder = new Encoder(factory);
+                    try (FileInputStream inputStream = new FileInputStream(input)) {
+                        encoder.setupEncoder(null, inputStream);
+                        assertEquals("Encode of a failing codec, async " + asyncMode, -1,
+                                encoder.encode("sim", new MediaFormat(), "video/avc", 25, 0,
+                                        FRAME_SIZE, asyncMode));
+                        encoder.deInitEncoder();
+                    }
+                }
+            }
+        } finally {
+            assertTrue(input.delete());
+        }
+    }
+
+    @Test
+    public void testStressLoad() throws InterruptedException {
+        StressLoad load = new StressLoad(1, 4 * 1024 * 1024);
+        load.start();
+        Thread.sleep(50);
+        load.stop();
+        assertTrue("Memory passes", load.getMemoryPasses() > 0);
+    }
+}
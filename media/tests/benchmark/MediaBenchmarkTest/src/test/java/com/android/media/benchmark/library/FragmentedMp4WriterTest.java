@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Writes fragmented MP4 files with {@link FragmentedMp4Writer} and reads them back with
+ * {@link Mp4Parser}. Runs on the host JVM.
+ */
+public class FragmentedMp4WriterTest {
+    private static final int NUM_VIDEO_FRAMES = 30;
+    private static final int NUM_AUDIO_FRAMES = 52;
+    private static final long FRAME_DURATION_US = 40000;
+    // Display order of the frames of a group of pictures, in decoding order
+    private static final int[] GOP_ORDER = {0, 3, 1, 2, 6, 4, 5, 9, 7, 8};
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xc0, 0x1e, 0x12};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("fmp4", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private static long videoTimeUs(int frame) {
+        return (frame / GOP_ORDER.length * GOP_ORDER.length + GOP_ORDER[frame % GOP_ORDER.length])
+                * FRAME_DURATION_US;
+    }
+
+    private static long audioTimeUs(int frame) {
+        return frame * 1024 * 1000000L / 44100;
+    }
+
+    /**
+     * Returns a sample with a slice NAL unit after a 4 byte start code and a filler NAL unit
+     * after a 3 byte start code
+     */
+    private static byte[] videoSample(int frame) {
+        boolean sync = frame % GOP_ORDER.length == 0;
+        byte[] sample = new byte[4 + 5 + frame % 7 + 3 + 2];
+        sample[3] = 1;
+        sample[4] = (byte) (sync ? 0x65 : 0x41);
+        for (int i = 5; i < sample.length - 5; i++) {
+            sample[i] = (byte) (frame + i);
+        }
+        sample[sample.length - 3] = 1;
+        sample[sample.length - 2] = 0x0c;
+        sample[sample.length - 1] = (byte) frame;
+        return sample;
+    }
+
+    private static byte[] lengthPrefixed(byte[] sample) {
+        int sliceSize = sample.length - 4 - 5;
+        ByteBuffer expected = ByteBuffer.allocate(sample.length + 1);
+        expected.putInt(sliceSize).put(sample, 4, sliceSize);
+        expected.putInt(2).put(sample, sample.length - 2, 2);
+        return expected.array();
+    }
+
+    private static byte[] audioSample(int frame) {
+        byte[] sample = new byte[4 + frame % 3];
+        sample[0] = (byte) frame;
+        return sample;
+    }
+
+    @Test
+    public void testFragmentedFile() throws Exception {
+        FragmentedMp4Writer writer;
+        try (FileChannel channel = new FileOutputStream(mFile).getChannel()) {
+            writer = new FragmentedMp4Writer(channel, 300000);
+            assertEquals("Video track", 0, writer.addVideoTrack("video/avc", 320, 240,
+                    ByteBuffer.wrap(SPS), ByteBuffer.wrap(PPS)));
+            assertEquals("Audio track", 1, writer.addAudioTrack("audio/mp4a-latm", 44100, 2,
+                    ByteBuffer.wrap(new byte[]{0x12, 0x10})));
+            assertEquals("Unsupported track", -1, writer.addAudioTrack("audio/opus", 48000, 2));
+            writer.start();
+            int audioFrame = 0;
+            for (int frame = 0; frame < NUM_VIDEO_FRAMES; frame++) {
+                // Audio up to the decoding time of the video frame, as a muxer interleaves them
+                while (audioFrame < NUM_AUDIO_FRAMES
+                        && audioTimeUs(audioFrame) <= frame * FRAME_DURATION_US) {
+                    byte[] sample = audioSample(audioFrame);
+                    writer.writeSample(1, ByteBuffer.wrap(sample), 0, sample.length,
+                            audioTimeUs(audioFrame), true);
+                    audioFrame++;
+                }
+                byte[] sample = videoSample(frame);
+                // The sample is written from an offset in a larger buffer
+                ByteBuffer buffer = ByteBuffer.allocateDirect(sample.length + 8);
+                buffer.position(8);
+                buffer.put(sample);
+                writer.writeSample(0, buffer, 8, sample.length, videoTimeUs(frame),
+                        frame % GOP_ORDER.length == 0);
+            }
+            while (audioFrame < NUM_AUDIO_FRAMES) {
+                byte[] sample = audioSample(audioFrame);
+                writer.writeSample(1, ByteBuffer.wrap(sample), 0, sample.length,
+                        audioTimeUs(audioFrame), true);
+                audioFrame++;
+            }
+            writer.finish();
+        }
+        assertEquals("Fragments of 400 ms", 3, writer.getNumFragments());
+        assertEquals("Bytes written", mFile.length(), writer.getBytesWritten());
+
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+            Mp4Parser parser = new Mp4Parser(file.getChannel());
+            assertEquals("Tracks", 2, parser.getTrackCount());
+            assertEquals("Video mime", "video/avc", parser.getTrackMime(0));
+            assertEquals("Audio mime", "audio/mp4a-latm", parser.getTrackMime(1));
+            assertEquals("Video samples", NUM_VIDEO_FRAMES, parser.getTrackSampleCount(0));
+            assertEquals("Audio samples", NUM_AUDIO_FRAMES, parser.getTrackSampleCount(1));
+
+            ByteBuffer buffer = ByteBuffer.allocate(64);
+            parser.selectTrack(0);
+            for (int frame = 0; frame < NUM_VIDEO_FRAMES; frame++) {
+                assertEquals("Video time " + frame, videoTimeUs(frame), parser.getSampleTime());
+                assertEquals("Video flags " + frame,
+                        frame % GOP_ORDER.length == 0 ? ContainerParser.SAMPLE_FLAG_SYNC : 0,
+                        parser.getSampleFlags());
+                int size = parser.readSampleData(buffer, 0);
+                byte[] data = new byte[size];
+                buffer.get(data);
+                assertArrayEquals("Video data " + frame, lengthPrefixed(videoSample(frame)),
+                        data);
+                parser.advance();
+            }
+            parser.unselectTrack(0);
+            parser.selectTrack(1);
+            parser.seekTo(0);
+            for (int frame = 0; frame < NUM_AUDIO_FRAMES; frame++) {
+                assertEquals("Audio time " + frame, audioTimeUs(frame), parser.getSampleTime());
+                int size = parser.readSampleData(buffer, 0);
+                byte[] data = new byte[size];
+                buffer.get(data);
+                assertArrayEquals("Audio data " + frame, audioSample(frame), data);
+                parser.advance();
+            }
+            parser.release();
+        }
+    }
+
+    @Test
+    public void testSingleFragment() throws Exception {
+        FragmentedMp4Writer writer;
+        try (FileChannel channel = new FileOutputStream(mFile).getChannel()) {
+            writer = new FragmentedMp4Writer(channel, Long.MAX_VALUE);
+            writer.addAudioTrack("audio/mp4a-latm", 44100, 2);
+            writer.start();
+            long payloadSize = 0;
+            for (int frame = 0; frame < NUM_AUDIO_FRAMES; frame++) {
+                byte[] sample = audioSample(frame);
+                writer.writeSample(0, ByteBuffer.wrap(sample), 0, sample.length,
+                        audioTimeUs(frame), true);
+                payloadSize += sample.length;
+            }
+            assertEquals("Pending samples", payloadSize, writer.getPeakPendingBytes());
+            writer.finish();
+        }
+        assertEquals("Fragments", 1, writer.getNumFragments());
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+            Mp4Parser parser = new Mp4Parser(file.getChannel());
+            assertEquals("Audio samples", NUM_AUDIO_FRAMES, parser.getTrackSampleCount(0));
+            parser.release();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the ownership rules of {@link Frame}, runs on the host JVM.
+ */
+public class FrameTest {
+    @Test
+    public void testSharedFrameReturnsAfterLastRelease() throws Exception {
+        Frame.Pool pool = new Frame.Pool(1, 16);
+        Frame frame = pool.obtain();
+        frame.retain(2);
+        frame.release();
+        frame.release();
+        assertNull("Frame returned while still shared", pool.poll(0));
+        frame.release();
+        assertEquals("Frame not returned after last release", 1, pool.getNumFreeFrames());
+        assertEquals("Peak frames in use", 1, pool.getPeakFramesInUse());
+    }
+
+    @Test
+    public void testDoubleReleaseDetected() throws Exception {
+        Frame.Pool pool = new Frame.Pool(2, 16);
+        Frame frame = pool.obtain();
+        frame.release();
+        boolean detected = false;
+        try {
+            frame.release();
+        } catch (IllegalStateException e) {
+            detected = true;
+        }
+        assertTrue("Double release not detected", detected);
+        assertEquals("Pool corrupted by double release", 2, pool.getNumFreeFrames());
+    }
+}
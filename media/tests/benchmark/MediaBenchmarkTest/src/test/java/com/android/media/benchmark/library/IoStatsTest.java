@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks parsing and differences of {@link IoStats}, runs on the host JVM.
+ */
+public class IoStatsTest {
+    private static final String BEFORE = "rchar: 1000\nwchar: 2000\nsyscr: 10\nsyscw: 20\n"
+            + "read_bytes: 4096\nwrite_bytes: 8192\ncancelled_write_bytes: 0\n";
+    private static final String AFTER = "rchar: 1500\nwchar: 1050000\nsyscr: 12\nsyscw: 120\n"
+            + "read_bytes: 4096\nwrite_bytes: 1056768\ncancelled_write_bytes: 4096\n"
+            + "unknown_counter: 5\nmalformed\n";
+
+    @Test
+    public void testParse() throws IOException {
+        IoStats stats = IoStats.parse(AFTER);
+        assertEquals("rchar", 1500, stats.getReadChars());
+        assertEquals("wchar", 1050000, stats.getWriteChars());
+        assertEquals("syscr", 12, stats.getReadCalls());
+        assertEquals("syscw", 120, stats.getWriteCalls());
+        assertEquals("read_bytes", 4096, stats.getReadBytes());
+        assertEquals("write_bytes", 1056768, stats.getWriteBytes());
+        assertEquals("cancelled_write_bytes", 4096, stats.getCancelledWriteBytes());
+    }
+
+    @Test
+    public void testDelta() throws IOException {
+        IoStats delta = IoStats.parse(AFTER).since(IoStats.parse(BEFORE));
+        assertEquals("wchar", 1048000, delta.getWriteChars());
+        assertEquals("syscw", 100, delta.getWriteCalls());
+        assertEquals("write_bytes", 1048576, delta.getWriteBytes());
+
+        Metrics metrics = new Metrics("clip", "mux", "data");
+        delta.addTo(metrics, 1048576);
+        assertEquals("Storage amplification", 1044480.0 / 1048576,
+                Double.parseDouble(metrics.getValue("storageWriteAmplification")), 1e-3);
+        assertEquals("Write calls", "100", metrics.getValue("writeCalls"));
+    }
+}
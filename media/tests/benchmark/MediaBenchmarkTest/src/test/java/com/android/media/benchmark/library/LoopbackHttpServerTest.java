@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Requests a file from the loopback server with HttpURLConnection. Runs on the host JVM.
+ */
+public class LoopbackHttpServerTest {
+    private static final int FILE_SIZE = 100000;
+
+    private File mFile;
+    private byte[] mData;
+    private LoopbackHttpServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("clip", ".mp4");
+        mData = new byte[FILE_SIZE];
+        new Random(1).nextBytes(mData);
+        try (FileOutputStream output = new FileOutputStream(mFile)) {
+            output.write(mData);
+        }
+        mServer = new LoopbackHttpServer(mFile.getParentFile());
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.close();
+        mFile.delete();
+    }
+
+    private HttpURLConnection open(String name, String range) throws IOException {
+        HttpURLConnection connection =
+                (HttpURLConnection) new URL(mServer.getUrl(name)).openConnection();
+        if (range != null) {
+            connection.setRequestProperty("Range", range);
+        }
+        return connection;
+    }
+
+    private static byte[] readBody(HttpURLConnection connection) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream input = connection.getInputStream()) {
+            byte[] buffer = new byte[4096];
+            for (int read = input.read(buffer); read >= 0; read = input.read(buffer)) {
+                body.write(buffer, 0, read);
+            }
+        }
+        return body.toByteArray();
+    }
+
+    @Test
+    public void testWholeFile() throws IOException {
+        HttpURLConnection connection = open(mFile.getName(), null);
+        assertEquals("Status", 200, connection.getResponseCode());
+        assertEquals("Accept-Ranges", "bytes", connection.getHeaderField("Accept-Ranges"));
+        assertArrayEquals("Body", mData, readBody(connection));
+        assertEquals("Bytes sent", FILE_SIZE, mServer.getBytesSent());
+        assertEquals("Requests", 1, mServer.getNumRequests());
+    }
+
+    @Test
+    public void testRanges() throws IOException {
+        HttpURLConnection connection = open(mFile.getName(), "bytes=1000-1999");
+        assertEquals("Status", 206, connection.getResponseCode());
+        assertEquals("Content-Range", "bytes 1000-1999/" + FILE_SIZE,
+                connection.getHeaderField("Content-Range"));
+        assertArrayEquals("Range body", Arrays.copyOfRange(mData, 1000, 2000),
+                readBody(connection));
+
+        connection = open(mFile.getName(), "bytes=99000-");
+        assertEquals("Open ended status", 206, connection.getResponseCode());
+        assertArrayEquals("Open ended body", Arrays.copyOfRange(mData, 99000, FILE_SIZE),
+                readBody(connection));
+
+        connection = open(mFile.getName(), "bytes=-500");
+        assertEquals("Suffix status", 206, connection.getResponseCode());
+        assertArrayEquals("Suffix body", Arrays.copyOfRange(mData, FILE_SIZE - 500, FILE_SIZE),
+                readBody(connection));
+
+        connection = open(mFile.getName(), "bytes=" + FILE_SIZE + "-");
+        assertEquals("Unsatisfiable status", 416, connection.getResponseCode());
+        assertEquals("Bytes sent", 1000 + 1000 + 500, mServer.getBytesSent());
+        // HttpURLConnection may send the next request on a kept-alive connection
+        assertEquals("Requests", 4, mServer.getNumRequests());
+        assertTrue("Connections", mServer.getNumConnections() <= 4);
+    }
+
+    @Test
+    public void testNotFound() throws IOException {
+        assertEquals("Missing file", 404, open("missing.mp4", null).getResponseCode());
+        assertEquals("Parent directory", 404,
+                open("../" + mFile.getName(), null).getResponseCode());
+    }
+
+    @Test
+    public void testThrottling() throws IOException {
+        mServer.setBandwidth(FILE_SIZE * 4);
+        mServer.setRoundTripTime(50000);
+        mServer.setJitter(10000);
+        long startTime = System.nanoTime();
+        HttpURLConnection connection = open(mFile.getName(), null);
+        assertEquals("Status", 200, connection.getResponseCode());
+        long firstByteTime = System.nanoTime() - startTime;
+        assertArrayEquals("Body", mData, readBody(connection));
+        long totalTime = System.nanoTime() - startTime;
+        // One round trip to connect and one to the response, each at least 40 ms with jitter
+        assertTrue("Time to first byte " + firstByteTime, firstByteTime >= 80000000L);
+        assertTrue("Transfer time " + totalTime, totalTime >= firstByteTime + 200000000L);
+    }
+}
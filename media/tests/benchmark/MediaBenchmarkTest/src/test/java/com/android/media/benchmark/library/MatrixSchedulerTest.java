@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a matrix of sleeping cases through {@link MatrixScheduler} and checks that no two cases
+ * ever held the same resource, runs on the host JVM.
+ */
+public class MatrixSchedulerTest {
+    private static final long CASE_TIME_MS = 40;
+
+    // Resources held by the running cases, and whether a case saw them over-committed
+    private final HashMap<String, Integer> mFamilies = new HashMap<>();
+    private int mCpus;
+    private int mRunning;
+    private boolean mExclusiveRunning;
+    private String mViolation;
+
+    private synchronized void acquire(String name, MatrixScheduler.Resources resources) {
+        mRunning++;
+        if (mExclusiveRunning || (resources.isExclusive() && mRunning > 1)) {
+            mViolation = name + " ran along an exclusive case";
+        }
+        mExclusiveRunning |= resources.isExclusive();
+        String family = resources.getHardwareFamily();
+        if (family != null && mFamilies.merge(family, 1, Integer::sum) > 1) {
+            mViolation = name + " shared " + family;
+        }
+        mCpus += resources.getCpus();
+        if (mCpus > 2) {
+            mViolation = name + " exceeded the CPU budget";
+        }
+    }
+
+    private synchronized void release(MatrixScheduler.Resources resources) {
+        mRunning--;
+        mExclusiveRunning &= !resources.isExclusive();
+        if (resources.getHardwareFamily() != null) {
+            mFamilies.merge(resources.getHardwareFamily(), -1, Integer::sum);
+        }
+        mCpus -= resources.getCpus();
+    }
+
+    private void addCase(MatrixScheduler scheduler, String name,
+            MatrixScheduler.Resources resources, boolean fail) {
+        scheduler.add(name, resources, () -> {
+            acquire(name, resources);
+            try {
+                Thread.sleep(CASE_TIME_MS);
+            } finally {
+                release(resources);
+            }
+            if (fail) {
+                throw new IOException("Injected failure of " + name);
+            }
+            return new Metrics(name, "decode", "codec");
+        });
+    }
+
+    @Test
+    public void testAdmission() throws InterruptedException {
+        MatrixScheduler scheduler = new MatrixScheduler(4, 2);
+        for (int i = 0; i < 3; i++) {
+            addCase(scheduler, "hwA" + i, MatrixScheduler.Resources.forCodec(
+                    "c2.vendora.avc.decoder", false, true), false);
+        }
+        addCase(scheduler, "hwB", MatrixScheduler.Resources.forCodec(
+                "OMX.vendorb.hevc.decoder", false, true), false);
+        addCase(scheduler, "hwAEncoder", MatrixScheduler.Resources.forCodec(
+                "c2.vendora.avc.encoder", true, true), false);
+        for (int i = 0; i < 4; i++) {
+            addCase(scheduler, "sw" + i, MatrixScheduler.Resources.forCodec(
+                    "c2.android.avc.decoder", false, false), i == 3);
+        }
+        addCase(scheduler, "exclusive", MatrixScheduler.Resources.exclusive(), false);
+        addCase(scheduler, "last", MatrixScheduler.Resources.forCodec(
+                "c2.android.aac.decoder", false, false), false);
+
+        assertEquals("Failures", 1, scheduler.run());
+        assertNull(mViolation, mViolation);
+        assertNotNull("Error of the failing case", scheduler.getError("sw3"));
+        assertTrue("Software cases ran together", scheduler.wasConcurrent("sw0"));
+        assertFalse("Exclusive case ran alone", scheduler.wasConcurrent("exclusive"));
+        assertEquals("Results of the passing cases", 10, scheduler.getResults().size());
+        Metrics first = scheduler.getResults().get(0);
+        assertEquals("Tagged concurrent", "1", first.getValue("concurrent"));
+
+        Metrics metrics = scheduler.getMetrics("suite");
+        assertEquals("Cases", "11", metrics.getValue("cases"));
+        assertEquals("Peak concurrency", "4", metrics.getValue("peakConcurrency"));
+        double meanConcurrency = Double.parseDouble(metrics.getValue("meanConcurrency"));
+        assertTrue("Mean concurrency " + meanConcurrency, meanConcurrency > 1.5);
+    }
+
+    @Test
+    public void testSerial() throws InterruptedException {
+        MatrixScheduler scheduler = new MatrixScheduler(1, 8);
+        for (int i = 0; i < 3; i++) {
+            addCase(scheduler, "sw" + i, MatrixScheduler.Resources.forCodec(
+                    "c2.android.avc.decoder", false, false), false);
+        }
+        // An assertion failing in a case fails it like an exception
+        scheduler.add("assert", MatrixScheduler.Resources.exclusive(), () -> {
+            throw new AssertionError("Injected assertion");
+        });
+        assertEquals("Failures", 1, scheduler.run());
+        assertTrue("Error of the asserting case",
+                scheduler.getError("assert") instanceof AssertionError);
+        assertFalse("Serial run", scheduler.wasConcurrent("sw1"));
+        assertEquals("Tagged serial", "0", scheduler.getResults().get(2).getValue("concurrent"));
+        assertEquals("Peak concurrency", "1",
+                scheduler.getMetrics("suite").getValue("peakConcurrency"));
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Parses Matroska files built in memory, and the webm/mkv resources of the benchmark if the
+ * MEDIA_BENCHMARK_RES environment variable points to them. Runs on the host JVM.
+ */
+public class MkvParserTest {
+    private static final int NUM_CLUSTERS = 3;
+    private static final int FRAMES_PER_CLUSTER = 5;
+    private static final int FRAME_MS = 40;
+    private static final byte[] STRIPPED_HEADER = {(byte) 0xfc, (byte) 0xfd};
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] element(int id, byte[]... children) {
+        byte[] data = concat(children);
+        ByteBuffer header = ByteBuffer.allocate(12);
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            if ((id >>> shift) != 0) {
+                header.put((byte) (id >>> shift));
+            }
+        }
+        // Sizes are always written on 8 bytes
+        header.put((byte) 0x01);
+        for (int shift = 48; shift >= 0; shift -= 8) {
+            header.put((byte) ((long) data.length >>> shift));
+        }
+        byte[] result = new byte[header.position() + data.length];
+        System.arraycopy(header.array(), 0, result, 0, header.position());
+        System.arraycopy(data, 0, result, header.position(), data.length);
+        return result;
+    }
+
+    private static byte[] uint(int id, long value) {
+        return element(id, ByteBuffer.allocate(4).putInt((int) value).array());
+    }
+
+    private static byte[] string(int id, String value) { return element(id, value.getBytes()); }
+
+    private static byte[] frame(int track, int index, int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (track * 50 + index + i);
+        }
+        return data;
+    }
+
+    private static byte[] block(int track, int timecode, int flags, byte[] laceHeader,
+            byte[]... frames) {
+        byte[] header = {(byte) (0x80 | track), (byte) (timecode >> 8), (byte) timecode,
+                (byte) flags};
+        return concat(header, laceHeader, concat(frames));
+    }
+
+    private static int videoSize(int frame) { return 30 + frame; }
+
+    private static byte[] cluster(int index, boolean unknownSize) {
+        ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+        byte[] timecode = uint(0xe7, index * FRAMES_PER_CLUSTER * FRAME_MS);
+        blocks.write(timecode, 0, timecode.length);
+        for (int i = 0; i < FRAMES_PER_CLUSTER; i++) {
+            int frame = index * FRAMES_PER_CLUSTER + i;
+            byte[] video = frame(1, frame, videoSize(frame));
+            byte[] data;
+            if (i == 0) {
+                data = element(0xa3, block(1, i * FRAME_MS, 0x80, new byte[0], video));
+            } else if (i == 2) {
+                // Non key frame in a BlockGroup with a ReferenceBlock
+                data = element(0xa0, element(0xa1, block(1, i * FRAME_MS, 0, new byte[0],
+                        video)), uint(0xfb, 1));
+            } else {
+                data = element(0xa3, block(1, i * FRAME_MS, 0, new byte[0], video));
+            }
+            blocks.write(data, 0, data.length);
+        }
+        // Three audio frames in a Xiph laced block and two in an EBML laced block
+        byte[] xiph = element(0xa3, block(2, 0, 0x82, new byte[]{2, (byte) 255, 5, 7},
+                frame(2, index * 5, 260), frame(2, index * 5 + 1, 7),
+                frame(2, index * 5 + 2, 9)));
+        byte[] ebml = element(0xa3, block(2, 100, 0x86, new byte[]{1, (byte) 0x8a},
+                frame(2, index * 5 + 3, 10), frame(2, index * 5 + 4, 3)));
+        blocks.write(xiph, 0, xiph.length);
+        blocks.write(ebml, 0, ebml.length);
+        byte[] cluster = element(0x1f43b675, blocks.toByteArray());
+        if (unknownSize) {
+            // Eight byte size with all value bits set
+            for (int i = 5; i < 12; i++) {
+                cluster[i] = (byte) 0xff;
+            }
+        }
+        return cluster;
+    }
+
+    private static byte[] seek(int id, int position) {
+        return element(0x4dbb, element(0x53ab, ByteBuffer.allocate(4).putInt(id).array()),
+                uint(0x53ac, position));
+    }
+
+    private static byte[] buildFile(boolean withCues) {
+        byte[] ebmlHeader = element(0x1a45dfa3, string(0x4282, "webm"));
+        byte[] info = element(0x1549a966, uint(0x2ad7b1, 1000000),
+                element(0x4489, ByteBuffer.allocate(4).putFloat(600f).array()));
+        byte[] tracks = element(0x1654ae6b,
+                element(0xae, uint(0xd7, 1), uint(0x83, 1), string(0x86, "V_VP9")),
+                element(0xae, uint(0xd7, 2), uint(0x83, 2), string(0x86, "A_OPUS"),
+                        element(0x6d80, element(0x6240, element(0x5034, uint(0x4254, 3),
+                                element(0x4255, STRIPPED_HEADER))))));
+        byte[][] clusters = new byte[NUM_CLUSTERS][];
+        for (int i = 0; i < NUM_CLUSTERS; i++) {
+            clusters[i] = cluster(i, i == NUM_CLUSTERS - 1 && !withCues);
+        }
+        int seekHeadSize = element(0x114d9b74, seek(0, 0), seek(0, 0), seek(0, 0)).length;
+        int infoPosition = seekHeadSize;
+        int tracksPosition = infoPosition + info.length;
+        int clusterPosition = tracksPosition + tracks.length;
+        ByteArrayOutputStream cuePoints = new ByteArrayOutputStream();
+        for (int i = 0; i < NUM_CLUSTERS; i++) {
+            byte[] cuePoint = element(0xbb, uint(0xb3, i * FRAMES_PER_CLUSTER * FRAME_MS),
+                    element(0xb7, uint(0xf7, 1), uint(0xf1, clusterPosition)));
+            cuePoints.write(cuePoint, 0, cuePoint.length);
+            clusterPosition += clusters[i].length;
+        }
+        byte[] cues = withCues ? element(0x1c53bb6b, cuePoints.toByteArray()) : new byte[0];
+        byte[] seekHead = element(0x114d9b74, seek(0x1549a966, infoPosition),
+                seek(0x1654ae6b, tracksPosition),
+                seek(withCues ? 0x1c53bb6b : 0xec, clusterPosition));
+        byte[] segment = element(0x18538067, seekHead, info, tracks, concat(clusters), cues);
+        return concat(ebmlHeader, segment);
+    }
+
+    @Test
+    public void testSequentialRead() throws Exception {
+        BufferPool pool = new BufferPool();
+        MkvParser parser = new MkvParser(ByteBuffer.wrap(buildFile(true)), pool);
+        assertEquals("Number of tracks", 2, parser.getTrackCount());
+        assertEquals("Video mime", "video/x-vnd.on2.vp9", parser.getTrackMime(0));
+        assertEquals("Audio mime", "audio/opus", parser.getTrackMime(1));
+        assertEquals("Duration", 600000, parser.getTrackDurationUs(0));
+        assertEquals("Cues", NUM_CLUSTERS, parser.getNumCues());
+        assertEquals("Clusters parsed at setup", 0, parser.getNumClustersParsed());
+
+        parser.selectTrack(0);
+        assertEquals("Clusters parsed for the first sample", 1, parser.getNumClustersParsed());
+        for (int frame = 0; frame < NUM_CLUSTERS * FRAMES_PER_CLUSTER; frame++) {
+            BufferPool.Lease lease = parser.readSample();
+            ByteBuffer buffer = lease.getBuffer();
+            byte[] expected = frame(1, frame, videoSize(frame));
+            assertEquals("Size of video frame " + frame, expected.length, buffer.remaining());
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals("Byte " + i + " of video frame " + frame, expected[i],
+                        buffer.get(i));
+            }
+            lease.release();
+            assertEquals("Time of video frame " + frame, frame * FRAME_MS * 1000L,
+                    parser.getSampleTime());
+            int position = frame % FRAMES_PER_CLUSTER;
+            assertEquals("Flags of video frame " + frame, position == 0 ? 1 : 0,
+                    parser.getSampleFlags());
+            assertEquals("Advance after video frame " + frame,
+                    frame < NUM_CLUSTERS * FRAMES_PER_CLUSTER - 1, parser.advance());
+        }
+        assertNull("Sample after the last one", parser.readSample());
+        assertEquals("Clusters parsed", NUM_CLUSTERS, parser.getNumClustersParsed());
+        assertEquals("Leases returned to the pool", pool.getNumRequests() - 1,
+                pool.getNumHits());
+        parser.unselectTrack(0);
+
+        // Audio frames are laced and stored without their first two bytes
+        parser.selectTrack(1);
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        int[] sizes = {260, 7, 9, 10, 3};
+        int frame = 0;
+        do {
+            byte[] expected = concat(STRIPPED_HEADER, frame(2, frame, sizes[frame % 5]));
+            assertEquals("Size of audio frame " + frame, expected.length,
+                    parser.readSampleData(buffer, 4));
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals("Byte " + i + " of audio frame " + frame, expected[i],
+                        buffer.get(4 + i));
+            }
+            long clusterTimeUs = frame / 5 * FRAMES_PER_CLUSTER * FRAME_MS * 1000L;
+            assertEquals("Time of audio frame " + frame,
+                    clusterTimeUs + (frame % 5 < 3 ? 0 : 100000), parser.getSampleTime());
+            assertEquals("Track of audio frame " + frame, 1, parser.getSampleTrackIndex());
+            frame++;
+        } while (parser.advance());
+        assertEquals("Audio frames", NUM_CLUSTERS * 5, frame);
+        parser.release();
+    }
+
+    private static void checkSeeks(MkvParser parser) {
+        parser.selectTrack(0);
+        long clusterDurationUs = FRAMES_PER_CLUSTER * FRAME_MS * 1000L;
+        parser.seekTo(clusterDurationUs + 3 * FRAME_MS * 1000L);
+        assertEquals("Seek into the second cluster", clusterDurationUs, parser.getSampleTime());
+        assertEquals("Seek result is sync", 1, parser.getSampleFlags());
+        parser.seekTo(0);
+        assertEquals("Seek to the start", 0, parser.getSampleTime());
+        parser.seekTo(10 * clusterDurationUs);
+        assertEquals("Seek past the end", 2 * clusterDurationUs, parser.getSampleTime());
+        int remaining = 0;
+        do {
+            remaining++;
+        } while (parser.advance());
+        assertEquals("Frames after the last seek", FRAMES_PER_CLUSTER, remaining);
+    }
+
+    @Test
+    public void testSeekWithCues() throws Exception {
+        MkvParser parser = new MkvParser(ByteBuffer.wrap(buildFile(true)), new BufferPool());
+        checkSeeks(parser);
+        parser.release();
+    }
+
+    @Test
+    public void testSeekWithoutCues() throws Exception {
+        // The last cluster also has an unknown size, as in live streams
+        MkvParser parser = new MkvParser(ByteBuffer.wrap(buildFile(false)), new BufferPool());
+        assertEquals("Cues", 0, parser.getNumCues());
+        checkSeeks(parser);
+        parser.release();
+    }
+
+    @Test
+    public void testBenchmarkResources() throws Exception {
+        String resourceDir = System.getenv("MEDIA_BENCHMARK_RES");
+        assumeTrue("MEDIA_BENCHMARK_RES not set", resourceDir != null);
+        File[] files = new File(resourceDir).listFiles(
+                (dir, name) -> name.endsWith(".webm") || name.endsWith(".mkv"));
+        assumeTrue("No webm/mkv resources in " + resourceDir, files != null && files.length > 0);
+        for (File file : files) {
+            try (FileInputStream input = new FileInputStream(file)) {
+                MkvParser parser = new MkvParser(input.getChannel());
+                parser.selectTrack(0);
+                assertEquals(file.getName() + " first sample not sync", 1,
+                        parser.getSampleFlags() & 1);
+                long totalSize = 0;
+                do {
+                    BufferPool.Lease lease = parser.readSample();
+                    totalSize += lease.getBuffer().remaining();
+                    lease.release();
+                } while (parser.advance());
+                assertTrue(file.getName() + " samples larger than the file",
+                        totalSize <= file.length());
+                assertTrue(file.getName() + " no cluster parsed",
+                        parser.getNumClustersParsed() > 0);
+                parser.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Parses MP4 files built in memory, and the mp4/3gp resources of the benchmark if the
+ * MEDIA_BENCHMARK_RES environment variable points to them. Runs on the host JVM.
+ */
+public class Mp4ParserTest {
+    private static final int[] VIDEO_SIZES = {10, 11, 12, 13, 14};
+    private static final int[] VIDEO_COMPOSITION_OFFSETS = {40, 120, 40, 40, 80};
+    private static final int VIDEO_EDIT_SHIFT = 40;
+    private static final int AUDIO_SIZE = 4;
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] ints(int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * values.length);
+        for (int value : values) {
+            buffer.putInt(value);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] longs(long... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 * values.length);
+        for (long value : values) {
+            buffer.putLong(value);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] box(String type, byte[]... payload) {
+        byte[] content = concat(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(8 + content.length);
+        buffer.putInt(8 + content.length);
+        buffer.put(type.getBytes());
+        buffer.put(content);
+        return buffer.array();
+    }
+
+    private static byte[] fullBox(String type, int version, int flags, byte[]... payload) {
+        return box(type, concat(ints((version << 24) | flags), concat(payload)));
+    }
+
+    private static byte[] sampleData(int size, int value) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) value;
+        }
+        return data;
+    }
+
+    private static byte[] track(int trackId, int timescale, String format, byte[]... tables) {
+        return box("trak",
+                fullBox("tkhd", 0, 0, ints(0, 0, trackId)),
+                box("mdia",
+                        fullBox("mdhd", 0, 0, ints(0, 0, timescale, 0)),
+                        box("minf", box("stbl", concat(
+                                fullBox("stsd", 0, 0, ints(1), box(format)),
+                                concat(tables))))));
+    }
+
+    /**
+     * Builds ftyp, mdat and moov with a video track in three chunks (stco, ctts, stss, edit
+     * list) and an audio track in one chunk between the first two video chunks (co64).
+     */
+    private static byte[] buildProgressiveFile() {
+        byte[] ftyp = box("ftyp", "isom".getBytes(), ints(0));
+        byte[] mdat = box("mdat",
+                sampleData(VIDEO_SIZES[0], 1), sampleData(VIDEO_SIZES[1], 2),
+                sampleData(AUDIO_SIZE, 0x41), sampleData(AUDIO_SIZE, 0x42),
+                sampleData(AUDIO_SIZE, 0x43),
+                sampleData(VIDEO_SIZES[2], 3), sampleData(VIDEO_SIZES[3], 4),
+                sampleData(VIDEO_SIZES[4], 5));
+        int data = ftyp.length + 8;
+        int audioChunk = data + VIDEO_SIZES[0] + VIDEO_SIZES[1];
+        int videoChunk2 = audioChunk + 3 * AUDIO_SIZE;
+        int videoChunk3 = videoChunk2 + VIDEO_SIZES[2] + VIDEO_SIZES[3];
+        byte[] video = box("trak",
+                fullBox("tkhd", 0, 0, ints(0, 0, 1)),
+                box("edts", fullBox("elst", 0, 0, ints(1, 200, VIDEO_EDIT_SHIFT, 0x10000))),
+                box("mdia",
+                        fullBox("mdhd", 0, 0, ints(0, 0, 1000, 200)),
+                        box("minf", box("stbl",
+                                fullBox("stsd", 0, 0, ints(1), box("avc1")),
+                                fullBox("stts", 0, 0, ints(1, 5, 40)),
+                                fullBox("ctts", 0, 0, ints(5, 1, 40, 1, 120, 1, 40, 1, 40, 1, 80)),
+                                fullBox("stss", 0, 0, ints(2, 1, 4)),
+                                fullBox("stsz", 0, 0, ints(0, 5), ints(VIDEO_SIZES)),
+                                fullBox("stsc", 0, 0, ints(2, 1, 2, 1, 3, 1, 1)),
+                                fullBox("stco", 0, 0, ints(3, data, videoChunk2,
+                                        videoChunk3))))));
+        byte[] audio = track(2, 8000, "mp4a",
+                fullBox("stts", 0, 0, ints(1, 3, 160)),
+                fullBox("stsz", 0, 0, ints(AUDIO_SIZE, 3)),
+                fullBox("stsc", 0, 0, ints(1, 1, 3, 1)),
+                fullBox("co64", 0, 0, ints(1), longs(audioChunk)));
+        byte[] moov = box("moov", fullBox("mvhd", 0, 0, ints(0, 0, 1000, 200)), video, audio);
+        return concat(ftyp, mdat, moov);
+    }
+
+    @Test
+    public void testProgressiveFile() throws Exception {
+        Mp4Parser parser = new Mp4Parser(ByteBuffer.wrap(buildProgressiveFile()));
+        assertEquals("Track count", 2, parser.getTrackCount());
+        assertEquals("Video mime", "video/avc", parser.getTrackMime(0));
+        assertEquals("Audio mime", "audio/mp4a-latm", parser.getTrackMime(1));
+        assertEquals("Video duration", 200000, parser.getTrackDurationUs(0));
+        parser.selectTrack(0);
+        parser.selectTrack(1);
+
+        // Samples of both tracks in timestamp order, video first on equal timestamps
+        int[] expectedTracks = {0, 1, 1, 1, 0, 0, 0, 0};
+        int[] expectedIndices = {0, 0, 1, 2, 1, 2, 3, 4};
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+        for (int i = 0; i < expectedTracks.length; i++) {
+            int index = expectedIndices[i];
+            assertEquals("Track of sample " + i, expectedTracks[i], parser.getSampleTrackIndex());
+            int size = parser.readSampleData(buffer, 8);
+            assertEquals("Buffer position", 8, buffer.position());
+            assertEquals("Buffer limit", 8 + size, buffer.limit());
+            if (expectedTracks[i] == 0) {
+                long decodeTicks = 40 * index;
+                long expectedTimeUs = (decodeTicks + VIDEO_COMPOSITION_OFFSETS[index]
+                        - VIDEO_EDIT_SHIFT) * 1000;
+                assertEquals("Video size " + index, VIDEO_SIZES[index], size);
+                assertEquals("Video time " + index, expectedTimeUs, parser.getSampleTime());
+                assertEquals("Video flags " + index, (index == 0 || index == 3) ? 1 : 0,
+                        parser.getSampleFlags());
+                assertEquals("Video data " + index, index + 1, buffer.get(8 + size - 1));
+            } else {
+                assertEquals("Audio size " + index, AUDIO_SIZE, size);
+                assertEquals("Audio time " + index, index * 20000, parser.getSampleTime());
+                assertEquals("Audio flags " + index, 1, parser.getSampleFlags());
+                assertEquals("Audio data " + index, 0x41 + index, buffer.get(8));
+            }
+            assertEquals("Advance after sample " + i, i < expectedTracks.length - 1,
+                    parser.advance());
+        }
+        assertEquals("Time after the last sample", -1, parser.getSampleTime());
+        assertEquals("Read after the last sample", -1, parser.readSampleData(buffer, 0));
+
+        parser.seekTo(150000);
+        assertEquals("Track after seek", 1, parser.getSampleTrackIndex());
+        parser.unselectTrack(1);
+        assertEquals("Video sample after seek", 120000, parser.getSampleTime());
+        assertEquals("Video sample after seek is sync", 1, parser.getSampleFlags());
+    }
+
+    /**
+     * Builds a fragmented file with two fragments. The first has a decode time, a data offset
+     * relative to the moof, sync first sample flags and composition offsets. The second has
+     * per sample sizes and continues the decode time of the first.
+     */
+    private static byte[] buildFragmentedFile() {
+        byte[] ftyp = box("ftyp", "iso6".getBytes(), ints(0));
+        byte[] moov = box("moov", fullBox("mvhd", 0, 0, ints(0, 0, 1000, 0)),
+                track(1, 1000, "avc1",
+                        fullBox("stts", 0, 0, ints(0)),
+                        fullBox("stsz", 0, 0, ints(0, 0)),
+                        fullBox("stsc", 0, 0, ints(0)),
+                        fullBox("stco", 0, 0, ints(0))),
+                box("mvex", fullBox("trex", 0, 0, ints(1, 1, 33, 0, 0x10000))));
+
+        byte[] tfhd1 = fullBox("tfhd", 0, 0x020010, ints(1, 6));
+        byte[] tfdt1 = fullBox("tfdt", 1, 0, longs(1000));
+        int trun1Size = 8 + 4 + 4 + 4 + 4 + 3 * 4;
+        int moof1Size = 8 + 16 + 8 + tfhd1.length + tfdt1.length + trun1Size;
+        byte[] trun1 = fullBox("trun", 0, 0x000805, ints(3, moof1Size + 8, 0, 0, 66, 0));
+        byte[] fragment1 = concat(box("moof", fullBox("mfhd", 0, 0, ints(1)),
+                box("traf", tfhd1, tfdt1, trun1)),
+                box("mdat", sampleData(6, 1), sampleData(6, 2), sampleData(6, 3)));
+
+        byte[] tfhd2 = fullBox("tfhd", 0, 0x020000, ints(1));
+        int trun2Size = 8 + 4 + 4 + 4 + 2 * 4;
+        int moof2Size = 8 + 16 + 8 + tfhd2.length + trun2Size;
+        byte[] trun2 = fullBox("trun", 0, 0x000201, ints(2, moof2Size + 8, 5, 7));
+        byte[] fragment2 = concat(box("moof", fullBox("mfhd", 0, 0, ints(2)),
+                box("traf", tfhd2, trun2)),
+                box("mdat", sampleData(5, 4), sampleData(7, 5)));
+        return concat(ftyp, moov, fragment1, fragment2);
+    }
+
+    @Test
+    public void testFragmentedFile() throws Exception {
+        Mp4Parser parser = new Mp4Parser(ByteBuffer.wrap(buildFragmentedFile()));
+        assertEquals("Track count", 1, parser.getTrackCount());
+        assertEquals("Sample count", 5, parser.getTrackSampleCount(0));
+        parser.selectTrack(0);
+        int[] expectedSizes = {6, 6, 6, 5, 7};
+        long[] expectedTimesMs = {1000, 1099, 1066, 1099, 1132};
+        int[] expectedFlags = {1, 0, 0, 0, 0};
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        for (int i = 0; i < expectedSizes.length; i++) {
+            assertEquals("Size " + i, expectedSizes[i], parser.readSampleData(buffer, 0));
+            assertEquals("Data " + i, i + 1, buffer.get(0));
+            assertEquals("Time " + i, expectedTimesMs[i] * 1000, parser.getSampleTime());
+            assertEquals("Flags " + i, expectedFlags[i], parser.getSampleFlags());
+            parser.advance();
+        }
+        assertEquals("Track after the last sample", -1, parser.getSampleTrackIndex());
+    }
+
+    @Test
+    public void testTruncatedFileRejected() {
+        byte[] file = buildProgressiveFile();
+        byte[] truncated = new byte[file.length - 20];
+        System.arraycopy(file, 0, truncated, 0, truncated.length);
+        boolean rejected = false;
+        try {
+            new Mp4Parser(ByteBuffer.wrap(truncated));
+        } catch (java.io.IOException e) {
+            rejected = true;
+        }
+        assertTrue("Truncated sample tables accepted", rejected);
+    }
+
+    @Test
+    public void testBenchmarkResources() throws Exception {
+        String resourceDir = System.getenv("MEDIA_BENCHMARK_RES");
+        assumeTrue("MEDIA_BENCHMARK_RES not set", resourceDir != null);
+        File[] files = new File(resourceDir).listFiles(
+                (dir, name) -> name.endsWith(".mp4") || name.endsWith(".3gp"));
+        assumeTrue("No mp4/3gp resources in " + resourceDir, files != null && files.length > 0);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(4 * 1024 * 1024);
+        for (File file : files) {
+            try (FileInputStream input = new FileInputStream(file)) {
+                Mp4Parser parser = new Mp4Parser(input.getChannel());
+                for (int track = 0; track < parser.getTrackCount(); track++) {
+                    parser.selectTrack(track);
+                    assertTrue(file.getName() + " track " + track + " has no samples",
+                            parser.getSampleTrackIndex() == track);
+                    assertEquals(file.getName() + " first sample not sync", 1,
+                            parser.getSampleFlags() & 1);
+                    long totalSize = 0;
+                    do {
+                        int size = parser.readSampleData(buffer, 0);
+                        assertTrue(file.getName() + " invalid sample size", size >= 0);
+                        totalSize += size;
+                    } while (parser.advance());
+                    assertTrue(file.getName() + " samples larger than the file",
+                            totalSize <= file.length());
+                    parser.unselectTrack(track);
+                }
+                assertFalse(parser.advance());
+                parser.release();
+            }
+        }
+    }
+}
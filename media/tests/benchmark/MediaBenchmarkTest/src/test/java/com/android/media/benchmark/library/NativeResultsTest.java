@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fills a {@link NativeResults} buffer the way BenchmarkResults.h does and checks that its
+ * summary matches the one of the same data recorded by an SDK run. Runs on the host JVM.
+ */
+public class NativeResultsTest {
+    private static final int MAX_FRAMES = 8;
+    private static final long START_TIME_NS = 1000000;
+
+    /**
+     * Writes a run of numFrames frames to the given slot, as the native code does
+     */
+    private static void writeRun(NativeResults results, int run, int numFrames, int mode) {
+        ByteBuffer buffer = results.getBuffer();
+        int offset = NativeResults.kHeaderSize + run * NativeResults.getRunSize(MAX_FRAMES);
+        int stored = Math.min(numFrames, MAX_FRAMES);
+        buffer.putInt(offset + NativeResults.kTrackIdOffset, run);
+        buffer.putInt(offset + NativeResults.kModeOffset, mode);
+        buffer.putInt(offset + NativeResults.kNumInputTimesOffset, stored);
+        buffer.putInt(offset + NativeResults.kNumOutputTimesOffset, stored);
+        buffer.putInt(offset + NativeResults.kNumFrameSizesOffset, stored);
+        buffer.putInt(offset + NativeResults.kTruncatedOffset, numFrames > MAX_FRAMES ? 1 : 0);
+        buffer.putLong(offset + NativeResults.kInitTimeOffset, 500);
+        buffer.putLong(offset + NativeResults.kDeInitTimeOffset, 300);
+        buffer.putLong(offset + NativeResults.kStartTimeOffset, START_TIME_NS);
+        buffer.putLong(offset + NativeResults.kDurationOffset, 1000000);
+        buffer.putLong(offset + NativeResults.kCreateTimeOffset, 200);
+        buffer.putLong(offset + NativeResults.kConfigureTimeOffset, 150);
+        buffer.putLong(offset + NativeResults.kCodecStartTimeOffset, 150);
+        buffer.putInt(offset + NativeResults.kCallBackQueueOffset, Native.CALLBACK_QUEUE_SPSC);
+        // Only async runs have callbacks
+        int callBacks = mode == NativeResults.MODE_ASYNC ? 12 : 0;
+        buffer.putInt(offset + NativeResults.kNumCallBacksOffset, callBacks);
+        buffer.putLong(offset + NativeResults.kNumCallBackBatchesOffset, 4);
+        for (int i = 0; i < 5; i++) {
+            buffer.putLong(offset + NativeResults.kCallBackLatencyOffset + 8 * i, 1000 * (i + 1));
+        }
+        for (int phase = 0; phase <= NativeResults.PHASE_TOTAL; phase++) {
+            buffer.putLong(offset + NativeResults.kPhaseTimesOffset + 8 * phase, 100 * (phase + 1));
+        }
+        int inputTimes = offset + NativeResults.kRunHeaderSize;
+        int outputTimes = inputTimes + 8 * MAX_FRAMES;
+        int frameSizes = outputTimes + 8 * MAX_FRAMES;
+        for (int i = 0; i < stored; i++) {
+            buffer.putLong(inputTimes + 8 * i, inputTime(i));
+            buffer.putLong(outputTimes + 8 * i, outputTime(i));
+            buffer.putInt(frameSizes + 4 * i, frameSize(i));
+        }
+        buffer.putInt(NativeResults.kNumRunsOffset, run + 1);
+    }
+
+    private static long inputTime(int frame) { return START_TIME_NS + 10000 * frame; }
+
+    private static long outputTime(int frame) { return START_TIME_NS + 12500 * frame; }
+
+    private static int frameSize(int frame) { return 1000 + 10 * frame; }
+
+    @Test
+    public void testSummaryMatchesSdk() {
+        NativeResults results = new NativeResults(2, MAX_FRAMES);
+        assertEquals("Runs of an unused buffer", 0, results.getNumRuns());
+        writeRun(results, 0, 6, NativeResults.MODE_ASYNC);
+        writeRun(results, 1, 10, NativeResults.MODE_SYNC);
+        assertEquals("Runs", 2, results.getNumRuns());
+        assertEquals("Mode", "async", results.getMode(0));
+        assertEquals("Track", 1, results.getTrackId(1));
+        assertFalse("Complete run", results.isTruncated(0));
+        assertTrue("Truncated run", results.isTruncated(1));
+        assertEquals("Create time", 200, results.getStats(0).getCreateTime());
+        assertEquals("Codec start time", 150, results.getStats(0).getCodecStartTime());
+        assertEquals("Callback latency p90", 3000, results.getCallBackLatencyNs(0, 90));
+
+        Stats stats = new Stats();
+        stats.setInitTime(500);
+        stats.setDeInitTime(300);
+        stats.setStartTime(START_TIME_NS);
+        for (int i = 0; i < 6; i++) {
+            stats.addInputTime(inputTime(i));
+            stats.addOutputTime(outputTime(i));
+            stats.addFrameSize(frameSize(i));
+        }
+        Metrics sdk = stats.getMetrics("clip", "decode", "codec", "async", 1000000);
+        Metrics ndk = results.getMetrics(0, "clip", "decode", "codec");
+        assertEquals("SDK layer", "SDK", sdk.getValue("layer"));
+        assertEquals("NDK layer", "NDK", ndk.getValue("layer"));
+        for (int i = 0; i < sdk.size(); i++) {
+            String name = sdk.getName(i);
+            if (!name.equals("layer")) {
+                assertEquals(name, sdk.getValue(i), ndk.getValue(name));
+            }
+        }
+        assertEquals("Process time", "200", ndk.getValue("processTimeNs"));
+        assertEquals("Callback queue", "spsc", ndk.getValue("callBackQueue"));
+        assertEquals("Callback latency max", "5000", ndk.getValue("callBackLatencyNsMax"));
+        assertNull("No callbacks in sync mode",
+                results.getMetrics(1, "clip", "decode", "codec").getValue("callBacks"));
+        assertEquals("Frames of a truncated run", "8",
+                results.getMetrics(1, "clip", "decode", "codec").getValue("outputs"));
+
+        results.reset();
+        assertEquals("Runs after reset", 0, results.getNumRuns());
+    }
+}
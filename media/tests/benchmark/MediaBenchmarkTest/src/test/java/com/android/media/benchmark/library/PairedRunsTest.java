@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the phases and deltas of {@link PairedRuns}, runs on the host JVM.
+ */
+public class PairedRunsTest {
+    /**
+     * Returns the stats of a decode of numFrames frames, the first one after firstFrameNs and
+     * the following ones every frameNs
+     */
+    private static Stats decodeStats(long setupNs, long firstFrameNs, long frameNs,
+            int numFrames) {
+        Stats stats = new Stats();
+        stats.setCodecSetupTimes(setupNs, 2 * setupNs, 3 * setupNs);
+        stats.setInitTime(6 * setupNs);
+        stats.setDeInitTime(4 * setupNs);
+        stats.setStartTime(0);
+        for (int i = 0; i < numFrames; i++) {
+            stats.addOutputTime(firstFrameNs + i * frameNs);
+        }
+        return stats;
+    }
+
+    @Test
+    public void testPhaseTimes() {
+        Stats stats = decodeStats(100, 5000, 400, 11);
+        assertEquals("Create", 100, PairedRuns.getPhaseTime(stats, PairedRuns.PHASE_CREATE));
+        assertEquals("Start", 300, PairedRuns.getPhaseTime(stats, PairedRuns.PHASE_START));
+        assertEquals("First frame", 5000,
+                PairedRuns.getPhaseTime(stats, PairedRuns.PHASE_FIRST_FRAME));
+        assertEquals("Steady state frame", 400,
+                PairedRuns.getPhaseTime(stats, PairedRuns.PHASE_STEADY_FRAME));
+        assertEquals("Release", 400, PairedRuns.getPhaseTime(stats, PairedRuns.PHASE_RELEASE));
+        assertEquals("Steady state of a single frame", -1, PairedRuns.getPhaseTime(
+                decodeStats(100, 5000, 400, 1), PairedRuns.PHASE_STEADY_FRAME));
+        assertTrue("First pair", PairedRuns.isSdkFirst(0));
+        assertFalse("Second pair", PairedRuns.isSdkFirst(1));
+    }
+
+    @Test
+    public void testDeltas() {
+        PairedRuns pairs = new PairedRuns();
+        // The SDK is slower by 200 ns per setup unit and by 50 ns per frame
+        for (int pair = 0; pair < 5; pair++) {
+            long drift = pair * 1000;
+            pairs.add(decodeStats(300, 6000 + drift, 450, 20),
+                    decodeStats(100, 5000 + drift, 400, 20), 10 * pair);
+        }
+        pairs.add(decodeStats(300, 6000, 450, 1), decodeStats(100, 5000, 400, 20), -1);
+        assertEquals("Pairs", 6, pairs.getNumPairs());
+        assertEquals("Create", 200, pairs.getMedianDelta(PairedRuns.PHASE_CREATE));
+        assertEquals("First frame", 1000, pairs.getMedianDelta(PairedRuns.PHASE_FIRST_FRAME));
+        assertEquals("Steady state frame", 50,
+                pairs.getMedianDelta(PairedRuns.PHASE_STEADY_FRAME));
+
+        Metrics metrics = pairs.getMetrics("clip", "decodeOverhead", "codec", "sync");
+        // Setup and release deltas are 200, 400, 600 and 800, first frame 1000
+        assertEquals("Create share", "0.067", metrics.getValue("createDeltaShare"));
+        assertEquals("First frame share", "0.333", metrics.getValue("firstFrameDeltaShare"));
+        assertEquals("Steady state pairs", "5", metrics.getValue("steadyStateFrameDeltaNsCount"));
+        assertNull("No share of the steady state", metrics.getValue("steadyStateFrameDeltaShare"));
+        assertEquals("Native call overhead", "20", metrics.getValue("nativeCallOverheadNsP50"));
+    }
+}
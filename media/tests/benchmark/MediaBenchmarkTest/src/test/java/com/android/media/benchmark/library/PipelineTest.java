@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Exercises the scheduling of {@link Pipeline} with fake stages, runs on the host JVM.
+ */
+public class PipelineTest {
+    private static final int NUM_FRAMES = 40;
+    private static final int QUEUE_CAPACITY = 4;
+
+    /**
+     * Produces frames holding their index, taking the given time per frame
+     */
+    private static class FakeSource implements Pipeline.Stage {
+        private final long mCostMs;
+        private int mIndex;
+
+        FakeSource(long costMs) { mCostMs = costMs; }
+
+        @Override
+        public String getName() { return "source"; }
+
+        @Override
+        public int start() {
+            mIndex = 0;
+            return 0;
+        }
+
+        @Override
+        public int process(Frame input, Pipeline.Output output) throws InterruptedException {
+            if (mIndex == NUM_FRAMES) {
+                return Pipeline.END;
+            }
+            Frame frame = output.obtainFrame();
+            frame.getBuffer().putInt(0, mIndex);
+            frame.set(0, 4, mIndex * 40000L, 0);
+            frame.setOriginTimeNs(System.nanoTime());
+            Thread.sleep(mCostMs);
+            output.send(frame);
+            mIndex++;
+            return Pipeline.CONTINUE;
+        }
+
+        @Override
+        public void stop() {}
+    }
+
+    /**
+     * Forwards frames after the given time, fails on the given frame index if not negative
+     */
+    private static class FakeFilter implements Pipeline.Stage {
+        private final String mName;
+        private final long mCostMs;
+        private final int mFailIndex;
+
+        FakeFilter(String name, long costMs, int failIndex) {
+            mName = name;
+            mCostMs = costMs;
+            mFailIndex = failIndex;
+        }
+
+        @Override
+        public String getName() { return mName; }
+
+        @Override
+        public int start() { return 0; }
+
+        @Override
+        public int process(Frame input, Pipeline.Output output) throws InterruptedException {
+            if (input.isEndOfStream()) {
+                input.release();
+                return Pipeline.END;
+            }
+            if (input.getBuffer().getInt(0) == mFailIndex) {
+                input.release();
+                return -1;
+            }
+            Thread.sleep(mCostMs);
+            output.send(input);
+            return Pipeline.CONTINUE;
+        }
+
+        @Override
+        public void stop() {}
+    }
+
+    /**
+     * Records the index of every frame it receives
+     */
+    private static class FakeSink implements Pipeline.Stage {
+        private final ArrayList<Integer> mReceived = new ArrayList<>();
+        private boolean mSawEndOfStream;
+
+        @Override
+        public String getName() { return "sink"; }
+
+        @Override
+        public int start() { return 0; }
+
+        @Override
+        public int process(Frame input, Pipeline.Output output) {
+            if (input.isEndOfStream()) {
+                mSawEndOfStream = true;
+                input.release();
+                return Pipeline.END;
+            }
+            mReceived.add(input.getBuffer().getInt(0));
+            input.release();
+            return Pipeline.CONTINUE;
+        }
+
+        @Override
+        public void stop() {}
+    }
+
+    @Test(timeout = 10000)
+    public void testFramesDeliveredInOrder() throws Exception {
+        Pipeline pipeline = new Pipeline(QUEUE_CAPACITY);
+        FakeSink sink = new FakeSink();
+        pipeline.addStage(new FakeSource(0));
+        pipeline.addStage(new FakeFilter("filter", 0, -1));
+        pipeline.addStage(sink);
+        assertEquals("Pipeline failed", 0, pipeline.run());
+        assertTrue("End of stream not propagated", sink.mSawEndOfStream);
+        assertEquals("Frames lost", NUM_FRAMES, sink.mReceived.size());
+        for (int i = 0; i < NUM_FRAMES; i++) {
+            assertEquals("Frame out of order", i, (int) sink.mReceived.get(i));
+        }
+        assertEquals("Latency not measured", NUM_FRAMES,
+                pipeline.getEndToEndLatency().getCount());
+    }
+
+    @Test(timeout = 10000)
+    public void testBackpressureAndBottleneck() throws Exception {
+        Pipeline pipeline = new Pipeline(QUEUE_CAPACITY);
+        pipeline.addStage(new FakeSource(0));
+        pipeline.addStage(new FakeFilter("slow", 5, -1));
+        pipeline.addStage(new FakeFilter("fast", 0, -1));
+        pipeline.addStage(new FakeSink());
+        assertEquals("Pipeline failed", 0, pipeline.run());
+        assertEquals("Wrong bottleneck", "slow", pipeline.getBottleneckStage());
+        long maxOccupancy = pipeline.getQueueOccupancy(1).getMax();
+        assertTrue("Queue exceeded its capacity: " + maxOccupancy,
+                maxOccupancy <= QUEUE_CAPACITY);
+        assertEquals("Queue ahead of the bottleneck should fill up", QUEUE_CAPACITY,
+                maxOccupancy);
+        assertTrue("Queue after the bottleneck should stay short",
+                pipeline.getQueueOccupancy(2).getMean() <= 1);
+        assertTrue("Bottleneck utilization too low", pipeline.getUtilization(1) > 0.5);
+    }
+
+    @Test(timeout = 10000)
+    public void testStageErrorAbortsPipeline() throws Exception {
+        Pipeline pipeline = new Pipeline(QUEUE_CAPACITY);
+        FakeSink sink = new FakeSink();
+        pipeline.addStage(new FakeSource(0));
+        pipeline.addStage(new FakeFilter("failing", 1, NUM_FRAMES / 2));
+        pipeline.addStage(sink);
+        assertEquals("Error not reported", -1, pipeline.run());
+        assertTrue("Frames after the error were delivered",
+                sink.mReceived.size() <= NUM_FRAMES / 2);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes and maps back {@link SampleIndex} files, runs on the host JVM.
+ */
+public class SampleIndexTest {
+    private static final int NUM_SAMPLES = 3000;
+
+    @Test
+    public void testIndexWithSampleData() throws Exception {
+        File indexFile = File.createTempFile("SampleIndexTest", ".sidx");
+        try {
+            SampleIndex.Writer writer = new SampleIndex.Writer(indexFile, 1234, 5678, 1, true);
+            for (int i = 0; i < NUM_SAMPLES; i++) {
+                ByteBuffer sample = ByteBuffer.allocate(i % 17 + 1);
+                while (sample.hasRemaining()) {
+                    sample.put((byte) i);
+                }
+                sample.flip();
+                writer.addSample(sample, i * 40000L, i % 25 == 0 ? 1 : 0);
+            }
+            writer.finish();
+
+            SampleIndex index = SampleIndex.open(indexFile);
+            assertTrue("Index not valid for its source", index.isValidFor(1234, 5678, 1));
+            assertFalse("Index valid for a modified source", index.isValidFor(1234, 5679, 1));
+            assertFalse("Index valid for another track", index.isValidFor(1234, 5678, 0));
+            assertEquals("Number of samples", NUM_SAMPLES, index.getNumSamples());
+            for (int i = 0; i < NUM_SAMPLES; i++) {
+                assertEquals("Size of sample " + i, i % 17 + 1, index.getSize(i));
+                assertEquals("Time of sample " + i, i * 40000L, index.getPresentationTimeUs(i));
+                assertEquals("Flags of sample " + i, i % 25 == 0 ? 1 : 0, index.getFlags(i));
+                ByteBuffer data = index.getSampleData(i);
+                assertEquals("Data size of sample " + i, i % 17 + 1, data.remaining());
+                while (data.hasRemaining()) {
+                    assertEquals("Data of sample " + i, (byte) i, data.get());
+                }
+            }
+        } finally {
+            indexFile.delete();
+        }
+    }
+
+    @Test
+    public void testIndexWithoutSampleData() throws Exception {
+        File indexFile = File.createTempFile("SampleIndexTest", ".sidx");
+        try {
+            SampleIndex.Writer writer = new SampleIndex.Writer(indexFile, 1, 2, 0, false);
+            writer.addSample(ByteBuffer.allocate(100), 0, 1);
+            writer.finish();
+            SampleIndex index = SampleIndex.open(indexFile);
+            assertFalse("Index claims sample data", index.hasSampleData());
+            assertEquals("Size of sample", 100, index.getSize(0));
+            assertNull("Sample data returned", index.getSampleData(0));
+        } finally {
+            indexFile.delete();
+        }
+    }
+
+    @Test
+    public void testUnfinishedIndexRejected() throws Exception {
+        File indexFile = File.createTempFile("SampleIndexTest", ".sidx");
+        try {
+            SampleIndex.Writer writer = new SampleIndex.Writer(indexFile, 1, 2, 0, true);
+            writer.addSample(ByteBuffer.allocate(100), 0, 1);
+            writer.abandon();
+            boolean rejected = false;
+            try {
+                SampleIndex.open(indexFile);
+            } catch (IOException e) {
+                rejected = true;
+            }
+            assertTrue("Unfinished index accepted", rejected);
+        } finally {
+            indexFile.delete();
+        }
+    }
+
+    @Test
+    public void testNegativeTableOffsetRejected() throws Exception {
+        File indexFile = File.createTempFile("SampleIndexTest", ".sidx");
+        try {
+            SampleIndex.Writer writer = new SampleIndex.Writer(indexFile, 1, 2, 0, true);
+            writer.addSample(ByteBuffer.allocate(100), 0, 1);
+            writer.finish();
+            // As written by an index whose sample data wrapped the int table offset
+            try (RandomAccessFile file = new RandomAccessFile(indexFile, "rw")) {
+                file.seek(36);
+                // 0x80000040, little endian
+                file.write(new byte[]{0x40, 0, 0, (byte) 0x80});
+            }
+            boolean rejected = false;
+            try {
+                SampleIndex.open(indexFile);
+            } catch (IOException e) {
+                rejected = true;
+            }
+            assertTrue("Negative table offset accepted", rejected);
+        } finally {
+            indexFile.delete();
+        }
+    }
+}
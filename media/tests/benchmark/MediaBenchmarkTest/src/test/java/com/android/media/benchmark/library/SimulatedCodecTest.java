@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the sync and async loops of {@link Decoder} and {@link Encoder}, the {@link Extractor}
+ * and the {@link Muxer} on simulated codecs, extractors and muxers, runs on the host JVM.
+ */
+public class SimulatedCodecTest {
+    private static final int NUM_FRAMES = 60;
+    private static final int FRAME_SIZE = 1000;
+    private static final long FRAME_DURATION_US = 40000;
+
+    /**
+     * Returns the samples of a stream of NUM_FRAMES frames, the last one with the end of stream
+     */
+    private static void makeSamples(ArrayList<ByteBuffer> buffers,
+            ArrayList<MediaCodec.BufferInfo> infos) {
+        for (int i = 0; i < NUM_FRAMES; i++) {
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            info.offset = 0;
+            info.size = FRAME_SIZE;
+            info.presentationTimeUs = i * FRAME_DURATION_US;
+            info.flags = i == NUM_FRAMES - 1 ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0;
+            buffers.add(ByteBuffer.allocate(FRAME_SIZE));
+            infos.add(info);
+        }
+    }
+
+    private static SimulatedCodec.Factory newFactory() {
+        return new SimulatedCodec.Factory().setLatency(100000, 500000).setPipelineDepth(4)
+                .setReorderDepth(2).setSeed(1);
+    }
+
+    @Test
+    public void testDecoderLoops() throws IOException {
+        ArrayList<ByteBuffer> buffers = new ArrayList<>();
+        ArrayList<MediaCodec.BufferInfo> infos = new ArrayList<>();
+        makeSamples(buffers, infos);
+        for (boolean asyncMode : new boolean[]{false, true}) {
+            Decoder decoder = new Decoder(newFactory());
+            decoder.setupDecoder(null);
+            int status = decoder.decode(buffers, infos, asyncMode, new MediaFormat(), "sim");
+            decoder.deInitCodec();
+            assertEquals("Decode status, async " + asyncMode, 0, status);
+            Metrics metrics = decoder.getStats().getMetrics("clip", "decode", "sim",
+                    asyncMode ? "async" : "sync", NUM_FRAMES * FRAME_DURATION_US);
+            assertEquals("Outputs, async " + asyncMode, String.valueOf(NUM_FRAMES),
+                    metrics.getValue("outputs"));
+        }
+    }
+
+    @Test
+    public void testEncoderLoops() throws IOException {
+        File input = File.createTempFile("raw.", ".yuv");
+        try {
+            try (FileOutputStream output = new FileOutputStream(input)) {
+                output.write(new byte[NUM_FRAMES * FRAME_SIZE]);
+            }
+            for (boolean asyncMode : new boolean[]{false, true}) {
+                Encoder encoder = new Encoder(newFactory().setBufferSizes(4 * FRAME_SIZE, 100));
+                try (FileInputStream inputStream = new FileInputStream(input)) {
+                    encoder.setupEncoder(null, inputStream);
+                    int status = encoder.encode("sim", new MediaFormat(), "video/avc", 25, 0,
+                            FRAME_SIZE, asyncMode);
+                    encoder.deInitEncoder();
+                    assertEquals("Encode status, async " + asyncMode, 0, status);
+                }
+                Metrics metrics = encoder.getStats().getMetrics("clip", "encode", "sim",
+                        asyncMode ? "async" : "sync", NUM_FRAMES * FRAME_DURATION_US);
+                assertEquals("Outputs, async " + asyncMode, String.valueOf(NUM_FRAMES),
+                        metrics.getValue("outputs"));
+                assertEquals("Output bytes, async " + asyncMode,
+                        String.valueOf(NUM_FRAMES * 100), metrics.getValue("totalSizeInBytes"));
+            }
+        } finally {
+            assertTrue(input.delete());
+        }
+    }
+
+    @Test
+    public void testReorderingAndPipelineDepth() {
+        SimulatedCodec codec = (SimulatedCodec) new SimulatedCodec.Factory()
+                .setPipelineDepth(4).setReorderDepth(2).setBufferCounts(8, 1)
+                .createDecoderByType("video/avc");
+        codec.configure(new MediaFormat(), 0);
+        codec.start();
+        // Decoding order of I P B B P B B, the end of stream last. The single output buffer is
+        // held until all frames are queued, filling the pipeline.
+        long[] timesUs = {0, 3, 1, 2, 6, 4, 5, 7};
+        for (int i = 0; i < timesUs.length; i++) {
+            int index = codec.dequeueInputBuffer(-1);
+            codec.queueInputBuffer(index, 0, 10, timesUs[i],
+                    i == timesUs.length - 1 ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+        }
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        assertEquals("Format change first", MediaCodec.INFO_OUTPUT_FORMAT_CHANGED,
+                codec.dequeueOutputBuffer(info, -1));
+        for (int i = 0; i < timesUs.length; i++) {
+            int index = codec.dequeueOutputBuffer(info, -1);
+            assertTrue("Output buffer " + index, index >= 0);
+            assertEquals("Presentation order", i, info.presentationTimeUs);
+            assertEquals("Output size", 10, codec.getOutputBuffer(index).remaining());
+            codec.releaseOutputBuffer(index, false);
+        }
+        assertTrue("End of stream", (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0);
+        assertEquals("No more output", MediaCodec.INFO_TRY_AGAIN_LATER,
+                codec.dequeueOutputBuffer(info, 1000));
+        assertEquals("Peak frames in flight", 4, codec.getPeakFramesInFlight());
+        codec.release();
+    }
+
+    @Test
+    public void testFailureInjection() throws IOException {
+        ArrayList<ByteBuffer> buffers = new ArrayList<>();
+        ArrayList<MediaCodec.BufferInfo> infos = new ArrayList<>();
+        makeSamples(buffers, infos);
+        Decoder decoder = new Decoder(newFactory().setFailAfterFrames(10));
+        decoder.setupDecoder(null);
+        assertEquals("Async decode of a failing codec", -1,
+                decoder.decode(buffers, infos, true, new MediaFormat(), "sim"));
+        decoder.deInitCodec();
+        decoder = new Decoder(newFactory().setFailAfterFrames(10));
+        decoder.setupDecoder(null);
+        assertEquals("Sync decode of a failing codec", -1,
+                decoder.decode(buffers, infos, false, new MediaFormat(), "sim"));
+        decoder.deInitCodec();
+    }
+
+    @Test
+    public void testExtractLargerThanMaxInputSize() {
+        MediaFormat format = new MediaFormat();
+        format.setLong(MediaFormat.KEY_DURATION, NUM_FRAMES * FRAME_DURATION_US);
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, FRAME_SIZE / 4);
+        SimulatedExtractor source = new SimulatedExtractor();
+        source.addTrack(format, NUM_FRAMES, FRAME_SIZE, FRAME_DURATION_US, 10);
+        Extractor extractor = new Extractor(new BufferPool());
+        extractor.setUpExtractor(source);
+        assertEquals("Extract status", 0, extractor.selectExtractorTrack(0));
+        int numSamples = 0;
+        while (extractor.getFrameSample() > 0) {
+            assertEquals("Size of sample " + numSamples, FRAME_SIZE,
+                    extractor.getFrameBuffer().remaining());
+            numSamples++;
+        }
+        assertEquals("Samples", NUM_FRAMES, numSamples);
+        extractor.deinitExtractor();
+    }
+
+    @Test
+    public void testExtractAndMux() {
+        MediaFormat format = new MediaFormat();
+        format.setLong(MediaFormat.KEY_DURATION, NUM_FRAMES * FRAME_DURATION_US);
+        SimulatedExtractor source = new SimulatedExtractor();
+        source.addTrack(format, NUM_FRAMES, FRAME_SIZE, FRAME_DURATION_US, 10);
+        Extractor extractor = new Extractor(new BufferPool());
+        assertEquals("Tracks", 1, extractor.setUpExtractor(source));
+        assertEquals("Extract status", 0, extractor.selectExtractorTrack(0));
+        ArrayList<ByteBuffer> buffers = new ArrayList<>();
+        ArrayList<MediaCodec.BufferInfo> infos = new ArrayList<>();
+        while (extractor.getFrameSample() > 0) {
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            info.size = extractor.getBufferInfo().size;
+            info.presentationTimeUs = extractor.getBufferInfo().presentationTimeUs;
+            info.flags = extractor.getBufferInfo().flags;
+            ByteBuffer buffer = ByteBuffer.allocate(info.size);
+            buffer.put(extractor.getFrameBuffer());
+            buffers.add(buffer);
+            infos.add(info);
+        }
+        assertEquals("Samples", NUM_FRAMES, buffers.size());
+        assertEquals("Sync sample size", FRAME_SIZE,
+                extractor.getSyncFrameSample(13 * FRAME_DURATION_US));
+        assertEquals("Sync sample before 13 frames", 10 * FRAME_DURATION_US,
+                extractor.getBufferInfo().presentationTimeUs);
+        extractor.deinitExtractor();
+
+        SimulatedMuxer sink = new SimulatedMuxer();
+        Muxer muxer = new Muxer();
+        ArrayList<MediaFormat> formats = new ArrayList<>();
+        formats.add(format);
+        assertEquals("Muxer tracks", 1, muxer.setUpMuxer(sink, formats));
+        assertEquals("Mux status", 0, muxer.mux(0, buffers, infos));
+        muxer.deInitMuxer();
+        assertEquals("Muxed samples", NUM_FRAMES, sink.getNumSamples(0));
+        assertEquals("Muxed bytes", NUM_FRAMES * FRAME_SIZE, sink.getNumBytes());
+    }
+}
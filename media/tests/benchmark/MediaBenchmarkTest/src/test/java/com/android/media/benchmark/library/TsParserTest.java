@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.media.benchmark.library;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Parses transport streams built in memory, and the ts resources of the benchmark if the
+ * MEDIA_BENCHMARK_RES environment variable points to them. Runs on the host JVM.
+ */
+public class TsParserTest {
+    private static final int VIDEO_PID = 0x100;
+    private static final int AUDIO_PID = 0x101;
+    private static final int NUM_FRAMES = 12;
+    // The 33 bit PTS and PCR counters wrap in the middle of the stream
+    private static final long FIRST_PTS = (1L << 33) - 10000;
+    private static final int VIDEO_FRAME_TICKS = 3600;
+    private static final int AUDIO_FRAME_TICKS = 1920;
+
+    private final ByteArrayOutputStream mStream = new ByteArrayOutputStream();
+    private final int[] mContinuity = new int[0x2000];
+
+    private void writePackets(int pid, byte[] data, long pcr) {
+        int offset = 0;
+        boolean first = true;
+        while (offset < data.length) {
+            byte[] packet = new byte[188];
+            packet[0] = 0x47;
+            packet[1] = (byte) ((first ? 0x40 : 0) | (pid >> 8));
+            packet[2] = (byte) pid;
+            int position = 4;
+            int available = 184;
+            boolean hasPcr = first && pcr >= 0;
+            int remaining = data.length - offset;
+            if (hasPcr || remaining < available) {
+                // Adaptation field carrying the PCR and stuffing the last packet
+                int adaptationLength = Math.max(hasPcr ? 7 : 0, 183 - remaining);
+                packet[3] = 0x30;
+                packet[4] = (byte) adaptationLength;
+                if (adaptationLength > 0) {
+                    packet[5] = (byte) (hasPcr ? 0x10 : 0);
+                    for (int i = 6; i < 5 + adaptationLength; i++) {
+                        packet[i] = (byte) 0xff;
+                    }
+                }
+                if (hasPcr) {
+                    packet[6] = (byte) (pcr >> 25);
+                    packet[7] = (byte) (pcr >> 17);
+                    packet[8] = (byte) (pcr >> 9);
+                    packet[9] = (byte) (pcr >> 1);
+                    packet[10] = (byte) ((pcr & 1) << 7);
+                    packet[11] = 0;
+                }
+                position = 5 + adaptationLength;
+                available = 188 - position;
+            } else {
+                packet[3] = 0x10;
+            }
+            packet[3] |= mContinuity[pid]++ & 0xf;
+            int length = Math.min(available, remaining);
+            System.arraycopy(data, offset, packet, position, length);
+            offset += length;
+            first = false;
+            mStream.write(packet, 0, packet.length);
+        }
+    }
+
+    private static byte[] section(int tableId, int... body) {
+        // Pointer field, table id, section length covering body and a CRC which is not checked
+        byte[] section = new byte[4 + body.length + 4];
+        section[1] = (byte) tableId;
+        section[2] = (byte) (0xb0 | ((body.length + 4) >> 8));
+        section[3] = (byte) (body.length + 4);
+        for (int i = 0; i < body.length; i++) {
+            section[4 + i] = (byte) body[i];
+        }
+        return section;
+    }
+
+    private static byte[] pes(int streamId, long pts, byte[] payload) {
+        pts &= (1L << 33) - 1;
+        byte[] pes = new byte[14 + payload.length];
+        pes[2] = 1;
+        pes[3] = (byte) streamId;
+        pes[6] = (byte) 0x80;
+        pes[7] = (byte) 0x80;
+        pes[8] = 5;
+        pes[9] = (byte) (0x21 | ((pts >> 29) & 0x0e));
+        pes[10] = (byte) (pts >> 22);
+        pes[11] = (byte) (((pts >> 14) & 0xfe) | 1);
+        pes[12] = (byte) (pts >> 7);
+        pes[13] = (byte) (((pts << 1) & 0xfe) | 1);
+        System.arraycopy(payload, 0, pes, 14, payload.length);
+        return pes;
+    }
+
+    private static byte[] videoFrame(int frame) {
+        // Access unit delimiter, then an IDR slice every 4 frames and a non-IDR slice otherwise,
+        // large enough to span several packets
+        byte[] data = new byte[500 + frame * 37];
+        byte[] header = {0, 0, 0, 1, 0x09, (byte) 0xf0, 0, 0, 1,
+                (byte) (frame % 4 == 0 ? 0x65 : 0x41)};
+        System.arraycopy(header, 0, data, 0, header.length);
+        for (int i = header.length; i < data.length; i++) {
+            data[i] = (byte) (frame + i % 7 + 2);
+        }
+        return data;
+    }
+
+    private static byte[] audioFrame(int frame) {
+        byte[] data = new byte[100 + frame];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (frame * 3 + i);
+        }
+        return data;
+    }
+
+    private byte[] buildStream() {
+        writePackets(0, section(0, 0, 1, 0xc1, 0, 0, 0, 1, 0xe0, 0x20), -1);
+        writePackets(0x20, section(2, 0, 1, 0xc1, 0, 0, 0xe1, 0x00, 0xf0, 0x00,
+                0x1b, 0xe1, 0x00, 0xf0, 0x00, 0x0f, 0xe1, 0x01, 0xf0, 0x00), -1);
+        for (int frame = 0; frame < NUM_FRAMES; frame++) {
+            long pts = FIRST_PTS + (long) frame * VIDEO_FRAME_TICKS;
+            writePackets(VIDEO_PID, pes(0xe0, pts, videoFrame(frame)), pts - 9000);
+            for (int i = 0; i < 2; i++) {
+                int audio = frame * 2 + i;
+                writePackets(AUDIO_PID,
+                        pes(0xc0, FIRST_PTS + (long) audio * AUDIO_FRAME_TICKS, audioFrame(audio)),
+                        -1);
+            }
+        }
+        return mStream.toByteArray();
+    }
+
+    private static void assertSample(TsParser parser, ByteBuffer buffer, byte[] expected,
+            long expectedTimeUs, String name) {
+        int size = parser.readSampleData(buffer, 3);
+        assertEquals(name + " size", expected.length, size);
+        assertEquals(name + " buffer position", 3, buffer.position());
+        for (int i = 0; i < size; i++) {
+            assertEquals(name + " byte " + i, expected[i], buffer.get(3 + i));
+        }
+        assertEquals(name + " time", expectedTimeUs, parser.getSampleTime());
+    }
+
+    @Test
+    public void testSynthesizedStream() throws Exception {
+        TsParser parser = new TsParser(ByteBuffer.wrap(buildStream()));
+        assertEquals("Number of tracks", 2, parser.getTrackCount());
+        assertEquals("Video mime", "video/avc", parser.getTrackMime(0));
+        assertEquals("Audio mime", "audio/mp4a-latm", parser.getTrackMime(1));
+        assertEquals("Video samples", NUM_FRAMES, parser.getTrackSampleCount(0));
+        assertEquals("Audio samples", NUM_FRAMES * 2, parser.getTrackSampleCount(1));
+        assertEquals("PCRs", NUM_FRAMES, parser.getNumPcrs());
+        assertEquals("PCR duration", (NUM_FRAMES - 1) * VIDEO_FRAME_TICKS * 100L / 9,
+                parser.getPcrDurationUs());
+        assertEquals("Continuity errors", 0, parser.getNumContinuityErrors());
+        assertEquals("Resyncs", 0, parser.getNumResyncs());
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
+        parser.selectTrack(0);
+        for (int frame = 0; frame < NUM_FRAMES; frame++) {
+            assertEquals("Video track index", 0, parser.getSampleTrackIndex());
+            assertSample(parser, buffer, videoFrame(frame), frame * VIDEO_FRAME_TICKS * 100L / 9,
+                    "Video frame " + frame);
+            assertEquals("Video frame " + frame + " flags", frame % 4 == 0 ? 1 : 0,
+                    parser.getSampleFlags());
+            parser.advance();
+        }
+        assertEquals("Sample after the last one", -1, parser.readSampleData(buffer, 0));
+
+        parser.selectTrack(1);
+        parser.seekTo(0);
+        int audio = 0;
+        int video = 0;
+        long lastTimeUs = -1;
+        do {
+            assertTrue("Samples out of order", parser.getSampleTime() >= lastTimeUs);
+            lastTimeUs = parser.getSampleTime();
+            if (parser.getSampleTrackIndex() == 1) {
+                assertSample(parser, buffer, audioFrame(audio),
+                        audio * AUDIO_FRAME_TICKS * 100L / 9, "Audio frame " + audio);
+                audio++;
+            } else {
+                video++;
+            }
+        } while (parser.advance());
+        assertEquals("Interleaved audio samples", NUM_FRAMES * 2, audio);
+        assertEquals("Interleaved video samples", NUM_FRAMES, video);
+
+        parser.unselectTrack(1);
+        parser.seekTo(7 * VIDEO_FRAME_TICKS * 100L / 9);
+        assertEquals("Seek to previous sync sample", 4 * VIDEO_FRAME_TICKS * 100L / 9,
+                parser.getSampleTime());
+        parser.release();
+    }
+
+    @Test
+    public void testResyncAfterGarbage() throws Exception {
+        byte[] stream = buildStream();
+        byte[] shifted = new byte[stream.length + 5];
+        System.arraycopy(stream, 0, shifted, 5, stream.length);
+        TsParser parser = new TsParser(ByteBuffer.wrap(shifted));
+        assertEquals("Resyncs", 5, parser.getNumResyncs());
+        assertEquals("Video samples", NUM_FRAMES, parser.getTrackSampleCount(0));
+    }
+
+    @Test
+    public void testNoProgramRejected() {
+        byte[] stream = new byte[188 * 4];
+        for (int i = 0; i < stream.length; i += 188) {
+            stream[i] = 0x47;
+            stream[i + 1] = 0x1f;
+            stream[i + 2] = (byte) 0xff;
+            stream[i + 3] = 0x10;
+        }
+        boolean rejected = false;
+        try {
+            new TsParser(ByteBuffer.wrap(stream));
+        } catch (IOException e) {
+            rejected = true;
+        }
+        assertTrue("Stream without program accepted", rejected);
+    }
+
+    @Test
+    public void testBenchmarkResources() throws Exception {
+        String resourceDir = System.getenv("MEDIA_BENCHMARK_RES");
+        assumeTrue("MEDIA_BENCHMARK_RES not set", resourceDir != null);
+        File[] files = new File(resourceDir).listFiles((dir, name) -> name.endsWith(".ts"));
+        assumeTrue("No ts resources in " + resourceDir, files != null && files.length > 0);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(4 * 1024 * 1024);
+        for (File file : files) {
+            try (FileInputStream input = new FileInputStream(file)) {
+                TsParser parser = new TsParser(input.getChannel());
+                for (int track = 0; track < parser.getTrackCount(); track++) {
+                    parser.selectTrack(track);
+                }
+                long totalSize = 0;
+                do {
+                    int size = parser.readSampleData(buffer, 0);
+                    assertTrue(file.getName() + " invalid sample size", size >= 0);
+                    totalSize += size;
+                } while (parser.advance());
+                assertTrue(file.getName() + " samples larger than the file",
+                        totalSize <= file.length());
+                assertEquals(file.getName() + " continuity errors", 0,
+                        parser.getNumContinuityErrors());
+                parser.release();
+            }
+        }
+    }
+}
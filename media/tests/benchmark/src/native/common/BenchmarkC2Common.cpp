@@ -46,6 +46,7 @@ int32_t BenchmarkC2Common::setupCodec2() {
         mWorkQueue.emplace_back(new C2Work);
     }
     if (!mStats) mStats = new Stats();
+    mStats->setLayer("Codec2");
 
     return status;
 }
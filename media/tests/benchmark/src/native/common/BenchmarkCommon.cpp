@@ -20,19 +20,80 @@
 #include "BenchmarkCommon.h"
 #include <iostream>
 
+static atomic<int32_t> sDefaultCallBackQueueType(CALLBACK_QUEUE_LOCKED);
+
+void setDefaultCallBackQueueType(CallBackQueueType type) { sDefaultCallBackQueueType = type; }
+
+CallBackQueueType getDefaultCallBackQueueType() {
+    return (CallBackQueueType)sDefaultCallBackQueueType.load();
+}
+
 void CallBackHandle::ioThread() {
     ALOGV("In %s mIsDone : %d, mSawError : %d ", __func__, mIsDone, mSawError);
+    mStats->setCallBackQueue(mQueueType);
+    if (mQueueType == CALLBACK_QUEUE_SPSC) {
+        CallBackRecord records[kCallBackBatchSize];
+        while (!mIsDone && !mSawError) {
+            uint32_t count = mIORing.popBatch(records, kCallBackBatchSize);
+            mStats->addCallBackBatch();
+            for (uint32_t i = 0; i < count && !mIsDone && !mSawError; i++) {
+                handleCallBack(records[i]);
+            }
+        }
+        return;
+    }
     while (!mIsDone && !mSawError) {
         auto task = mIOQueue.pop();
+        mStats->addCallBackBatch();
         task();
     }
 }
 
+void CallBackHandle::queueCallBack(const CallBackRecord &record) {
+    if (mQueueType == CALLBACK_QUEUE_SPSC) {
+        mIORing.push(record);
+    } else {
+        mIOQueue.push([this, record]() { handleCallBack(record); });
+    }
+}
+
+void CallBackHandle::handleCallBack(const CallBackRecord &record) {
+    mStats->addCallBackLatency(systemTime(CLOCK_MONOTONIC) - record.queuedTimeNs);
+    switch (record.type) {
+        case CALLBACK_INPUT_AVAILABLE:
+            onInputAvailable(record.codec, record.index);
+            break;
+        case CALLBACK_OUTPUT_AVAILABLE: {
+            AMediaCodecBufferInfo bufferInfo = record.bufferInfo;
+            onOutputAvailable(record.codec, record.index, &bufferInfo);
+            break;
+        }
+        case CALLBACK_FORMAT_CHANGED:
+            onFormatChanged(record.codec, record.format);
+            break;
+        case CALLBACK_ERROR:
+            onError(record.codec, record.err);
+            // Stop the IO thread only once the error woke the thread waiting for the codec
+            mSawError = true;
+            break;
+    }
+}
+
+static CallBackRecord newCallBackRecord(int32_t type, AMediaCodec *codec) {
+    CallBackRecord record = {};
+    record.type = type;
+    record.codec = codec;
+    record.queuedTimeNs = systemTime(CLOCK_MONOTONIC);
+    return record;
+}
+
 void OnInputAvailableCB(AMediaCodec *codec, void *userdata, int32_t index) {
     ALOGV("OnInputAvailableCB: index(%d)", index);
     CallBackHandle *self = (CallBackHandle *)userdata;
     self->getStats()->addInputTime();
-    self->mIOQueue.push([self, codec, index]() { self->onInputAvailable(codec, index); });
+    CallBackRecord record = newCallBackRecord(CALLBACK_INPUT_AVAILABLE, codec);
+    record.index = index;
+    self->queueCallBack(record);
 }
 
 void OnOutputAvailableCB(AMediaCodec *codec, void *userdata, int32_t index,
@@ -41,36 +102,39 @@ void OnOutputAvailableCB(AMediaCodec *codec, void *userdata, int32_t index,
           bufferInfo->size, (long long)bufferInfo->presentationTimeUs, bufferInfo->flags);
     CallBackHandle *self = (CallBackHandle *)userdata;
     self->getStats()->addOutputTime();
-    AMediaCodecBufferInfo bufferInfoCopy = *bufferInfo;
-    self->mIOQueue.push([self, codec, index, bufferInfoCopy]() {
-        AMediaCodecBufferInfo bc = bufferInfoCopy;
-        self->onOutputAvailable(codec, index, &bc);
-    });
+    CallBackRecord record = newCallBackRecord(CALLBACK_OUTPUT_AVAILABLE, codec);
+    record.index = index;
+    record.bufferInfo = *bufferInfo;
+    self->queueCallBack(record);
 }
 
 void OnFormatChangedCB(AMediaCodec *codec, void *userdata, AMediaFormat *format) {
     ALOGV("OnFormatChangedCB: format(%s)", AMediaFormat_toString(format));
     CallBackHandle *self = (CallBackHandle *)userdata;
-    self->mIOQueue.push([self, codec, format]() { self->onFormatChanged(codec, format); });
+    CallBackRecord record = newCallBackRecord(CALLBACK_FORMAT_CHANGED, codec);
+    record.format = format;
+    self->queueCallBack(record);
 }
 
 void OnErrorCB(AMediaCodec *codec, void *userdata, media_status_t err, int32_t actionCode,
                const char *detail) {
-    (void)codec;
     ALOGE("OnErrorCB: err(%d), actionCode(%d), detail(%s)", err, actionCode, detail);
     CallBackHandle *self = (CallBackHandle *)userdata;
-    self->mSawError = true;
-    self->mIOQueue.push([self, codec, err]() { self->onError(codec, err); });
+    CallBackRecord record = newCallBackRecord(CALLBACK_ERROR, codec);
+    record.err = err;
+    self->queueCallBack(record);
 }
 
 AMediaCodec *createMediaCodec(AMediaFormat *format, const char *mime, string codecName,
-                              bool isEncoder) {
+                              bool isEncoder, nsecs_t *createTimeNs) {
     ALOGV("In %s", __func__);
     if (!mime) {
         ALOGE("Please specify a mime type to create codec");
         return nullptr;
     }
 
+    nsecs_t sTime = systemTime(CLOCK_MONOTONIC);
+
     AMediaCodec *codec;
     if (!codecName.empty()) {
         codec = AMediaCodec_createCodecByName(codecName.c_str());
@@ -90,6 +154,8 @@ AMediaCodec *createMediaCodec(AMediaFormat *format, const char *mime, string cod
         }
     }
 
+    if (createTimeNs) *createTimeNs = systemTime(CLOCK_MONOTONIC) - sTime;
+
     /* Configure codec with the given format*/
     const char *s = AMediaFormat_toString(format);
     ALOGI("Input format: %s\n", s);
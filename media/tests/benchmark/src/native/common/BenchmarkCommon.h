@@ -19,6 +19,9 @@
 
 #include <sys/stat.h>
 #include <inttypes.h>
+#include <atomic>
+#include <condition_variable>
+#include <functional>
 #include <mutex>
 #include <queue>
 #include <thread>
@@ -38,6 +41,20 @@ constexpr uint32_t kMaxBufferSize = 1024 * 1024 * 16;
 // Change in kDefaultAudioEncodeFrameSize should also be taken to
 // AUDIO_ENCODE_DEFAULT_MAX_INPUT_SIZE present in Encoder.java
 constexpr uint32_t kDefaultAudioEncodeFrameSize = 4096;
+// Records of the lock-free callback ring, more than the buffers a codec holds
+constexpr uint32_t kCallBackRingSize = 256;
+// Records handled by the IO thread per drain of the ring
+constexpr uint32_t kCallBackBatchSize = 32;
+// Polls of an empty ring before the IO thread parks
+constexpr uint32_t kCallBackSpinCount = 2000;
+
+// Queue carrying the codec callbacks to the IO thread
+enum CallBackQueueType {
+    // Closures in a queue guarded by a mutex, one closure handled per wake up
+    CALLBACK_QUEUE_LOCKED = 0,
+    // Records in a lock-free single producer single consumer ring, handled in batches
+    CALLBACK_QUEUE_SPSC = 1,
+};
 
 template <typename T>
 class CallBackQueue {
@@ -71,9 +88,101 @@ class CallBackQueue {
     condition_variable mQueueNotEmptyCondition;
 };
 
+/**
+ * Bounded single producer single consumer ring of trivially copyable records, without locks on
+ * the push and pop paths. The consumer polls an empty ring for a while before parking on a
+ * condition variable, which the producer only signals while the consumer is parked.
+ */
+template <typename T, uint32_t kCapacity>
+class CallBackRing {
+    static_assert((kCapacity & (kCapacity - 1)) == 0, "Capacity must be a power of two");
+    static_assert(is_trivially_copyable<T>::value, "Records must be trivially copyable");
+
+  public:
+    CallBackRing() : mHead(0), mTail(0), mParked(false) {}
+
+    // Waits for room if the ring is full, which only happens if the consumer stalls
+    void push(const T &elem) {
+        uint32_t tail = mTail.load(memory_order_relaxed);
+        while (tail - mHead.load(memory_order_acquire) == kCapacity) this_thread::yield();
+        mRecords[tail & (kCapacity - 1)] = elem;
+        mTail.store(tail + 1, memory_order_release);
+        // Orders the publication before reading mParked, against the fence of the consumer
+        atomic_thread_fence(memory_order_seq_cst);
+        if (mParked.load(memory_order_relaxed)) {
+            lock_guard<mutex> lock(mMutex);
+            mNotEmptyCondition.notify_one();
+        }
+    }
+
+    // Pops up to maxCount records into out, waiting for at least one
+    uint32_t popBatch(T *out, uint32_t maxCount) {
+        uint32_t head = mHead.load(memory_order_relaxed);
+        uint32_t tail = waitNotEmpty(head);
+        uint32_t count = min(tail - head, maxCount);
+        for (uint32_t i = 0; i < count; i++) out[i] = mRecords[(head + i) & (kCapacity - 1)];
+        mHead.store(head + count, memory_order_release);
+        return count;
+    }
+
+  private:
+    uint32_t waitNotEmpty(uint32_t head) {
+        uint32_t tail;
+        for (uint32_t spin = 0; spin < kCallBackSpinCount; spin++) {
+            tail = mTail.load(memory_order_acquire);
+            if (tail != head) return tail;
+        }
+        unique_lock<mutex> lock(mMutex);
+        mParked.store(true, memory_order_relaxed);
+        atomic_thread_fence(memory_order_seq_cst);
+        mNotEmptyCondition.wait(lock, [&]() {
+            tail = mTail.load(memory_order_acquire);
+            return tail != head;
+        });
+        mParked.store(false, memory_order_relaxed);
+        return tail;
+    }
+
+    T mRecords[kCapacity];
+    // Written by the consumer only
+    atomic<uint32_t> mHead;
+    // Written by the producer only
+    atomic<uint32_t> mTail;
+    atomic<bool> mParked;
+    mutex mMutex;
+    condition_variable mNotEmptyCondition;
+};
+
+enum CallBackType {
+    CALLBACK_INPUT_AVAILABLE,
+    CALLBACK_OUTPUT_AVAILABLE,
+    CALLBACK_FORMAT_CHANGED,
+    CALLBACK_ERROR,
+};
+
+// A codec callback, queued without any allocation
+struct CallBackRecord {
+    int32_t type;
+    int32_t index;
+    media_status_t err;
+    AMediaCodec *codec;
+    AMediaFormat *format;
+    AMediaCodecBufferInfo bufferInfo;
+    nsecs_t queuedTimeNs;
+};
+
+// Queue used by the codecs created from now on
+void setDefaultCallBackQueueType(CallBackQueueType type);
+
+CallBackQueueType getDefaultCallBackQueueType();
+
 class CallBackHandle {
   public:
-    CallBackHandle() : mSawError(false), mIsDone(false), mStats(nullptr) {
+    CallBackHandle()
+        : mSawError(false),
+          mIsDone(false),
+          mQueueType(getDefaultCallBackQueueType()),
+          mStats(nullptr) {
         mStats = new Stats();
     }
 
@@ -106,12 +215,20 @@ class CallBackHandle {
 
     Stats *getStats() { return mStats; }
 
+    // Queues a callback to the IO thread, from the callback thread of the codec
+    void queueCallBack(const CallBackRecord &record);
+
+    // Handles a queued callback on the IO thread
+    void handleCallBack(const CallBackRecord &record);
+
     // Keep a queue of all function callbacks.
     typedef function<void()> IOTask;
     CallBackQueue<IOTask> mIOQueue;
+    CallBackRing<CallBackRecord, kCallBackRingSize> mIORing;
     thread mIOThread;
     bool mSawError;
     bool mIsDone;
+    CallBackQueueType mQueueType;
 
   protected:
     Stats *mStats;
@@ -128,8 +245,8 @@ void OnFormatChangedCB(AMediaCodec *codec, void *userdata, AMediaFormat *format)
 void OnErrorCB(AMediaCodec *codec, void * /* userdata */, media_status_t err, int32_t actionCode,
                const char *detail);
 
-// Utility to create and configure AMediaCodec
+// Utility to create and configure AMediaCodec, optionally returning the time taken to create it
 AMediaCodec *createMediaCodec(AMediaFormat *format, const char *mime, string codecName,
-                              bool isEncoder);
+                              bool isEncoder, nsecs_t *createTimeNs = nullptr);
 
 #endif  // __BENCHMARK_COMMON_H__
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef __BENCHMARK_RESULTS_H__
+#define __BENCHMARK_RESULTS_H__
+
+#include <string.h>
+#include <string>
+
+#include "Stats.h"
+
+// Layout of the results shared with Java, must match NativeResults.java
+constexpr int32_t kResultsVersion = 2;
+constexpr int64_t kResultsHeaderSize = 16;
+constexpr int64_t kResultsRunHeaderSize = 192;
+constexpr int32_t kResultsNumPhases = 4;
+
+enum {
+    RESULTS_MODE_NONE = 0,
+    RESULTS_MODE_SYNC = 1,
+    RESULTS_MODE_ASYNC = 2,
+};
+
+enum {
+    RESULTS_PHASE_READ_INPUT = 0,
+    RESULTS_PHASE_PROCESS = 1,
+    RESULTS_PHASE_TOTAL = 2,
+};
+
+/**
+ * Writes the per-frame times and sizes recorded by the stats of a run, with its init, deinit
+ * and phase times, to a buffer owned by the caller, so that the caller reads them without any
+ * copy. Every run is appended to its own slot; runs beyond the capacity of the buffer are
+ * dropped and frames beyond the capacity of a slot are truncated.
+ */
+class BenchmarkResults {
+  public:
+    BenchmarkResults(void *buffer, int64_t size)
+        : mBuffer(static_cast<uint8_t *>(buffer)), mMaxRuns(0), mMaxFrames(0) {
+        memset(mPhaseTimesNs, 0, sizeof(mPhaseTimesNs));
+        if (!mBuffer || size < kResultsHeaderSize) {
+            mBuffer = nullptr;
+            return;
+        }
+        if (read<int32_t>(0) != kResultsVersion) {
+            ALOGE("Unsupported results version %d", read<int32_t>(0));
+            mBuffer = nullptr;
+            return;
+        }
+        mMaxRuns = read<int32_t>(4);
+        mMaxFrames = read<int32_t>(8);
+        if (mMaxRuns < 0 || mMaxFrames < 0 ||
+            kResultsHeaderSize + mMaxRuns * getRunSize() > size) {
+            ALOGE("Results buffer of %" PRId64 " bytes too small", size);
+            mBuffer = nullptr;
+        }
+    }
+
+    bool isEnabled() { return mBuffer != nullptr; }
+
+    void setPhaseTime(int32_t phase, nsecs_t timeNs) {
+        if (phase >= 0 && phase < kResultsNumPhases) mPhaseTimesNs[phase] = timeNs;
+    }
+
+    /**
+     * Appends the results of a run and clears the phase times.
+     *
+     * \param stats      stats of the run, read before they are reset
+     * \param trackId    track of the input the run processed
+     * \param mode       RESULTS_MODE_* the run was operating in
+     * \param durationUs duration of the input in microseconds
+     * \return false if the buffer is full or not enabled
+     */
+    bool addRun(Stats *stats, int32_t trackId, int32_t mode, int64_t durationUs) {
+        if (!mBuffer || !stats) return false;
+        int32_t run = read<int32_t>(12);
+        if (run >= mMaxRuns) {
+            ALOGW("Results buffer full, run dropped");
+            return false;
+        }
+        int64_t offset = kResultsHeaderSize + run * getRunSize();
+        const vector<nsecs_t> &inputTimes = stats->getInputTimer();
+        vector<nsecs_t> outputTimes = stats->getOutputTimer();
+        const vector<int32_t> &frameSizes = stats->getFrameSizes();
+        int32_t numInputTimes = min<int32_t>(inputTimes.size(), mMaxFrames);
+        int32_t numOutputTimes = min<int32_t>(outputTimes.size(), mMaxFrames);
+        int32_t numFrameSizes = min<int32_t>(frameSizes.size(), mMaxFrames);
+        bool truncated = inputTimes.size() > (size_t)mMaxFrames ||
+                         outputTimes.size() > (size_t)mMaxFrames ||
+                         frameSizes.size() > (size_t)mMaxFrames;
+        write<int32_t>(offset, trackId);
+        write<int32_t>(offset + 4, mode);
+        write<int32_t>(offset + 8, numInputTimes);
+        write<int32_t>(offset + 12, numOutputTimes);
+        write<int32_t>(offset + 16, numFrameSizes);
+        write<int32_t>(offset + 20, truncated ? 1 : 0);
+        write<int64_t>(offset + 24, stats->getInitTime());
+        write<int64_t>(offset + 32, stats->getDeInitTime());
+        write<int64_t>(offset + 40, stats->getStartTime());
+        write<int64_t>(offset + 48, durationUs);
+        memcpy(mBuffer + offset + 56, mPhaseTimesNs, sizeof(mPhaseTimesNs));
+        write<int64_t>(offset + 88, stats->getCreateTime());
+        write<int64_t>(offset + 96, stats->getConfigureTime());
+        write<int64_t>(offset + 104, stats->getCodecStartTime());
+        writeCallBackLatencies(offset + 112, stats);
+        int64_t arrays = offset + kResultsRunHeaderSize;
+        memcpy(mBuffer + arrays, inputTimes.data(), numInputTimes * sizeof(nsecs_t));
+        arrays += mMaxFrames * sizeof(nsecs_t);
+        memcpy(mBuffer + arrays, outputTimes.data(), numOutputTimes * sizeof(nsecs_t));
+        arrays += mMaxFrames * sizeof(nsecs_t);
+        memcpy(mBuffer + arrays, frameSizes.data(), numFrameSizes * sizeof(int32_t));
+        // Published last, once the slot is complete
+        write<int32_t>(12, run + 1);
+        memset(mPhaseTimesNs, 0, sizeof(mPhaseTimesNs));
+        return true;
+    }
+
+  private:
+    // Queue, number of callbacks and of batches, then mean, p50, p90, p99 and max latency
+    void writeCallBackLatencies(int64_t offset, Stats *stats) {
+        vector<nsecs_t> latencies = stats->getCallBackLatencies();
+        write<int32_t>(offset, stats->getCallBackQueue());
+        write<int32_t>(offset + 4, latencies.size());
+        write<int64_t>(offset + 8, stats->getNumCallBackBatches());
+        nsecs_t values[5] = {};
+        if (!latencies.empty()) {
+            sort(latencies.begin(), latencies.end());
+            values[0] = accumulate(latencies.begin(), latencies.end(), (nsecs_t)0) /
+                        (nsecs_t)latencies.size();
+            const int32_t percentiles[] = {50, 90, 99, 100};
+            for (int32_t i = 0; i < 4; i++) {
+                // Nearest rank, as Distribution.java
+                size_t rank = (latencies.size() * percentiles[i] + 99) / 100;
+                values[i + 1] = latencies[max<size_t>(rank, 1) - 1];
+            }
+        }
+        memcpy(mBuffer + offset + 16, values, sizeof(values));
+    }
+
+    int64_t getRunSize() {
+        int64_t size = kResultsRunHeaderSize + mMaxFrames * (2 * sizeof(nsecs_t) + sizeof(int32_t));
+        return (size + 7) & ~7;
+    }
+
+    template <typename T>
+    T read(int64_t offset) {
+        T value;
+        memcpy(&value, mBuffer + offset, sizeof(T));
+        return value;
+    }
+
+    template <typename T>
+    void write(int64_t offset, T value) {
+        memcpy(mBuffer + offset, &value, sizeof(T));
+    }
+
+    uint8_t *mBuffer;
+    int32_t mMaxRuns;
+    int32_t mMaxFrames;
+    nsecs_t mPhaseTimesNs[kResultsNumPhases];
+};
+
+#endif  // __BENCHMARK_RESULTS_H__
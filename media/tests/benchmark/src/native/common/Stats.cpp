@@ -66,7 +66,7 @@ void Stats::dumpStatistics(string operation, string inputReference, int64_t dura
     rowData.append(inputReference + ", ");
     rowData.append(operation + ", ");
     rowData.append(componentName + ", ");
-    rowData.append("NDK, ");
+    rowData.append(mLayer + ", ");
     rowData.append(mode + ", ");
     rowData.append(to_string(mInitTimeNs) + ", ");
     rowData.append(to_string(mDeInitTimeNs) + ", ");
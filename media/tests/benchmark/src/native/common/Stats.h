@@ -42,6 +42,7 @@
 #include <sys/time.h>
 #include <algorithm>
 #include <numeric>
+#include <string>
 #include <vector>
 
 // Include local copy of Timers taken from system/core/libutils
@@ -54,6 +55,13 @@ class Stats {
     Stats() {
         mInitTimeNs = 0;
         mDeInitTimeNs = 0;
+        mStartTimeNs = 0;
+        mCreateTimeNs = 0;
+        mConfigureTimeNs = 0;
+        mCodecStartTimeNs = 0;
+        mCallBackQueue = 0;
+        mNumCallBackBatches = 0;
+        mLayer = "NDK";
     }
 
     ~Stats() {
@@ -64,6 +72,13 @@ class Stats {
     nsecs_t mInitTimeNs;
     nsecs_t mDeInitTimeNs;
     nsecs_t mStartTimeNs;
+    nsecs_t mCreateTimeNs;
+    nsecs_t mConfigureTimeNs;
+    nsecs_t mCodecStartTimeNs;
+    int32_t mCallBackQueue;
+    int64_t mNumCallBackBatches;
+    std::vector<nsecs_t> mCallBackLatencies;
+    string mLayer;
     std::vector<int32_t> mFrameSizes;
     std::vector<nsecs_t> mInputTimer;
     std::vector<nsecs_t> mOutputTimer;
@@ -77,24 +92,63 @@ class Stats {
 
     void setStartTime() { mStartTimeNs = systemTime(CLOCK_MONOTONIC); }
 
+    // Layer the stats are measured in: NDK, or Codec2 for the components driven directly
+    void setLayer(string layer) { mLayer = layer; }
+
+    // Split of the init time of a codec between its creation, configuration and start
+    void setCodecSetupTimes(nsecs_t createTime, nsecs_t configureTime, nsecs_t startTime) {
+        mCreateTimeNs = createTime;
+        mConfigureTimeNs = configureTime;
+        mCodecStartTimeNs = startTime;
+    }
+
     void addFrameSize(int32_t size) { mFrameSizes.push_back(size); }
 
     void addInputTime() { mInputTimer.push_back(systemTime(CLOCK_MONOTONIC)); }
 
     void addOutputTime() { mOutputTimer.push_back(systemTime(CLOCK_MONOTONIC)); }
 
+    // Queue carrying the async callbacks of the codec to its IO thread
+    void setCallBackQueue(int32_t queueType) { mCallBackQueue = queueType; }
+
+    // Time from a callback of the codec to its handling on the IO thread
+    void addCallBackLatency(nsecs_t latency) { mCallBackLatencies.push_back(latency); }
+
+    // A wake up of the IO thread, which may handle several callbacks
+    void addCallBackBatch() { mNumCallBackBatches++; }
+
     void reset() {
         if (!mFrameSizes.empty()) mFrameSizes.clear();
         if (!mInputTimer.empty()) mInputTimer.clear();
         if (!mOutputTimer.empty()) mOutputTimer.clear();
+        if (!mCallBackLatencies.empty()) mCallBackLatencies.clear();
+        mNumCallBackBatches = 0;
     }
 
     std::vector<nsecs_t> getOutputTimer() { return mOutputTimer; }
 
+    const std::vector<nsecs_t> &getInputTimer() { return mInputTimer; }
+
+    const std::vector<int32_t> &getFrameSizes() { return mFrameSizes; }
+
+    nsecs_t getStartTime() { return mStartTimeNs; }
+
     nsecs_t getInitTime() { return mInitTimeNs; }
 
     nsecs_t getDeInitTime() { return mDeInitTimeNs; }
 
+    nsecs_t getCreateTime() { return mCreateTimeNs; }
+
+    nsecs_t getConfigureTime() { return mConfigureTimeNs; }
+
+    nsecs_t getCodecStartTime() { return mCodecStartTimeNs; }
+
+    int32_t getCallBackQueue() { return mCallBackQueue; }
+
+    const std::vector<nsecs_t> &getCallBackLatencies() { return mCallBackLatencies; }
+
+    int64_t getNumCallBackBatches() { return mNumCallBackBatches; }
+
     nsecs_t getTimeDiff(nsecs_t sTime, nsecs_t eTime) { return (eTime - sTime); }
 
     nsecs_t getTotalTime() {
@@ -162,7 +162,8 @@ int32_t Decoder::decode(uint8_t *inputBuffer, vector<AMediaCodecBufferInfo> &fra
     if (!mime) return AMEDIA_ERROR_INVALID_OBJECT;
 
     int64_t sTime = mStats->getCurTime();
-    mCodec = createMediaCodec(mFormat, mime, codecName, false /*isEncoder*/);
+    nsecs_t createTime = 0;
+    mCodec = createMediaCodec(mFormat, mime, codecName, false /*isEncoder*/, &createTime);
     if (!mCodec) return AMEDIA_ERROR_INVALID_OBJECT;
 
     if (asyncMode) {
@@ -173,10 +174,13 @@ int32_t Decoder::decode(uint8_t *inputBuffer, vector<AMediaCodecBufferInfo> &fra
         mIOThread = thread(&CallBackHandle::ioThread, this);
     }
 
+    int64_t configuredTime = mStats->getCurTime();
     AMediaCodec_start(mCodec);
     int64_t eTime = mStats->getCurTime();
     int64_t timeTaken = mStats->getTimeDiff(sTime, eTime);
     mStats->setInitTime(timeTaken);
+    mStats->setCodecSetupTimes(createTime, mStats->getTimeDiff(sTime, configuredTime) - createTime,
+                               mStats->getTimeDiff(configuredTime, eTime));
 
     mStats->setStartTime();
     if (!asyncMode) {
@@ -55,6 +55,8 @@ class Extractor {
 
     int64_t getClipDuration() { return mDurationUs; }
 
+    Stats *getStats() { return mStats; }
+
   private:
     AMediaFormat *mFormat;
     AMediaExtractor *mExtractor;